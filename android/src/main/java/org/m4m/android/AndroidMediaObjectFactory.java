@@ -36,20 +36,28 @@ import org.m4m.domain.ICaptureSource;
 import org.m4m.domain.IEffectorSurface;
 import org.m4m.domain.IEglContext;
 import org.m4m.domain.IFrameBuffer;
+import org.m4m.domain.IMediaExtractor;
 import org.m4m.domain.IMediaFormatWrapper;
+import org.m4m.domain.IMediaMuxer;
 import org.m4m.domain.IMicrophoneSource;
 import org.m4m.domain.IPreview;
 import org.m4m.domain.ISurfaceWrapper;
+import org.m4m.domain.InterleavingMediaMuxer;
 import org.m4m.domain.MediaFormat;
 import org.m4m.domain.MediaSource;
 import org.m4m.domain.MuxRender;
 import org.m4m.domain.ProgressTracker;
+import org.m4m.domain.ReadAheadMediaExtractor;
 import org.m4m.domain.Render;
 import org.m4m.domain.Resampler;
 import org.m4m.domain.VideoDecoder;
 import org.m4m.domain.VideoEffector;
 import org.m4m.domain.VideoEncoder;
 import org.m4m.domain.VideoTimeScaler;
+import org.m4m.domain.mp4.FastStartMediaMuxer;
+import org.m4m.domain.mp4.FragmentedMp4Muxer;
+import org.m4m.domain.mp4.SampleIndexCache;
+import org.m4m.domain.rtmp.RtmpPublisher;
 
 import org.m4m.android.graphics.EglUtil;
 import org.m4m.android.graphics.FrameBuffer;
@@ -62,30 +70,114 @@ public class AndroidMediaObjectFactory implements IAndroidMediaObjectFactory {
     private final Context context;
 
     MediaCodecEncoderPlugin audioMediaCodec;
+    private long readAheadBudget = 0;
+    private long fragmentDurationUs = 0;
+    private long interleaveWindowUs = 0;
+    private long writeBehindBudget = 0;
+    private boolean fastStart = false;
+    private SampleIndexCache sampleIndexCache;
 
     public AndroidMediaObjectFactory(Context context) {
         this.context = context;
     }
 
+    /**
+     * Makes created media sources read samples ahead on a background thread.
+     * Queue metrics of a source are available from {@link MediaSource#getReadAheadExtractor()}.
+     *
+     * @param readAheadBudget Maximum bytes of samples read ahead per source, 0 disables read ahead.
+     */
+    public void setReadAheadBudget(long readAheadBudget) {
+        this.readAheadBudget = readAheadBudget;
+    }
+
+    /**
+     * Makes created file sinks write fragmented MP4 that stays playable if recording is interrupted.
+     *
+     * @param fragmentDurationUs Target fragment duration in microseconds, 0 writes regular MP4.
+     */
+    public void setFragmentDuration(long fragmentDurationUs) {
+        this.fragmentDurationUs = fragmentDurationUs;
+    }
+
+    /**
+     * Makes created file sinks write samples merged by decode time instead of arrival order.
+     *
+     * @param interleaveWindowUs Time samples are held for reordering in microseconds, 0 disables interleaving.
+     */
+    public void setInterleaveWindow(long interleaveWindowUs) {
+        this.interleaveWindowUs = interleaveWindowUs;
+    }
+
+    /**
+     * Makes fragmented MP4 sinks write to the file from a background thread.
+     *
+     * @param writeBehindBudget Maximum bytes written but not in the file yet, 0 writes synchronously.
+     */
+    public void setWriteBehindBudget(long writeBehindBudget) {
+        this.writeBehindBudget = writeBehindBudget;
+    }
+
+    /**
+     * Makes regular MP4 sinks move the movie box in front of media data when recording is finished.
+     */
+    public void setFastStart(boolean fastStart) {
+        this.fastStart = fastStart;
+    }
+
+    /**
+     * Makes media sources created for file paths take MP4 sample indexes from the cache, so files reopened by
+     * MediaFileInfo and MediaComposer are not parsed again. Files the cache can not parse are opened by the
+     * platform extractor.
+     *
+     * @param sampleIndexCache Cache shared by created sources, null parses every file on open.
+     */
+    public void setSampleIndexCache(SampleIndexCache sampleIndexCache) {
+        this.sampleIndexCache = sampleIndexCache;
+    }
+
+    private IMediaMuxer interleave(IMediaMuxer muxer) {
+        if (interleaveWindowUs <= 0) {
+            return muxer;
+        }
+        return new InterleavingMediaMuxer(muxer, interleaveWindowUs);
+    }
+
+    private IMediaExtractor readAhead(IMediaExtractor mediaExtractor) {
+        if (readAheadBudget <= 0) {
+            return mediaExtractor;
+        }
+        return new ReadAheadMediaExtractor(mediaExtractor, readAheadBudget);
+    }
+
     @Override
     public MediaSource createMediaSource(String fileName) throws IOException {
+        if (sampleIndexCache != null) {
+            try {
+                return new MediaSource(readAhead(new Mp4ExtractorPlugin(fileName, sampleIndexCache)));
+            } catch (IOException e) {
+                // Not a file the cache can map, fall back to the platform extractor
+            } catch (RuntimeException e) {
+                // Not an MP4 file, fall back to the platform extractor
+            }
+        }
         MediaExtractorPlugin mediaExtractor = new MediaExtractorPlugin();
         mediaExtractor.setDataSource(fileName);
-        return new MediaSource(mediaExtractor);
+        return new MediaSource(readAhead(mediaExtractor));
     }
 
     @Override
     public MediaSource createMediaSource(FileDescriptor fileDescriptor) throws IOException {
         MediaExtractorPlugin mediaExtractor = new MediaExtractorPlugin();
         mediaExtractor.setDataSource(fileDescriptor);
-        return new MediaSource(mediaExtractor);
+        return new MediaSource(readAhead(mediaExtractor));
     }
 
     @Override
     public MediaSource createMediaSource(Uri uri) throws IOException {
         MediaExtractorPlugin mediaExtractor = new MediaExtractorPlugin();
         mediaExtractor.setDataSource(context, uri);
-        return new MediaSource(mediaExtractor);
+        return new MediaSource(readAhead(mediaExtractor));
     }
 
     @Override
@@ -124,19 +216,29 @@ public class AndroidMediaObjectFactory implements IAndroidMediaObjectFactory {
 
     @Override
     public Render createSink(String fileName, int orientationHint, IProgressListener progressListener, ProgressTracker progressTracker) throws IOException {
+        if (fileName != null && fragmentDurationUs > 0) {
+            FragmentedMp4Muxer muxer = new FragmentedMp4Muxer(fileName, fragmentDurationUs);
+            muxer.setOrientationHint(orientationHint);
+            muxer.setWriteBehindBudget(writeBehindBudget);
+            return new MuxRender(interleave(muxer), progressListener, progressTracker);
+        }
+        if (fileName != null && fastStart) {
+            String temporaryFileName = fileName + ".tmp";
+            MediaMuxerPlugin muxer = new MediaMuxerPlugin(temporaryFileName, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            muxer.setOrientationHint(orientationHint);
+            return new MuxRender(interleave(new FastStartMediaMuxer(muxer, temporaryFileName, fileName)), progressListener, progressTracker);
+        }
         if (fileName != null) {
             MediaMuxerPlugin muxer = new MediaMuxerPlugin(fileName, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
             muxer.setOrientationHint(orientationHint);
-            return new MuxRender(muxer, progressListener, progressTracker);
+            return new MuxRender(interleave(muxer), progressListener, progressTracker);
         }
         return null;
     }
 
     @Override
     public Render createSink(StreamingParameters parameters, IProgressListener progressListener, ProgressTracker progressTracker) {
-        // Was disabled publishing
-        // return new MuxRender(new MediaStreamerInternal(parameters), progressListener, progressTracker);
-        throw new UnsupportedOperationException();
+        return new MuxRender(new RtmpPublisher(parameters), progressListener, progressTracker);
     }
 
     @Override
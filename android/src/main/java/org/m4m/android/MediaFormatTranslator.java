@@ -16,6 +16,7 @@
 
 package org.m4m.android;
 
+import org.m4m.domain.IWrapper;
 import org.m4m.domain.MediaFormat;
 
 public class MediaFormatTranslator {
@@ -28,6 +29,10 @@ public class MediaFormatTranslator {
             return ((AudioFormatAndroid) mediaFormat).getNativeFormat();
         }
 
+        if (mediaFormat instanceof IWrapper) {
+            return from(((IWrapper<MediaFormat>) mediaFormat).getNativeObject());
+        }
+
         throw new UnsupportedOperationException("Please, don't use MediaFormatTranslator function with this type:" + mediaFormat.getClass().toString());
     }
 
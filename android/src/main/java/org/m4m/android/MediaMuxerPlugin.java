@@ -19,17 +19,21 @@ package org.m4m.android;
 import android.media.MediaCodec;
 import android.media.MediaMuxer;
 
+import org.m4m.VideoFormat;
 import org.m4m.domain.IMediaCodec;
 import org.m4m.domain.IMediaMuxer;
 import org.m4m.domain.MediaFormat;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 public class MediaMuxerPlugin implements IMediaMuxer {
     private final MediaMuxer mediaMuxer;
 
     private long[] lastPresentationTime = new long[2];
+    private boolean[] videoTracks = new boolean[2];
+    private long droppedSampleCount;
 
     public MediaMuxerPlugin(String filename, int outputFormat) throws IOException {
         mediaMuxer = new MediaMuxer(filename, outputFormat);
@@ -37,7 +41,20 @@ public class MediaMuxerPlugin implements IMediaMuxer {
 
     @Override
     public int addTrack(MediaFormat mediaFormat) {
-        return mediaMuxer.addTrack(MediaFormatTranslator.from(mediaFormat));
+        int trackIndex = mediaMuxer.addTrack(MediaFormatTranslator.from(mediaFormat));
+        if (trackIndex >= lastPresentationTime.length) {
+            lastPresentationTime = Arrays.copyOf(lastPresentationTime, trackIndex + 1);
+            videoTracks = Arrays.copyOf(videoTracks, trackIndex + 1);
+        }
+        videoTracks[trackIndex] = mediaFormat instanceof VideoFormat;
+        return trackIndex;
+    }
+
+    /**
+     * Returns the number of audio samples dropped because they went back in time, which MediaMuxer rejects.
+     */
+    public long getDroppedSampleCount() {
+        return droppedSampleCount;
     }
 
     @Override
@@ -75,18 +92,20 @@ public class MediaMuxerPlugin implements IMediaMuxer {
             return;
         }
 
-        if(lastPresentationTime[trackIndex] > bufferInfo.presentationTimeUs)
-        {
-            return;
-        }
-
         //for some reason mediamuxer donot need that
         if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0){
             //ignore codec config
             return;
         }
 
-        lastPresentationTime[trackIndex] =  bufferInfo.presentationTimeUs;
+        // Video comes in decode order, B-frames have earlier presentation times than the frames before them
+        if (!videoTracks[trackIndex] && lastPresentationTime[trackIndex] > bufferInfo.presentationTimeUs)
+        {
+            droppedSampleCount++;
+            return;
+        }
+
+        lastPresentationTime[trackIndex] = Math.max(lastPresentationTime[trackIndex], bufferInfo.presentationTimeUs);
 
         mediaMuxer.writeSampleData(trackIndex, buffer, ByteBufferTranslator.from(bufferInfo));
     }
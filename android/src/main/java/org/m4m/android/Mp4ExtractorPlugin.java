@@ -0,0 +1,68 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.android;
+
+import org.m4m.domain.MediaFormat;
+import org.m4m.domain.mp4.Mp4Extractor;
+import org.m4m.domain.mp4.SampleIndexCache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * Pure Java MP4 extractor handing out native formats, so its tracks can be configured into MediaCodec.
+ * Sample indexes are taken from a cache, warm files are opened without parsing the container.
+ */
+public class Mp4ExtractorPlugin extends Mp4Extractor {
+    private final MediaFormat[] formats;
+
+    public Mp4ExtractorPlugin(String path, SampleIndexCache cache) throws IOException {
+        super(path, cache);
+        formats = new MediaFormat[getTrackCount()];
+    }
+
+    @Override
+    public MediaFormat getTrackFormat(int index) {
+        if (formats[index] == null) {
+            formats[index] = toAndroid(getTrackFormatValues(index));
+        }
+        return formats[index];
+    }
+
+    private static MediaFormat toAndroid(Map<String, Object> values) {
+        android.media.MediaFormat format = new android.media.MediaFormat();
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            Object value = entry.getValue();
+            if (value instanceof Integer) {
+                format.setInteger(entry.getKey(), (Integer) value);
+            } else if (value instanceof Long) {
+                format.setLong(entry.getKey(), (Long) value);
+            } else if (value instanceof String) {
+                format.setString(entry.getKey(), (String) value);
+            } else if (value instanceof ByteBuffer) {
+                format.setByteBuffer(entry.getKey(), (ByteBuffer) value);
+            }
+        }
+
+        String mimeType = format.getString(android.media.MediaFormat.KEY_MIME);
+        if (mimeType.startsWith("video")) {
+            return new VideoFormatAndroid(format);
+        }
+        return new AudioFormatAndroid(format);
+    }
+}
@@ -18,16 +18,17 @@ package org.m4m.android;
 
 import android.media.MediaCodec;
 import android.opengl.EGL14;
-import org.m4m.domain.ISurface;
+import org.m4m.domain.IDisposableSurface;
 import org.m4m.domain.ISurfaceWrapper;
 import org.m4m.domain.Resolution;
 import org.m4m.domain.graphics.IEglUtil;
 
-public class Surface implements ISurface {
+public class Surface implements IDisposableSurface {
     private final OutputSurface outputSurface;
     private final InputSurface inputSurface;
     private int width;
     private int height;
+    private boolean disposed = false;
 
     public Surface(MediaCodec mediaCodec, IEglUtil eglUtil) {
         this.inputSurface = new InputSurface(mediaCodec.createInputSurface(), EGL14.eglGetCurrentContext());
@@ -110,4 +111,17 @@ public class Surface implements ISurface {
     @Override
     public void release(){
     }
+
+    /**
+     * Releases the decoder output texture and the encoder input EGL context, once.
+     */
+    @Override
+    public void dispose() {
+        if (disposed) {
+            return;
+        }
+        disposed = true;
+        outputSurface.release();
+        inputSurface.release();
+    }
 }
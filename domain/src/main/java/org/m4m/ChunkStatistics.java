@@ -0,0 +1,73 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m;
+
+/**
+ * Describes how fast one file or chunk was transcoded in its own pipeline.
+ */
+public class ChunkStatistics {
+    private final int index;
+    private final long durationUs;
+    private final long processingTimeNs;
+
+    public ChunkStatistics(int index, long durationUs, long processingTimeNs) {
+        this.index = index;
+        this.durationUs = durationUs;
+        this.processingTimeNs = processingTimeNs;
+    }
+
+    /**
+     * Returns position of the file or chunk in the composition.
+     *
+     * @return Zero based index.
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Returns duration of the transcoded media.
+     *
+     * @return Duration in microseconds.
+     */
+    public long getDurationInMicroSec() {
+        return durationUs;
+    }
+
+    /**
+     * Returns wall clock time spent by the pipeline.
+     *
+     * @return Processing time in nanoseconds.
+     */
+    public long getProcessingTimeInNanoSec() {
+        return processingTimeNs;
+    }
+
+    /**
+     * Returns transcoding speed relative to real time.
+     *
+     * @return Seconds of media transcoded per second of processing, 0 if nothing was processed.
+     */
+    public double getThroughput() {
+        return processingTimeNs == 0 ? 0 : durationUs * 1000.0 / processingTimeNs;
+    }
+
+    @Override
+    public String toString() {
+        return "Chunk " + index + ": " + durationUs + " us in " + processingTimeNs / 1000000 + " ms, " + getThroughput() + "x";
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m;
+
+/**
+ * Defines how MediaComposer stream copy moves segment starts onto video key frames.
+ */
+public enum KeyframeSnapPolicy {
+    /**
+     * Segment is copied only if it already starts on a key frame.
+     */
+    EXACT,
+    /**
+     * Segment start moves back to the preceding key frame, so nothing requested is lost.
+     */
+    PREVIOUS,
+    /**
+     * Segment start moves forward to the following key frame, so nothing extra is included.
+     */
+    NEXT,
+    /**
+     * Segment start moves to the nearest key frame.
+     */
+    CLOSEST
+}
@@ -18,17 +18,28 @@ package org.m4m;
 
 import org.m4m.domain.AudioEffector;
 import org.m4m.domain.AudioEncoder;
+import org.m4m.domain.ChunkPlanner;
 import org.m4m.domain.CommandProcessor;
 import org.m4m.domain.FileSegment;
 import org.m4m.domain.IAndroidMediaObjectFactory;
+import org.m4m.domain.ICommandProcessor;
+import org.m4m.domain.IPipelineMetrics;
 import org.m4m.domain.MediaFormatType;
 import org.m4m.domain.MediaSource;
 import org.m4m.domain.MultipleMediaSource;
+import org.m4m.domain.Pair;
+import org.m4m.domain.ParallelCommandProcessor;
+import org.m4m.domain.ParallelJoin;
 import org.m4m.domain.Pipeline;
+import org.m4m.domain.PipelineTracer;
 import org.m4m.domain.Plugin;
 import org.m4m.domain.ProgressTracker;
 import org.m4m.domain.Render;
 import org.m4m.domain.Resampler;
+import org.m4m.domain.SmartCutVideoPlugin;
+import org.m4m.domain.StreamCopyPlanner;
+import org.m4m.domain.StreamCopyPlugin;
+import org.m4m.domain.VideoDecoder;
 import org.m4m.domain.VideoEffector;
 import org.m4m.domain.VideoEncoder;
 import org.m4m.domain.VideoTimeScaler;
@@ -36,13 +47,17 @@ import org.m4m.domain.VideoTimeScaler;
 import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
 /**
  * This class implements functionality for simple video editing and transcoding, e.g. joining files, cutting segments from files, applying effects.
  */
 public class MediaComposer implements Serializable {
+    private static final float PARALLEL_TRANSCODING_PROGRESS = 0.9f;
+
     private IAndroidMediaObjectFactory factory;
     private MultipleMediaSource multipleMediaSource;
     private Plugin videoDecoder;
@@ -54,7 +69,26 @@ public class MediaComposer implements Serializable {
     private VideoTimeScaler videoTimeScaler;
     private AudioEffector audioEffector;
     private Pipeline pipeline;
-    private CommandProcessor commandProcessor;
+    private ICommandProcessor commandProcessor;
+    private boolean parallelProcessing = false;
+    private int idleTimeout = 0;
+    private IPipelineMetrics pipelineMetrics;
+    private String traceFile;
+    private boolean inPlaceAudioEffects = false;
+    private KeyframeSnapPolicy streamCopyPolicy;
+    private long maxSnapDistanceUs = Long.MAX_VALUE;
+    private StreamCopyReport streamCopyReport;
+    private boolean smartCut = false;
+    private boolean prepareNextFile = false;
+    private int parallelJoinFiles = 1;
+    private int parallelJoinCodecBudget = 0;
+    private int chunks = 1;
+    private int chunksCodecBudget = 0;
+    private ParallelJoin parallelJoin;
+    private final Object stopLock = new Object();
+    private boolean stopped = false;
+    private volatile List<ChunkStatistics> chunkStatistics = Collections.emptyList();
+    private PipelineTracer tracer;
     private IProgressListener progressListener;
     private ProgressTracker progressTracker = new ProgressTracker();
     private AudioFormat audioFormat;
@@ -298,17 +332,223 @@ public class MediaComposer implements Serializable {
         return (Collection<IAudioEffect>) audioEffector.getAudioEffects().clone();
     }
 
+    /**
+     * Applies audio effects directly to decoded buffers, so decoded audio is copied only once, into the encoder.
+     *
+     * @param inPlaceAudioEffects True to process audio effects in place, false by default.
+     */
+    public void setInPlaceAudioEffects(boolean inPlaceAudioEffects) {
+        this.inPlaceAudioEffects = inPlaceAudioEffects;
+    }
+
+    /**
+     * Enables stream copy: compressed samples go from source files to the target file without decoding and encoding.
+     * Segment starts are snapped to video key frames according to the policy. Processing falls back to transcoding
+     * if any segment can not be snapped, effects or time scaling are used, or joined files have different formats.
+     * Target formats are ignored when the composition is copied.
+     *
+     * @param policy            Key frame snapping policy, null disables stream copy.
+     * @param maxSnapDistanceUs Maximum distance in microseconds a segment start may be moved by.
+     */
+    public void setStreamCopy(KeyframeSnapPolicy policy, long maxSnapDistanceUs) {
+        this.streamCopyPolicy = policy;
+        this.maxSnapDistanceUs = maxSnapDistanceUs;
+    }
+
+    public void setStreamCopy(KeyframeSnapPolicy policy) {
+        setStreamCopy(policy, Long.MAX_VALUE);
+    }
+
+    /**
+     * Enables smart cut: only partial GOPs at segment boundaries are decoded and encoded with the target video format,
+     * video between the first and the last key frame of each segment and all audio are copied.
+     * Used when stream copy is disabled or not possible. Requires target video format with the same codec and
+     * frame size as the source, no effects and no time scaling, otherwise processing falls back to transcoding.
+     *
+     * @param smartCut True to enable smart cut, false by default.
+     */
+    public void setSmartCut(boolean smartCut) {
+        this.smartCut = smartCut;
+    }
+
+    /**
+     * Returns which segments were stream copied on the last start.
+     *
+     * @return Stream copy report, null if stream copy is disabled.
+     */
+    public StreamCopyReport getStreamCopyReport() {
+        return streamCopyReport;
+    }
+
+    /**
+     * Opens and seeks the next source file on a helper thread while the current one is processed,
+     * so joining files does not stall at file boundaries.
+     *
+     * @param prepareNextFile True to prepare the next file in background, false by default.
+     */
+    public void setPrepareNextFile(boolean prepareNextFile) {
+        this.prepareNextFile = prepareNextFile;
+    }
+
+    /**
+     * Enables parallel join: each source file is transcoded in its own pipeline, several files at once,
+     * into an intermediate file, and the intermediate files are then copied into the target one after another.
+     * Used when there is more than one source file and neither stream copy, smart cut, effects nor time scaling apply.
+     * Transcoding of each file advances progress up to 90%, the final copy reports the rest. Intermediate files are
+     * created in the default temporary directory.
+     *
+     * @param maxConcurrentFiles Maximum number of files transcoded at once, 1 by default which disables parallel join.
+     * @param codecBudget        Maximum number of codec instances used at once, each file needs a decoder and
+     *                           an encoder per track.
+     */
+    public void setParallelJoin(int maxConcurrentFiles, int codecBudget) {
+        this.parallelJoinFiles = maxConcurrentFiles;
+        this.parallelJoinCodecBudget = codecBudget;
+    }
+
+    /**
+     * Enables chunked transcoding of a single source file: the file, or its only segment, is split at video key frames
+     * into chunks which are transcoded concurrently in separate pipelines and stitched into the target with continuous
+     * time stamps. Used when there is exactly one source file and neither stream copy, smart cut, effects nor time
+     * scaling apply. Source streams are expected to have closed GOPs. Chunks carry video only, audio is transcoded
+     * in one more pipeline in one piece, so there are no encoder priming gaps at chunk boundaries.
+     *
+     * @param chunks      Number of chunks, 1 by default which disables chunked transcoding.
+     * @param codecBudget Maximum number of codec instances used at once, each chunk needs a video decoder and
+     *                    encoder, the audio pipeline an audio decoder and encoder.
+     */
+    public void setChunkedTranscoding(int chunks, int codecBudget) {
+        this.chunks = chunks;
+        this.chunksCodecBudget = codecBudget;
+    }
+
+    /**
+     * Returns throughput of each file or chunk transcoded by the last parallel join or chunked transcoding,
+     * available after processing finishes.
+     *
+     * @return Read-only list in composition order, empty if files were transcoded in a single pipeline.
+     */
+    public List<ChunkStatistics> getChunkStatistics() {
+        return chunkStatistics;
+    }
+
+    /**
+     * Runs independent chains, e.g. audio and video, on separate threads.
+     *
+     * @param parallelProcessing True to process each chain on its own thread, false by default.
+     */
+    public void setParallelProcessing(boolean parallelProcessing) {
+        this.parallelProcessing = parallelProcessing;
+    }
+
+    /**
+     * Lets the processing thread park instead of spinning while no stage can make progress, e.g. while
+     * codecs are busy. Queued commands wake it right away, codec output is picked up at the latest
+     * when the timeout expires. A few milliseconds saves most of a core at a small throughput cost.
+     *
+     * @param milliseconds Upper bound of a single park, 0 keeps the thread spinning, which is the default.
+     */
+    public void setIdleTimeout(int milliseconds) {
+        this.idleTimeout = milliseconds;
+    }
+
+    /**
+     * Sets a listener receiving pipeline instrumentation: per stage dispatch counts, handler latencies,
+     * command queue depths, pause time and codec wait time.
+     *
+     * @param pipelineMetrics Metrics listener, for example {@link org.m4m.domain.PipelineMetrics}; null disables instrumentation.
+     */
+    public void setPipelineMetrics(IPipelineMetrics pipelineMetrics) {
+        this.pipelineMetrics = pipelineMetrics;
+        if (commandProcessor != null) {
+            commandProcessor.setMetrics(pipelineMetrics);
+        }
+    }
+
+    /**
+     * Enables recording of pipeline execution timeline. Command dispatches, codec buffer dequeues and muxer writes
+     * are written to the file in Chrome trace-event JSON format when processing finishes or fails.
+     *
+     * @param traceFile Path of the trace file, null disables recording.
+     */
+    public void setTraceFile(String traceFile) {
+        this.traceFile = traceFile;
+    }
+
     /**
      * Starts processing.
      */
     public void start() {
+        synchronized (stopLock) {
+            stopped = false;
+        }
 
         multipleMediaSource.verify();
+        multipleMediaSource.setPrepareNextFile(prepareNextFile);
+
+        commandProcessor = parallelProcessing
+                ? new ParallelCommandProcessor(progressListener)
+                : new CommandProcessor(progressListener);
+        commandProcessor.setMetrics(pipelineMetrics);
+        commandProcessor.setIdleTimeout(idleTimeout);
+        tracer = traceFile == null ? null : new PipelineTracer();
+        commandProcessor.setTracer(tracer);
+        progressTracker.setRange(0f, 1f);
+
+        streamCopyReport = planStreamCopy();
+        boolean streamCopy = streamCopyReport != null && streamCopyReport.isStreamCopy();
+        boolean smartCutPossible = !streamCopy && canSmartCut();
+        chunkStatistics = Collections.emptyList();
+        if (!streamCopy && !smartCutPossible && canTranscodeInChunks()) {
+            List<Pair<Long, Long>> chunkSegments = new ChunkPlanner(chunks).plan(multipleMediaSource.files().get(0));
+            if (chunkSegments != null && chunkSegments.size() > 1) {
+                parallelJoin = createParallelJoin(chunks, chunksCodecBudget);
+                startChunkedTranscodingAsync(chunkSegments);
+                return;
+            }
+        }
+        if (!streamCopy && !smartCutPossible && canJoinInParallel()) {
+            parallelJoin = createParallelJoin(parallelJoinFiles, parallelJoinCodecBudget);
+            startParallelJoinAsync(null, null, null);
+            return;
+        }
 
-        commandProcessor = new CommandProcessor(progressListener);
         pipeline = new Pipeline(commandProcessor);
         pipeline.setMediaSource(multipleMediaSource);
 
+        if (streamCopy) {
+            new StreamCopyPlanner(streamCopyPolicy, maxSnapDistanceUs).apply(streamCopyReport, multipleMediaSource.files());
+            if (multipleMediaSource.hasTrack(MediaFormatType.VIDEO)) {
+                pipeline.addVideoDecoder(new StreamCopyPlugin(MediaFormatType.VIDEO));
+            }
+            if (multipleMediaSource.hasTrack(MediaFormatType.AUDIO)) {
+                pipeline.addAudioDecoder(new StreamCopyPlugin(MediaFormatType.AUDIO));
+            }
+            pipeline.setSink(sink);
+
+            startCommandsProcessingAsync();
+            return;
+        }
+
+        for (MediaFile mediaFile : multipleMediaSource.files()) {
+            mediaFile.getMediaSource().setSmartCut(smartCutPossible);
+        }
+        if (smartCutPossible) {
+            if (multipleMediaSource.hasTrack(MediaFormatType.VIDEO)) {
+                videoDecoder = factory.createVideoDecoder(multipleMediaSource.getMediaFormatByType(MediaFormatType.VIDEO));
+                videoEncoder = factory.createVideoEncoder();
+                videoEncoder.setMediaFormat(targetVideoFormat);
+                pipeline.addVideoDecoder(new SmartCutVideoPlugin((VideoDecoder) videoDecoder, videoEncoder));
+            }
+            if (multipleMediaSource.hasTrack(MediaFormatType.AUDIO)) {
+                pipeline.addAudioDecoder(new StreamCopyPlugin(MediaFormatType.AUDIO));
+            }
+            pipeline.setSink(sink);
+
+            startCommandsProcessingAsync();
+            return;
+        }
+
         if (sourceVideoFormat == null) {
             sourceVideoFormat = targetVideoFormat;
         }
@@ -346,6 +586,7 @@ public class MediaComposer implements Serializable {
         if (audioEncoder != null) pipeline.addAudioEncoder(audioEncoder);
         if (audioEffector != null) {
             audioEffector.setMediaFormat(audioFormat);
+            audioEffector.setInPlaceProcessing(inPlaceAudioEffects);
             pipeline.addAudioEffect(audioEffector);
         }
 
@@ -354,6 +595,61 @@ public class MediaComposer implements Serializable {
         startCommandsProcessingAsync();
     }
 
+    private StreamCopyReport planStreamCopy() {
+        if (streamCopyPolicy == null) {
+            return null;
+        }
+
+        StreamCopyReport report = new StreamCopyPlanner(streamCopyPolicy, maxSnapDistanceUs).plan(multipleMediaSource.files());
+        if (videoEffector != null || audioEffector != null) {
+            return new StreamCopyReport(report.getSegments(), "Effects require transcoding.");
+        }
+        if (videoTimeScaler != null) {
+            return new StreamCopyReport(report.getSegments(), "Time scaling requires transcoding.");
+        }
+        return report;
+    }
+
+    private boolean canSmartCut() {
+        if (!smartCut || videoEffector != null || audioEffector != null || videoTimeScaler != null) {
+            return false;
+        }
+        if (new StreamCopyPlanner(KeyframeSnapPolicy.EXACT, 0).checkFormats(multipleMediaSource.files()) != null) {
+            return false;
+        }
+
+        VideoFormat source = (VideoFormat) multipleMediaSource.getMediaFormatByType(MediaFormatType.VIDEO);
+        if (source == null) {
+            return true;
+        }
+        return targetVideoFormat != null
+                && source.getMimeType().equals(targetVideoFormat.getMimeType())
+                && source.getVideoFrameSize().equals(targetVideoFormat.getVideoFrameSize());
+    }
+
+    private ParallelJoin createParallelJoin(int maxConcurrentFiles, int codecBudget) {
+        ParallelJoin parallelJoin = new ParallelJoin(factory,
+                multipleMediaSource.hasTrack(MediaFormatType.VIDEO) ? targetVideoFormat : null,
+                multipleMediaSource.hasTrack(MediaFormatType.AUDIO) ? audioFormat : null,
+                maxConcurrentFiles, codecBudget);
+        ProgressTracker transcodingProgress = new ProgressTracker();
+        transcodingProgress.setRange(0f, PARALLEL_TRANSCODING_PROGRESS);
+        parallelJoin.setProgressListener(progressListener, transcodingProgress);
+        parallelJoin.setInstrumentation(pipelineMetrics, tracer);
+        parallelJoin.setIdleTimeout(idleTimeout);
+        return parallelJoin;
+    }
+
+    private boolean canTranscodeInChunks() {
+        return chunks > 1 && multipleMediaSource.files().size() == 1
+                && videoEffector == null && audioEffector == null && videoTimeScaler == null;
+    }
+
+    private boolean canJoinInParallel() {
+        return parallelJoinFiles > 1 && multipleMediaSource.files().size() > 1
+                && videoEffector == null && audioEffector == null && videoTimeScaler == null;
+    }
+
     public void setVideoTimeScale(float timeScale, FileSegment segment) {
         this.timeScale = timeScale;
         this.segment = segment;
@@ -378,6 +674,16 @@ public class MediaComposer implements Serializable {
      * Stops processing.
      */
     public void stop() {
+        ParallelJoin parallelJoin;
+        Pipeline pipeline;
+        synchronized (stopLock) {
+            stopped = true;
+            parallelJoin = this.parallelJoin;
+            pipeline = this.pipeline;
+        }
+        if (parallelJoin != null) {
+            parallelJoin.stop();
+        }
         if (pipeline != null) {
             pipeline.stop();
         }
@@ -398,6 +704,13 @@ public class MediaComposer implements Serializable {
         audioFormat = null;
         sourceVideoFormat = null;
         targetVideoFormat = null;
+        streamCopyPolicy = null;
+        streamCopyReport = null;
+        smartCut = false;
+        parallelJoinFiles = 1;
+        parallelJoinCodecBudget = 0;
+        chunks = 1;
+        chunksCodecBudget = 0;
     }
 
     private void notifyOnMediaStart() {
@@ -441,11 +754,117 @@ public class MediaComposer implements Serializable {
                     progressTracker.setFinish(multipleMediaSource.getSegmentsDurationInMicroSec());
                     commandProcessor.process();
                 } catch (Exception e) {
+                    writeTrace();
+                    release();
                     notifyOnError(e);
+                    return;
+                }
+
+                writeTrace();
+                release();
+
+                notifyOnMediaProgress(1);
+                notifyOnMediaDone();
+            }
+        }).start();
+    }
+
+    private void startChunkedTranscodingAsync(List<Pair<Long, Long>> chunkSegments) {
+        MediaFile file = multipleMediaSource.files().get(0);
+        List<MediaFile> chunkFiles = new ArrayList<MediaFile>();
+        long[] timeOffsets = new long[chunkSegments.size()];
+        MediaFile audioFile = null;
+        try {
+            for (int i = 0; i < chunkSegments.size(); i++) {
+                MediaFile chunkFile = new MediaFile(openMediaSource(file));
+                chunkFile.addSegment(chunkSegments.get(i));
+                chunkFiles.add(chunkFile);
+                timeOffsets[i] = chunkSegments.get(i).left - chunkSegments.get(0).left;
+            }
+            if (audioFormat != null && multipleMediaSource.hasTrack(MediaFormatType.AUDIO)) {
+                audioFile = new MediaFile(openMediaSource(file));
+                audioFile.addSegment(new Pair<Long, Long>(chunkSegments.get(0).left, chunkSegments.get(chunkSegments.size() - 1).right));
+            }
+        } catch (IOException e) {
+            for (MediaFile chunkFile : chunkFiles) {
+                closeQuietly(chunkFile.getMediaSource());
+            }
+            parallelJoin = null;
+            notifyOnError(e);
+            return;
+        }
+        closeQuietly(file.getMediaSource());
+
+        startParallelJoinAsync(chunkFiles, timeOffsets, audioFile);
+    }
+
+    private MediaSource openMediaSource(MediaFile file) throws IOException {
+        if (file.getFilePath() != null) {
+            return factory.createMediaSource(file.getFilePath());
+        }
+        if (file.getUri() != null) {
+            return factory.createMediaSource(file.getUri());
+        }
+        return factory.createMediaSource(file.getFileDescriptor());
+    }
+
+    private void closeQuietly(MediaSource mediaSource) {
+        try {
+            mediaSource.close();
+        } catch (IOException e) {
+            notifyOnError(e);
+        }
+    }
+
+    /**
+     * @param chunkFiles  Chunks of the only source file, null to join source files.
+     * @param timeOffsets Output time of each chunk start.
+     * @param audioFile   Source of chunks audio transcoded in one piece, null if there is none.
+     */
+    private void startParallelJoinAsync(final List<MediaFile> chunkFiles, final long[] timeOffsets, final MediaFile audioFile) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    notifyOnMediaStart();
+                    notifyOnMediaProgress(0);
+                    MultipleMediaSource joined = chunkFiles == null
+                            ? parallelJoin.transcode(multipleMediaSource.files())
+                            : parallelJoin.transcodeChunks(chunkFiles, timeOffsets, audioFile);
+                    chunkStatistics = parallelJoin.getStatistics();
+                    if (joined == null) {
+                        release();
+                        return;
+                    }
+
+                    Pipeline copyPipeline = new Pipeline(commandProcessor);
+                    copyPipeline.setMediaSource(joined);
+                    if (joined.hasTrack(MediaFormatType.VIDEO)) {
+                        copyPipeline.addVideoDecoder(new StreamCopyPlugin(MediaFormatType.VIDEO));
+                    }
+                    if (joined.hasTrack(MediaFormatType.AUDIO)) {
+                        copyPipeline.addAudioDecoder(new StreamCopyPlugin(MediaFormatType.AUDIO));
+                    }
+                    copyPipeline.setSink(sink);
+                    synchronized (stopLock) {
+                        pipeline = copyPipeline;
+                        if (stopped) {
+                            release();
+                            return;
+                        }
+                    }
+                    copyPipeline.resolve();
+                    progressTracker.setRange(PARALLEL_TRANSCODING_PROGRESS, 1f);
+                    progressTracker.setFinish(joined.getSegmentsDurationInMicroSec());
+                    commandProcessor.process();
+                } catch (Exception e) {
+                    writeTrace();
                     release();
+                    notifyOnError(e);
                     return;
                 }
 
+                writeTrace();
                 release();
 
                 notifyOnMediaProgress(1);
@@ -454,13 +873,40 @@ public class MediaComposer implements Serializable {
         }).start();
     }
 
-    private void release() {
+    private void writeTrace() {
+        if (tracer == null) {
+            return;
+        }
+
         try {
-            pipeline.release();
+            tracer.writeChromeTrace(traceFile);
         } catch (IOException e) {
             notifyOnError(e);
         } finally {
-            pipeline = null;
+            tracer = null;
+        }
+    }
+
+    private void release() {
+        Pipeline pipeline;
+        ParallelJoin parallelJoin;
+        synchronized (stopLock) {
+            pipeline = this.pipeline;
+            parallelJoin = this.parallelJoin;
+            this.pipeline = null;
+            this.parallelJoin = null;
+        }
+
+        try {
+            if (pipeline != null) {
+                pipeline.release();
+            }
+        } catch (IOException e) {
+            notifyOnError(e);
+        }
+
+        if (parallelJoin != null) {
+            parallelJoin.release();
         }
 
         commandProcessor = null;
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m;
+
+import org.m4m.domain.Pair;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Describes which segments MediaComposer could copy without decoding and where their starts were snapped to.
+ */
+public class StreamCopyReport {
+    private final List<Segment> segments;
+    private final String fallbackReason;
+
+    public StreamCopyReport(List<Segment> segments, String fallbackReason) {
+        this.segments = Collections.unmodifiableList(segments);
+        this.fallbackReason = fallbackReason;
+    }
+
+    /**
+     * Returns per segment results, in order of source files and their segments.
+     *
+     * @return Read-only list of segment results.
+     */
+    public List<Segment> getSegments() {
+        return segments;
+    }
+
+    /**
+     * Checks whether the whole composition is stream copied.
+     *
+     * @return True when every segment is copyable and nothing else requires transcoding.
+     */
+    public boolean isStreamCopy() {
+        return getFallbackReason() == null;
+    }
+
+    /**
+     * Returns why the composition is transcoded instead of copied.
+     *
+     * @return Human readable reason, null if the composition is stream copied.
+     */
+    public String getFallbackReason() {
+        if (fallbackReason != null) {
+            return fallbackReason;
+        }
+        for (Segment segment : segments) {
+            if (!segment.isCopyable()) {
+                return "Segment " + segment.getRequested() + " of file " + segment.getFileIndex() + " does not start on a key frame within snap distance.";
+            }
+        }
+        return null;
+    }
+
+    public static class Segment {
+        private final int fileIndex;
+        private final Pair<Long, Long> requested;
+        private final Pair<Long, Long> snapped;
+        private final boolean copyable;
+
+        public Segment(int fileIndex, Pair<Long, Long> requested, Pair<Long, Long> snapped, boolean copyable) {
+            this.fileIndex = fileIndex;
+            this.requested = requested;
+            this.snapped = snapped;
+            this.copyable = copyable;
+        }
+
+        public int getFileIndex() {
+            return fileIndex;
+        }
+
+        /**
+         * @return Segment as added to the source file, in microseconds.
+         */
+        public Pair<Long, Long> getRequested() {
+            return requested;
+        }
+
+        /**
+         * @return Segment with its start on a key frame, equals to requested one if the segment is not copyable.
+         */
+        public Pair<Long, Long> getSnapped() {
+            return snapped;
+        }
+
+        public boolean isCopyable() {
+            return copyable;
+        }
+
+        @Override
+        public String toString() {
+            return "file " + fileIndex + ": " + requested + " -> " + snapped + (copyable ? " copy" : " transcode");
+        }
+    }
+}
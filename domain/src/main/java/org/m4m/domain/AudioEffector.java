@@ -29,6 +29,10 @@ public class AudioEffector extends MediaCodecPlugin {
     private LinkedList<Frame> framesPool = new LinkedList<Frame>();
     private LinkedList<Frame> framesOutput = new LinkedList<Frame>();
     private int capacity = 24 * 1024;
+    private int poolSize = 3;
+
+    private boolean inPlaceProcessing = false;
+    private IPluginOutput bufferOwner;
 
     public AudioEffector(IMediaCodec mediaCodec) {
         super(mediaCodec);
@@ -46,6 +50,35 @@ public class AudioEffector extends MediaCodecPlugin {
         return audioEffects;
     }
 
+    /**
+     * In place mode applies effects directly to decoder output buffers instead of copying them into own frames.
+     * Decoder buffer is returned to its owner only after the next plugin has consumed the frame.
+     */
+    public void setInPlaceProcessing(boolean inPlaceProcessing) {
+        this.inPlaceProcessing = inPlaceProcessing;
+    }
+
+    public boolean isInPlaceProcessing() {
+        return inPlaceProcessing;
+    }
+
+    public boolean canBorrowFrame() {
+        return framesOutput.size() < poolSize;
+    }
+
+    public void pushBorrowed(Frame frame, IPluginOutput owner) {
+        bufferOwner = owner;
+        if (frame == Frame.empty()) {
+            // Decoder had no output, the sentinel owns no decoder buffer
+        } else if (frame.equals(Frame.empty())) {
+            // Nothing to process in a zero size buffer, it goes back to the decoder right away
+            owner.releaseOutputBuffer(frame.getBufferIndex());
+        } else {
+            framesOutput.add(frame);
+        }
+        push(frame);
+    }
+
     @Override
     protected void initInputCommandQueue() {
         feedMeIfNotDraining();
@@ -66,7 +99,7 @@ public class AudioEffector extends MediaCodecPlugin {
             applyEffects(frame);
         }
 
-        if (framesPool.size() > 0) {
+        if (hasFreeFrame()) {
             feedMeIfNotDraining();
         }
 
@@ -94,7 +127,11 @@ public class AudioEffector extends MediaCodecPlugin {
     public void checkIfOutputQueueHasData() {}
 
     @Override
-    public void releaseOutputBuffer(int outputBufferIndex) {}
+    public void releaseOutputBuffer(int outputBufferIndex) {
+        if (inPlaceProcessing && bufferOwner != null) {
+            bufferOwner.releaseOutputBuffer(outputBufferIndex);
+        }
+    }
 
     @Override
     public void pull(Frame frame) {}
@@ -117,16 +154,22 @@ public class AudioEffector extends MediaCodecPlugin {
         if (framesOutput.size() > 0) {
             Iterator<Frame> iterator = framesOutput.iterator();
             frame = iterator.next();
-            framesPool.add(frame);
+            if (!inPlaceProcessing) {
+                framesPool.add(frame);
+            }
             iterator.remove();
         }
 
-        if (framesPool.size() > 0) {
+        if (hasFreeFrame()) {
             feedMeIfNotDraining();
         }
         return frame;
     }
 
+    private boolean hasFreeFrame() {
+        return inPlaceProcessing ? canBorrowFrame() : framesPool.size() > 0;
+    }
+
     private void outputFormatChanged() {
         getOutputCommandQueue().queue(Command.OutputFormatChanged, 0);
     }
@@ -150,6 +193,9 @@ public class AudioEffector extends MediaCodecPlugin {
     @Override
     public void stop() {
         setState(PluginState.Paused);
+        if (inPlaceProcessing) {
+            framesOutput.clear();
+        }
     }
 
     @Override
@@ -182,7 +228,7 @@ public class AudioEffector extends MediaCodecPlugin {
     }
 
     public void reInitInputCommandQueue() {
-        getInputCommandQueue().queue.clear();
+        getInputCommandQueue().clear();
         feedMeIfNotDraining();
     }
 
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.domain;
+
+import org.m4m.MediaFile;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Splits one source file at video key frames into chunks which can be transcoded independently.
+ * Chunk boundaries are the key frames at or before evenly spaced split points, so no chunk needs
+ * frames of another one, assuming closed GOPs.
+ */
+public class ChunkPlanner {
+    private final int chunks;
+
+    public ChunkPlanner(int chunks) {
+        this.chunks = chunks;
+    }
+
+    /**
+     * Returns chunks as segments of the source time line, right bounds inclusive, together covering the file
+     * or its only segment.
+     *
+     * @return Chunk segments in time order, null if the file has more than one segment.
+     */
+    public List<Pair<Long, Long>> plan(MediaFile file) {
+        Collection<Pair<Long, Long>> segments = file.getSegments();
+        if (segments.size() > 1) {
+            return null;
+        }
+
+        MediaSource source = file.getMediaSource();
+        long start = 0;
+        long end = source.getDurationInMicroSec();
+        if (segments.size() == 1) {
+            Pair<Long, Long> segment = segments.iterator().next();
+            start = segment.left;
+            end = Math.min(segment.right, end);
+        }
+
+        List<Pair<Long, Long>> result = new ArrayList<Pair<Long, Long>>();
+        long left = start;
+        for (int i = 1; i < chunks; i++) {
+            long boundary = source.getSyncSampleTime(start + (end - start) * i / chunks, IMediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            if (boundary <= left || boundary >= end) {
+                continue;
+            }
+            result.add(new Pair<Long, Long>(left, boundary - 1));
+            left = boundary;
+        }
+        result.add(new Pair<Long, Long>(left, end));
+        return result;
+    }
+}
@@ -14,6 +14,7 @@
  * limitations under the License.
  */
 
+
 package org.m4m.domain;
 
 import org.m4m.IProgressListener;
@@ -22,44 +23,113 @@ import java.util.ArrayList;
 import java.util.List;
 
 public class CommandHandlerFactory {
+    private static final int COMMANDS = Command.values().length;
+
     List<entry> handlerCreators = new ArrayList<entry>();
 
+    // (output command, input command, track) -> first registered entry, rebuilt after each registration
+    private entry[] dispatchTable;
+    private int tracks;
+
     public ICommandHandler create(Pair<Command, Integer> lhsCommand, Pair<Command, Integer> rhsCommand, IProgressListener progressListener) {
-        IHandlerCreator handlerCreator = findHandlerCreator(lhsCommand, rhsCommand);
-        return handlerCreator.create();
+        return findEntry(lhsCommand, rhsCommand).createHandler();
     }
 
     public void register(Pair<Command, Integer> lhsCommand, Pair<Command, Integer> rhsCommand, IHandlerCreator handlerCreator) {
         handlerCreators.add(new entry(lhsCommand, rhsCommand, handlerCreator));
+        dispatchTable = null;
     }
 
-    private IHandlerCreator findHandlerCreator(Pair<Command, Integer> lhsCommand, Pair<Command, Integer> rhsCommand) {
+    private entry findEntry(Pair<Command, Integer> lhsCommand, Pair<Command, Integer> rhsCommand) {
+        if (dispatchTable == null) {
+            compile();
+        }
+        if (lhsCommand != null && rhsCommand != null && lhsCommand.left != null && rhsCommand.left != null
+            && lhsCommand.right != null && lhsCommand.right.equals(rhsCommand.right)) {
+            int track = lhsCommand.right;
+            if (track >= 0 && track < tracks) {
+                entry entry = dispatchTable[index(lhsCommand.left, rhsCommand.left, track)];
+                if (entry != null) {
+                    return entry;
+                }
+            }
+        }
+        return scan(lhsCommand, rhsCommand);
+    }
+
+    private void compile() {
+        int maxTrack = -1;
+        for (entry handlerCreator : handlerCreators) {
+            maxTrack = Math.max(maxTrack, track(handlerCreator.leftCommand));
+            maxTrack = Math.max(maxTrack, track(handlerCreator.rightCommand));
+        }
+        tracks = maxTrack + 1;
+        entry[] table = new entry[COMMANDS * COMMANDS * tracks];
+        for (Command output : Command.values()) {
+            for (Command input : Command.values()) {
+                for (int track = 0; track < tracks; track++) {
+                    table[index(output, input, track)] = scanOrNull(new Pair<Command, Integer>(output, track), new Pair<Command, Integer>(input, track));
+                }
+            }
+        }
+        dispatchTable = table;
+    }
+
+    private int index(Command output, Command input, int track) {
+        return (output.ordinal() * COMMANDS + input.ordinal()) * tracks + track;
+    }
+
+    private static int track(Pair<Command, Integer> command) {
+        return command == null || command.right == null ? -1 : command.right;
+    }
+
+    private entry scan(Pair<Command, Integer> lhsCommand, Pair<Command, Integer> rhsCommand) {
+        entry handlerCreator = scanOrNull(lhsCommand, rhsCommand);
+        if (handlerCreator == null) {
+            throw new IllegalArgumentException("Command handler for pair (" + lhsCommand + ", " + rhsCommand + ") not found");
+        }
+        return handlerCreator;
+    }
+
+    private entry scanOrNull(Pair<Command, Integer> lhsCommand, Pair<Command, Integer> rhsCommand) {
         for (entry handlerCreator : handlerCreators) {
             if (handlerCreator.leftCommand == null && handlerCreator.rightCommand != null &&
                 handlerCreator.rightCommand.equals(rhsCommand)) {
-                return handlerCreator.handlerCreator;
+                return handlerCreator;
             }
             if (handlerCreator.rightCommand == null && handlerCreator.leftCommand != null &&
                 handlerCreator.leftCommand.equals(lhsCommand)) {
-                return handlerCreator.handlerCreator;
+                return handlerCreator;
             }
             if (handlerCreator.leftCommand != null && handlerCreator.rightCommand != null &&
                 handlerCreator.leftCommand.equals(lhsCommand) && handlerCreator.rightCommand.equals(rhsCommand)) {
-                return handlerCreator.handlerCreator;
+                return handlerCreator;
             }
         }
-        throw new IllegalArgumentException("Command handler for pair (" + lhsCommand + ", " + rhsCommand + ") not found");
+        return null;
     }
 
     private class entry {
         public Pair<Command, Integer> leftCommand;
         public Pair<Command, Integer> rightCommand;
         public IHandlerCreator handlerCreator;
+        private ICommandHandler reusableHandler;
 
         private entry(Pair<Command, Integer> leftCommand, Pair<Command, Integer> rightCommand, IHandlerCreator handlerCreator) {
             this.leftCommand = leftCommand;
             this.rightCommand = rightCommand;
             this.handlerCreator = handlerCreator;
         }
+
+        private ICommandHandler createHandler() {
+            if (reusableHandler != null) {
+                return reusableHandler;
+            }
+            ICommandHandler handler = handlerCreator.create();
+            if (handler instanceof IReusableCommandHandler) {
+                reusableHandler = handler;
+            }
+            return handler;
+        }
     }
 }
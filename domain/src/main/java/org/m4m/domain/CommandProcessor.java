@@ -20,7 +20,7 @@ import org.m4m.IProgressListener;
 
 import java.util.ArrayList;
 
-public class CommandProcessor implements ICommandProcessor {
+public class CommandProcessor implements ICommandProcessor, ICommandQueueListener {
     //Logger log = Logger.getLogger(getClass().getSimpleName());
 
     private final ArrayList<OutputInputPair> pairs = new ArrayList<OutputInputPair>();
@@ -29,7 +29,23 @@ public class CommandProcessor implements ICommandProcessor {
     private volatile boolean isPaused = false;
 
     private static final MatchingCommands matchingCommands = new MatchingCommands();
-    private boolean stopped = false;
+    private static final int DONE = 0;
+    private static final int PROGRESS = 1;
+    private static final int STALLED = 2;
+    private volatile boolean stopped = false;
+
+    private final Object parkingLock = new Object();
+    private volatile boolean parked = false;
+    private volatile boolean signalled = false;
+    private volatile int idleTimeout = 0;
+    private volatile Thread processingThread;
+    private boolean handling = false;
+
+    private volatile long busyIterations = 0;
+    private volatile long idleIterations = 0;
+
+    private volatile IPipelineMetrics metrics;
+    private volatile PipelineTracer tracer;
 
     public CommandProcessor(IProgressListener progressListener) {
         this.progressListener = progressListener;
@@ -38,90 +54,253 @@ public class CommandProcessor implements ICommandProcessor {
     @Override
     public void add(OutputInputPair pair) {
         pairs.add(pair);
+        listen(pair.output.getOutputCommandQueue());
+        listen(pair.input.getInputCommandQueue());
+        attachInstrumentation(pair);
+    }
+
+    private void listen(CommandQueue commandQueue) {
+        if (commandQueue != null) {
+            commandQueue.setListener(this);
+        }
+    }
+
+    @Override
+    public void setMetrics(IPipelineMetrics metrics) {
+        this.metrics = metrics;
+        for (OutputInputPair pair : pairs) {
+            attachInstrumentation(pair);
+        }
+    }
+
+    public IPipelineMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public void setTracer(PipelineTracer tracer) {
+        this.tracer = tracer;
+        for (OutputInputPair pair : pairs) {
+            attachInstrumentation(pair);
+        }
+    }
+
+    public PipelineTracer getTracer() {
+        return tracer;
+    }
+
+    private void attachInstrumentation(OutputInputPair pair) {
+        attachInstrumentation(pair.output);
+        attachInstrumentation(pair.input);
+    }
+
+    private void attachInstrumentation(Object node) {
+        if (node instanceof MediaCodecPlugin) {
+            ((MediaCodecPlugin) node).setMetrics(metrics);
+        }
+        if (node instanceof Input) {
+            ((Input) node).setTracer(tracer);
+        }
     }
 
     @Override
     public void stop() {
         stopped = true;
+        wakeUp();
+    }
+
+    /**
+     * Sets how long the processor parks when no pair can make progress.
+     *
+     * @param milliseconds Upper bound of a single park, 0 keeps the processor spinning.
+     */
+    @Override
+    public void setIdleTimeout(int milliseconds) {
+        this.idleTimeout = milliseconds;
+    }
+
+    public int getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public long getBusyIterationsCount() {
+        return busyIterations;
+    }
+
+    public long getIdleIterationsCount() {
+        return idleIterations;
+    }
+
+    @Override
+    public void onCommandQueued() {
+        wakeUp();
+    }
+
+    @Override
+    public void wakeUp() {
+        // Commands queued back by a stalled handler are not news for this processor
+        if (handling && Thread.currentThread() == processingThread) {
+            return;
+        }
+        signalled = true;
+        if (parked) {
+            synchronized (parkingLock) {
+                parkingLock.notifyAll();
+            }
+        }
     }
 
     @Override
     public void process() {
+        processingThread = Thread.currentThread();
         for (OutputInputPair pair : pairs) {
             pair.output.fillCommandQueues();
             pair.input.fillCommandQueues();
         }
 
         while (!stopped) {
-            for (OutputInputPair pair : pairs) {
-                processCommandPairs(pair);
+            // Checked between passes, so a paused chain never holds a lock shared with other chains
+            checkIfPaused();
+            signalled = false;
+
+            boolean busy = false;
+            for (int i = 0; i < pairs.size(); i++) {
+                busy |= processCommandPairs(pairs.get(i));
+            }
+
+            if (busy) {
+                busyIterations++;
+            } else {
+                idleIterations++;
+                parkIfIdle();
             }
         }
         //log.info("No pairs to process, exit.");
     }
 
-    private void processCommandPairs(OutputInputPair pair) {
-        pair.output.fillCommandQueues();
-        pair.input.fillCommandQueues();
-        CommandQueue outputCommandQueue = pair.output.getOutputCommandQueue();
-        CommandQueue inputCommandQueue = pair.input.getInputCommandQueue();
+    private void parkIfIdle() {
+        if (idleTimeout <= 0) {
+            return;
+        }
 
-        while (pairQueueSpecification.satisfiedBy(outputCommandQueue, inputCommandQueue)) {
-            checkIfPaused();
+        synchronized (parkingLock) {
+            parked = true;
+            try {
+                if (!signalled && !stopped) {
+                    parkingLock.wait(idleTimeout);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                stopped = true;
+            } finally {
+                parked = false;
+            }
+        }
+    }
 
-            Pair<Command, Integer> outputCommand = outputCommandQueue.first();
-            Pair<Command, Integer> inputCommand = inputCommandQueue.first();
+    protected boolean processCommandPairs(OutputInputPair pair) {
+        fillCommandQueues(pair);
+        CommandQueue outputCommandQueue = pair.output.getOutputCommandQueue();
+        CommandQueue inputCommandQueue = pair.input.getInputCommandQueue();
+        boolean busy = false;
 
-            if(outputCommand == null || inputCommand == null) continue;
+        IPipelineMetrics metrics = this.metrics;
+        if (metrics != null) {
+            metrics.onQueueDepths(pair, outputCommandQueue.size(), inputCommandQueue.size());
+        }
 
-            if (inputCommand.left == Command.NextPair) {
-                inputCommandQueue.dequeue();
-                break;
-            }
-            if (outputCommand.left == Command.NextPair) {
-                outputCommandQueue.dequeue();
-                break;
-            }
-            process(outputCommandQueue, inputCommandQueue, pair.commandHandlerFactory);
+        int result;
+        while ((result = processFirstCommands(pair, outputCommandQueue, inputCommandQueue)) != DONE) {
+            busy |= result == PROGRESS;
         }
+        return busy;
     }
 
-    private void process(CommandQueue outputCommandQueue, CommandQueue inputCommandQueue, CommandHandlerFactory commandHandlerFactory) {
-        Pair<Pair<Command, Integer>, Pair<Command, Integer>> matchingCommands = dequeMatchingCommands(outputCommandQueue, inputCommandQueue);
-        Pair<Command, Integer> outputCommand = matchingCommands.left;
-        Pair<Command, Integer> inputCommand = matchingCommands.right;
-        process(outputCommand, inputCommand, commandHandlerFactory);
+    protected void fillCommandQueues(OutputInputPair pair) {
+        pair.output.fillCommandQueues();
+        pair.input.fillCommandQueues();
     }
 
-    private Pair<Pair<Command, Integer>, Pair<Command, Integer>> dequeMatchingCommands(CommandQueue outputCommandQueue, CommandQueue inputCommandQueue) {
-        Pair<Command, Integer> outputCommand;
-        Pair<Command, Integer> inputCommand;
-        for (Pair<Command, Command> matchingCommand : matchingCommands) {
+    /**
+     * Handles the first commands of the pair's queues.
+     *
+     * @return DONE if the pair has nothing more to handle in this pass, PROGRESS or STALLED otherwise.
+     */
+    protected int processFirstCommands(OutputInputPair pair, CommandQueue outputCommandQueue, CommandQueue inputCommandQueue) {
+        if (!pairQueueSpecification.satisfiedBy(outputCommandQueue, inputCommandQueue)) {
+            return DONE;
+        }
+
+        Command outputCommand = outputCommandQueue.firstCommand();
+        Command inputCommand = inputCommandQueue.firstCommand();
 
-            outputCommand = outputCommandQueue.first();
-            inputCommand = inputCommandQueue.first();
+        if(outputCommand == null || inputCommand == null) return DONE;
 
-            if(outputCommand == null || inputCommand == null) continue;
+        if (inputCommand == Command.NextPair) {
+            inputCommandQueue.remove();
+            return DONE;
+        }
+        if (outputCommand == Command.NextPair) {
+            outputCommandQueue.remove();
+            return DONE;
+        }
+        return process(pair, outputCommandQueue, inputCommandQueue) ? PROGRESS : STALLED;
+    }
 
-            boolean match = (matchingCommand.left == null || matchingCommand.left == outputCommand.left) &&
-                            (matchingCommand.right == null || matchingCommand.right == inputCommand.left) &&
-                            (outputCommand.right == inputCommand.right);
-            if (match) {
-                if (matchingCommand.left != null) outputCommand = outputCommandQueue.dequeue();
-                if (matchingCommand.right != null) inputCommand = inputCommandQueue.dequeue();
-                return new Pair<Pair<Command, Integer>, Pair<Command, Integer>>(outputCommand, inputCommand);
+    /**
+     * @return False if the handler could not make progress, i.e. it put its commands back and skipped the input.
+     */
+    private boolean process(OutputInputPair pair, CommandQueue outputCommandQueue, CommandQueue inputCommandQueue) {
+        Pair<Command, Integer> outputCommand = outputCommandQueue.first();
+        Pair<Command, Integer> inputCommand = inputCommandQueue.first();
+
+        Pair<Command, Command> matchingCommand = matchingCommands.find(outputCommand.left, inputCommand.left);
+        if (matchingCommand != null && outputCommand.right == inputCommand.right) {
+            int skips = inputCommandQueue.count(Command.NextPair);
+            if (matchingCommand.left != null) outputCommandQueue.remove();
+            if (matchingCommand.right != null) inputCommandQueue.remove();
+            IPipelineMetrics metrics = this.metrics;
+            if (metrics != null) {
+                metrics.onPairDispatched(pair);
+            }
+            handling = true;
+            try {
+                process(outputCommand, inputCommand, pair.commandHandlerFactory);
+            } finally {
+                handling = false;
             }
+            return inputCommandQueue.count(Command.NextPair) <= skips;
         }
         // Cannot get here, because PairCommandSpecification.satisfiedBy handles the case
-        throw new UnsupportedOperationException("Pair (" + outputCommandQueue.first() + ", " + inputCommandQueue.first() + ") does not match.");
+        throw new UnsupportedOperationException("Pair (" + outputCommand + ", " + inputCommand + ") does not match.");
     }
 
     protected void process(Pair<Command, Integer> outputCommand, Pair<Command, Integer> inputCommand, CommandHandlerFactory commandHandlerFactory) {
         ICommandHandler commandHandler = commandHandlerFactory.create(outputCommand, inputCommand, progressListener);
+        IPipelineMetrics metrics = this.metrics;
+        PipelineTracer tracer = this.tracer;
+        if (metrics == null && tracer == null) {
+            commandHandler.handle();
+            return;
+        }
+
+        long start = System.nanoTime();
         commandHandler.handle();
+        long end = System.nanoTime();
+        if (metrics != null) {
+            metrics.onHandlerExecuted(commandHandler.getClass(), end - start);
+        }
+        if (tracer != null) {
+            tracer.record(commandHandler.getClass(), "handle", outputCommand.right, start, end);
+        }
     }
 
     private synchronized void checkIfPaused() {
+        if (!isPaused) {
+            return;
+        }
+
+        long start = System.nanoTime();
         while (isPaused) try {
             if (progressListener != null) {
                 progressListener.onMediaPause();
@@ -130,13 +309,20 @@ public class CommandProcessor implements ICommandProcessor {
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
+
+        IPipelineMetrics metrics = this.metrics;
+        if (metrics != null) {
+            metrics.onPaused(System.nanoTime() - start);
+        }
     }
 
+    @Override
     public void pause() {
         //log.info("### Pause ###");
         isPaused = true;
     }
 
+    @Override
     public synchronized void resume() {
         //log.info("### Resume ###");
         isPaused = false;
@@ -17,53 +17,172 @@
 package org.m4m.domain;
 
 import java.util.Iterator;
-import java.util.LinkedList;
-
+import java.util.NoSuchElementException;
 
+/**
+ * Growable ring buffer of (command, track id) slots packed into longs, so queueing and dequeueing
+ * do not allocate. Pairs returned by {@link #first()}, {@link #dequeue()} and the iterator are shared
+ * instances for small track ids and must not be modified.
+ */
 public class CommandQueue implements Iterable<Pair<Command, Integer>> {
-    protected LinkedList<Pair<Command, Integer>> queue = new LinkedList<Pair<Command, Integer>>();
+    private static final Command[] commands = Command.values();
+    private static final int CACHED_TRACKS = 64;
+    private static final Pair<Command, Integer>[][] pairs = createPairs();
+
+    private long[] slots = new long[8];
+    private int head = 0;
+    private int size = 0;
+    private ICommandQueueListener listener;
 
     public CommandQueue() {
     }
 
     public CommandQueue(CommandQueue commandQueue) {
-        for (Pair<Command, Integer> pair : commandQueue) {
-            queue(pair.left, pair.right);
+        for (int i = 0; i < commandQueue.size; i++) {
+            queue(commandQueue.commandAt(i), commandQueue.trackIdAt(i));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Pair<Command, Integer>[][] createPairs() {
+        Pair<Command, Integer>[][] pairs = (Pair<Command, Integer>[][]) new Pair<?, ?>[commands.length][CACHED_TRACKS];
+        for (Command command : commands) {
+            for (int trackId = 0; trackId < CACHED_TRACKS; trackId++) {
+                pairs[command.ordinal()][trackId] = new Pair<Command, Integer>(command, trackId);
+            }
         }
+        return pairs;
+    }
+
+    private static Pair<Command, Integer> pairOf(long slot) {
+        Command command = commands[(int) (slot >>> 32)];
+        int trackId = (int) slot;
+        if (trackId >= 0 && trackId < CACHED_TRACKS) {
+            return pairs[command.ordinal()][trackId];
+        }
+        return new Pair<Command, Integer>(command, trackId);
     }
 
     public void queue(Command command, Integer trackId) {
-        Pair<Command, Integer> pair = new Pair<Command, Integer>(command, trackId);
-        queue.add(pair);
+        if (size == slots.length) {
+            grow();
+        }
+        slots[(head + size) & (slots.length - 1)] = ((long) command.ordinal() << 32) | (trackId & 0xffffffffL);
+        size++;
+
+        if (listener != null) {
+            listener.onCommandQueued();
+        }
+    }
+
+    private void grow() {
+        long[] grown = new long[slots.length * 2];
+        for (int i = 0; i < size; i++) {
+            grown[i] = slots[(head + i) & (slots.length - 1)];
+        }
+        slots = grown;
+        head = 0;
+    }
+
+    public void setListener(ICommandQueueListener listener) {
+        this.listener = listener;
     }
 
     public Pair<Command, Integer> dequeue() {
-        return queue.poll();
+        if (size == 0) {
+            return null;
+        }
+        Pair<Command, Integer> first = pairOf(slots[head]);
+        remove();
+        return first;
+    }
+
+    public void remove() {
+        if (size == 0) {
+            return;
+        }
+        head = (head + 1) & (slots.length - 1);
+        size--;
     }
 
     @Override
     public Iterator<Pair<Command, Integer>> iterator() {
-        return queue.iterator();
+        return new Iterator<Pair<Command, Integer>>() {
+            private int index = 0;
+
+            @Override
+            public boolean hasNext() {
+                return index < size;
+            }
+
+            @Override
+            public Pair<Command, Integer> next() {
+                if (index >= size) {
+                    throw new NoSuchElementException();
+                }
+                return pairOf(slotAt(index++));
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
     }
 
     public Pair<Command, Integer> first() {
-        if (size() == 0) {
+        if (size == 0) {
+            return null;
+        }
+        return pairOf(slots[head]);
+    }
+
+    public Command firstCommand() {
+        if (size == 0) {
             return null;
         }
+        return commandAt(0);
+    }
 
-        return queue.peek();
+    public int firstTrackId() {
+        return trackIdAt(0);
     }
 
     public Pair<Command, Integer> last() {
-        if (size() == 0) return null;
-        return queue.getLast();
+        if (size == 0) return null;
+        return pairOf(slotAt(size - 1));
+    }
+
+    public int count(Command command) {
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (commandAt(i) == command) count++;
+        }
+        return count;
+    }
+
+    private long slotAt(int index) {
+        return slots[(head + index) & (slots.length - 1)];
+    }
+
+    private Command commandAt(int index) {
+        return commands[(int) (slotAt(index) >>> 32)];
+    }
+
+    private int trackIdAt(int index) {
+        return (int) slotAt(index);
     }
 
     public void clear() {
-        queue.clear();
+        head = 0;
+        size = 0;
     }
 
     public int size() {
-        return queue.size();
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
     }
 }
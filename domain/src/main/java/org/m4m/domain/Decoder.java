@@ -65,8 +65,8 @@ abstract class Decoder extends MediaCodecPlugin implements IFrameAllocator, ITra
 
     @Override
     public void pull(Frame frame) {
-        IMediaCodec.BufferInfo info = new IMediaCodec.BufferInfo();
-        int outputBufferIndex = mediaCodec.dequeueOutputBuffer(info, timeout);
+        IMediaCodec.BufferInfo info = framePool.acquireBufferInfo();
+        int outputBufferIndex = dequeueOutputBuffer(info);
         //log.info("" + mediaFormatType + ", dequeueOutputBuffer " + outputBufferIndex);
         if (outputBufferIndex >= 0) {
             ByteBuffer[] buffers = mediaCodec.getOutputBuffers();
@@ -94,6 +94,7 @@ abstract class Decoder extends MediaCodecPlugin implements IFrameAllocator, ITra
                 //...
             }
         }
+        framePool.release(info);
     }
 
     @Override
@@ -121,6 +122,9 @@ abstract class Decoder extends MediaCodecPlugin implements IFrameAllocator, ITra
     @Override
     public void stop() {
         super.stop();
+        for (IMediaCodec.BufferInfo bufferInfo : outputBufferInfos) {
+            framePool.release(bufferInfo);
+        }
         outputBufferInfos.clear();
         outputBufferIndexes.clear();
         inputBufferIndexes.clear();
@@ -164,7 +168,7 @@ abstract class Decoder extends MediaCodecPlugin implements IFrameAllocator, ITra
     }
 
     private int addOutputBuffer(int outputBufferIndex, IMediaCodec.BufferInfo bufferInfo) {
-        if (!framesPTSToSkip.contains(bufferInfo.presentationTimeUs) || bufferInfo.isEof()) {
+        if (framesPTSToSkip.isEmpty() || bufferInfo.isEof() || !framesPTSToSkip.contains(bufferInfo.presentationTimeUs)) {
             outputBufferIndexes.add(outputBufferIndex);
             outputBufferInfos.add(bufferInfo);
 
@@ -182,18 +186,20 @@ abstract class Decoder extends MediaCodecPlugin implements IFrameAllocator, ITra
     @Override
     protected int getOutputBufferIndex() {
         //log.info("+ dequeue output buffer");
-        IMediaCodec.BufferInfo bufferInfo = new IMediaCodec.BufferInfo();
-        int outputBufferIndex = mediaCodec.dequeueOutputBuffer(bufferInfo, timeout);
+        IMediaCodec.BufferInfo bufferInfo = framePool.acquireBufferInfo();
+        int outputBufferIndex = dequeueOutputBuffer(bufferInfo);
 
         if (state == PluginState.Draining && outputBufferIndex == IMediaCodec.INFO_TRY_AGAIN_LATER) {
             state = PluginState.Drained;
         }
 
+        boolean queued = false;
         if (outputBufferIndex != IMediaCodec.INFO_TRY_AGAIN_LATER &&
                 outputBufferIndex != IMediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
             //ampLogger.info(this.getClass() + " : flags: " + bufferInfo.flags);
 
             outputBufferIndex = addOutputBuffer(outputBufferIndex, bufferInfo);
+            queued = outputBufferIndex != IMediaCodec.INFO_TRY_AGAIN_LATER;
 //            outputBufferIndexes.add(outputBufferIndex);
 //            outputBufferInfos.add(bufferInfo);
         }
@@ -212,6 +218,9 @@ abstract class Decoder extends MediaCodecPlugin implements IFrameAllocator, ITra
             outputFormatChanged();
         }
 
+        if (!queued) {
+            framePool.release(bufferInfo);
+        }
         return outputBufferIndex;
     }
 
@@ -0,0 +1,358 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.domain;
+
+import org.m4m.AudioFormat;
+import org.m4m.Uri;
+import org.m4m.VideoFormat;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * Reads samples written by one or more {@link ElementaryStreamMuxer}s. Samples of selected tracks are returned
+ * in the order they were written. Track formats are the formats passed to the muxer, completed with the track duration.
+ */
+public class ElementaryStreamExtractor implements IMediaExtractor {
+    public static final int SAMPLE_FLAG_SYNC = 1;
+
+    private final File[] files;
+    private final RandomAccessFile[] inputs;
+    private final FileChannel[] channels;
+    private final ElementaryStreamMuxer.Track[] tracks;
+    private final MediaFormat[] formats;
+    private final int rotation;
+    private final boolean[] selected;
+    private final int[] samples;
+    private int currentTrack = -1;
+
+    ElementaryStreamExtractor(File[] files, List<ElementaryStreamMuxer.Track> tracks, int rotation) throws IOException {
+        this.files = files;
+        this.inputs = new RandomAccessFile[files.length];
+        this.channels = new FileChannel[files.length];
+        try {
+            for (int i = 0; i < files.length; i++) {
+                inputs[i] = new RandomAccessFile(files[i], "r");
+                channels[i] = inputs[i].getChannel();
+            }
+        } catch (IOException e) {
+            release();
+            throw e;
+        }
+        this.tracks = tracks.toArray(new ElementaryStreamMuxer.Track[tracks.size()]);
+        this.rotation = rotation;
+        this.formats = new MediaFormat[this.tracks.length];
+        for (int i = 0; i < formats.length; i++) {
+            formats[i] = withDuration(this.tracks[i].getFormat(), this.tracks[i].getDuration());
+        }
+        selected = new boolean[this.tracks.length];
+        samples = new int[this.tracks.length];
+    }
+
+    @Override
+    public int readSampleData(ByteBuffer inputBuffer) {
+        if (currentTrack < 0) {
+            return -1;
+        }
+
+        int sample = samples[currentTrack];
+        int size = tracks[currentTrack].getSize(sample);
+        if (size > inputBuffer.capacity()) {
+            throw new IllegalArgumentException("Sample of " + size + " bytes does not fit into buffer of " + inputBuffer.capacity() + " bytes.");
+        }
+
+        inputBuffer.clear();
+        inputBuffer.limit(size);
+        int part = tracks[currentTrack].getPart(sample);
+        long offset = tracks[currentTrack].getOffset(sample);
+        try {
+            while (inputBuffer.hasRemaining()) {
+                int read = channels[part].read(inputBuffer, offset + inputBuffer.position());
+                if (read < 0) {
+                    throw new IOException("Unexpected end of " + files[part] + ".");
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        inputBuffer.flip();
+        return size;
+    }
+
+    @Override
+    public MediaFormat getTrackFormat(int i) {
+        return formats[i];
+    }
+
+    @Override
+    public long getSampleTime() {
+        return currentTrack < 0 ? -1 : tracks[currentTrack].getTime(samples[currentTrack]);
+    }
+
+    @Override
+    public boolean advance() {
+        if (currentTrack < 0) {
+            return false;
+        }
+        samples[currentTrack]++;
+        selectCurrentTrack();
+        return currentTrack >= 0;
+    }
+
+    @Override
+    public int getTrackCount() {
+        return tracks.length;
+    }
+
+    @Override
+    public void selectTrack(int index) {
+        selected[index] = true;
+        selectCurrentTrack();
+    }
+
+    @Override
+    public void unselectTrack(int index) {
+        selected[index] = false;
+        selectCurrentTrack();
+    }
+
+    @Override
+    public int getSampleTrackIndex() {
+        return currentTrack;
+    }
+
+    @Override
+    public void release() {
+        IOException error = null;
+        for (RandomAccessFile input : inputs) {
+            if (input == null) {
+                continue;
+            }
+            try {
+                input.close();
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        if (error != null) {
+            throw new RuntimeException(error);
+        }
+    }
+
+    @Override
+    public int getSampleFlags() {
+        return currentTrack < 0 ? 0 : tracks[currentTrack].getFlags(samples[currentTrack]);
+    }
+
+    /**
+     * Video tracks are positioned at a sync sample chosen by the mode, other tracks at their first sample
+     * not earlier than the video position.
+     */
+    @Override
+    public void seekTo(long timeUs, int mode) {
+        long position = timeUs;
+        for (int i = 0; i < tracks.length; i++) {
+            if (selected[i] && formats[i] instanceof VideoFormat) {
+                samples[i] = findSyncSample(tracks[i], timeUs, mode);
+                if (samples[i] < tracks[i].getSampleCount()) {
+                    position = tracks[i].getTime(samples[i]);
+                }
+            }
+        }
+        for (int i = 0; i < tracks.length; i++) {
+            if (selected[i] && !(formats[i] instanceof VideoFormat)) {
+                samples[i] = findSample(tracks[i], position);
+            }
+        }
+        selectCurrentTrack();
+    }
+
+    @Override
+    public int getRotation() {
+        return rotation;
+    }
+
+    @Override
+    public String getFilePath() {
+        return files[0].getPath();
+    }
+
+    @Override
+    public FileDescriptor getFileDescriptor() {
+        try {
+            return inputs[0].getFD();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public Uri getUri() {
+        return null;
+    }
+
+    private static int findSyncSample(ElementaryStreamMuxer.Track track, long timeUs, int mode) {
+        int previous = -1;
+        int next = -1;
+        for (int i = 0; i < track.getSampleCount(); i++) {
+            if ((track.getFlags(i) & SAMPLE_FLAG_SYNC) == 0) {
+                continue;
+            }
+            if (track.getTime(i) <= timeUs) {
+                previous = i;
+            } else {
+                next = i;
+                break;
+            }
+        }
+
+        switch (mode) {
+            case SEEK_TO_NEXT_SYNC:
+                if (previous >= 0 && track.getTime(previous) == timeUs) return previous;
+                return next >= 0 ? next : track.getSampleCount();
+            case SEEK_TO_CLOSEST_SYNC:
+                if (previous < 0) return next >= 0 ? next : 0;
+                if (next < 0) return previous;
+                return timeUs - track.getTime(previous) <= track.getTime(next) - timeUs ? previous : next;
+            default:
+                if (previous >= 0) return previous;
+                return next >= 0 ? next : 0;
+        }
+    }
+
+    private static int findSample(ElementaryStreamMuxer.Track track, long timeUs) {
+        for (int i = 0; i < track.getSampleCount(); i++) {
+            if (track.getTime(i) >= timeUs) {
+                return i;
+            }
+        }
+        return track.getSampleCount();
+    }
+
+    private void selectCurrentTrack() {
+        currentTrack = -1;
+        for (int i = 0; i < tracks.length; i++) {
+            if (!selected[i] || samples[i] >= tracks[i].getSampleCount()) {
+                continue;
+            }
+            if (currentTrack < 0 || tracks[i].getOrder(samples[i]) < tracks[currentTrack].getOrder(samples[currentTrack])) {
+                currentTrack = i;
+            }
+        }
+    }
+
+    private static MediaFormat withDuration(MediaFormat format, long durationUs) {
+        if (format instanceof VideoFormat) {
+            return new VideoTrackFormat((VideoFormat) format, durationUs);
+        }
+        if (format instanceof AudioFormat) {
+            return new AudioTrackFormat((AudioFormat) format, durationUs);
+        }
+        return format;
+    }
+
+    /**
+     * Encoder output formats carry no duration, the wrapper adds it. Platform code unwraps the original format.
+     */
+    static class VideoTrackFormat extends VideoFormat implements IWrapper<MediaFormat> {
+        private final VideoFormat format;
+        private final long durationUs;
+
+        VideoTrackFormat(VideoFormat format, long durationUs) {
+            this.format = format;
+            this.durationUs = durationUs;
+            setVideoCodec(format.getVideoCodec());
+            setVideoFrameSize(format.getVideoFrameSize().width(), format.getVideoFrameSize().height());
+        }
+
+        @Override
+        public MediaFormat getNativeObject() {
+            return format;
+        }
+
+        @Override
+        public ByteBuffer getByteBuffer(String key) {
+            return format.getByteBuffer(key);
+        }
+
+        @Override
+        protected void setInteger(String key, int value) {
+            format.setInteger(key, value);
+        }
+
+        @Override
+        protected int getInteger(String key) {
+            return format.getInteger(key);
+        }
+
+        @Override
+        protected long getLong(String key) {
+            return KEY_DURATION.equals(key) ? durationUs : format.getLong(key);
+        }
+
+        @Override
+        protected String getString(String key) {
+            return format.getString(key);
+        }
+    }
+
+    static class AudioTrackFormat extends AudioFormat implements IWrapper<MediaFormat> {
+        private final AudioFormat format;
+        private final long durationUs;
+
+        AudioTrackFormat(AudioFormat format, long durationUs) {
+            this.format = format;
+            this.durationUs = durationUs;
+            setAudioCodec(format.getAudioCodec());
+        }
+
+        @Override
+        public MediaFormat getNativeObject() {
+            return format;
+        }
+
+        @Override
+        public ByteBuffer getByteBuffer(String key) {
+            return format.getByteBuffer(key);
+        }
+
+        @Override
+        protected void setInteger(String key, int value) {
+            format.setInteger(key, value);
+        }
+
+        @Override
+        protected int getInteger(String key) {
+            return format.getInteger(key);
+        }
+
+        @Override
+        protected long getLong(String key) {
+            return KEY_DURATION.equals(key) ? durationUs : format.getLong(key);
+        }
+
+        @Override
+        protected String getString(String key) {
+            return format.getString(key);
+        }
+    }
+}
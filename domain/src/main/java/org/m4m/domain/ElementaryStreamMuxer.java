@@ -0,0 +1,351 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.domain;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Muxer storing encoded samples of all tracks back to back in a plain file, without any container.
+ * Sample tables are kept in memory, the file is read back with {@link ElementaryStreamExtractor}.
+ * Used for intermediate results which never leave the device.
+ */
+public class ElementaryStreamMuxer implements IMediaMuxer {
+    private static final String[] CODEC_CONFIG_KEYS = {"csd-0", "csd-1", "csd-2"};
+
+    private final File file;
+    private final List<Track> tracks = new ArrayList<Track>();
+    private RandomAccessFile output;
+    private GatheringByteChannel channel;
+    private long writeBehindBudget;
+    private long position;
+    private int sampleCount;
+    private int orientation;
+
+    public ElementaryStreamMuxer(File file) {
+        this.file = file;
+    }
+
+    @Override
+    public int addTrack(MediaFormat mediaFormat) {
+        tracks.add(new Track(mediaFormat));
+        return tracks.size() - 1;
+    }
+
+    @Override
+    public void release() {
+        close();
+    }
+
+    @Override
+    public void setOrientationHint(int degrees) {
+        this.orientation = degrees;
+    }
+
+    /**
+     * Makes samples be written to the file from a background thread, must be called before start.
+     *
+     * @param writeBehindBudget Maximum bytes written but not in the file yet, 0 writes synchronously.
+     */
+    public void setWriteBehindBudget(long writeBehindBudget) {
+        this.writeBehindBudget = writeBehindBudget;
+    }
+
+    @Override
+    public void start() {
+        try {
+            output = new RandomAccessFile(file, "rw");
+            output.setLength(0);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to open " + file + ".", e);
+        }
+        channel = output.getChannel();
+        if (writeBehindBudget > 0) {
+            channel = new WriteBehindChannel(output.getChannel(), writeBehindBudget);
+        }
+        position = 0;
+    }
+
+    @Override
+    public void stop() {
+        close();
+    }
+
+    /**
+     * Codec config buffers are dropped, parameter sets are carried by the track format.
+     */
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer byteBuf, IMediaCodec.BufferInfo bufferInfo) {
+        if (bufferInfo.size == 0 || (bufferInfo.flags & IMediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            return;
+        }
+        if (channel == null) {
+            throw new IllegalStateException("Muxer is not started.");
+        }
+
+        ByteBuffer data = byteBuf.duplicate();
+        data.limit(bufferInfo.offset + bufferInfo.size);
+        data.position(bufferInfo.offset);
+        try {
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write " + file + ".", e);
+        }
+
+        int flags = bufferInfo.flags & ~IMediaCodec.BUFFER_FLAG_END_OF_STREAM;
+        tracks.get(trackIndex).add(0, position, bufferInfo.size, bufferInfo.presentationTimeUs, flags, sampleCount++);
+        position += bufferInfo.size;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    public long getDurationInMicroSec() {
+        long duration = 0;
+        for (Track track : tracks) {
+            duration = Math.max(duration, track.getDuration());
+        }
+        return duration;
+    }
+
+    /**
+     * Opens written samples for reading, the muxer must be stopped.
+     */
+    public ElementaryStreamExtractor createExtractor() throws IOException {
+        if (channel != null) {
+            throw new IllegalStateException("Muxer is not stopped.");
+        }
+        return new ElementaryStreamExtractor(new File[]{file}, tracks, orientation);
+    }
+
+    /**
+     * Opens written samples of several stopped muxers with the same tracks as one stream. Time stamps of
+     * each muxer are shifted by its offset, the track formats of the first muxer are used.
+     */
+    public static ElementaryStreamExtractor concat(List<ElementaryStreamMuxer> muxers, long[] timeOffsetsUs) throws IOException {
+        return concat(muxers, timeOffsetsUs, null);
+    }
+
+    /**
+     * Opens written samples of several stopped muxers with the same tracks as one stream, together with the tracks
+     * of one more muxer covering the whole stream, e.g. audio encoded in one piece. Its time stamps are not shifted,
+     * samples of all tracks are interleaved by time.
+     *
+     * @param whole Muxer with additional tracks, null for none.
+     */
+    public static ElementaryStreamExtractor concat(List<ElementaryStreamMuxer> muxers, long[] timeOffsetsUs, ElementaryStreamMuxer whole) throws IOException {
+        checkCompatible(muxers);
+        ElementaryStreamMuxer first = muxers.get(0);
+        File[] files = new File[muxers.size() + (whole != null ? 1 : 0)];
+        List<Track> tracks = new ArrayList<Track>();
+        for (Track track : first.tracks) {
+            tracks.add(new Track(track.getFormat()));
+        }
+
+        int sequence = 0;
+        for (int part = 0; part < muxers.size(); part++) {
+            ElementaryStreamMuxer muxer = muxers.get(part);
+            if (muxer.channel != null) {
+                throw new IllegalStateException("Muxer is not stopped.");
+            }
+            files[part] = muxer.file;
+            for (int i = 0; i < tracks.size(); i++) {
+                Track track = muxer.tracks.get(i);
+                for (int sample = 0; sample < track.getSampleCount(); sample++) {
+                    tracks.get(i).add(part, track.getOffset(sample), track.getSize(sample),
+                            track.getTime(sample) + timeOffsetsUs[part], track.getFlags(sample), sequence + track.getOrder(sample));
+                }
+            }
+            sequence += muxer.sampleCount;
+        }
+
+        if (whole != null) {
+            if (whole.channel != null) {
+                throw new IllegalStateException("Muxer is not stopped.");
+            }
+            int part = muxers.size();
+            files[part] = whole.file;
+            for (Track track : whole.tracks) {
+                Track copy = new Track(track.getFormat());
+                for (int sample = 0; sample < track.getSampleCount(); sample++) {
+                    copy.add(part, track.getOffset(sample), track.getSize(sample), track.getTime(sample), track.getFlags(sample), 0);
+                }
+                tracks.add(copy);
+            }
+            interleaveByTime(tracks);
+        }
+        return new ElementaryStreamExtractor(files, tracks, first.orientation);
+    }
+
+    /**
+     * Checks that samples of the muxers can be copied into the same tracks: every muxer has the tracks of the first
+     * one, with the same codec config, so decoders configured for the first stream can decode all of them.
+     *
+     * @throws IllegalArgumentException If a stream does not match the first one.
+     */
+    public static void checkCompatible(List<ElementaryStreamMuxer> muxers) {
+        List<Track> tracks = muxers.get(0).tracks;
+        for (int part = 1; part < muxers.size(); part++) {
+            ElementaryStreamMuxer muxer = muxers.get(part);
+            if (muxer.tracks.size() != tracks.size()) {
+                throw new IllegalArgumentException("Stream " + part + " has " + muxer.tracks.size() + " tracks, expected " + tracks.size() + ".");
+            }
+            for (int i = 0; i < tracks.size(); i++) {
+                for (String key : CODEC_CONFIG_KEYS) {
+                    ByteBuffer expected = tracks.get(i).getFormat().getByteBuffer(key);
+                    ByteBuffer actual = muxer.tracks.get(i).getFormat().getByteBuffer(key);
+                    if (expected == null ? actual != null : !expected.equals(actual)) {
+                        throw new IllegalArgumentException("Stream " + part + " track " + i + " has a different " + key + " than stream 0.");
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Renumbers samples so that reading takes the earliest next sample of any track, keeping the order within tracks.
+     */
+    private static void interleaveByTime(List<Track> tracks) {
+        int[] next = new int[tracks.size()];
+        int sequence = 0;
+        while (true) {
+            int earliest = -1;
+            for (int i = 0; i < tracks.size(); i++) {
+                if (next[i] < tracks.get(i).getSampleCount()
+                        && (earliest < 0 || tracks.get(i).getTime(next[i]) < tracks.get(earliest).getTime(next[earliest]))) {
+                    earliest = i;
+                }
+            }
+            if (earliest < 0) {
+                return;
+            }
+            tracks.get(earliest).setOrder(next[earliest]++, sequence++);
+        }
+    }
+
+    private void close() {
+        if (output == null) {
+            return;
+        }
+        try {
+            channel.close();
+            output.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to close " + file + ".", e);
+        } finally {
+            output = null;
+            channel = null;
+        }
+    }
+
+    static class Track {
+        private final MediaFormat format;
+        private int[] parts = new int[64];
+        private long[] offsets = new long[64];
+        private int[] sizes = new int[64];
+        private long[] times = new long[64];
+        private int[] flags = new int[64];
+        private int[] order = new int[64];
+        private int count;
+        private long minTime = Long.MAX_VALUE;
+        private long maxTime = Long.MIN_VALUE;
+
+        Track(MediaFormat format) {
+            this.format = format;
+        }
+
+        void add(int part, long offset, int size, long time, int flag, int sequence) {
+            if (count == offsets.length) {
+                int capacity = count * 2;
+                parts = Arrays.copyOf(parts, capacity);
+                offsets = Arrays.copyOf(offsets, capacity);
+                sizes = Arrays.copyOf(sizes, capacity);
+                times = Arrays.copyOf(times, capacity);
+                flags = Arrays.copyOf(flags, capacity);
+                order = Arrays.copyOf(order, capacity);
+            }
+            parts[count] = part;
+            offsets[count] = offset;
+            sizes[count] = size;
+            times[count] = time;
+            flags[count] = flag;
+            order[count] = sequence;
+            count++;
+            minTime = Math.min(minTime, time);
+            maxTime = Math.max(maxTime, time);
+        }
+
+        MediaFormat getFormat() {
+            return format;
+        }
+
+        int getSampleCount() {
+            return count;
+        }
+
+        int getPart(int sample) {
+            return parts[sample];
+        }
+
+        long getOffset(int sample) {
+            return offsets[sample];
+        }
+
+        int getSize(int sample) {
+            return sizes[sample];
+        }
+
+        long getTime(int sample) {
+            return times[sample];
+        }
+
+        int getFlags(int sample) {
+            return flags[sample];
+        }
+
+        int getOrder(int sample) {
+            return order[sample];
+        }
+
+        void setOrder(int sample, int sequence) {
+            order[sample] = sequence;
+        }
+
+        /**
+         * Latest sample time extended by the average sample interval, so the last sample lies inside the duration.
+         */
+        long getDuration() {
+            if (count == 0) {
+                return 0;
+            }
+            return maxTime + (count == 1 ? 1 : Math.max(1, (maxTime - minTime) / (count - 1)));
+        }
+    }
+}
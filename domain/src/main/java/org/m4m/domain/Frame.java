@@ -26,6 +26,7 @@ public class Frame {
     protected int trackId;
     private int bufferIndex;
     private boolean skipFrame = false;
+    private boolean copyFrame = false;
 
     public Frame(ByteBuffer byteBuffer, int length, long sampleTime, int bufferIndex, int flags, int trackId) {
         this.byteBuffer = byteBuffer;
@@ -161,5 +162,13 @@ public class Frame {
     public boolean isSkipFrame() {
         return this.skipFrame;
     }
+
+    public void toCopyFrame(boolean toCopy) {
+        this.copyFrame = toCopy;
+    }
+
+    public boolean isCopyFrame() {
+        return this.copyFrame;
+    }
 }
 
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.domain;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Recycles frames and buffer infos handed between plugins of a pipeline, so the steady state
+ * does not allocate per frame. Objects are acquired by the plugin producing them and released by
+ * the one consuming them; released objects must not be used any more.
+ */
+public class FramePool {
+    private static final int MAX_POOLED = 64;
+
+    private final ArrayDeque<Frame> frames = new ArrayDeque<Frame>();
+    private final ArrayDeque<IMediaCodec.BufferInfo> bufferInfos = new ArrayDeque<IMediaCodec.BufferInfo>();
+    private int createdFrames;
+    private int createdBufferInfos;
+
+    public synchronized Frame acquire(ByteBuffer byteBuffer, int length, long sampleTime, int bufferIndex, int flags, int trackId) {
+        Frame frame = frames.poll();
+        if (frame == null) {
+            createdFrames++;
+            return new Frame(byteBuffer, length, sampleTime, bufferIndex, flags, trackId);
+        }
+
+        frame.set(byteBuffer, length, sampleTime, bufferIndex, flags, trackId);
+        frame.toSkipFrame(false);
+        frame.toCopyFrame(false);
+        return frame;
+    }
+
+    public synchronized void release(Frame frame) {
+        if (frame == null || frame == Frame.EOF() || frame == Frame.empty() || frame.getClass() != Frame.class) {
+            return;
+        }
+        if (frames.size() < MAX_POOLED) {
+            frame.setByteBuffer(null);
+            frames.add(frame);
+        }
+    }
+
+    public synchronized IMediaCodec.BufferInfo acquireBufferInfo() {
+        IMediaCodec.BufferInfo bufferInfo = bufferInfos.poll();
+        if (bufferInfo == null) {
+            createdBufferInfos++;
+            return new IMediaCodec.BufferInfo();
+        }
+
+        bufferInfo.flags = 0;
+        bufferInfo.offset = 0;
+        bufferInfo.presentationTimeUs = 0;
+        bufferInfo.size = 0;
+        return bufferInfo;
+    }
+
+    public synchronized void release(IMediaCodec.BufferInfo bufferInfo) {
+        if (bufferInfo != null && bufferInfos.size() < MAX_POOLED) {
+            bufferInfos.add(bufferInfo);
+        }
+    }
+
+    public synchronized int getCreatedFrames() {
+        return createdFrames;
+    }
+
+    public synchronized int getCreatedBufferInfos() {
+        return createdBufferInfos;
+    }
+}
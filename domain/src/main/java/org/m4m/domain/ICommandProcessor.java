@@ -22,4 +22,19 @@ public interface ICommandProcessor {
     void add(OutputInputPair pair);
 
     void stop();
+
+    void wakeUp();
+
+    void pause();
+
+    void resume();
+
+    /**
+     * Sets how long the processor parks when no pair can make progress, 0 keeps it spinning.
+     */
+    void setIdleTimeout(int milliseconds);
+
+    void setMetrics(IPipelineMetrics metrics);
+
+    void setTracer(PipelineTracer tracer);
 }
@@ -18,5 +18,10 @@ package org.m4m.domain;
 
 public interface IFrameAllocator {
     Frame findFreeFrame();
+
+    /**
+     * Returns a frame taken with {@link #findFreeFrame()} once it has been pushed.
+     */
+    void releaseFrame(Frame frame);
 }
 
@@ -20,6 +20,7 @@ import java.nio.ByteBuffer;
 
 public interface IMediaCodec {
     public static final int CONFIGURE_FLAG_ENCODE = 1;
+    public static final int BUFFER_FLAG_SYNC_FRAME = 1;
     public static final int BUFFER_FLAG_END_OF_STREAM = 4;
     public static final int BUFFER_FLAG_CODEC_CONFIG = 2;
     public static final int INFO_OUTPUT_BUFFERS_CHANGED = -3;
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.m4m.domain;
+
+/**
+ * Receives pipeline instrumentation events. Register on command processor; when none is registered
+ * the processor skips timing altogether.
+ */
+public interface IPipelineMetrics {
+    void onPairDispatched(OutputInputPair pair);
+
+    void onHandlerExecuted(Class<? extends ICommandHandler> handlerClass, long nanoseconds);
+
+    void onQueueDepths(OutputInputPair pair, int outputQueueDepth, int inputQueueDepth);
+
+    void onPaused(long nanoseconds);
+
+    void onCodecDequeue(MediaCodecPlugin plugin, boolean inputBuffer, long nanoseconds);
+}
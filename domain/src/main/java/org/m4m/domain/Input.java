@@ -20,6 +20,8 @@ abstract class Input implements IInput {
     private CommandQueue inputQueue = new CommandQueue();
     protected PluginState state;
     protected int trackId;
+    protected volatile PipelineTracer tracer;
+    protected FramePool framePool = new FramePool();
 
     Input() {
         this.state = PluginState.Starting;
@@ -27,6 +29,14 @@ abstract class Input implements IInput {
 
     protected void initInputCommandQueue() {}
 
+    public void setTracer(PipelineTracer tracer) {
+        this.tracer = tracer;
+    }
+
+    public void setFramePool(FramePool framePool) {
+        this.framePool = framePool;
+    }
+
     void setState(PluginState state) {
         this.state = state;
     }
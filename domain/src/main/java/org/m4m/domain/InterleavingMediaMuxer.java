@@ -0,0 +1,189 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.domain;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Buffers samples in front of a muxer and writes them merged by decode time, so tracks are interleaved
+ * in contiguous runs regardless of the order the pipeline delivers them. A sample is held until samples
+ * at least one window later have arrived on some track. Decode order within a track is kept; the decode
+ * time of a sample is taken as the highest presentation time seen on its track so far.
+ */
+public class InterleavingMediaMuxer implements IMediaMuxer {
+    public static final long DEFAULT_WINDOW_US = 500000;
+    private static final int MAX_BUFFERED_SAMPLES = 1024;
+    private static final int BUFFER_GRANULARITY = 16 * 1024;
+
+    private final IMediaMuxer muxer;
+    private final long windowUs;
+    private final ArrayList<ArrayDeque<Sample>> tracks = new ArrayList<ArrayDeque<Sample>>();
+    private final ArrayList<Long> lastDecodeTimes = new ArrayList<Long>();
+    private final ArrayDeque<Sample> freeSamples = new ArrayDeque<Sample>();
+    private final IMediaCodec.BufferInfo bufferInfo = new IMediaCodec.BufferInfo();
+    private long newestDecodeTime = Long.MIN_VALUE;
+    private long lastWrittenDecodeTime = Long.MIN_VALUE;
+    private int bufferedSamples;
+    private int maxBufferedSamples;
+    private long lateSamples;
+
+    public InterleavingMediaMuxer(IMediaMuxer muxer) {
+        this(muxer, DEFAULT_WINDOW_US);
+    }
+
+    public InterleavingMediaMuxer(IMediaMuxer muxer, long windowUs) {
+        this.muxer = muxer;
+        this.windowUs = windowUs;
+    }
+
+    @Override
+    public int addTrack(MediaFormat mediaFormat) {
+        int trackIndex = muxer.addTrack(mediaFormat);
+        while (tracks.size() <= trackIndex) {
+            tracks.add(new ArrayDeque<Sample>());
+            lastDecodeTimes.add(Long.MIN_VALUE);
+        }
+        return trackIndex;
+    }
+
+    @Override
+    public void release() {
+        muxer.release();
+    }
+
+    @Override
+    public void setOrientationHint(int degrees) {
+        muxer.setOrientationHint(degrees);
+    }
+
+    @Override
+    public void start() {
+        muxer.start();
+    }
+
+    @Override
+    public void stop() {
+        while (bufferedSamples > 0) {
+            writeEarliest();
+        }
+        muxer.stop();
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer buffer, IMediaCodec.BufferInfo bufferInfo) {
+        if (bufferInfo.size == 0) {
+            return;
+        }
+
+        long decodeTime = Math.max(lastDecodeTimes.get(trackIndex), bufferInfo.presentationTimeUs);
+        lastDecodeTimes.set(trackIndex, decodeTime);
+        if (decodeTime < lastWrittenDecodeTime) {
+            lateSamples++;
+        }
+        newestDecodeTime = Math.max(newestDecodeTime, decodeTime);
+
+        Sample sample = obtain(bufferInfo.size);
+        ByteBuffer data = buffer.duplicate();
+        data.limit(bufferInfo.offset + bufferInfo.size);
+        data.position(bufferInfo.offset);
+        sample.data.clear();
+        sample.data.put(data);
+        sample.data.flip();
+        sample.presentationTime = bufferInfo.presentationTimeUs;
+        sample.decodeTime = decodeTime;
+        sample.flags = bufferInfo.flags;
+        sample.track = trackIndex;
+        tracks.get(trackIndex).add(sample);
+        bufferedSamples++;
+        maxBufferedSamples = Math.max(maxBufferedSamples, bufferedSamples);
+
+        while (bufferedSamples > 0 && (bufferedSamples > MAX_BUFFERED_SAMPLES || earliest().decodeTime <= newestDecodeTime - windowUs)) {
+            writeEarliest();
+        }
+    }
+
+    public long getWindowUs() {
+        return windowUs;
+    }
+
+    public int getBufferedSampleCount() {
+        return bufferedSamples;
+    }
+
+    /**
+     * @return Highest number of samples held for reordering since creation.
+     */
+    public int getMaxReorderDepth() {
+        return maxBufferedSamples;
+    }
+
+    /**
+     * @return Number of samples that arrived after a later sample of another track had been written.
+     */
+    public long getLateSampleCount() {
+        return lateSamples;
+    }
+
+    private Sample earliest() {
+        Sample earliest = null;
+        for (ArrayDeque<Sample> track : tracks) {
+            Sample head = track.peek();
+            if (head != null && (earliest == null || head.decodeTime < earliest.decodeTime)) {
+                earliest = head;
+            }
+        }
+        return earliest;
+    }
+
+    private void writeEarliest() {
+        Sample sample = earliest();
+        tracks.get(sample.track).poll();
+        bufferedSamples--;
+        lastWrittenDecodeTime = Math.max(lastWrittenDecodeTime, sample.decodeTime);
+
+        bufferInfo.offset = 0;
+        bufferInfo.size = sample.data.remaining();
+        bufferInfo.presentationTimeUs = sample.presentationTime;
+        bufferInfo.flags = sample.flags;
+        muxer.writeSampleData(sample.track, sample.data, bufferInfo);
+        freeSamples.add(sample);
+    }
+
+    private Sample obtain(int size) {
+        for (Sample free : freeSamples) {
+            if (free.data.capacity() >= size) {
+                freeSamples.remove(free);
+                return free;
+            }
+        }
+        return new Sample(ByteBuffer.allocate((size / BUFFER_GRANULARITY + 1) * BUFFER_GRANULARITY));
+    }
+
+    private static class Sample {
+        final ByteBuffer data;
+        long presentationTime;
+        long decodeTime;
+        int flags;
+        int track;
+
+        Sample(ByteBuffer data) {
+            this.data = data;
+        }
+    }
+}
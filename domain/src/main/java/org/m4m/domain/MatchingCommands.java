@@ -14,11 +14,17 @@
  * limitations under the License.
  */
 
+
 package org.m4m.domain;
 
 import java.util.ArrayList;
 
 public final class MatchingCommands extends ArrayList<Pair<Command, Command>> {
+    static final int COMMANDS = Command.values().length + 1;
+
+    private Pair<Command, Command>[] firstMatches;
+    private int compiledModCount = -1;
+
     public MatchingCommands() {
         super();
         add(new Pair<Command, Command>(Command.HasData, Command.NeedData));
@@ -27,5 +33,47 @@ public final class MatchingCommands extends ArrayList<Pair<Command, Command>> {
         add(new Pair<Command, Command>(Command.OutputFormatChanged, Command.NeedData));
         add(new Pair<Command, Command>(Command.EndOfFile, Command.NeedInputFormat));
         add(new Pair<Command, Command>(Command.EndOfFile, Command.NeedData));
+        compile();
+    }
+
+    /**
+     * Returns the first registered pair matching given commands, null entries acting as wildcards.
+     * Lookup goes through a matrix precomputed from the list and rebuilt only when the list changes.
+     */
+    public Pair<Command, Command> find(Command output, Command input) {
+        if (compiledModCount != modCount) {
+            compile();
+        }
+        return firstMatches[index(output) * COMMANDS + index(input)];
+    }
+
+    static int index(Command command) {
+        return command == null ? COMMANDS - 1 : command.ordinal();
+    }
+
+    static Command command(int index) {
+        return index == COMMANDS - 1 ? null : Command.values()[index];
+    }
+
+    @SuppressWarnings("unchecked")
+    private void compile() {
+        Pair<Command, Command>[] matches = (Pair<Command, Command>[]) new Pair<?, ?>[COMMANDS * COMMANDS];
+        for (int output = 0; output < COMMANDS; output++) {
+            for (int input = 0; input < COMMANDS; input++) {
+                matches[output * COMMANDS + input] = scan(command(output), command(input));
+            }
+        }
+        firstMatches = matches;
+        compiledModCount = modCount;
+    }
+
+    private Pair<Command, Command> scan(Command output, Command input) {
+        for (Pair<Command, Command> matchingCommand : this) {
+            if ((matchingCommand.left == null || matchingCommand.left == output) &&
+                (matchingCommand.right == null || matchingCommand.right == input)) {
+                return matchingCommand;
+            }
+        }
+        return null;
     }
 }
@@ -18,8 +18,8 @@ package org.m4m.domain;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.Queue;
 import java.util.logging.Logger;
 
@@ -29,9 +29,9 @@ public abstract class MediaCodecPlugin extends Plugin {
     protected final IMediaCodec mediaCodec;
     //protected final org.slf4j.Logger log = LoggerFactory.getLogger(getClass());
 
-    protected Queue<Integer> outputBufferIndexes = new LinkedList<Integer>();
-    protected Queue<Integer> inputBufferIndexes = new LinkedList<Integer>();
-    protected Queue<IMediaCodec.BufferInfo> outputBufferInfos = new LinkedList<IMediaCodec.BufferInfo>();
+    protected Queue<Integer> outputBufferIndexes = new ArrayDeque<Integer>();
+    protected Queue<Integer> inputBufferIndexes = new ArrayDeque<Integer>();
+    protected Queue<IMediaCodec.BufferInfo> outputBufferInfos = new ArrayDeque<IMediaCodec.BufferInfo>();
     protected MediaFormat outputMediaFormat = null;
     protected ByteBuffer[] inputBuffers = null;
     protected int outputTrackId;
@@ -40,6 +40,8 @@ public abstract class MediaCodecPlugin extends Plugin {
 
     protected HashMap<Integer, Frame> bufferIndexToFrame = new HashMap<Integer, Frame>();
 
+    private volatile IPipelineMetrics metrics;
+
     public MediaCodecPlugin(IMediaCodec mediaCodec) {
         this.mediaCodec = mediaCodec;
     }
@@ -52,14 +54,13 @@ public abstract class MediaCodecPlugin extends Plugin {
     @Override
     protected void feedMeIfNotDraining() {
         if (state != PluginState.Draining && state != PluginState.Drained) {
-            int inputBufferIndex = mediaCodec.dequeueInputBuffer(timeout);
+            int inputBufferIndex = dequeueInputBuffer();
             if (inputBufferIndex >= 0) {
                 inputBufferIndexes.add(inputBufferIndex);
                 super.feedMeIfNotDraining();
             } else {
                 if (inputBufferIndexes.size() > 0) {
-                    Pair<Command, Integer> command = getInputCommandQueue().first();
-                    if (command == null || command.left != Command.NeedData) {
+                    if (getInputCommandQueue().firstCommand() != Command.NeedData) {
                         super.feedMeIfNotDraining();
                     }
                 }
@@ -69,6 +70,18 @@ public abstract class MediaCodecPlugin extends Plugin {
 
     @Override
     public Frame getFrame() {
+        PipelineTracer tracer = this.tracer;
+        if (tracer == null) {
+            return takeOutputFrame();
+        }
+
+        long start = System.nanoTime();
+        Frame frame = takeOutputFrame();
+        tracer.record(getClass(), "getFrame", outputTrackId, start, System.nanoTime());
+        return frame;
+    }
+
+    private Frame takeOutputFrame() {
         feedMeIfNotDraining();
 
         Integer outputBufferIndex = outputBufferIndexes.poll();
@@ -87,11 +100,13 @@ public abstract class MediaCodecPlugin extends Plugin {
         }
 
         while (isStatusToSkip(outputBufferIndex) && outputBufferIndexes.size() > 0) {
+            framePool.release(outputBufferInfo);
             outputBufferIndex = outputBufferIndexes.poll();
             outputBufferInfo = outputBufferInfos.poll();
         }
 
         if (outputBufferIndex < 0) {
+            framePool.release(outputBufferInfo);
             return Frame.empty();
         }
 
@@ -110,6 +125,7 @@ public abstract class MediaCodecPlugin extends Plugin {
 
             Logger.getLogger("AMP").info("New frame allocated for buffer " + outputBufferIndex);
         }
+        framePool.release(outputBufferInfo);
 
         checkIfOutputQueueHasData();
 
@@ -124,18 +140,20 @@ public abstract class MediaCodecPlugin extends Plugin {
 
     protected int getOutputBufferIndex() {
         //log.info("+ dequeue output buffer");
-        IMediaCodec.BufferInfo bufferInfo = new IMediaCodec.BufferInfo();
-        int outputBufferIndex = mediaCodec.dequeueOutputBuffer(bufferInfo, timeout);
+        IMediaCodec.BufferInfo bufferInfo = framePool.acquireBufferInfo();
+        int outputBufferIndex = dequeueOutputBuffer(bufferInfo);
 
         if (state == PluginState.Draining && outputBufferIndex == IMediaCodec.INFO_TRY_AGAIN_LATER) {
             state = PluginState.Drained;
         }
 
+        boolean queued = false;
         if (outputBufferIndex != IMediaCodec.INFO_TRY_AGAIN_LATER &&
                 outputBufferIndex != IMediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
             //ampLogger.info(this.getClass() + " : flags: " + bufferInfo.flags);
             outputBufferIndexes.add(outputBufferIndex);
             outputBufferInfos.add(bufferInfo);
+            queued = true;
         }
 
         if (outputBufferIndex >= 0) {
@@ -152,6 +170,47 @@ public abstract class MediaCodecPlugin extends Plugin {
             outputFormatChanged();
         }
 
+        if (!queued) {
+            framePool.release(bufferInfo);
+        }
+        return outputBufferIndex;
+    }
+
+    protected int dequeueInputBuffer() {
+        IPipelineMetrics metrics = this.metrics;
+        PipelineTracer tracer = this.tracer;
+        if (metrics == null && tracer == null) {
+            return mediaCodec.dequeueInputBuffer(timeout);
+        }
+
+        long start = System.nanoTime();
+        int inputBufferIndex = mediaCodec.dequeueInputBuffer(timeout);
+        long end = System.nanoTime();
+        if (metrics != null) {
+            metrics.onCodecDequeue(this, true, end - start);
+        }
+        if (tracer != null) {
+            tracer.record(getClass(), "dequeueInputBuffer", getTrackId(), start, end);
+        }
+        return inputBufferIndex;
+    }
+
+    protected int dequeueOutputBuffer(IMediaCodec.BufferInfo bufferInfo) {
+        IPipelineMetrics metrics = this.metrics;
+        PipelineTracer tracer = this.tracer;
+        if (metrics == null && tracer == null) {
+            return mediaCodec.dequeueOutputBuffer(bufferInfo, timeout);
+        }
+
+        long start = System.nanoTime();
+        int outputBufferIndex = mediaCodec.dequeueOutputBuffer(bufferInfo, timeout);
+        long end = System.nanoTime();
+        if (metrics != null) {
+            metrics.onCodecDequeue(this, false, end - start);
+        }
+        if (tracer != null) {
+            tracer.record(getClass(), "dequeueOutputBuffer", outputTrackId, start, end);
+        }
         return outputBufferIndex;
     }
 
@@ -176,7 +235,18 @@ public abstract class MediaCodecPlugin extends Plugin {
     }
 
     public Frame findFreeFrame() {
+        PipelineTracer tracer = this.tracer;
+        if (tracer == null) {
+            return takeFreeFrame();
+        }
 
+        long start = System.nanoTime();
+        Frame frame = takeFreeFrame();
+        tracer.record(getClass(), "findFreeFrame", getTrackId(), start, System.nanoTime());
+        return frame;
+    }
+
+    private Frame takeFreeFrame() {
         if (this.state == PluginState.Draining || this.state == PluginState.Drained) {
             return Frame.EOF();
         }
@@ -185,7 +255,11 @@ public abstract class MediaCodecPlugin extends Plugin {
             return null;
         }
         int inputBufferIndex = inputBufferIndexes.poll();
-        return new Frame(inputBuffers[inputBufferIndex], 0, 0, inputBufferIndex, 0, 0);
+        return framePool.acquire(inputBuffers[inputBufferIndex], 0, 0, inputBufferIndex, 0, 0);
+    }
+
+    public void releaseFrame(Frame frame) {
+        framePool.release(frame);
     }
 
     @Override
@@ -226,6 +300,10 @@ public abstract class MediaCodecPlugin extends Plugin {
         mediaCodec.release();
     }
 
+    public void setMetrics(IPipelineMetrics metrics) {
+        this.metrics = metrics;
+    }
+
     public void setTimeout(int timeout) {
         this.timeout = timeout;
     }
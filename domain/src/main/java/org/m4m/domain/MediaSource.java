@@ -33,6 +33,8 @@ public class MediaSource implements IMediaSource {
     private Segments segments = new Segments(new ArrayList<Pair<Long, Long>>());
     private long seekPosition = 0l;
     private boolean seekedOutsideNeededSegment = false;
+    private boolean smartCut = false;
+    private List<Pair<Long, Long>> copyRanges = new ArrayList<Pair<Long, Long>>();
 
 
     public MediaSource(IMediaExtractor mediaExtractor) {
@@ -60,6 +62,13 @@ public class MediaSource implements IMediaSource {
         return commandQueue;
     }
 
+    /**
+     * @return Read-ahead queue serving this source, to read its occupancy metrics, or null if samples are read directly.
+     */
+    public ReadAheadMediaExtractor getReadAheadExtractor() {
+        return mediaExtractor instanceof ReadAheadMediaExtractor ? (ReadAheadMediaExtractor) mediaExtractor : null;
+    }
+
     @Override
     public void fillCommandQueues() {
     }
@@ -91,6 +100,7 @@ public class MediaSource implements IMediaSource {
         frame.setLength(mediaExtractor.readSampleData(frame.getByteBuffer()));
         frame.getByteBuffer().position(0);
         frame.toSkipFrame(getSkipDecision());
+        frame.toCopyFrame(smartCut && getCopyDecision());
     }
 
     private boolean getSkipDecision() {
@@ -98,6 +108,16 @@ public class MediaSource implements IMediaSource {
         return false;
     }
 
+    private boolean getCopyDecision() {
+        if (!isVideoTrack()) return true;
+
+        long sampleTime = mediaExtractor.getSampleTime();
+        for (Pair<Long, Long> range : copyRanges) {
+            if (sampleTime >= range.left && sampleTime < range.right) return true;
+        }
+        return false;
+    }
+
     private void checkIfHasData() {
         if (mediaExtractor.getSampleTrackIndex() == -1) {
             drain();
@@ -187,9 +207,37 @@ public class MediaSource implements IMediaSource {
         } else {
             removeOutOfBoundSegments();
         }
+        if (smartCut) {
+            findCopyRanges();
+        }
         seek(segments.first().left);
     }
 
+    /**
+     * Enables marking of samples which can be copied without transcoding: video samples from the first
+     * to the last key frame inside each segment, and all audio samples.
+     *
+     * @param smartCut True to mark copy frames, false by default.
+     */
+    public void setSmartCut(boolean smartCut) {
+        this.smartCut = smartCut;
+    }
+
+    private void findCopyRanges() {
+        copyRanges.clear();
+        long duration = getDurationInMicroSec();
+        for (Pair<Long, Long> segment : segments.asCollection()) {
+            long firstSyncSample = getSyncSampleTime(segment.left, IMediaExtractor.SEEK_TO_NEXT_SYNC);
+            long lastSyncSample = segment.right >= duration
+                    ? Long.MAX_VALUE
+                    : getSyncSampleTime(segment.right, IMediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+
+            if (firstSyncSample >= 0 && firstSyncSample < lastSyncSample) {
+                copyRanges.add(new Pair<Long, Long>(firstSyncSample, lastSyncSample));
+            }
+        }
+    }
+
     private void removeOutOfBoundSegments() {
         segments.removeOutOfBoundSegments(getDurationInMicroSec());
     }
@@ -256,6 +304,35 @@ public class MediaSource implements IMediaSource {
         checkIfHasData();
     }
 
+    /**
+     * Finds the video sync sample the given time maps to, e.g. to align cuts to key frames.
+     * Track selection is preserved, the next start or seek repositions the source.
+     *
+     * @param timeUs Time in microseconds.
+     * @param mode   IMediaExtractor.SEEK_TO_PREVIOUS_SYNC, SEEK_TO_NEXT_SYNC or SEEK_TO_CLOSEST_SYNC.
+     * @return Sync sample time, timeUs if the source has no video track, -1 if there is no such sync sample.
+     */
+    public long getSyncSampleTime(long timeUs, int mode) {
+        int videoTrack = getTrackIdByMediaType(MediaFormatType.VIDEO);
+        if (videoTrack == -1) {
+            return timeUs;
+        }
+
+        for (int trackId : selectedTracks) {
+            if (trackId != videoTrack) mediaExtractor.unselectTrack(trackId);
+        }
+        if (!selectedTracks.contains(videoTrack)) mediaExtractor.selectTrack(videoTrack);
+
+        mediaExtractor.seekTo(timeUs, mode);
+        long syncSampleTime = mediaExtractor.getSampleTrackIndex() == -1 ? -1 : mediaExtractor.getSampleTime();
+
+        if (!selectedTracks.contains(videoTrack)) mediaExtractor.unselectTrack(videoTrack);
+        for (int trackId : selectedTracks) {
+            if (trackId != videoTrack) mediaExtractor.selectTrack(trackId);
+        }
+        return syncSampleTime;
+    }
+
     private boolean hasVideoTrack() {
         for (Integer selectedTrack : selectedTracks) {
             if (isVideoTrack(selectedTrack)) return true;
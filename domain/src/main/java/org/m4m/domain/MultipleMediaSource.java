@@ -25,7 +25,7 @@ import java.util.*;
 
 public class MultipleMediaSource implements IMediaSource {
     private LinkedList<MediaFile> mediaFiles = new LinkedList<MediaFile>();
-    private Iterator<MediaFile> mediaFileIterator = null;
+    private ListIterator<MediaFile> mediaFileIterator = null;
     private MediaFile currentMediaFile = null;
     private Hashtable<Integer, Long> sampleTimeOffsets = new Hashtable<Integer, Long>();
     private Hashtable<Integer, Long> currentSampleTimes = new Hashtable<Integer, Long>();
@@ -34,6 +34,10 @@ public class MultipleMediaSource implements IMediaSource {
     private int connectedPluginsCount = 0;
     private int nextFileRequest = 0;
     private Dictionary<Integer, Integer> trackIdMap = new Hashtable<Integer, Integer>();
+    private boolean prepareNextFile = false;
+    private MediaFile preparedFile;
+    private Thread preparingThread;
+    private RuntimeException prepareError;
 
     @Override
     public CommandQueue getOutputCommandQueue() {
@@ -46,6 +50,7 @@ public class MultipleMediaSource implements IMediaSource {
 
     @Override
     public void close() throws IOException {
+        awaitPreparedFile(false);
         for (MediaFile mediaFile : mediaFiles) {
             mediaFile.getMediaSource().close();
         }
@@ -87,9 +92,11 @@ public class MultipleMediaSource implements IMediaSource {
     }
 
     private void pullFrameFromMediaSource(Frame frame) {
-        Pair<Command, Integer> firstCommand = currentMediaFile.getMediaSource().getOutputCommandQueue().dequeue();
+        CommandQueue sourceQueue = currentMediaFile.getMediaSource().getOutputCommandQueue();
+        Command firstCommand = sourceQueue.firstCommand();
+        sourceQueue.remove();
 
-        if (firstCommand.left == Command.HasData) {
+        if (firstCommand == Command.HasData) {
             currentMediaFile.getMediaSource().pull(frame);
             frame.trackId = mapTrackId(frame.trackId);
             frame.setSampleTime(safeGet(sampleTimeOffsets.get(frame.getTrackId())) + frame.getSampleTime());
@@ -113,18 +120,71 @@ public class MultipleMediaSource implements IMediaSource {
             sampleTimeOffsets.put(key, maxCurrentTimeOffset + 1);
         }
 
-        currentMediaFile = mediaFileIterator.next();
-        currentMediaFile.start();
+        MediaFile nextMediaFile = mediaFileIterator.next();
+        if (awaitPreparedFile(true) != nextMediaFile) {
+            nextMediaFile.start();
+        }
+        currentMediaFile = nextMediaFile;
+        startPreparingNextFile();
     }
 
-    private boolean isLastFrame() {
+    /**
+     * Starts the file following the current one on a helper thread, so switching files at the boundary does
+     * not wait for the extractor to seek and fill its buffers.
+     *
+     * @param prepareNextFile True to prepare the next file in background, false by default.
+     */
+    public void setPrepareNextFile(boolean prepareNextFile) {
+        this.prepareNextFile = prepareNextFile;
+    }
 
-        CommandQueue queue = currentMediaFile.getMediaSource().getOutputCommandQueue();
-        Pair<Command, Integer> command = queue.first();
+    private void startPreparingNextFile() {
+        if (!prepareNextFile || !mediaFileIterator.hasNext()) {
+            return;
+        }
 
-        if (command == null) return false;
+        final MediaFile nextMediaFile = mediaFiles.get(mediaFileIterator.nextIndex());
+        preparedFile = nextMediaFile;
+        preparingThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    nextMediaFile.start();
+                } catch (RuntimeException e) {
+                    prepareError = e;
+                }
+            }
+        }, "MultipleMediaSource");
+        preparingThread.start();
+    }
 
-        return queue.size() == 1 && command.left == Command.EndOfFile;
+    private MediaFile awaitPreparedFile(boolean rethrowError) {
+        if (preparingThread == null) {
+            return null;
+        }
+
+        try {
+            preparingThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while preparing next file.", e);
+        }
+        preparingThread = null;
+
+        MediaFile mediaFile = preparedFile;
+        RuntimeException error = prepareError;
+        preparedFile = null;
+        prepareError = null;
+        if (error != null && rethrowError) {
+            throw error;
+        }
+        return mediaFile;
+    }
+
+    private boolean isLastFrame() {
+
+        CommandQueue queue = currentMediaFile.getMediaSource().getOutputCommandQueue();
+        return queue.size() == 1 && queue.firstCommand() == Command.EndOfFile;
     }
 
     public boolean isLastFile() {
@@ -140,6 +200,7 @@ public class MultipleMediaSource implements IMediaSource {
     public void start() {
         currentMediaFile.start();
         hasData();
+        startPreparingNextFile();
     }
 
     public List<MediaFile> files() {
@@ -150,7 +211,7 @@ public class MultipleMediaSource implements IMediaSource {
         validate(mediaFile);
 
         mediaFiles.add(mediaFile);
-        mediaFileIterator = mediaFiles.iterator();
+        mediaFileIterator = mediaFiles.listIterator();
         currentMediaFile = mediaFileIterator.next();
         isLastFile = mediaFiles.size() == 1;
     }
@@ -179,13 +240,12 @@ public class MultipleMediaSource implements IMediaSource {
     }
 
     private void hasData() {
-        Pair<Command, Integer> firstCommand = currentMediaFile.getMediaSource().getOutputCommandQueue().first();
+        CommandQueue sourceQueue = currentMediaFile.getMediaSource().getOutputCommandQueue();
+        Command firstCommand = sourceQueue.firstCommand();
         if (firstCommand == null) return;
 
-        firstCommand.right = mapTrackId(firstCommand.right);
-
-        if (firstCommand.left != Command.EndOfFile) {
-            commandQueue.queue(firstCommand.left, firstCommand.right);
+        if (firstCommand != Command.EndOfFile) {
+            commandQueue.queue(firstCommand, mapTrackId(sourceQueue.firstTrackId()));
         } else if (!isLastFile) {
             queueCommand(Command.OutputFormatChanged);
         } else {
@@ -34,7 +34,8 @@ public class MuxRender extends Render {
     private int drainCount = 0;
     private int videoTrackId = -1;
     private int audioTrackId = -1;
-    private ArrayList<IPluginOutput> releasersList = new ArrayList();
+    private ArrayList<BufferRelease> releasersList = new ArrayList<BufferRelease>();
+    private ArrayList<BufferRelease> deferredReleases = new ArrayList<BufferRelease>();
     private FrameBuffer frameBuffer = new FrameBuffer(0);
     private boolean zeroFramesReceived = true;
 
@@ -82,7 +83,7 @@ public class MuxRender extends Render {
             feedMeIfNotDraining();
         } else {
             frameBuffer.push(frame);
-            releasersList.add(releaser);
+            releasersList.add(new BufferRelease(releaser, frame.getBufferIndex()));
             getInputCommandQueue().queue(Command.NeedInputFormat, 0);
         }
     }
@@ -91,18 +92,43 @@ public class MuxRender extends Render {
         while (frameBuffer.canPull()) {
             Frame bufferedFrame = frameBuffer.pull();
             writeSampleData(bufferedFrame);
-            releasersList.get(0).releaseOutputBuffer(bufferedFrame.getBufferIndex());
-            releasersList.remove(0);
+            BufferRelease release = releasersList.remove(0);
+            if (release.thread == Thread.currentThread()) {
+                release.releaser.releaseOutputBuffer(release.bufferIndex);
+            } else {
+                // Buffers of a track processed on another thread are given back on that thread
+                deferredReleases.add(release);
+            }
+        }
+    }
+
+    private void releaseDeferredBuffers() {
+        for (int i = 0; i < deferredReleases.size(); ) {
+            BufferRelease release = deferredReleases.get(i);
+            if (release.thread == Thread.currentThread()) {
+                release.releaser.releaseOutputBuffer(release.bufferIndex);
+                deferredReleases.remove(i);
+            } else {
+                i++;
+            }
         }
     }
 
     private void writeSampleData(Frame frame) {
-        IMediaCodec.BufferInfo bufferInfo = new IMediaCodec.BufferInfo();
+        IMediaCodec.BufferInfo bufferInfo = framePool.acquireBufferInfo();
         bufferInfo.flags = frame.getFlags();
         bufferInfo.presentationTimeUs = frame.getSampleTime();
         bufferInfo.size = frame.getLength();
 
-        muxer.writeSampleData(frame.getTrackId(), frame.getByteBuffer(), bufferInfo);
+        PipelineTracer tracer = this.tracer;
+        if (tracer == null) {
+            muxer.writeSampleData(frame.getTrackId(), frame.getByteBuffer(), bufferInfo);
+        } else {
+            long start = System.nanoTime();
+            muxer.writeSampleData(frame.getTrackId(), frame.getByteBuffer(), bufferInfo);
+            tracer.record(getClass(), "writeSampleData", frame.getTrackId(), start, System.nanoTime());
+        }
+        framePool.release(bufferInfo);
 
         progressTracker.track(frame.getSampleTime());
 
@@ -186,7 +212,11 @@ public class MuxRender extends Render {
     }
 
     @Override
-    public void fillCommandQueues() {}
+    public void fillCommandQueues() {
+        if (!deferredReleases.isEmpty()) {
+            releaseDeferredBuffers();
+        }
+    }
 
     public void close() throws IOException {
         closeRender();
@@ -196,6 +226,7 @@ public class MuxRender extends Render {
         if (muxer != null) {
             try {
                 muxer.stop();
+                // Finishing muxers, e.g. FastStartMediaMuxer, rewrite the file here, before onMediaStop is reported
                 muxer.release();
                 muxer = null;
             }
@@ -207,4 +238,15 @@ public class MuxRender extends Render {
             }
         }
     }
+
+    private static class BufferRelease {
+        final IPluginOutput releaser;
+        final int bufferIndex;
+        final Thread thread = Thread.currentThread();
+
+        BufferRelease(IPluginOutput releaser, int bufferIndex) {
+            this.releaser = releaser;
+            this.bufferIndex = bufferIndex;
+        }
+    }
 }
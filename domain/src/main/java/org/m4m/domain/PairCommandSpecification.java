@@ -19,16 +19,34 @@ package org.m4m.domain;
 import java.util.List;
 
 class PairCommandSpecification implements ISpecification<Command> {
-    private final List<Pair<Command, Command>> matchingCommands;
+    private static final int COMMANDS = MatchingCommands.COMMANDS;
+
+    private final boolean[] commandMatrix = new boolean[COMMANDS * COMMANDS];
+    private final boolean[] pairMatrix = new boolean[COMMANDS * COMMANDS];
 
     public PairCommandSpecification(List<Pair<Command, Command>> matchingCommands) {
-        this.matchingCommands = matchingCommands;
+        for (int source = 0; source < COMMANDS; source++) {
+            for (int target = 0; target < COMMANDS; target++) {
+                commandMatrix[source * COMMANDS + target] = matches(matchingCommands, MatchingCommands.command(source), MatchingCommands.command(target));
+                pairMatrix[source * COMMANDS + target] = pairMatches(matchingCommands, MatchingCommands.command(source), MatchingCommands.command(target));
+            }
+        }
     }
 
 
     @Override
     public boolean satisfiedBy(Command source, Command target) {
         if (source == null && target == null) return false;
+        return commandMatrix[MatchingCommands.index(source) * COMMANDS + MatchingCommands.index(target)];
+    }
+
+    public boolean satisfiedBy(Pair<Command, Integer> sourcePair, Pair<Command, Integer> targetPair) {
+        if (sourcePair == null || targetPair == null) return false;
+        if (sourcePair.right != targetPair.right) return false;
+        return pairMatrix[MatchingCommands.index(sourcePair.left) * COMMANDS + MatchingCommands.index(targetPair.left)];
+    }
+
+    private static boolean matches(List<Pair<Command, Command>> matchingCommands, Command source, Command target) {
         for (Pair<Command, Command> matchingCommand : matchingCommands) {
             if (matchingCommand.left != null && matchingCommand.left == source && matchingCommand.right != null && matchingCommand.right == target)
                 return true;
@@ -38,17 +56,14 @@ class PairCommandSpecification implements ISpecification<Command> {
         return false;
     }
 
-    public boolean satisfiedBy(Pair<Command, Integer> sourcePair, Pair<Command, Integer> targetPair) {
-        if (sourcePair == null || targetPair == null) return false;
-
+    private static boolean pairMatches(List<Pair<Command, Command>> matchingCommands, Command source, Command target) {
         for (Pair<Command, Command> matchingCommand : matchingCommands) {
-            if (matchingCommand.left != null && matchingCommand.left == sourcePair.left
-                && matchingCommand.right != null && matchingCommand.right == targetPair.left
-                && sourcePair.right == targetPair.right)
+            if (matchingCommand.left != null && matchingCommand.left == source
+                && matchingCommand.right != null && matchingCommand.right == target)
                 return true;
-            if (matchingCommand.left == null && matchingCommand.right == targetPair.left && sourcePair.right == targetPair.right)
+            if (matchingCommand.left == null && matchingCommand.right == target)
                 return true;
-            if (matchingCommand.right == null && matchingCommand.left == targetPair.left && sourcePair.right == targetPair.right)
+            if (matchingCommand.right == null && matchingCommand.left == target)
                 return true;
         }
         return false;
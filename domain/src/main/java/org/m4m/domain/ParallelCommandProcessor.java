@@ -0,0 +1,317 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.m4m.domain;
+
+import org.m4m.IProgressListener;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs every independent chain of output-input pairs on its own thread.
+ * Chains are split at nodes that only output (sources) or only input (sinks); such nodes shared by
+ * several chains become handoff points. A worker holds a handoff point's lock only while it fills or
+ * checks the shared queues and while it handles a single command touching the shared node, codec work
+ * inside the chain runs unlocked.
+ */
+public class ParallelCommandProcessor implements ICommandProcessor, ICommandQueueListener {
+    private final ArrayList<OutputInputPair> pairs = new ArrayList<OutputInputPair>();
+    private final IProgressListener progressListener;
+    private volatile List<ChainWorker> workers = new ArrayList<ChainWorker>();
+    private volatile boolean stopped = false;
+    private volatile boolean isPaused = false;
+    private volatile RuntimeException failure;
+    private int idleTimeout = 0;
+    private IPipelineMetrics metrics;
+    private PipelineTracer tracer;
+
+    public ParallelCommandProcessor(IProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    @Override
+    public void add(OutputInputPair pair) {
+        pairs.add(pair);
+    }
+
+    @Override
+    public void setIdleTimeout(int milliseconds) {
+        this.idleTimeout = milliseconds;
+    }
+
+    @Override
+    public synchronized void setMetrics(IPipelineMetrics metrics) {
+        this.metrics = metrics;
+        for (ChainWorker worker : workers) {
+            worker.setMetrics(metrics);
+        }
+    }
+
+    @Override
+    public synchronized void setTracer(PipelineTracer tracer) {
+        this.tracer = tracer;
+        for (ChainWorker worker : workers) {
+            worker.setTracer(tracer);
+        }
+    }
+
+    public List<List<OutputInputPair>> getChains() {
+        return partition();
+    }
+
+    @Override
+    public void process() {
+        createWorkers();
+
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (final ChainWorker worker : workers) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        worker.process();
+                    } catch (RuntimeException e) {
+                        if (failure == null) {
+                            failure = e;
+                        }
+                        stop();
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+
+        join(threads);
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Waits for all workers. When the calling thread is interrupted the workers are stopped and still
+     * waited for, so none of them touches the pipeline after this returns; the interrupt is kept.
+     */
+    private void join(List<Thread> threads) {
+        boolean interrupted = false;
+        for (Thread thread : threads) {
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    if (!interrupted) {
+                        interrupted = true;
+                        stop();
+                        // A paused worker would never see the stop
+                        resume();
+                    }
+                }
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized void createWorkers() {
+        List<List<OutputInputPair>> chains = partition();
+
+        Map<Object, List<OutputInputPair>> owners = new IdentityHashMap<Object, List<OutputInputPair>>();
+        Map<Object, Object> handoffs = new IdentityHashMap<Object, Object>();
+        for (List<OutputInputPair> chain : chains) {
+            for (OutputInputPair pair : chain) {
+                for (Object node : new Object[]{pair.output, pair.input}) {
+                    List<OutputInputPair> owner = owners.get(node);
+                    if (owner == null) {
+                        owners.put(node, chain);
+                    } else if (owner != chain && !handoffs.containsKey(node)) {
+                        handoffs.put(node, new Object());
+                    }
+                }
+            }
+        }
+
+        ArrayList<ChainWorker> chainWorkers = new ArrayList<ChainWorker>();
+        for (List<OutputInputPair> chain : chains) {
+            ChainWorker worker = new ChainWorker(progressListener, handoffs);
+            worker.setIdleTimeout(idleTimeout);
+            worker.setMetrics(metrics);
+            worker.setTracer(tracer);
+            for (OutputInputPair pair : chain) {
+                worker.add(pair);
+            }
+            if (stopped) worker.stop();
+            if (isPaused) worker.pause();
+            chainWorkers.add(worker);
+        }
+        workers = chainWorkers;
+
+        // Shared queues can only have one listener, let it wake every chain
+        for (OutputInputPair pair : pairs) {
+            if (pair.output.getOutputCommandQueue() != null) pair.output.getOutputCommandQueue().setListener(this);
+            if (pair.input.getInputCommandQueue() != null) pair.input.getInputCommandQueue().setListener(this);
+        }
+    }
+
+    private List<List<OutputInputPair>> partition() {
+        int[] parent = new int[pairs.size()];
+        for (int i = 0; i < parent.length; i++) {
+            parent[i] = i;
+        }
+
+        Map<Object, Boolean> isOutput = new IdentityHashMap<Object, Boolean>();
+        Map<Object, Boolean> isInput = new IdentityHashMap<Object, Boolean>();
+        for (OutputInputPair pair : pairs) {
+            isOutput.put(pair.output, true);
+            isInput.put(pair.input, true);
+        }
+
+        Map<Object, Integer> firstPairOfNode = new IdentityHashMap<Object, Integer>();
+        for (int i = 0; i < pairs.size(); i++) {
+            OutputInputPair pair = pairs.get(i);
+            for (Object node : new Object[]{pair.output, pair.input}) {
+                if (!isOutput.containsKey(node) || !isInput.containsKey(node)) {
+                    continue;
+                }
+                Integer first = firstPairOfNode.get(node);
+                if (first == null) {
+                    firstPairOfNode.put(node, i);
+                } else {
+                    parent[find(parent, i)] = find(parent, first);
+                }
+            }
+        }
+
+        Map<Integer, List<OutputInputPair>> chains = new LinkedHashMap<Integer, List<OutputInputPair>>();
+        for (int i = 0; i < pairs.size(); i++) {
+            int root = find(parent, i);
+            List<OutputInputPair> chain = chains.get(root);
+            if (chain == null) {
+                chain = new ArrayList<OutputInputPair>();
+                chains.put(root, chain);
+            }
+            chain.add(pairs.get(i));
+        }
+        return new ArrayList<List<OutputInputPair>>(chains.values());
+    }
+
+    private int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    @Override
+    public synchronized void stop() {
+        stopped = true;
+        for (ChainWorker worker : workers) {
+            worker.stop();
+        }
+    }
+
+    @Override
+    public void onCommandQueued() {
+        wakeUp();
+    }
+
+    @Override
+    public void wakeUp() {
+        for (ChainWorker worker : workers) {
+            worker.wakeUp();
+        }
+    }
+
+    @Override
+    public synchronized void pause() {
+        isPaused = true;
+        for (ChainWorker worker : workers) {
+            worker.pause();
+        }
+    }
+
+    @Override
+    public synchronized void resume() {
+        isPaused = false;
+        for (ChainWorker worker : workers) {
+            worker.resume();
+        }
+    }
+
+    private static class ChainWorker extends CommandProcessor {
+        private final Map<Object, Object> handoffs;
+
+        public ChainWorker(IProgressListener progressListener, Map<Object, Object> handoffs) {
+            super(progressListener);
+            this.handoffs = handoffs;
+        }
+
+        @Override
+        protected void fillCommandQueues(OutputInputPair pair) {
+            Object outputHandoff = handoffs.get(pair.output);
+            if (outputHandoff == null) {
+                pair.output.fillCommandQueues();
+            } else {
+                synchronized (outputHandoff) {
+                    pair.output.fillCommandQueues();
+                }
+            }
+
+            Object inputHandoff = handoffs.get(pair.input);
+            if (inputHandoff == null) {
+                pair.input.fillCommandQueues();
+            } else {
+                synchronized (inputHandoff) {
+                    pair.input.fillCommandQueues();
+                }
+            }
+        }
+
+        @Override
+        protected int processFirstCommands(OutputInputPair pair, CommandQueue outputCommandQueue, CommandQueue inputCommandQueue) {
+            Object outputHandoff = handoffs.get(pair.output);
+            Object inputHandoff = handoffs.get(pair.input);
+
+            if (outputHandoff == null && inputHandoff == null) {
+                return super.processFirstCommands(pair, outputCommandQueue, inputCommandQueue);
+            }
+            if (inputHandoff == null) {
+                synchronized (outputHandoff) {
+                    return super.processFirstCommands(pair, outputCommandQueue, inputCommandQueue);
+                }
+            }
+            if (outputHandoff == null) {
+                synchronized (inputHandoff) {
+                    return super.processFirstCommands(pair, outputCommandQueue, inputCommandQueue);
+                }
+            }
+            // Sources are always locked before sinks, so two handoffs cannot deadlock
+            synchronized (outputHandoff) {
+                synchronized (inputHandoff) {
+                    return super.processFirstCommands(pair, outputCommandQueue, inputCommandQueue);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.domain;
+
+import org.m4m.AudioFormat;
+import org.m4m.ChunkStatistics;
+import org.m4m.IProgressListener;
+import org.m4m.MediaFile;
+import org.m4m.VideoFormat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Transcodes joined files, or chunks of one file, in independent pipelines, several at once, into intermediate
+ * elementary streams. The intermediate streams are then stream copied into the target one after another. The number of files transcoded at once is limited by the number of codec
+ * instances the platform can run simultaneously: each pipeline holds a decoder and an encoder per track.
+ */
+public class ParallelJoin {
+    private static final int CODECS_PER_TRACK = 2;
+
+    private final IAndroidMediaObjectFactory factory;
+    private final VideoFormat videoFormat;
+    private final AudioFormat audioFormat;
+    private final int maxConcurrentFiles;
+    private final int codecBudget;
+    private final List<Pipeline> pipelines = new ArrayList<Pipeline>();
+    private final List<ElementaryStreamMuxer> results = new ArrayList<ElementaryStreamMuxer>();
+    private ChunkStatistics[] statistics = new ChunkStatistics[0];
+    private long transcodedUs;
+    private IProgressListener progressListener;
+    private ProgressTracker progressTracker = new ProgressTracker();
+    private IPipelineMetrics metrics;
+    private PipelineTracer tracer;
+    private int idleTimeout = 0;
+    private volatile boolean stopped = false;
+
+    /**
+     * @param videoFormat        Target video format, null to drop video.
+     * @param audioFormat        Target audio format, null to drop audio.
+     * @param maxConcurrentFiles Maximum number of files transcoded at once.
+     * @param codecBudget        Maximum number of codec instances used at once.
+     */
+    public ParallelJoin(IAndroidMediaObjectFactory factory, VideoFormat videoFormat, AudioFormat audioFormat,
+                        int maxConcurrentFiles, int codecBudget) {
+        this.factory = factory;
+        this.videoFormat = videoFormat;
+        this.audioFormat = audioFormat;
+        this.maxConcurrentFiles = maxConcurrentFiles;
+        this.codecBudget = codecBudget;
+    }
+
+    /**
+     * Sets a listener notified with {@link IProgressListener#onMediaProgress(float)} each time a file or chunk
+     * is transcoded, weighted by its duration. Other notifications are left to the caller.
+     *
+     * @param progressListener Progress listener, null to report nothing.
+     * @param progressTracker  Tracker mapping transcoded duration to progress, its finish is set by this class.
+     */
+    public void setProgressListener(IProgressListener progressListener, ProgressTracker progressTracker) {
+        this.progressListener = progressListener;
+        this.progressTracker = progressTracker;
+    }
+
+    /**
+     * Sets instrumentation of the file pipelines, shared by all of them.
+     *
+     * @param metrics Metrics listener, null disables instrumentation.
+     * @param tracer  Timeline recorder, null disables recording.
+     */
+    public void setInstrumentation(IPipelineMetrics metrics, PipelineTracer tracer) {
+        this.metrics = metrics;
+        this.tracer = tracer;
+    }
+
+    /**
+     * @param milliseconds Idle timeout of the command processor of every transcoded file, see
+     *                     {@link CommandProcessor#setIdleTimeout(int)}.
+     */
+    public void setIdleTimeout(int milliseconds) {
+        this.idleTimeout = milliseconds;
+    }
+
+    /**
+     * Returns the number of files transcoded at once, at least one.
+     */
+    public int getConcurrency() {
+        int codecsPerFile = CODECS_PER_TRACK * ((videoFormat != null ? 1 : 0) + (audioFormat != null ? 1 : 0));
+        int concurrency = Math.min(maxConcurrentFiles, codecsPerFile == 0 ? maxConcurrentFiles : codecBudget / codecsPerFile);
+        return Math.max(1, concurrency);
+    }
+
+    /**
+     * Returns the number of chunks transcoded at once when audio has its own pipeline, which takes its codecs
+     * out of the budget.
+     */
+    private int getVideoConcurrency() {
+        int concurrency = Math.min(maxConcurrentFiles, (codecBudget - CODECS_PER_TRACK) / CODECS_PER_TRACK);
+        return Math.max(1, concurrency);
+    }
+
+    /**
+     * Transcodes the files and returns a source joining the results in the same order, time stamps are shifted
+     * by {@link MultipleMediaSource}.
+     *
+     * @return Joined source, null if stopped.
+     * @throws Exception The first failure of a file pipeline, remaining pipelines are stopped.
+     * @throws IllegalArgumentException If encoders produced different codec configs for different files, so the
+     *                                  results can not be copied into the same tracks.
+     */
+    public MultipleMediaSource transcode(List<MediaFile> files) throws Exception {
+        List<ElementaryStreamMuxer> muxers = transcodeAll(files, true, null);
+        if (muxers == null) {
+            return null;
+        }
+        ElementaryStreamMuxer.checkCompatible(muxers);
+
+        MultipleMediaSource joined = new MultipleMediaSource();
+        for (ElementaryStreamMuxer muxer : muxers) {
+            joined.add(new MediaFile(new MediaSource(muxer.createExtractor())));
+        }
+        return joined;
+    }
+
+    /**
+     * Transcodes video of chunks of one file and returns a source reading the results as one stream. Audio is
+     * transcoded in one more pipeline over the whole chunked range, alongside the chunks: audio encoders add
+     * priming and padding samples to every stream they encode, so audio stitched from chunks would click at
+     * every chunk boundary.
+     *
+     * @param chunks        Sources of the chunks, each with a single segment.
+     * @param timeOffsetsUs Output time of each chunk start.
+     * @param audio         Source with a single segment from the start of the first chunk to the end of the last one,
+     *                      null if there is no audio to transcode.
+     * @return Stitched source, null if stopped.
+     * @throws Exception The first failure of a chunk pipeline, remaining pipelines are stopped.
+     * @throws IllegalArgumentException If encoders produced different codec configs for different chunks.
+     */
+    public MultipleMediaSource transcodeChunks(List<MediaFile> chunks, long[] timeOffsetsUs, MediaFile audio) throws Exception {
+        List<ElementaryStreamMuxer> muxers = transcodeAll(chunks, false, audio);
+        if (muxers == null) {
+            return null;
+        }
+
+        ElementaryStreamMuxer audioMuxer = audio == null ? null : muxers.remove(muxers.size() - 1);
+        MultipleMediaSource stitched = new MultipleMediaSource();
+        stitched.add(new MediaFile(new MediaSource(ElementaryStreamMuxer.concat(muxers, timeOffsetsUs, audioMuxer))));
+        return stitched;
+    }
+
+    /**
+     * Returns per file or chunk throughput of the last transcoding, in composition order.
+     */
+    public List<ChunkStatistics> getStatistics() {
+        synchronized (results) {
+            List<ChunkStatistics> list = new ArrayList<ChunkStatistics>();
+            for (ChunkStatistics chunkStatistics : statistics) {
+                if (chunkStatistics != null) {
+                    list.add(chunkStatistics);
+                }
+            }
+            return Collections.unmodifiableList(list);
+        }
+    }
+
+    /**
+     * @param withAudio  True to transcode audio of each file, false for video only.
+     * @param wholeAudio Source transcoded for audio only in its own pipeline, its result is the last one, null for none.
+     */
+    private List<ElementaryStreamMuxer> transcodeAll(List<MediaFile> files, boolean withAudio, MediaFile wholeAudio) throws Exception {
+        int threads = wholeAudio == null ? getConcurrency() : getVideoConcurrency() + 1;
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ParallelJoin");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        long totalUs = 0;
+        for (MediaFile file : files) {
+            totalUs += file.getSegmentsDurationInMicroSec();
+        }
+        if (wholeAudio != null) {
+            totalUs += wholeAudio.getSegmentsDurationInMicroSec();
+        }
+        synchronized (results) {
+            statistics = new ChunkStatistics[files.size()];
+            transcodedUs = 0;
+            progressTracker.setFinish(totalUs);
+        }
+
+        List<Future<ElementaryStreamMuxer>> futures = new ArrayList<Future<ElementaryStreamMuxer>>();
+        try {
+            Future<ElementaryStreamMuxer> audioFuture = null;
+            if (wholeAudio != null) {
+                // Submitted first, so it runs from the start on the thread reserved for it
+                audioFuture = submit(executor, wholeAudio, false, true, -1);
+            }
+            for (int i = 0; i < files.size(); i++) {
+                futures.add(submit(executor, files.get(i), true, withAudio, i));
+            }
+            if (audioFuture != null) {
+                futures.add(audioFuture);
+            }
+
+            List<ElementaryStreamMuxer> muxers = new ArrayList<ElementaryStreamMuxer>();
+            for (Future<ElementaryStreamMuxer> future : futures) {
+                muxers.add(getResult(future));
+            }
+            return stopped ? null : muxers;
+        } catch (Exception e) {
+            stop();
+            throw e;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @param index Position of the file in the composition, negative to keep no statistics.
+     */
+    private Future<ElementaryStreamMuxer> submit(ExecutorService executor, final MediaFile file, final boolean video,
+                                                 final boolean audio, final int index) throws IOException {
+        final ElementaryStreamMuxer muxer = new ElementaryStreamMuxer(File.createTempFile("join", ".es"));
+        synchronized (results) {
+            results.add(muxer);
+        }
+        return executor.submit(new Callable<ElementaryStreamMuxer>() {
+            @Override
+            public ElementaryStreamMuxer call() throws Exception {
+                long start = System.nanoTime();
+                long durationUs = file.getSegmentsDurationInMicroSec();
+                transcode(file, muxer, video, audio);
+                long processingTimeNs = System.nanoTime() - start;
+                synchronized (results) {
+                    if (index >= 0) {
+                        statistics[index] = new ChunkStatistics(index, muxer.getDurationInMicroSec(), processingTimeNs);
+                    }
+                    transcodedUs += durationUs;
+                    progressTracker.track(transcodedUs);
+                    if (progressListener != null && !stopped) {
+                        progressListener.onMediaProgress(progressTracker.getProgress());
+                    }
+                }
+                return muxer;
+            }
+        });
+    }
+
+    /**
+     * Stops all running file pipelines.
+     */
+    public void stop() {
+        stopped = true;
+        synchronized (pipelines) {
+            for (Pipeline pipeline : pipelines) {
+                pipeline.stop();
+            }
+        }
+    }
+
+    /**
+     * Deletes intermediate files, the joined source must be closed.
+     */
+    public void release() {
+        synchronized (results) {
+            for (ElementaryStreamMuxer muxer : results) {
+                muxer.release();
+                muxer.getFile().delete();
+            }
+            results.clear();
+        }
+    }
+
+    private void transcode(MediaFile file, ElementaryStreamMuxer muxer, boolean video, boolean audio) throws IOException {
+        MultipleMediaSource source = new MultipleMediaSource();
+        source.add(file);
+
+        CommandProcessor commandProcessor = new CommandProcessor(null);
+        commandProcessor.setMetrics(metrics);
+        commandProcessor.setTracer(tracer);
+        commandProcessor.setIdleTimeout(idleTimeout);
+        Pipeline pipeline = new Pipeline(commandProcessor);
+        pipeline.setMediaSource(source);
+
+        List<Plugin> codecs = new ArrayList<Plugin>();
+        if (video && videoFormat != null && source.hasTrack(MediaFormatType.VIDEO)) {
+            Plugin videoDecoder = factory.createVideoDecoder(source.getMediaFormatByType(MediaFormatType.VIDEO));
+            VideoEncoder videoEncoder = factory.createVideoEncoder();
+            videoEncoder.setMediaFormat(videoFormat);
+            pipeline.addVideoDecoder(videoDecoder);
+            pipeline.addVideoEncoder(videoEncoder);
+            codecs.add(videoDecoder);
+            codecs.add(videoEncoder);
+        }
+        if (audio && audioFormat != null && source.hasTrack(MediaFormatType.AUDIO)) {
+            Plugin audioDecoder = factory.createAudioDecoder();
+            AudioEncoder audioEncoder = factory.createAudioEncoder(audioFormat.getAudioCodec());
+            audioEncoder.setMediaFormat(audioFormat);
+            pipeline.addAudioDecoder(audioDecoder);
+            pipeline.addAudioEncoder(audioEncoder);
+            codecs.add(audioDecoder);
+            codecs.add(audioEncoder);
+        }
+        pipeline.setSink(new MuxRender(muxer, null, new ProgressTracker()));
+
+        synchronized (pipelines) {
+            if (stopped) {
+                return;
+            }
+            pipelines.add(pipeline);
+        }
+        try {
+            pipeline.resolve();
+            commandProcessor.process();
+        } finally {
+            synchronized (pipelines) {
+                pipelines.remove(pipeline);
+            }
+            pipeline.release();
+            for (Plugin codec : codecs) {
+                codec.close();
+            }
+        }
+    }
+
+    private static ElementaryStreamMuxer getResult(Future<ElementaryStreamMuxer> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+}
@@ -42,6 +42,10 @@ public class PassThroughPlugin extends Plugin implements IFrameAllocator {
         return frame;
     }
 
+    @Override
+    public void releaseFrame(Frame frame) {
+    }
+
     @Override
     public MediaFormatType getMediaFormatType() {
         return this.mediaFormatType;
@@ -18,16 +18,34 @@ package org.m4m.domain;
 
 import org.m4m.AudioFormat;
 import org.m4m.domain.pipeline.ConnectorFactory;
+import org.m4m.domain.pipeline.INodeConnector;
 import org.m4m.domain.pipeline.IOnStopListener;
 
 import java.io.Closeable;
 import java.io.IOException;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class Pipeline {
+    private static final int MAX_TOPOLOGY_TEMPLATES = 64;
+
+    /**
+     * Solved topologies by solver signature, so repeated jobs of the same shape skip the search.
+     */
+    private static final Map<String, TopologySolver.Template> topologyTemplates = Collections.synchronizedMap(
+        new LinkedHashMap<String, TopologySolver.Template>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, TopologySolver.Template> eldest) {
+                return size() > MAX_TOPOLOGY_TEMPLATES;
+            }
+        });
 
     private final TopologySolver topologySolver = new TopologySolver();
     private final ICommandProcessor commandProcessor;
+    private final ConnectorFactory connectorFactory;
+    private final FramePool framePool = new FramePool();
     private IOnStopListener onStopListener = new IOnStopListener() {
         @Override
         public void onStop() {
@@ -37,6 +55,18 @@ public class Pipeline {
 
     public Pipeline(ICommandProcessor commandProcessor) {
         this.commandProcessor = commandProcessor;
+        this.connectorFactory = new ConnectorFactory(commandProcessor, null);
+    }
+
+    public <TOutput, TInput> void registerConnector(Class<TOutput> sourceClass, Class<TInput> inputClass, INodeConnector<? super TOutput, ? super TInput> connector) {
+        connectorFactory.register(sourceClass, inputClass, connector);
+    }
+
+    /**
+     * Custom rules may depend on node state, pipelines using them are always solved from scratch.
+     */
+    public void addConnectionRule(IsConnectable rule) {
+        connectorFactory.addConnectionRule(rule);
     }
 
     public void setMediaSource(IOutput mediaSource) {
@@ -93,15 +123,16 @@ public class Pipeline {
     }
 
     public void resolve() {
-        AudioFormat audioFormat = getAudioFormat();
-
-        ConnectorFactory connectorFactory = new ConnectorFactory(commandProcessor, audioFormat);
+        connectorFactory.setAudioMediaFormat(getAudioFormat());
+        shareFramePool();
 
         Collection<IsConnectable> connectionRules = connectorFactory.createConnectionRules();
         for (IsConnectable connectionRule : connectionRules) {
             topologySolver.addConnectionRule(connectionRule);
         }
 
+        solveTopology();
+
         Collection<Pair<IOutputRaw, IInputRaw>> connectionQueue = topologySolver.getConnectionsQueue();
         for (Pair<IOutputRaw, IInputRaw> rawPair : connectionQueue) {
             connectorFactory.connect(rawPair.left, rawPair.right);
@@ -110,6 +141,30 @@ public class Pipeline {
         startSource();
     }
 
+    private void shareFramePool() {
+        for (IInputRaw node : topologySolver.getSinks()) {
+            if (node instanceof Input) {
+                ((Input) node).setFramePool(framePool);
+            }
+        }
+    }
+
+    private void solveTopology() {
+        if (connectorFactory.hasCustomConnectionRules()) {
+            topologySolver.resolve();
+            return;
+        }
+
+        String signature = topologySolver.getSignature();
+        TopologySolver.Template template = topologyTemplates.get(signature);
+        if (template != null) {
+            topologySolver.apply(template);
+        } else {
+            topologySolver.resolve();
+            topologyTemplates.put(signature, topologySolver.getTemplate());
+        }
+    }
+
     private void startSource() {
         for (IOutputRaw iOutputRaw : topologySolver.getSources()) {
             IRunnable mediaSource = (IRunnable) iOutputRaw;
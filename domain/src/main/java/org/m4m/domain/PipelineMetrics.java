@@ -0,0 +1,220 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.m4m.domain;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Thread safe in-memory aggregation of pipeline metrics.
+ * Use {@link #snapshot()} to read consistent values while processing is in progress.
+ */
+public class PipelineMetrics implements IPipelineMetrics {
+    private final Map<OutputInputPair, PairStatistics> pairs = new IdentityHashMap<OutputInputPair, PairStatistics>();
+    private final Map<Class<?>, Histogram> handlers = new HashMap<Class<?>, Histogram>();
+    private final Map<Class<?>, Histogram> codecInputWaits = new HashMap<Class<?>, Histogram>();
+    private final Map<Class<?>, Histogram> codecOutputWaits = new HashMap<Class<?>, Histogram>();
+    private long pausedNanoseconds;
+
+    @Override
+    public synchronized void onPairDispatched(OutputInputPair pair) {
+        pairStatistics(pair).dispatches++;
+    }
+
+    @Override
+    public synchronized void onHandlerExecuted(Class<? extends ICommandHandler> handlerClass, long nanoseconds) {
+        histogram(handlers, handlerClass).record(nanoseconds);
+    }
+
+    @Override
+    public synchronized void onQueueDepths(OutputInputPair pair, int outputQueueDepth, int inputQueueDepth) {
+        PairStatistics statistics = pairStatistics(pair);
+        statistics.outputQueueDepth = outputQueueDepth;
+        statistics.inputQueueDepth = inputQueueDepth;
+        statistics.maxOutputQueueDepth = Math.max(statistics.maxOutputQueueDepth, outputQueueDepth);
+        statistics.maxInputQueueDepth = Math.max(statistics.maxInputQueueDepth, inputQueueDepth);
+    }
+
+    @Override
+    public synchronized void onPaused(long nanoseconds) {
+        pausedNanoseconds += nanoseconds;
+    }
+
+    @Override
+    public synchronized void onCodecDequeue(MediaCodecPlugin plugin, boolean inputBuffer, long nanoseconds) {
+        histogram(inputBuffer ? codecInputWaits : codecOutputWaits, plugin.getClass()).record(nanoseconds);
+    }
+
+    public synchronized PipelineMetrics snapshot() {
+        PipelineMetrics snapshot = new PipelineMetrics();
+        for (Map.Entry<OutputInputPair, PairStatistics> entry : pairs.entrySet()) {
+            snapshot.pairs.put(entry.getKey(), new PairStatistics(entry.getValue()));
+        }
+        copy(handlers, snapshot.handlers);
+        copy(codecInputWaits, snapshot.codecInputWaits);
+        copy(codecOutputWaits, snapshot.codecOutputWaits);
+        snapshot.pausedNanoseconds = pausedNanoseconds;
+        return snapshot;
+    }
+
+    public synchronized Map<OutputInputPair, PairStatistics> getPairs() {
+        return new IdentityHashMap<OutputInputPair, PairStatistics>(pairs);
+    }
+
+    public synchronized Map<Class<?>, Histogram> getHandlerLatencies() {
+        return new HashMap<Class<?>, Histogram>(handlers);
+    }
+
+    public synchronized Map<Class<?>, Histogram> getCodecInputWaits() {
+        return new HashMap<Class<?>, Histogram>(codecInputWaits);
+    }
+
+    public synchronized Map<Class<?>, Histogram> getCodecOutputWaits() {
+        return new HashMap<Class<?>, Histogram>(codecOutputWaits);
+    }
+
+    public synchronized long getPausedNanoseconds() {
+        return pausedNanoseconds;
+    }
+
+    private PairStatistics pairStatistics(OutputInputPair pair) {
+        PairStatistics statistics = pairs.get(pair);
+        if (statistics == null) {
+            statistics = new PairStatistics();
+            pairs.put(pair, statistics);
+        }
+        return statistics;
+    }
+
+    private static Histogram histogram(Map<Class<?>, Histogram> histograms, Class<?> key) {
+        Histogram histogram = histograms.get(key);
+        if (histogram == null) {
+            histogram = new Histogram();
+            histograms.put(key, histogram);
+        }
+        return histogram;
+    }
+
+    private static void copy(Map<Class<?>, Histogram> from, Map<Class<?>, Histogram> to) {
+        for (Map.Entry<Class<?>, Histogram> entry : from.entrySet()) {
+            to.put(entry.getKey(), new Histogram(entry.getValue()));
+        }
+    }
+
+    public static class PairStatistics {
+        private long dispatches;
+        private int outputQueueDepth;
+        private int inputQueueDepth;
+        private int maxOutputQueueDepth;
+        private int maxInputQueueDepth;
+
+        PairStatistics() {
+        }
+
+        PairStatistics(PairStatistics other) {
+            dispatches = other.dispatches;
+            outputQueueDepth = other.outputQueueDepth;
+            inputQueueDepth = other.inputQueueDepth;
+            maxOutputQueueDepth = other.maxOutputQueueDepth;
+            maxInputQueueDepth = other.maxInputQueueDepth;
+        }
+
+        public long getDispatches() {
+            return dispatches;
+        }
+
+        public int getOutputQueueDepth() {
+            return outputQueueDepth;
+        }
+
+        public int getInputQueueDepth() {
+            return inputQueueDepth;
+        }
+
+        public int getMaxOutputQueueDepth() {
+            return maxOutputQueueDepth;
+        }
+
+        public int getMaxInputQueueDepth() {
+            return maxInputQueueDepth;
+        }
+    }
+
+    /**
+     * Latency histogram with power of two nanosecond buckets.
+     */
+    public static class Histogram {
+        private final long[] buckets = new long[64];
+        private long count;
+        private long totalNanoseconds;
+        private long maxNanoseconds;
+
+        Histogram() {
+        }
+
+        Histogram(Histogram other) {
+            System.arraycopy(other.buckets, 0, buckets, 0, buckets.length);
+            count = other.count;
+            totalNanoseconds = other.totalNanoseconds;
+            maxNanoseconds = other.maxNanoseconds;
+        }
+
+        void record(long nanoseconds) {
+            if (nanoseconds < 0) {
+                nanoseconds = 0;
+            }
+            buckets[nanoseconds == 0 ? 0 : 63 - Long.numberOfLeadingZeros(nanoseconds)]++;
+            count++;
+            totalNanoseconds += nanoseconds;
+            maxNanoseconds = Math.max(maxNanoseconds, nanoseconds);
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getTotalNanoseconds() {
+            return totalNanoseconds;
+        }
+
+        public long getMaxNanoseconds() {
+            return maxNanoseconds;
+        }
+
+        public long getMeanNanoseconds() {
+            return count == 0 ? 0 : totalNanoseconds / count;
+        }
+
+        /**
+         * @param percentile Value in (0, 100].
+         * @return Upper bound of the bucket the percentile falls into, capped by observed maximum.
+         */
+        public long getPercentileNanoseconds(double percentile) {
+            long rank = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank && seen > 0) {
+                    return i >= 62 ? maxNanoseconds : Math.min((2L << i) - 1, maxNanoseconds);
+                }
+            }
+            return maxNanoseconds;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.m4m.domain;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Records timestamped spans of pipeline execution into a preallocated ring buffer,
+ * oldest spans are overwritten once the buffer is full.
+ * The recorded timeline is written in Chrome trace-event JSON format (chrome://tracing, Perfetto).
+ */
+public class PipelineTracer {
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    private final Object[] sources;
+    private final String[] names;
+    private final int[] trackIds;
+    private final long[] threadIds;
+    private final long[] starts;
+    private final long[] durations;
+    private final int mask;
+    private final long origin = System.nanoTime();
+    private long recorded;
+
+    public PipelineTracer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity Number of spans kept, rounded up to a power of two.
+     */
+    public PipelineTracer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        sources = new Object[size];
+        names = new String[size];
+        trackIds = new int[size];
+        threadIds = new long[size];
+        starts = new long[size];
+        durations = new long[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Records a span, does not allocate.
+     *
+     * @param source Class of the component the span belongs to.
+     * @param name   Operation name.
+     * @param start  Start time as returned by {@link System#nanoTime()}.
+     * @param end    End time as returned by {@link System#nanoTime()}.
+     */
+    public synchronized void record(Class<?> source, String name, int trackId, long start, long end) {
+        int index = (int) (recorded & mask);
+        sources[index] = source;
+        names[index] = name;
+        trackIds[index] = trackId;
+        threadIds[index] = Thread.currentThread().getId();
+        starts[index] = start;
+        durations[index] = end - start;
+        recorded++;
+    }
+
+    public synchronized int size() {
+        return (int) Math.min(recorded, sources.length);
+    }
+
+    public synchronized long getRecordedCount() {
+        return recorded;
+    }
+
+    public synchronized void clear() {
+        recorded = 0;
+    }
+
+    public void writeChromeTrace(String path) throws IOException {
+        FileWriter writer = new FileWriter(path);
+        try {
+            writeChromeTrace(writer);
+        } finally {
+            writer.close();
+        }
+    }
+
+    public synchronized void writeChromeTrace(Writer writer) throws IOException {
+        writer.write("{\"traceEvents\":[");
+        long first = recorded - size();
+        for (long i = first; i < recorded; i++) {
+            int index = (int) (i & mask);
+            if (i != first) {
+                writer.write(',');
+            }
+            writer.write("\n{\"name\":\"");
+            writer.write(((Class<?>) sources[index]).getSimpleName());
+            writer.write('.');
+            writer.write(names[index]);
+            writer.write("\",\"cat\":\"m4m\",\"ph\":\"X\",\"pid\":1,\"tid\":");
+            writer.write(Long.toString(threadIds[index]));
+            writer.write(",\"ts\":");
+            writer.write(microseconds(starts[index] - origin));
+            writer.write(",\"dur\":");
+            writer.write(microseconds(durations[index]));
+            writer.write(",\"args\":{\"track\":");
+            writer.write(Integer.toString(trackIds[index]));
+            writer.write("}}");
+        }
+        writer.write("\n],\"displayTimeUnit\":\"ms\"}\n");
+        writer.flush();
+    }
+
+    private static String microseconds(long nanoseconds) {
+        long micros = nanoseconds / 1000;
+        long fraction = Math.abs(nanoseconds % 1000);
+        String sign = nanoseconds < 0 && micros == 0 ? "-" : "";
+        return sign + micros + "." + (fraction < 10 ? "00" : fraction < 100 ? "0" : "") + fraction;
+    }
+}
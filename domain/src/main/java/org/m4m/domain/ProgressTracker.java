@@ -19,9 +19,22 @@ package org.m4m.domain;
 public class ProgressTracker {
     private float finish = 0f;
     private float currentProgress = 0f;
+    private float rangeStart = 0f;
+    private float rangeEnd = 1f;
 
     public float getProgress() {
-        return currentProgress / finish;
+        return rangeStart + (rangeEnd - rangeStart) * currentProgress / finish;
+    }
+
+    /**
+     * Maps tracked progress to a part of the whole job, for jobs done in stages.
+     *
+     * @param start Progress reported before anything is tracked, 0 by default.
+     * @param end   Progress reported when finish is reached, 1 by default.
+     */
+    public void setRange(float start, float end) {
+        this.rangeStart = start;
+        this.rangeEnd = end;
     }
 
     public void setFinish(float finish) {
@@ -0,0 +1,400 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.domain;
+
+import org.m4m.Uri;
+
+import java.io.FileDescriptor;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Reads samples of the selected tracks ahead on a background thread, so storage latency does not stall
+ * the thread pulling from MediaSource. Read samples are kept in a queue limited by a byte budget;
+ * seeking or changing track selection discards them and reading restarts from the new position.
+ */
+public class ReadAheadMediaExtractor implements IMediaExtractor {
+    private static final int SCRATCH_SIZE = 1024 * 1024;
+    private static final int MAX_SCRATCH_SIZE = 64 * 1024 * 1024;
+    private static final int BUFFER_GRANULARITY = 16 * 1024;
+
+    private final IMediaExtractor extractor;
+    private final long byteBudget;
+    private final Object lock = new Object();
+    private final Object extractorLock = new Object();
+    private final ArrayDeque<Sample> samples = new ArrayDeque<Sample>();
+    private final ArrayDeque<Sample> freeSamples = new ArrayDeque<Sample>();
+    private final int[] queuedSamples;
+    private Thread reader;
+    private int generation;
+    private boolean endOfStream;
+    private boolean released;
+    private RuntimeException readerError;
+    private long queuedBytes;
+    private long maxQueuedBytes;
+    private long underruns;
+    private long waitTimeNs;
+
+    public ReadAheadMediaExtractor(IMediaExtractor extractor, long byteBudget) {
+        this.extractor = extractor;
+        this.byteBudget = byteBudget;
+        this.queuedSamples = new int[extractor.getTrackCount()];
+    }
+
+    @Override
+    public int readSampleData(ByteBuffer inputBuffer) {
+        Sample sample = head();
+        if (sample == null) {
+            return -1;
+        }
+
+        if (sample.size > inputBuffer.capacity()) {
+            throw new IllegalArgumentException("Sample of " + sample.size + " bytes does not fit into buffer of " + inputBuffer.capacity() + " bytes.");
+        }
+        ByteBuffer data = sample.data.duplicate();
+        data.position(0);
+        data.limit(sample.size);
+        inputBuffer.clear();
+        inputBuffer.put(data);
+        inputBuffer.flip();
+        return sample.size;
+    }
+
+    @Override
+    public long getSampleTime() {
+        Sample sample = head();
+        return sample == null ? -1 : sample.time;
+    }
+
+    @Override
+    public int getSampleTrackIndex() {
+        Sample sample = head();
+        return sample == null ? -1 : sample.track;
+    }
+
+    @Override
+    public int getSampleFlags() {
+        Sample sample = head();
+        return sample == null ? 0 : sample.flags;
+    }
+
+    @Override
+    public boolean advance() {
+        Sample sample = head();
+        if (sample == null) {
+            return false;
+        }
+
+        synchronized (lock) {
+            samples.poll();
+            queuedBytes -= sample.size;
+            queuedSamples[sample.track]--;
+            freeSamples.add(sample);
+            lock.notifyAll();
+        }
+        return true;
+    }
+
+    @Override
+    public void seekTo(long timeUs, int mode) {
+        synchronized (extractorLock) {
+            extractor.seekTo(timeUs, mode);
+            flush();
+        }
+    }
+
+    @Override
+    public void selectTrack(int index) {
+        synchronized (extractorLock) {
+            extractor.selectTrack(index);
+            flush();
+        }
+    }
+
+    @Override
+    public void unselectTrack(int index) {
+        synchronized (extractorLock) {
+            extractor.unselectTrack(index);
+            flush();
+        }
+    }
+
+    @Override
+    public MediaFormat getTrackFormat(int i) {
+        synchronized (extractorLock) {
+            return extractor.getTrackFormat(i);
+        }
+    }
+
+    @Override
+    public int getTrackCount() {
+        return queuedSamples.length;
+    }
+
+    @Override
+    public int getRotation() {
+        synchronized (extractorLock) {
+            return extractor.getRotation();
+        }
+    }
+
+    @Override
+    public String getFilePath() {
+        return extractor.getFilePath();
+    }
+
+    @Override
+    public FileDescriptor getFileDescriptor() {
+        return extractor.getFileDescriptor();
+    }
+
+    @Override
+    public Uri getUri() {
+        return extractor.getUri();
+    }
+
+    @Override
+    public void release() {
+        Thread thread;
+        synchronized (lock) {
+            released = true;
+            thread = reader;
+            lock.notifyAll();
+        }
+
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        extractor.release();
+    }
+
+    public long getByteBudget() {
+        return byteBudget;
+    }
+
+    /**
+     * @return Bytes of samples read ahead and not consumed yet.
+     */
+    public long getQueuedBytes() {
+        synchronized (lock) {
+            return queuedBytes;
+        }
+    }
+
+    /**
+     * @return Highest number of bytes queued since creation.
+     */
+    public long getMaxQueuedBytes() {
+        synchronized (lock) {
+            return maxQueuedBytes;
+        }
+    }
+
+    public int getQueuedSampleCount(int track) {
+        synchronized (lock) {
+            return queuedSamples[track];
+        }
+    }
+
+    /**
+     * @return Number of times a sample was requested while the queue was empty.
+     */
+    public long getUnderrunCount() {
+        synchronized (lock) {
+            return underruns;
+        }
+    }
+
+    /**
+     * @return Total time spent waiting for the reader on underruns, in nanoseconds.
+     */
+    public long getWaitTimeNs() {
+        synchronized (lock) {
+            return waitTimeNs;
+        }
+    }
+
+    private Sample head() {
+        synchronized (lock) {
+            startReader();
+            if (samples.isEmpty() && !endOfStream && readerError == null) {
+                underruns++;
+                long start = System.nanoTime();
+                while (samples.isEmpty() && !endOfStream && readerError == null) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RuntimeException("Interrupted while waiting for read ahead samples.", e);
+                    }
+                }
+                waitTimeNs += System.nanoTime() - start;
+            }
+
+            if (readerError != null) {
+                throw readerError;
+            }
+            return samples.peek();
+        }
+    }
+
+    private void flush() {
+        synchronized (lock) {
+            generation++;
+            freeSamples.addAll(samples);
+            samples.clear();
+            queuedBytes = 0;
+            for (int i = 0; i < queuedSamples.length; i++) {
+                queuedSamples[i] = 0;
+            }
+            endOfStream = false;
+            readerError = null;
+            lock.notifyAll();
+        }
+    }
+
+    private void startReader() {
+        if (reader != null || released) {
+            return;
+        }
+
+        reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    read();
+                } catch (RuntimeException e) {
+                    synchronized (lock) {
+                        readerError = e;
+                        lock.notifyAll();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "ReadAheadMediaExtractor");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void read() throws InterruptedException {
+        ByteBuffer scratch = ByteBuffer.allocate(SCRATCH_SIZE);
+        while (true) {
+            synchronized (lock) {
+                while (!released && (endOfStream || readerError != null || queuedBytes >= byteBudget)) {
+                    lock.wait();
+                }
+                if (released) {
+                    return;
+                }
+            }
+
+            int readGeneration;
+            Sample sample = null;
+            synchronized (extractorLock) {
+                synchronized (lock) {
+                    readGeneration = generation;
+                }
+
+                int track = extractor.getSampleTrackIndex();
+                if (track != -1) {
+                    scratch = readInto(scratch);
+                    sample = obtain(scratch.remaining());
+                    sample.data.clear();
+                    sample.data.put(scratch);
+                    sample.time = extractor.getSampleTime();
+                    sample.flags = extractor.getSampleFlags();
+                    sample.track = track;
+                    extractor.advance();
+                }
+            }
+
+            synchronized (lock) {
+                if (readGeneration != generation) {
+                    if (sample != null) {
+                        freeSamples.add(sample);
+                    }
+                    continue;
+                }
+
+                if (sample == null) {
+                    endOfStream = true;
+                } else {
+                    samples.add(sample);
+                    queuedBytes += sample.size;
+                    maxQueuedBytes = Math.max(maxQueuedBytes, queuedBytes);
+                    queuedSamples[sample.track]++;
+                }
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private ByteBuffer readInto(ByteBuffer scratch) {
+        while (true) {
+            try {
+                scratch.clear();
+                int size = extractor.readSampleData(scratch);
+                scratch.position(0);
+                scratch.limit(Math.max(size, 0));
+                return scratch;
+            } catch (IllegalArgumentException e) {
+                if (scratch.capacity() >= MAX_SCRATCH_SIZE) {
+                    throw e;
+                }
+                scratch = ByteBuffer.allocate(scratch.capacity() * 2);
+            }
+        }
+    }
+
+    private Sample obtain(int size) {
+        Sample sample = null;
+        synchronized (lock) {
+            for (Sample free : freeSamples) {
+                if (free.data.capacity() >= size) {
+                    sample = free;
+                    break;
+                }
+            }
+            if (sample != null) {
+                freeSamples.remove(sample);
+            }
+        }
+
+        if (sample == null) {
+            sample = new Sample(ByteBuffer.allocate((size / BUFFER_GRANULARITY + 1) * BUFFER_GRANULARITY));
+        }
+        sample.size = size;
+        return sample;
+    }
+
+    private static class Sample {
+        final ByteBuffer data;
+        int size;
+        long time;
+        int flags;
+        int track;
+
+        Sample(ByteBuffer data) {
+            this.data = data;
+        }
+    }
+}
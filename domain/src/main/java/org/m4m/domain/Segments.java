@@ -18,9 +18,25 @@ package org.m4m.domain;
 
 import java.util.*;
 
+/**
+ * Segments keep insertion order. Lookups go through an interval index sorted by segment bounds, rebuilt lazily
+ * after modification, with prefix sums of time shifts in a Fenwick tree and a cursor for sequential access.
+ * Lists with overlapping segments, possible through {@link #add(int, Pair)}, fall back to linear scans.
+ */
 class Segments {
     private ArrayList<Pair<Long, Long>> segments = new ArrayList<Pair<Long, Long>>();
-    private Dictionary<Pair<Long, Long>, Long> lastSegmentSampleTime = new Hashtable<Pair<Long, Long>, Long>();
+    private Dictionary<Pair<Long, Long>, long[]> lastSegmentSampleTime = new Hashtable<Pair<Long, Long>, long[]>();
+
+    private boolean indexValid = false;
+    private boolean indexed = false;
+    private Pair<Long, Long>[] sorted;
+    private long[] lefts;
+    private long[] rights;
+    private int[] positions;
+    private int[] firstPositionFrom;
+    private long[] shifts;
+    private long[] shiftTree;
+    private int cursor = 0;
 
     SegmentListener segmentListener = new SegmentListener();
 
@@ -50,28 +66,45 @@ class Segments {
     }
 
     public void saveSampleTime(long sampleTime) {
-        Pair<Long, Long> segment = getSegmentByTime(sampleTime);
+        int index = -1;
+        Pair<Long, Long> segment;
+        if (isIndexed()) {
+            index = find(sampleTime);
+            segment = index < 0 ? null : sorted[index];
+        } else {
+            segment = getSegmentByTime(sampleTime);
+        }
         if (segment == null) return;
-        Long last = lastSegmentSampleTime.get(segment);
+
+        long[] last = lastSegmentSampleTime.get(segment);
         if (last == null) {
-            lastSegmentSampleTime.put(segment, sampleTime);
-            return;
+            last = new long[]{sampleTime};
+            lastSegmentSampleTime.put(segment, last);
+        } else if (last[0] < sampleTime) {
+            last[0] = sampleTime;
         }
-        if (last < sampleTime) {
-            lastSegmentSampleTime.put(segment, sampleTime);
+
+        if (index >= 0) {
+            updateShift(index, last[0] - segment.left);
         }
     }
 
     public long shift(long sampleTime) {
         long shiftedSampleTime = sampleTime;
-        if (getCurrentSegmentTimeShift(sampleTime) != 0) {
-            shiftedSampleTime -= getCurrentSegmentTimeShift(sampleTime);
+        long currentSegmentTimeShift = getCurrentSegmentTimeShift(sampleTime);
+        if (currentSegmentTimeShift != 0) {
+            shiftedSampleTime -= currentSegmentTimeShift;
             shiftedSampleTime += getPreviousSegmentsTimeShift(sampleTime);
         }
         return shiftedSampleTime;
     }
 
     public Pair<Long, Long> getSegmentAfter(long sampleTime) {
+        if (isIndexed()) {
+            int index = firstLeftAfter(sampleTime);
+            return index == sorted.length ? null : segments.get(firstPositionFrom[index]);
+        }
+
         for (Pair<Long, Long> segment : segments) {
             if (sampleTime < segment.left) {
                 return segment;
@@ -81,7 +114,13 @@ class Segments {
     }
 
     private Pair<Long, Long> getSegmentByTime(long sampleTime) {
-        for (Pair<Long, Long> segment : segments) {
+        if (isIndexed()) {
+            int index = find(sampleTime);
+            return index < 0 ? null : sorted[index];
+        }
+
+        for (int i = 0; i < segments.size(); i++) {
+            Pair<Long, Long> segment = segments.get(i);
             if (segment.left <= sampleTime && sampleTime <= segment.right) {
                 return segment;
             }
@@ -99,10 +138,15 @@ class Segments {
     }
 
     private long getPreviousSegmentsTimeShift(long sampleTime) {
+        if (isIndexed()) {
+            return sumShifts(firstRightFrom(sampleTime));
+        }
+
         long timeShift = 0;
-        for (Pair<Long, Long> previousSegment : segments) {
+        for (int i = 0; i < segments.size(); i++) {
+            Pair<Long, Long> previousSegment = segments.get(i);
             if (previousSegment.right < sampleTime) {
-                timeShift += lastSegmentSampleTime.get(previousSegment) - previousSegment.left;
+                timeShift += lastSegmentSampleTime.get(previousSegment)[0] - previousSegment.left;
             }
         }
         return timeShift;
@@ -116,6 +160,7 @@ class Segments {
         Pair<Long, Long> arrangedPair = arrange(pair);
         if (arrangedPair != null) {
             segments.add(arrangedPair);
+            indexValid = false;
             segmentListener.segmentAdd();
         }
     }
@@ -128,6 +173,7 @@ class Segments {
             Pair<Long, Long> segment = segmentIterator.next();
             if (arrangedPair.left <= segment.left && segment.right <= arrangedPair.right) {
                 segmentIterator.remove();
+                indexValid = false;
             }
         }
 
@@ -162,17 +208,20 @@ class Segments {
 
     public void add(int index, Pair<Long, Long> segment) {
         segments.add(index, segment);
+        indexValid = false;
         segmentListener.segmentAdd();
     }
 
     public void remove(int index) {
         segments.remove(index);
+        indexValid = false;
     }
 
     public void removeOutOfBoundSegments(long boundLimit) {
         for (int i = 0; i < segments.size(); i++) {
             if (segments.get(i).left >= boundLimit) {
                 segments.remove(i);
+                indexValid = false;
             }
         }
     }
@@ -190,4 +239,137 @@ class Segments {
                 return false;
         }
     }
-}
\ No newline at end of file
+
+    private boolean isIndexed() {
+        if (!indexValid) {
+            buildIndex();
+        }
+        return indexed;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void buildIndex() {
+        indexValid = true;
+        int count = segments.size();
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer left, Integer right) {
+                Pair<Long, Long> a = segments.get(left);
+                Pair<Long, Long> b = segments.get(right);
+                int result = a.left.compareTo(b.left);
+                return result != 0 ? result : a.right.compareTo(b.right);
+            }
+        });
+
+        sorted = (Pair<Long, Long>[]) new Pair<?, ?>[count];
+        lefts = new long[count];
+        rights = new long[count];
+        positions = new int[count];
+        for (int i = 0; i < count; i++) {
+            positions[i] = order[i];
+            sorted[i] = segments.get(order[i]);
+            lefts[i] = sorted[i].left;
+            rights[i] = sorted[i].right;
+
+            // Index requires disjoint segments, they may only touch each other
+            if (lefts[i] > rights[i] || (i > 0 && (rights[i - 1] > lefts[i] || sorted[i - 1].equals(sorted[i])))) {
+                indexed = false;
+                return;
+            }
+        }
+
+        firstPositionFrom = new int[count];
+        for (int i = count - 1; i >= 0; i--) {
+            firstPositionFrom[i] = i == count - 1 ? positions[i] : Math.min(positions[i], firstPositionFrom[i + 1]);
+        }
+
+        shifts = new long[count];
+        shiftTree = new long[count + 1];
+        for (int i = 0; i < count; i++) {
+            long[] last = lastSegmentSampleTime.get(sorted[i]);
+            if (last != null) {
+                updateShift(i, last[0] - lefts[i]);
+            }
+        }
+        cursor = 0;
+        indexed = true;
+    }
+
+    /**
+     * Returns sorted index of the segment containing sample time, earliest added one if segments touch at it, or -1.
+     */
+    private int find(long sampleTime) {
+        int index = firstRightFrom(sampleTime);
+        if (index == sorted.length || lefts[index] > sampleTime) {
+            return -1;
+        }
+
+        int found = index;
+        for (int i = index + 1; i < sorted.length && lefts[i] <= sampleTime; i++) {
+            if (positions[i] < positions[found]) {
+                found = i;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Returns sorted index of the first segment ending at or after sample time. Sequential sample times are resolved
+     * by the cursor without search.
+     */
+    private int firstRightFrom(long sampleTime) {
+        for (int i = cursor; i < cursor + 2 && i < sorted.length; i++) {
+            if (rights[i] >= sampleTime && (i == 0 || rights[i - 1] < sampleTime)) {
+                cursor = i;
+                return i;
+            }
+        }
+
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (rights[middle] < sampleTime) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        cursor = Math.min(low, Math.max(sorted.length - 1, 0));
+        return low;
+    }
+
+    private int firstLeftAfter(long sampleTime) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (lefts[middle] <= sampleTime) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private void updateShift(int index, long shift) {
+        long delta = shift - shifts[index];
+        shifts[index] = shift;
+        for (int i = index + 1; i < shiftTree.length; i += i & -i) {
+            shiftTree[i] += delta;
+        }
+    }
+
+    private long sumShifts(int count) {
+        long sum = 0;
+        for (int i = count; i > 0; i -= i & -i) {
+            sum += shiftTree[i];
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,441 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.domain;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Video plugin for smart cut: copy frames marked by MediaSource go to the output as they are, partial GOPs
+ * at segment boundaries are decoded and re-encoded. Every re-encoded run is a separate encoder session,
+ * so it starts with a key frame and is flushed before copying resumes. Parameter sets are repeated in-band
+ * when switching between encoder and source streams, so both stay decodable within one track.
+ * Codecs are never waited for: a frame they can not take yet stays pending, no free frame is offered
+ * meanwhile and the command processor retries on its next pass.
+ */
+public class SmartCutVideoPlugin extends StreamCopyPlugin {
+    private static final int MAX_READY_FRAMES = 8;
+    private static final int MIN_FRAME_SIZE = 64 * 1024;
+    private static final int TIMEOUT = 10;
+
+    private enum Session {
+        NONE, RUNNING, DRAINING_DECODER, DRAINING_ENCODER
+    }
+
+    private final IMediaCodec decoder;
+    private final IMediaCodec encoder;
+    private final MediaFormat encoderFormat;
+    private final IMediaCodec.BufferInfo decoderInfo = new IMediaCodec.BufferInfo();
+    private final IMediaCodec.BufferInfo encoderInfo = new IMediaCodec.BufferInfo();
+    private final ArrayDeque<Frame> readyFrames = new ArrayDeque<Frame>();
+    private final ArrayDeque<Frame> freeFrames = new ArrayDeque<Frame>();
+    private final ArrayList<Long> framesPTSToSkip = new ArrayList<Long>();
+    private Frame deliveredFrame;
+    private Frame pendingFrame;
+    private ISurface surface;
+    private Session session = Session.NONE;
+    private boolean drainPending = false;
+    private int drainBufferIndex;
+    private boolean starving = false;
+    private byte[] encoderConfig;
+    private boolean encoderConfigPending = false;
+    private boolean sourceConfigPending = false;
+    private int copiedFrames;
+    private int transcodedFrames;
+
+    public SmartCutVideoPlugin(VideoDecoder decoder, VideoEncoder encoder) {
+        this(decoder.mediaCodec, encoder.mediaCodec, encoder.mediaFormat);
+    }
+
+    public SmartCutVideoPlugin(IMediaCodec decoder, IMediaCodec encoder, MediaFormat encoderFormat) {
+        super(MediaFormatType.VIDEO);
+        this.decoder = decoder;
+        this.encoder = encoder;
+        this.encoderFormat = encoderFormat;
+    }
+
+    @Override
+    public Frame findFreeFrame() {
+        if (pendingFrame != null || drainPending) {
+            return null;
+        }
+        return super.findFreeFrame();
+    }
+
+    @Override
+    public void push(Frame frame) {
+        if (frame.equals(Frame.EOF())) {
+            super.push(frame);
+            return;
+        }
+
+        pendingFrame = frame;
+        process();
+    }
+
+    @Override
+    public void fillCommandQueues() {
+        if (session != Session.NONE || pendingFrame != null || drainPending) {
+            process();
+        }
+    }
+
+    @Override
+    public Frame getFrame() {
+        if (deliveredFrame != null) {
+            freeFrames.add(deliveredFrame);
+            deliveredFrame = null;
+        }
+
+        Frame frame = readyFrames.poll();
+        if (frame == null) {
+            if (state == PluginState.Draining) {
+                return Frame.EOF();
+            }
+            throw new UnsupportedOperationException("Attempt to pull a frame twice.");
+        }
+
+        if (starving && readyFrames.size() < MAX_READY_FRAMES) {
+            starving = false;
+            feedMeIfNotDraining();
+        }
+        deliveredFrame = frame;
+        frame.setTrackId(outputTrackId);
+        return frame;
+    }
+
+    @Override
+    public void drain(int bufferIndex) {
+        drainPending = true;
+        drainBufferIndex = bufferIndex;
+        process();
+    }
+
+    @Override
+    public void stop() {
+        if (session != Session.NONE) {
+            decoder.stop();
+            encoder.stop();
+            releaseSurface();
+            session = Session.NONE;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        releaseSurface();
+        decoder.release();
+        encoder.release();
+    }
+
+    public int getCopiedFrameCount() {
+        return copiedFrames;
+    }
+
+    public int getTranscodedFrameCount() {
+        return transcodedFrames;
+    }
+
+    private void process() {
+        if (session == Session.RUNNING) {
+            drainDecoder();
+        }
+
+        if (pendingFrame != null) {
+            boolean handled = pendingFrame.isCopyFrame() && !pendingFrame.isSkipFrame()
+                    ? copy(pendingFrame)
+                    : decode(pendingFrame);
+            if (!handled) {
+                return;
+            }
+            pendingFrame = null;
+
+            if (readyFrames.size() < MAX_READY_FRAMES) {
+                feedMeIfNotDraining();
+            } else {
+                starving = true;
+            }
+        }
+
+        if (drainPending && finishTranscoding()) {
+            drainPending = false;
+            super.drain(drainBufferIndex);
+        }
+    }
+
+    private boolean copy(Frame frame) {
+        if (!finishTranscoding()) {
+            return false;
+        }
+
+        queueOutput(frame.getByteBuffer(), frame.getLength(), frame.getSampleTime(), frame.getFlags(), sourceConfigPending ? getSourceConfig(frame.getByteBuffer()) : null);
+        sourceConfigPending = false;
+        copiedFrames++;
+        return true;
+    }
+
+    private boolean decode(Frame frame) {
+        if (session == Session.NONE) {
+            startTranscoding();
+        }
+
+        int index = decoder.dequeueInputBuffer(TIMEOUT);
+        if (index < 0) {
+            return false;
+        }
+
+        ByteBuffer inputBuffer = decoder.getInputBuffers()[index];
+        inputBuffer.clear();
+        inputBuffer.put(slice(frame.getByteBuffer(), frame.getLength()));
+        decoder.queueInputBuffer(index, 0, frame.getLength(), frame.getSampleTime(), frame.getFlags());
+
+        if (frame.isSkipFrame()) {
+            framesPTSToSkip.add(frame.getSampleTime());
+        }
+        drainDecoder();
+        return true;
+    }
+
+    private void startTranscoding() {
+        encoder.configure(encoderFormat, null, IMediaCodec.CONFIGURE_FLAG_ENCODE);
+        surface = encoder.createInputSurface();
+        encoder.start();
+        decoder.configure(mediaFormat, surface.getCleanObject(), 0);
+        decoder.start();
+
+        session = Session.RUNNING;
+        encoderConfigPending = true;
+    }
+
+    /**
+     * Flushes the running encoder session step by step.
+     *
+     * @return True when there is no session left, false if the codecs are not done yet.
+     */
+    private boolean finishTranscoding() {
+        if (session == Session.RUNNING) {
+            int index = decoder.dequeueInputBuffer(TIMEOUT);
+            if (index < 0) {
+                return false;
+            }
+            decoder.queueInputBuffer(index, 0, 0, 0, IMediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            session = Session.DRAINING_DECODER;
+        }
+
+        if (session == Session.DRAINING_DECODER) {
+            if (!drainDecoder()) {
+                return false;
+            }
+            encoder.signalEndOfInputStream();
+            session = Session.DRAINING_ENCODER;
+        }
+
+        if (session == Session.DRAINING_ENCODER) {
+            if (!drainEncoder()) {
+                return false;
+            }
+            decoder.stop();
+            encoder.stop();
+            releaseSurface();
+            framesPTSToSkip.clear();
+
+            session = Session.NONE;
+            sourceConfigPending = true;
+        }
+        return true;
+    }
+
+    /**
+     * The surface belongs to one boundary GOP, its textures and contexts are freed with it.
+     */
+    private void releaseSurface() {
+        if (surface != null) {
+            surface.release();
+            if (surface instanceof IDisposableSurface) {
+                ((IDisposableSurface) surface).dispose();
+            }
+            surface = null;
+        }
+    }
+
+    /**
+     * Takes everything the decoder has ready and renders it to the encoder.
+     *
+     * @return True if the decoder reached the end of stream.
+     */
+    private boolean drainDecoder() {
+        while (true) {
+            int index = decoder.dequeueOutputBuffer(decoderInfo, TIMEOUT);
+            if (index == IMediaCodec.INFO_TRY_AGAIN_LATER) {
+                drainEncoder();
+                return false;
+            }
+            if (index < 0) {
+                continue;
+            }
+
+            boolean endOfStream = decoderInfo.isEof();
+            long sampleTime = decoderInfo.presentationTimeUs;
+            boolean render = decoderInfo.size != 0 && !framesPTSToSkip.remove(sampleTime);
+            decoder.releaseOutputBuffer(index, render);
+
+            if (render) {
+                surface.awaitAndCopyNewImage();
+                surface.drawImage();
+                surface.setPresentationTime(sampleTime * 1000);
+                surface.swapBuffers();
+                transcodedFrames++;
+            }
+            drainEncoder();
+
+            if (endOfStream) return true;
+        }
+    }
+
+    /**
+     * Takes everything the encoder has ready.
+     *
+     * @return True if the encoder reached the end of stream.
+     */
+    private boolean drainEncoder() {
+        while (true) {
+            int index = encoder.dequeueOutputBuffer(encoderInfo, TIMEOUT);
+            if (index == IMediaCodec.INFO_TRY_AGAIN_LATER) {
+                return false;
+            }
+            if (index == IMediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                MediaFormat outputFormat = encoder.getOutputFormat();
+                if (outputFormat != null) {
+                    encoderConfig = concat(outputFormat.getByteBuffer("csd-0"), outputFormat.getByteBuffer("csd-1"));
+                }
+                continue;
+            }
+            if (index < 0) {
+                continue;
+            }
+
+            ByteBuffer outputBuffer = encoder.getOutputBuffers()[index];
+            outputBuffer.position(encoderInfo.offset);
+            if ((encoderInfo.flags & IMediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                encoderConfig = concat(slice(outputBuffer, encoderInfo.size), null);
+            } else if (encoderInfo.size != 0) {
+                int flags = encoderInfo.flags & ~IMediaCodec.BUFFER_FLAG_END_OF_STREAM;
+                queueOutput(outputBuffer, encoderInfo.size, encoderInfo.presentationTimeUs, flags, encoderConfigPending ? encoderConfig : null);
+                encoderConfigPending = false;
+            }
+            boolean endOfStream = encoderInfo.isEof();
+            encoder.releaseOutputBuffer(index, false);
+
+            if (endOfStream) return true;
+        }
+    }
+
+    private void queueOutput(ByteBuffer data, int length, long sampleTime, int flags, byte[] config) {
+        int configLength = config == null ? 0 : config.length;
+        Frame frame = freeFrames.poll();
+        if (frame == null || frame.getByteBuffer().capacity() < configLength + length) {
+            frame = new Frame(ByteBuffer.allocate(Math.max(configLength + length, MIN_FRAME_SIZE)), 0, 0, 0, 0, 0);
+        }
+
+        ByteBuffer buffer = frame.getByteBuffer();
+        buffer.clear();
+        if (config != null) {
+            buffer.put(config);
+        }
+        buffer.put(slice(data, length));
+        buffer.flip();
+
+        frame.set(buffer, configLength + length, sampleTime, 0, flags, outputTrackId);
+        readyFrames.add(frame);
+        getOutputCommandQueue().queue(Command.HasData, 0);
+    }
+
+    private byte[] getSourceConfig(ByteBuffer sample) {
+        byte[] config = concat(mediaFormat.getByteBuffer("csd-0"), mediaFormat.getByteBuffer("csd-1"));
+        if (config == null || startsWithStartCode(sample, sample.position())) {
+            return config;
+        }
+        return toLengthPrefixed(config);
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int length) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(slice.position() + length);
+        return slice;
+    }
+
+    private static byte[] concat(ByteBuffer first, ByteBuffer second) {
+        int length = (first == null ? 0 : first.remaining()) + (second == null ? 0 : second.remaining());
+        if (length == 0) {
+            return null;
+        }
+
+        ByteBuffer result = ByteBuffer.allocate(length);
+        if (first != null) result.put(first.duplicate());
+        if (second != null) result.put(second.duplicate());
+        return result.array();
+    }
+
+    private static boolean startsWithStartCode(ByteBuffer buffer, int position) {
+        return buffer.limit() - position >= 4
+                && buffer.get(position) == 0 && buffer.get(position + 1) == 0
+                && buffer.get(position + 2) == 0 && buffer.get(position + 3) == 1;
+    }
+
+    /**
+     * Converts Annex B parameter sets to 4 byte length prefixed NAL units, the layout of samples in MP4 files.
+     */
+    static byte[] toLengthPrefixed(byte[] annexB) {
+        ByteBuffer input = ByteBuffer.wrap(annexB);
+        ByteBuffer output = ByteBuffer.allocate(annexB.length + 4 * annexB.length / 4);
+        int start = -1;
+        for (int i = 0; i + 3 <= annexB.length; i++) {
+            if (annexB[i] == 0 && annexB[i + 1] == 0 && annexB[i + 2] == 1) {
+                if (start >= 0) {
+                    writeNal(input, start, trimZeros(annexB, start, i), output);
+                }
+                start = i + 3;
+                i += 2;
+            }
+        }
+        if (start < 0) {
+            return annexB;
+        }
+        writeNal(input, start, annexB.length, output);
+        byte[] result = new byte[output.position()];
+        output.flip();
+        output.get(result);
+        return result;
+    }
+
+    private static int trimZeros(byte[] data, int start, int end) {
+        while (end > start && data[end - 1] == 0) {
+            end--;
+        }
+        return end;
+    }
+
+    private static void writeNal(ByteBuffer input, int start, int end, ByteBuffer output) {
+        output.putInt(end - start);
+        ByteBuffer nal = input.duplicate();
+        nal.position(start);
+        nal.limit(end);
+        output.put(nal);
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.domain;
+
+import org.m4m.KeyframeSnapPolicy;
+import org.m4m.MediaFile;
+import org.m4m.StreamCopyReport;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Snaps segment starts of source files to video key frames and decides whether they can be stream copied.
+ */
+public class StreamCopyPlanner {
+    private final KeyframeSnapPolicy policy;
+    private final long maxSnapDistanceUs;
+
+    public StreamCopyPlanner(KeyframeSnapPolicy policy, long maxSnapDistanceUs) {
+        this.policy = policy;
+        this.maxSnapDistanceUs = maxSnapDistanceUs;
+    }
+
+    public StreamCopyReport plan(List<MediaFile> files) {
+        List<StreamCopyReport.Segment> segments = new ArrayList<StreamCopyReport.Segment>();
+        for (int i = 0; i < files.size(); i++) {
+            MediaSource source = files.get(i).getMediaSource();
+            Collection<Pair<Long, Long>> fileSegments = source.getSegments();
+            if (fileSegments.isEmpty()) {
+                fileSegments = Collections.singletonList(new Pair<Long, Long>(0L, source.getDurationInMicroSec()));
+            }
+            for (Pair<Long, Long> segment : fileSegments) {
+                segments.add(snap(i, source, segment));
+            }
+        }
+        return new StreamCopyReport(segments, checkFormats(files));
+    }
+
+    /**
+     * Replaces segments of the source files with snapped ones from the report.
+     */
+    public void apply(StreamCopyReport report, List<MediaFile> files) {
+        for (MediaFile file : files) {
+            while (!file.getSegments().isEmpty()) {
+                file.removeSegment(0);
+            }
+        }
+        for (StreamCopyReport.Segment segment : report.getSegments()) {
+            files.get(segment.getFileIndex()).addSegment(new Pair<Long, Long>(segment.getSnapped().left, segment.getSnapped().right));
+        }
+    }
+
+    private StreamCopyReport.Segment snap(int fileIndex, MediaSource source, Pair<Long, Long> segment) {
+        long left = segment.left;
+        long syncTime;
+        switch (policy) {
+            case NEXT:
+                syncTime = source.getSyncSampleTime(left, IMediaExtractor.SEEK_TO_NEXT_SYNC);
+                break;
+            case CLOSEST:
+                syncTime = source.getSyncSampleTime(left, IMediaExtractor.SEEK_TO_CLOSEST_SYNC);
+                break;
+            default:
+                syncTime = source.getSyncSampleTime(left, IMediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                break;
+        }
+
+        boolean copyable = syncTime >= 0 && syncTime < segment.right;
+        if (policy == KeyframeSnapPolicy.EXACT) {
+            copyable &= syncTime == left;
+        } else {
+            copyable &= Math.abs(syncTime - left) <= maxSnapDistanceUs;
+        }
+
+        Pair<Long, Long> snapped = copyable ? new Pair<Long, Long>(syncTime, segment.right) : segment;
+        return new StreamCopyReport.Segment(fileIndex, segment, snapped, copyable);
+    }
+
+    /**
+     * Checks that joined files can share one set of output tracks without transcoding.
+     *
+     * @return Reason why they can not, null if they can.
+     */
+    public String checkFormats(List<MediaFile> files) {
+        if (files.isEmpty()) {
+            return "No source files.";
+        }
+
+        MediaSource first = files.get(0).getMediaSource();
+        for (int i = 1; i < files.size(); i++) {
+            MediaSource source = files.get(i).getMediaSource();
+            for (MediaFormatType type : new MediaFormatType[]{MediaFormatType.VIDEO, MediaFormatType.AUDIO}) {
+                if (!isCompatible(first.getMediaFormatByType(type), source.getMediaFormatByType(type))) {
+                    return "File " + i + " " + type + " format differs from the first file.";
+                }
+            }
+        }
+        return null;
+    }
+
+    private boolean isCompatible(MediaFormat first, MediaFormat second) {
+        if (first == null || second == null) {
+            return first == second;
+        }
+        return first.getMimeType().equals(second.getMimeType())
+                && isEqual(first.getByteBuffer("csd-0"), second.getByteBuffer("csd-0"))
+                && isEqual(first.getByteBuffer("csd-1"), second.getByteBuffer("csd-1"));
+    }
+
+    private boolean isEqual(ByteBuffer first, ByteBuffer second) {
+        return first == null ? second == null : first.equals(second);
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.domain;
+
+/**
+ * Pass-through plugin for stream copy into a file: samples MediaSource reads before a seek position
+ * are dropped instead of being forwarded with unshifted time stamps.
+ */
+public class StreamCopyPlugin extends PassThroughPlugin {
+    public static final int VIDEO_BUFFER_SIZE = 4 * 1024 * 1024;
+    public static final int AUDIO_BUFFER_SIZE = 64 * 1024;
+
+    public StreamCopyPlugin(MediaFormatType mediaFormatType) {
+        this(mediaFormatType == MediaFormatType.VIDEO ? VIDEO_BUFFER_SIZE : AUDIO_BUFFER_SIZE, mediaFormatType);
+    }
+
+    public StreamCopyPlugin(int size, MediaFormatType mediaFormatType) {
+        super(size, mediaFormatType);
+    }
+
+    @Override
+    public void push(Frame frame) {
+        if (frame.isSkipFrame() && !frame.equals(Frame.EOF())) {
+            feedMeIfNotDraining();
+            return;
+        }
+        super.push(frame);
+    }
+}
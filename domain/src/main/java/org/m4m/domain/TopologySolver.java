@@ -16,8 +16,13 @@
 
 package org.m4m.domain;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 
 class TopologySolver {
     public Object getNodes;
@@ -34,6 +39,30 @@ class TopologySolver {
         }
     }
 
+    private static class Candidate {
+        final RightNode sink;
+        final List<IsConnectable> rules;
+
+        Candidate(RightNode sink, List<IsConnectable> rules) {
+            this.sink = sink;
+            this.rules = rules;
+        }
+    }
+
+    /**
+     * Solved connections as (output index, input index) pairs in connection order, replayable onto
+     * another solver with the same signature.
+     */
+    static class Template {
+        private final int[] outputs;
+        private final int[] inputs;
+
+        Template(int[] outputs, int[] inputs) {
+            this.outputs = outputs;
+            this.inputs = inputs;
+        }
+    }
+
     private final LinkedList<LeftNode> sources = new LinkedList<LeftNode>();
     private final LinkedList<RightNode> sinks = new LinkedList<RightNode>();
     private final LinkedList<LeftNode> pureSources = new LinkedList<LeftNode>();
@@ -41,6 +70,10 @@ class TopologySolver {
     private final LinkedList<IsConnectable> rules = new LinkedList<IsConnectable>();
     private boolean solved;
     private LinkedList<ITopologyTree> trees;
+    private final Map<Object, LeftNode> transformOutputs = new IdentityHashMap<Object, LeftNode>();
+    private final Map<LeftNode, List<Candidate>> candidates = new IdentityHashMap<LeftNode, List<Candidate>>();
+    private String diagnostic;
+    private final StringBuilder signature = new StringBuilder();
 
     public void addConnectionRule(IsConnectable rule) {
         assertIsNotSolved();
@@ -51,6 +84,7 @@ class TopologySolver {
         assertIsNotSolved();
         sinks.add(new RightNode(transform));
         sources.add(new LeftNode(transform));
+        appendSignature('T', transform);
     }
 
     public void add(IOutputRaw source) {
@@ -58,11 +92,85 @@ class TopologySolver {
         LeftNode leftNode = new LeftNode(source);
         pureSources.add(leftNode);
         this.sources.add(leftNode);
+        appendSignature('S', source);
     }
 
     public void add(IInputRaw sink) {
         assertIsNotSolved();
         sinks.add(new RightNode(sink));
+        appendSignature('K', sink);
+    }
+
+    private void appendSignature(char role, Object node) {
+        signature.append(role).append(':').append(node == null ? "null" : node.getClass().getName());
+        if (node instanceof Decoder) {
+            signature.append('/').append(((Decoder) node).getMediaFormatType());
+        }
+        signature.append(';');
+    }
+
+    /**
+     * Node roles and types in the order they were added, along with the media type of decoders.
+     * Solvers with equal signatures and the same type-based rules resolve to the same topology.
+     */
+    public String getSignature() {
+        return signature.toString();
+    }
+
+    public Template getTemplate() {
+        resolve();
+
+        Map<Object, Integer> inputIndexes = new IdentityHashMap<Object, Integer>();
+        int index = 0;
+        for (RightNode sink : sinks) {
+            if (!inputIndexes.containsKey(sink.value())) {
+                inputIndexes.put(sink.value(), index);
+            }
+            index++;
+        }
+
+        ArrayList<Integer> outputs = new ArrayList<Integer>();
+        ArrayList<Integer> inputs = new ArrayList<Integer>();
+        index = 0;
+        for (LeftNode source : sources) {
+            for (IInputRaw input : source.getConnector()) {
+                outputs.add(index);
+                inputs.add(inputIndexes.get(input));
+            }
+            index++;
+        }
+
+        int[] templateOutputs = new int[outputs.size()];
+        int[] templateInputs = new int[inputs.size()];
+        for (int i = 0; i < templateOutputs.length; i++) {
+            templateOutputs[i] = outputs.get(i);
+            templateInputs[i] = inputs.get(i);
+        }
+        return new Template(templateOutputs, templateInputs);
+    }
+
+    /**
+     * Connects the nodes as recorded in the template instead of searching, the template must come
+     * from a solver with the same signature.
+     */
+    public void apply(Template template) {
+        assertIsNotSolved();
+
+        ArrayList<LeftNode> outputs = new ArrayList<LeftNode>(sources);
+        ArrayList<RightNode> inputs = new ArrayList<RightNode>(sinks);
+        for (int i = 0; i < template.outputs.length; i++) {
+            if (template.outputs[i] >= outputs.size() || template.inputs[i] >= inputs.size()) {
+                disconnectAll();
+                throw new IllegalArgumentException("Topology template does not match the nodes");
+            }
+            LeftNode output = outputs.get(template.outputs[i]);
+            RightNode input = inputs.get(template.inputs[i]);
+            output.connect(input.value());
+            input.connect(output.value());
+        }
+
+        indexTransformOutputs();
+        buildTrees();
     }
 
     public Collection<IOutputRaw> getSources() {
@@ -116,19 +224,23 @@ class TopologySolver {
     public Collection<ITopologyTree> resolve() throws RuntimeException {
         if (!solved) {
             if (!continueResolve()) {
-                throw new IllegalStateException("Cannot resolve");
+                throw new IllegalStateException(diagnostic);
             }
 
-            trees = new LinkedList<ITopologyTree>();
-            for (LeftNode left : pureSources) {
-                trees.add(buildTree(left));
-            }
-
-            solved = true;
+            buildTrees();
         }
         return trees;
     }
 
+    private void buildTrees() {
+        trees = new LinkedList<ITopologyTree>();
+        for (LeftNode left : pureSources) {
+            trees.add(buildTree(left));
+        }
+
+        solved = true;
+    }
+
     private void assertIsNotSolved() {
         if (solved) {
             throw new IllegalStateException("cannot modify topology after solving");
@@ -136,7 +248,7 @@ class TopologySolver {
     }
 
     private ITopologyTree buildTree(IInputRaw input) {
-        LeftNode lNode = findOutputForTransform(input);
+        LeftNode lNode = input instanceof ITransform ? transformOutputs.get(input) : null;
         if (null == lNode) {
             return new TopologyNet(input);
         }
@@ -158,51 +270,155 @@ class TopologySolver {
         return net;
     }
 
-    private LeftNode findOutputForTransform(IInputRaw input) {
-        if (!(input instanceof ITransform)) {
-            return null;
-        }
+    /**
+     * Connects outputs to inputs in declaration order, taking a connection when the rules accept it and
+     * every output can still get a connection afterwards. The result is the first complete topology in that
+     * order, the one an exhaustive search over connection orders would find, in polynomial time.
+     * Rules are expected to be monotone: a rule accepting a set of connections accepts each of them alone,
+     * and a connection rejected once is not accepted after more connections are made.
+     */
+    private boolean continueResolve() {
+        indexCandidates();
 
-        for (LeftNode output : sources) {
-            if (output.value() instanceof ITransform) {
-                if (input == output.value()) {
-                    return output;
+        if (canConnectAllSources()) {
+            for (LeftNode source : sources) {
+                for (Candidate candidate : candidates.get(source)) {
+                    if (source.isConnectedTo(candidate.sink.value()) || !tryConnect(source, candidate)) {
+                        continue;
+                    }
+                    if (!canConnectAllSources()) {
+                        disconnect(source, candidate.sink);
+                    }
                 }
             }
         }
 
-        return null;
+        for (LeftNode source : sources) {
+            if (!source.isConnected()) {
+                diagnostic = describeUnconnected();
+                disconnectAll();
+                return false;
+            }
+        }
+        return true;
     }
 
-    private boolean continueResolve() {
-        boolean allConnected = true;
+    private void indexTransformOutputs() {
+        transformOutputs.clear();
         for (LeftNode source : sources) {
-            if (!source.isConnected()) {
-                allConnected = false;
+            if (source.value() instanceof ITransform) {
+                transformOutputs.put(source.value(), source);
             }
+        }
+    }
 
+    private void indexCandidates() {
+        indexTransformOutputs();
+        candidates.clear();
+        for (LeftNode source : sources) {
+            ArrayList<Candidate> sourceCandidates = new ArrayList<Candidate>();
             for (RightNode sink : sinks) {
-                if (source.isConnectedTo(sink.value())) {
-                    continue;
+                List<IsConnectable> candidateRules = indexRules(source, sink);
+                if (!candidateRules.isEmpty()) {
+                    sourceCandidates.add(new Candidate(sink, candidateRules));
                 }
-                //connect before rule matching to allow verify all connections
-                source.connect(sink.value());
-                sink.connect(source.value());
-                if (matchConnectionRules(source, sink)) {
-                    if (continueResolve()) {
+            }
+            candidates.put(source, sourceCandidates);
+        }
+    }
+
+    private List<IsConnectable> indexRules(LeftNode source, RightNode sink) {
+        List<IInputRaw> input = Collections.singletonList(sink.value());
+        List<IOutputRaw> output = Collections.<IOutputRaw>singletonList(source.value());
+        List<IsConnectable> candidateRules = new ArrayList<IsConnectable>(1);
+        for (IsConnectable rule : rules) {
+            if (rule.isConnectable(source.value(), input) && rule.isConnectable(output, sink.value())) {
+                candidateRules.add(rule);
+            }
+        }
+        return candidateRules;
+    }
+
+    /**
+     * Checks whether each not yet connected output can get one more connection on top of the current ones.
+     * Tentative connections are assigned with augmenting paths, so an input taken by one output is handed over
+     * when that output has an alternative, and are undone before returning.
+     */
+    private boolean canConnectAllSources() {
+        Map<LeftNode, RightNode> assigned = new IdentityHashMap<LeftNode, RightNode>();
+        boolean connected = true;
+        for (LeftNode source : sources) {
+            if (!source.isConnected() && !assign(source, assigned, new IdentityHashMap<RightNode, Boolean>())) {
+                connected = false;
+                break;
+            }
+        }
+        for (Map.Entry<LeftNode, RightNode> assignment : assigned.entrySet()) {
+            disconnect(assignment.getKey(), assignment.getValue());
+        }
+        return connected;
+    }
+
+    private boolean assign(LeftNode source, Map<LeftNode, RightNode> assigned, Map<RightNode, Boolean> visited) {
+        List<Candidate> sourceCandidates = candidates.get(source);
+        for (Candidate candidate : sourceCandidates) {
+            if (tryConnect(source, candidate)) {
+                assigned.put(source, candidate.sink);
+                return true;
+            }
+        }
+
+        for (Candidate candidate : sourceCandidates) {
+            if (visited.put(candidate.sink, Boolean.TRUE) != null) {
+                continue;
+            }
+            for (LeftNode other : assignedTo(candidate.sink, assigned)) {
+                disconnect(other, candidate.sink);
+                assigned.remove(other);
+                if (tryConnect(source, candidate)) {
+                    assigned.put(source, candidate.sink);
+                    if (assign(other, assigned, visited)) {
                         return true;
                     }
+                    assigned.remove(source);
+                    disconnect(source, candidate.sink);
                 }
-                sink.disconnect(source.value());
-                source.disconnect(sink.value());
+                other.connect(candidate.sink.value());
+                candidate.sink.connect(other.value());
+                assigned.put(other, candidate.sink);
             }
         }
+        return false;
+    }
 
-        return allConnected;
+    private static List<LeftNode> assignedTo(RightNode sink, Map<LeftNode, RightNode> assigned) {
+        List<LeftNode> sources = new ArrayList<LeftNode>();
+        for (Map.Entry<LeftNode, RightNode> assignment : assigned.entrySet()) {
+            if (assignment.getValue() == sink) {
+                sources.add(assignment.getKey());
+            }
+        }
+        return sources;
     }
 
-    private boolean matchConnectionRules(LeftNode output, RightNode sink) {
-        for (IsConnectable rule : rules) {
+    private boolean tryConnect(LeftNode source, Candidate candidate) {
+        //connect before rule matching to allow verify all connections
+        source.connect(candidate.sink.value());
+        candidate.sink.connect(source.value());
+        if (matchConnectionRules(candidate.rules, source, candidate.sink)) {
+            return true;
+        }
+        disconnect(source, candidate.sink);
+        return false;
+    }
+
+    private static void disconnect(LeftNode source, RightNode sink) {
+        sink.disconnect(source.value());
+        source.disconnect(sink.value());
+    }
+
+    private boolean matchConnectionRules(List<IsConnectable> candidateRules, LeftNode output, RightNode sink) {
+        for (IsConnectable rule : candidateRules) {
             if (rule.isConnectable(output.value(), output.getConnector()) &&
                 rule.isConnectable(sink.getConnector(), sink.value())) {
                 return true;
@@ -210,4 +426,46 @@ class TopologySolver {
         }
         return false;
     }
+
+    private String describeUnconnected() {
+        StringBuilder description = new StringBuilder("Cannot resolve topology, no connection for");
+        for (LeftNode source : sources) {
+            if (source.isConnected()) {
+                continue;
+            }
+            description.append(' ').append(name(source.value())).append(" (candidates:");
+            boolean hasCandidates = false;
+            for (Candidate candidate : candidates.get(source)) {
+                description.append(' ').append(name(candidate.sink.value()))
+                    .append(" connected to ").append(names(candidate.sink.getConnector()));
+                hasCandidates = true;
+            }
+            description.append(hasCandidates ? ");" : " none);");
+        }
+        return description.toString();
+    }
+
+    private static String names(Collection<?> nodes) {
+        StringBuilder names = new StringBuilder("[");
+        for (Object node : nodes) {
+            if (names.length() > 1) {
+                names.append(", ");
+            }
+            names.append(name(node));
+        }
+        return names.append(']').toString();
+    }
+
+    private static String name(Object node) {
+        return node == null ? "null" : node.getClass().getSimpleName();
+    }
+
+    private void disconnectAll() {
+        for (LeftNode source : sources) {
+            source.getConnector().clear();
+        }
+        for (RightNode sink : sinks) {
+            sink.getConnector().clear();
+        }
+    }
 }
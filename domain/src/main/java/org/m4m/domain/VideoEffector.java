@@ -38,6 +38,7 @@ public class VideoEffector extends MediaCodecPlugin {
     private final long deltaPts = 1000000L;
     private boolean awaitCurrentFileSample = false;
     private Frame saved;
+    private final Frame surfaceFrame = new Frame(null, 1, 1, 0, 0, 0);
     private boolean firstDecoderConnected = false;
     private int skipTransitionEffect = 0;
     private boolean previewRenderMode = false;
@@ -58,7 +59,7 @@ public class VideoEffector extends MediaCodecPlugin {
     }
 
     public void reInitInputCommandQueue() {
-        getInputCommandQueue().queue.clear();
+        getInputCommandQueue().clear();
         getInputCommandQueue().queue(Command.NeedInputFormat, getTrackId());
     }
 
@@ -318,7 +319,8 @@ public class VideoEffector extends MediaCodecPlugin {
         }
 
 //        Logger.getLogger("AMP").info("Frame VideoEffector savedFrame sampletime: " + savedFrame.getSampleTime());
-        return new Frame(null, 1, 1, 0, 0, 0);
+        surfaceFrame.set(null, 1, 1, 0, 0, 0);
+        return surfaceFrame;
     }
 
     @Override
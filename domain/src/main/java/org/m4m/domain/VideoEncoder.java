@@ -81,9 +81,7 @@ public class VideoEncoder extends Encoder implements ITransform {
         if (frameCount < 2) {
             if (state != PluginState.Draining && state != PluginState.Drained ) {
 
-                Pair<Command, Integer> command = getInputCommandQueue().first();
-
-                if (command == null || command.left != Command.NeedData ) {
+                if (getInputCommandQueue().firstCommand() != Command.NeedData) {
                     getInputCommandQueue().queue(Command.NeedData, getTrackId());
                 }
             }
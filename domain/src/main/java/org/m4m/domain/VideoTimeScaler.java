@@ -34,6 +34,7 @@ public class VideoTimeScaler extends MediaCodecPlugin {
 
     private boolean awaitCurrentFileSample = false;
     private boolean previewRenderMode = false;
+    private final Frame surfaceFrame = new Frame(null, 1, 1, 0, 0, 0);
     private int outputAngle = 0;
     private TextureRenderer.FillMode fillMode = TextureRenderer.FillMode.PreserveAspectFit;
     private IPreviewTranscode previewTranscode;
@@ -54,7 +55,7 @@ public class VideoTimeScaler extends MediaCodecPlugin {
     }
 
     public void reInitInputCommandQueue() {
-        getInputCommandQueue().queue.clear();
+        getInputCommandQueue().clear();
         getInputCommandQueue().queue(Command.NeedInputFormat, getTrackId());
     }
 
@@ -252,7 +253,8 @@ public class VideoTimeScaler extends MediaCodecPlugin {
             throw new RuntimeException("Out of order operation.");
         }
 
-        return new Frame(null, 1, 1, 0, 0, 0);
+        surfaceFrame.set(null, 1, 1, 0, 0, 0);
+        return surfaceFrame;
     }
 
     @Override
@@ -0,0 +1,337 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.domain;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+
+/**
+ * Writes to a file channel from a background thread. Written bytes are copied into preallocated direct
+ * chunks, full chunks are written by the I/O thread with gather writes, so every write to the file
+ * starts at a chunk aligned offset. When all chunks are in flight writers wait for one to be written.
+ * I/O errors are reported by the next write, flush or close.
+ */
+public class WriteBehindChannel implements GatheringByteChannel {
+    public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+    public static final int MIN_CHUNK_SIZE = 4 * 1024;
+
+    private final FileChannel channel;
+    private final int chunkSize;
+    private final int chunkCount;
+    private final Object lock = new Object();
+    private final ArrayDeque<ByteBuffer> freeChunks = new ArrayDeque<ByteBuffer>();
+    private final ArrayDeque<ByteBuffer> filledChunks = new ArrayDeque<ByteBuffer>();
+    private final ArrayDeque<Long> submitTimes = new ArrayDeque<Long>();
+    private final Thread writer;
+    private ByteBuffer chunk;
+    private boolean writing;
+    private boolean closed;
+    private IOException error;
+    private long writes;
+    private long bytesWritten;
+    private long flushedChunks;
+    private long flushLatencyNs;
+    private long maxFlushLatencyNs;
+    private long stallTimeNs;
+
+    /**
+     * Splits the budget into chunks of {@link #DEFAULT_CHUNK_SIZE}. Budgets below two default chunks are split into
+     * two smaller chunks instead, of at least {@link #MIN_CHUNK_SIZE} each, so a tiny budget still takes 8 KiB.
+     *
+     * @param inFlightBudget Bytes written but not yet in the file at most.
+     */
+    public WriteBehindChannel(FileChannel channel, long inFlightBudget) {
+        this(channel, chunkSizeFor(inFlightBudget), (int) Math.max(2, inFlightBudget / chunkSizeFor(inFlightBudget)));
+    }
+
+    public WriteBehindChannel(FileChannel channel, int chunkSize, int chunkCount) {
+        this.channel = channel;
+        this.chunkSize = chunkSize;
+        this.chunkCount = chunkCount;
+        for (int i = 0; i < chunkCount; i++) {
+            freeChunks.add(ByteBuffer.allocateDirect(chunkSize));
+        }
+
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeChunks();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "WriteBehindChannel");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        checkOpen();
+        int length = src.remaining();
+        while (src.hasRemaining()) {
+            if (chunk == null) {
+                chunk = takeFreeChunk();
+            }
+
+            int size = Math.min(src.remaining(), chunk.remaining());
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + size);
+            chunk.put(part);
+            src.position(src.position() + size);
+
+            if (!chunk.hasRemaining()) {
+                submit();
+            }
+        }
+        return length;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        long written = 0;
+        for (int i = offset; i < offset + length; i++) {
+            written += write(srcs[i]);
+        }
+        return written;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    /**
+     * Hands the partially filled chunk over and waits until everything written so far is in the file.
+     */
+    public void flush() throws IOException {
+        checkOpen();
+        if (chunk != null && chunk.position() > 0) {
+            submit();
+        }
+
+        synchronized (lock) {
+            while (error == null && (writing || !filledChunks.isEmpty())) {
+                waitForWriter();
+            }
+            checkError();
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        synchronized (lock) {
+            return !closed;
+        }
+    }
+
+    /**
+     * Flushes pending bytes, stops the I/O thread and closes the file channel.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!isOpen()) {
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            synchronized (lock) {
+                closed = true;
+                lock.notifyAll();
+            }
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            channel.close();
+        }
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    /**
+     * @return Number of write calls made to the file channel.
+     */
+    public long getWriteCount() {
+        synchronized (lock) {
+            return writes;
+        }
+    }
+
+    public long getBytesWritten() {
+        synchronized (lock) {
+            return bytesWritten;
+        }
+    }
+
+    public long getBytesPerWrite() {
+        synchronized (lock) {
+            return writes == 0 ? 0 : bytesWritten / writes;
+        }
+    }
+
+    /**
+     * @return Average time from handing a chunk over to having it in the file, in nanoseconds.
+     */
+    public long getFlushLatencyNs() {
+        synchronized (lock) {
+            return flushedChunks == 0 ? 0 : flushLatencyNs / flushedChunks;
+        }
+    }
+
+    public long getMaxFlushLatencyNs() {
+        synchronized (lock) {
+            return maxFlushLatencyNs;
+        }
+    }
+
+    /**
+     * @return Total time writers waited for a free chunk, in nanoseconds.
+     */
+    public long getStallTimeNs() {
+        synchronized (lock) {
+            return stallTimeNs;
+        }
+    }
+
+    private static int chunkSizeFor(long inFlightBudget) {
+        if (inFlightBudget >= 2L * DEFAULT_CHUNK_SIZE) {
+            return DEFAULT_CHUNK_SIZE;
+        }
+        return (int) Math.max(MIN_CHUNK_SIZE, inFlightBudget / 2);
+    }
+
+    private ByteBuffer takeFreeChunk() throws IOException {
+        synchronized (lock) {
+            checkError();
+            if (freeChunks.isEmpty()) {
+                long start = System.nanoTime();
+                while (error == null && freeChunks.isEmpty()) {
+                    waitForWriter();
+                }
+                stallTimeNs += System.nanoTime() - start;
+                checkError();
+            }
+            return freeChunks.poll();
+        }
+    }
+
+    private void submit() {
+        chunk.flip();
+        synchronized (lock) {
+            filledChunks.add(chunk);
+            submitTimes.add(System.nanoTime());
+            lock.notifyAll();
+        }
+        chunk = null;
+    }
+
+    private void writeChunks() throws InterruptedException {
+        while (true) {
+            ByteBuffer[] chunks;
+            long[] times;
+            synchronized (lock) {
+                while (!closed && filledChunks.isEmpty()) {
+                    lock.wait();
+                }
+                if (filledChunks.isEmpty()) {
+                    return;
+                }
+                chunks = filledChunks.toArray(new ByteBuffer[filledChunks.size()]);
+                times = new long[chunks.length];
+                for (int i = 0; i < times.length; i++) {
+                    times[i] = submitTimes.poll();
+                }
+                filledChunks.clear();
+                writing = true;
+            }
+
+            IOException failure = null;
+            long calls = 0;
+            long bytes = 0;
+            try {
+                long remaining = 0;
+                for (ByteBuffer chunk : chunks) {
+                    remaining += chunk.remaining();
+                }
+                while (remaining > 0) {
+                    long written = channel.write(chunks);
+                    remaining -= written;
+                    bytes += written;
+                    calls++;
+                }
+            } catch (IOException e) {
+                failure = e;
+            } catch (RuntimeException e) {
+                failure = new IOException("Failed to write chunks.", e);
+            }
+
+            long end = System.nanoTime();
+            synchronized (lock) {
+                writes += calls;
+                bytesWritten += bytes;
+                for (int i = 0; i < chunks.length; i++) {
+                    long latency = end - times[i];
+                    flushLatencyNs += latency;
+                    maxFlushLatencyNs = Math.max(maxFlushLatencyNs, latency);
+                    chunks[i].clear();
+                    freeChunks.add(chunks[i]);
+                }
+                flushedChunks += chunks.length;
+                if (failure != null && error == null) {
+                    error = failure;
+                }
+                writing = false;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private void waitForWriter() throws IOException {
+        try {
+            lock.wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for pending writes.", e);
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (!isOpen()) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    private void checkError() throws IOException {
+        if (error != null) {
+            throw error;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.domain.mp4;
+
+import org.m4m.domain.MediaFormat;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * H.264 helpers for containers that store length prefixed NAL units and an AVC decoder configuration record.
+ */
+public class AvcConfiguration {
+    private static final int NAL_SPS = 7;
+    private static final int NAL_PPS = 8;
+
+    private AvcConfiguration() {
+    }
+
+    /**
+     * Builds AVCDecoderConfigurationRecord from SPS and PPS found in csd-0 and csd-1 of the format.
+     */
+    public static byte[] decoderConfigurationRecord(MediaFormat format) {
+        List<byte[]> sps = new ArrayList<byte[]>();
+        List<byte[]> pps = new ArrayList<byte[]>();
+        for (String key : new String[]{"csd-0", "csd-1"}) {
+            ByteBuffer csd = format.getByteBuffer(key);
+            if (csd == null) {
+                continue;
+            }
+            byte[] bytes = new byte[csd.remaining()];
+            csd.duplicate().get(bytes);
+            for (int[] nal : splitNalUnits(bytes, 0, bytes.length)) {
+                byte[] unit = Arrays.copyOfRange(bytes, nal[0], nal[1]);
+                if ((unit[0] & 0x1f) == NAL_SPS) sps.add(unit);
+                if ((unit[0] & 0x1f) == NAL_PPS) pps.add(unit);
+            }
+        }
+        if (sps.isEmpty() || pps.isEmpty()) {
+            throw new IllegalArgumentException("Video format has no SPS and PPS in csd-0 and csd-1.");
+        }
+
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        byte[] first = sps.get(0);
+        record.write(1);
+        record.write(first[1]);
+        record.write(first[2]);
+        record.write(first[3]);
+        record.write(0xff);
+        record.write(0xe0 | sps.size());
+        for (byte[] unit : sps) {
+            record.write(unit.length >> 8);
+            record.write(unit.length);
+            record.write(unit, 0, unit.length);
+        }
+        record.write(pps.size());
+        for (byte[] unit : pps) {
+            record.write(unit.length >> 8);
+            record.write(unit.length);
+            record.write(unit, 0, unit.length);
+        }
+        return record.toByteArray();
+    }
+
+    /**
+     * @return true if the range starts with a start code.
+     */
+    public static boolean isAnnexB(byte[] b, int from, int to) {
+        return startCodeLength(b, from, to) > 0;
+    }
+
+    /**
+     * Returns [start, end) of NAL units separated by start codes, or the whole range if there is no start code.
+     */
+    public static List<int[]> splitNalUnits(byte[] b, int from, int to) {
+        List<int[]> units = new ArrayList<int[]>();
+        int start = -1;
+        int i = from;
+        while (i < to) {
+            int startCode = startCodeLength(b, i, to);
+            if (startCode == 0) {
+                i++;
+                continue;
+            }
+            if (start >= 0 && i > start) {
+                units.add(new int[]{start, i});
+            }
+            i += startCode;
+            start = i;
+        }
+        if (start < 0) {
+            units.add(new int[]{from, to});
+        } else if (to > start) {
+            units.add(new int[]{start, to});
+        }
+        return units;
+    }
+
+    private static int startCodeLength(byte[] b, int i, int to) {
+        if (i + 3 <= to && b[i] == 0 && b[i + 1] == 0 && b[i + 2] == 1) return 3;
+        if (i + 4 <= to && b[i] == 0 && b[i + 1] == 0 && b[i + 2] == 0 && b[i + 3] == 1) return 4;
+        return 0;
+    }
+}
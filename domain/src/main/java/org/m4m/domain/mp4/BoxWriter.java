@@ -0,0 +1,129 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.domain.mp4;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Growable big endian buffer for ISO BMFF boxes. Box sizes are patched when a box is closed.
+ */
+class BoxWriter {
+    private ByteBuffer buffer;
+    private final ArrayDeque<Integer> boxes = new ArrayDeque<Integer>();
+
+    BoxWriter(int capacity) {
+        buffer = ByteBuffer.allocate(capacity);
+    }
+
+    void clear() {
+        buffer.clear();
+        boxes.clear();
+    }
+
+    BoxWriter start(String type) {
+        boxes.push(buffer.position());
+        putInt(0);
+        putFourcc(type);
+        return this;
+    }
+
+    BoxWriter start(String type, int version, int flags) {
+        start(type);
+        putInt((version << 24) | flags);
+        return this;
+    }
+
+    BoxWriter end() {
+        int box = boxes.pop();
+        buffer.putInt(box, buffer.position() - box);
+        return this;
+    }
+
+    BoxWriter putFourcc(String type) {
+        ensure(4);
+        for (int i = 0; i < 4; i++) {
+            buffer.put((byte) type.charAt(i));
+        }
+        return this;
+    }
+
+    BoxWriter putByte(int value) {
+        ensure(1);
+        buffer.put((byte) value);
+        return this;
+    }
+
+    BoxWriter putShort(int value) {
+        ensure(2);
+        buffer.putShort((short) value);
+        return this;
+    }
+
+    BoxWriter putInt(int value) {
+        ensure(4);
+        buffer.putInt(value);
+        return this;
+    }
+
+    BoxWriter putLong(long value) {
+        ensure(8);
+        buffer.putLong(value);
+        return this;
+    }
+
+    BoxWriter put(byte[] bytes) {
+        ensure(bytes.length);
+        buffer.put(bytes);
+        return this;
+    }
+
+    BoxWriter putZeros(int count) {
+        ensure(count);
+        for (int i = 0; i < count; i++) {
+            buffer.put((byte) 0);
+        }
+        return this;
+    }
+
+    void putIntAt(int position, int value) {
+        buffer.putInt(position, value);
+    }
+
+    int position() {
+        return buffer.position();
+    }
+
+    /**
+     * Returns written bytes, valid until the next write.
+     */
+    ByteBuffer toBuffer() {
+        ByteBuffer result = buffer.duplicate();
+        result.flip();
+        return result;
+    }
+
+    private void ensure(int bytes) {
+        if (buffer.remaining() >= bytes) {
+            return;
+        }
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+        buffer.flip();
+        grown.put(buffer);
+        buffer = grown;
+    }
+}
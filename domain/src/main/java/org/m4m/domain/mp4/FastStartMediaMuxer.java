@@ -0,0 +1,108 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.domain.mp4;
+
+import org.m4m.domain.IMediaCodec;
+import org.m4m.domain.IMediaMuxer;
+import org.m4m.domain.MediaFormat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Lets a muxer write to a temporary file and moves its movie box to the front when the muxer is released.
+ */
+public class FastStartMediaMuxer implements IMediaMuxer {
+    private final IMediaMuxer muxer;
+    private final String temporaryPath;
+    private final String path;
+    private boolean stopped;
+
+    /**
+     * @param muxer         Muxer writing to temporaryPath.
+     * @param temporaryPath File deleted after successful processing.
+     * @param path          Resulting file.
+     */
+    public FastStartMediaMuxer(IMediaMuxer muxer, String temporaryPath, String path) {
+        this.muxer = muxer;
+        this.temporaryPath = temporaryPath;
+        this.path = path;
+    }
+
+    @Override
+    public int addTrack(MediaFormat mediaFormat) {
+        return muxer.addTrack(mediaFormat);
+    }
+
+    /**
+     * Releases the wrapped muxer and writes the resulting file. This copies the whole file on the calling thread,
+     * for {@link org.m4m.domain.MuxRender} the command thread once all tracks are drained, so the file is complete
+     * before processing is reported done. If the movie box can not be moved, the temporary file becomes the
+     * resulting file without fast start.
+     */
+    @Override
+    public void release() {
+        muxer.release();
+        if (!stopped) {
+            return;
+        }
+        stopped = false;
+
+        try {
+            Mp4FastStart.process(temporaryPath, path);
+        } catch (IOException e) {
+            throw keepTemporaryFile(e);
+        } catch (RuntimeException e) {
+            throw keepTemporaryFile(e);
+        }
+        new File(temporaryPath).delete();
+    }
+
+    /**
+     * The temporary file is the only complete recording, it replaces whatever was written to the resulting file.
+     */
+    private RuntimeException keepTemporaryFile(Exception cause) {
+        File result = new File(path);
+        result.delete();
+        if (new File(temporaryPath).renameTo(result)) {
+            return new RuntimeException("Failed to move movie box of " + path + " to the front, the file is kept without fast start.", cause);
+        }
+        return new RuntimeException("Failed to move movie box of " + temporaryPath + " to " + path + ", the recording is kept in " + temporaryPath + ".", cause);
+    }
+
+    @Override
+    public void setOrientationHint(int degrees) {
+        muxer.setOrientationHint(degrees);
+    }
+
+    @Override
+    public void start() {
+        muxer.start();
+    }
+
+    @Override
+    public void stop() {
+        muxer.stop();
+        stopped = true;
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer byteBuf, IMediaCodec.BufferInfo bufferInfo) {
+        muxer.writeSampleData(trackIndex, byteBuf, bufferInfo);
+    }
+}
@@ -0,0 +1,502 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.domain.mp4;
+
+import org.m4m.AudioFormat;
+import org.m4m.VideoFormat;
+import org.m4m.domain.IMediaCodec;
+import org.m4m.domain.IMediaMuxer;
+import org.m4m.domain.MediaFormat;
+import org.m4m.domain.WriteBehindChannel;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Pure Java fragmented MP4 muxer. The movie box with track descriptions is written on start, samples are
+ * collected per fragment and written as moof and mdat boxes with one gather write, so memory use is bounded by
+ * the fragment size and the file is playable up to the last written fragment even if stop is never called.
+ * Fragments start on video key frames once the fragment duration is reached. Supports AVC video and AAC audio.
+ */
+public class FragmentedMp4Muxer implements IMediaMuxer {
+    public static final long DEFAULT_FRAGMENT_DURATION_US = 1000000;
+    public static final int MAX_FRAGMENT_SIZE = 32 * 1024 * 1024;
+
+    private static final String AVC = "video/avc";
+    private static final String AAC = "audio/mp4a-latm";
+    private static final int MOVIE_TIMESCALE = 1000;
+    private static final int VIDEO_TIMESCALE = 90000;
+    private static final int DEFAULT_VIDEO_SAMPLE_DURATION = VIDEO_TIMESCALE / 30;
+    private static final int DEFAULT_AUDIO_SAMPLE_DURATION = 1024;
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+    private static final int TFHD_DEFAULT_BASE_IS_MOOF = 0x020000;
+    private static final int TRUN_DATA_OFFSET = 0x000001;
+    private static final int TRUN_SAMPLE_DURATION = 0x000100;
+    private static final int TRUN_SAMPLE_SIZE = 0x000200;
+    private static final int TRUN_SAMPLE_FLAGS = 0x000400;
+    private static final int TRUN_COMPOSITION_OFFSETS = 0x000800;
+
+    private final String path;
+    private final long fragmentDurationUs;
+    private final List<Track> tracks = new ArrayList<Track>();
+    private final BoxWriter boxes = new BoxWriter(4096);
+    private final ByteBuffer mdatHeader = ByteBuffer.allocate(16);
+    private RandomAccessFile output;
+    private GatheringByteChannel channel;
+    private long writeBehindBudget;
+    private int orientation;
+    private boolean hasVideo;
+    private int sequenceNumber;
+    private long fragmentStartUs = -1;
+    private int fragmentSize;
+
+    public FragmentedMp4Muxer(String path) {
+        this(path, DEFAULT_FRAGMENT_DURATION_US);
+    }
+
+    /**
+     * @param fragmentDurationUs Minimal fragment duration, fragments are closed on the next video key frame after it.
+     */
+    public FragmentedMp4Muxer(String path, long fragmentDurationUs) {
+        this.path = path;
+        this.fragmentDurationUs = fragmentDurationUs;
+    }
+
+    @Override
+    public int addTrack(MediaFormat mediaFormat) {
+        if (channel != null) {
+            throw new IllegalStateException("Tracks can not be added after start.");
+        }
+        tracks.add(new Track(tracks.size() + 1, mediaFormat));
+        return tracks.size() - 1;
+    }
+
+    @Override
+    public void release() {
+        close();
+    }
+
+    @Override
+    public void setOrientationHint(int degrees) {
+        this.orientation = degrees;
+    }
+
+    /**
+     * Makes samples be written to the file from a background thread, must be called before start.
+     *
+     * @param writeBehindBudget Maximum bytes written but not in the file yet, 0 writes synchronously.
+     */
+    public void setWriteBehindBudget(long writeBehindBudget) {
+        this.writeBehindBudget = writeBehindBudget;
+    }
+
+    @Override
+    public void start() {
+        try {
+            output = new RandomAccessFile(path, "rw");
+            output.setLength(0);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to open " + path + ".", e);
+        }
+        channel = output.getChannel();
+        if (writeBehindBudget > 0) {
+            channel = new WriteBehindChannel(output.getChannel(), writeBehindBudget);
+        }
+
+        for (Track track : tracks) {
+            hasVideo |= track.video;
+        }
+        writeMovieHeader();
+    }
+
+    @Override
+    public void stop() {
+        if (channel == null) {
+            return;
+        }
+        writeFragment();
+        close();
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer byteBuf, IMediaCodec.BufferInfo bufferInfo) {
+        if (bufferInfo.size == 0 || (bufferInfo.flags & IMediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            return;
+        }
+        if (channel == null) {
+            throw new IllegalStateException("Muxer is not started.");
+        }
+
+        Track track = tracks.get(trackIndex);
+        boolean sync = !track.video || (bufferInfo.flags & IMediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+        long time = bufferInfo.presentationTimeUs;
+        if (fragmentStartUs < 0) {
+            fragmentStartUs = time;
+        } else if (fragmentSize >= MAX_FRAGMENT_SIZE
+                || (time - fragmentStartUs >= fragmentDurationUs && (!hasVideo || (track.video && sync)))) {
+            writeFragment();
+            fragmentStartUs = time;
+        }
+
+        ByteBuffer data = byteBuf.duplicate();
+        data.limit(bufferInfo.offset + bufferInfo.size);
+        data.position(bufferInfo.offset);
+        fragmentSize += track.add(data, time, sync);
+    }
+
+    private void writeMovieHeader() {
+        boxes.clear();
+        boxes.start("ftyp").putFourcc("isom").putInt(0x200)
+                .putFourcc("isom").putFourcc("iso6").putFourcc("avc1").putFourcc("mp41").end();
+
+        boxes.start("moov");
+        boxes.start("mvhd", 0, 0).putInt(0).putInt(0).putInt(MOVIE_TIMESCALE).putInt(0)
+                .putInt(0x00010000).putShort(0x0100).putZeros(10);
+        putMatrix(0);
+        boxes.putZeros(24).putInt(tracks.size() + 1).end();
+
+        for (Track track : tracks) {
+            writeTrack(track);
+        }
+
+        boxes.start("mvex");
+        for (Track track : tracks) {
+            boxes.start("trex", 0, 0).putInt(track.id).putInt(1).putInt(0).putInt(0).putInt(0).end();
+        }
+        boxes.end();
+        boxes.end();
+
+        write(boxes.toBuffer());
+    }
+
+    private void writeTrack(Track track) {
+        boxes.start("trak");
+        boxes.start("tkhd", 0, 0x000003).putInt(0).putInt(0).putInt(track.id).putInt(0).putInt(0)
+                .putZeros(8).putShort(0).putShort(0).putShort(track.video ? 0 : 0x0100).putShort(0);
+        putMatrix(track.video ? orientation : 0);
+        boxes.putInt(track.width << 16).putInt(track.height << 16).end();
+
+        boxes.start("mdia");
+        boxes.start("mdhd", 0, 0).putInt(0).putInt(0).putInt(track.timescale).putInt(0).putShort(0x55c4).putShort(0).end();
+        boxes.start("hdlr", 0, 0).putInt(0).putFourcc(track.video ? "vide" : "soun").putZeros(12)
+                .put((track.video ? "VideoHandler" : "SoundHandler").getBytes()).putByte(0).end();
+
+        boxes.start("minf");
+        if (track.video) {
+            boxes.start("vmhd", 0, 1).putZeros(8).end();
+        } else {
+            boxes.start("smhd", 0, 0).putZeros(4).end();
+        }
+        boxes.start("dinf").start("dref", 0, 0).putInt(1).start("url ", 0, 1).end().end().end();
+
+        boxes.start("stbl");
+        boxes.start("stsd", 0, 0).putInt(1);
+        if (track.video) {
+            writeAvcSampleEntry(track);
+        } else {
+            writeAacSampleEntry(track);
+        }
+        boxes.end();
+        boxes.start("stts", 0, 0).putInt(0).end();
+        boxes.start("stsc", 0, 0).putInt(0).end();
+        boxes.start("stsz", 0, 0).putInt(0).putInt(0).end();
+        boxes.start("stco", 0, 0).putInt(0).end();
+        boxes.end();
+
+        boxes.end();
+        boxes.end();
+        boxes.end();
+    }
+
+    private void writeAvcSampleEntry(Track track) {
+        byte[] record = AvcConfiguration.decoderConfigurationRecord(track.format);
+        boxes.start("avc1").putZeros(6).putShort(1).putZeros(16).putShort(track.width).putShort(track.height)
+                .putInt(0x00480000).putInt(0x00480000).putInt(0).putShort(1).putZeros(32).putShort(0x18).putShort(0xffff);
+        boxes.start("avcC").put(record).end();
+        boxes.end();
+    }
+
+    /**
+     * Sample rate of an audio sample entry is 16.16 fixed point, rates from 65536 Hz on do not fit and are written
+     * as 0, the media timescale carries the actual rate.
+     */
+    private static int sampleRateField(int sampleRate) {
+        return sampleRate < 0x10000 ? sampleRate << 16 : 0;
+    }
+
+    private void writeAacSampleEntry(Track track) {
+        ByteBuffer csd = track.format.getByteBuffer("csd-0");
+        byte[] config = new byte[csd == null ? 0 : csd.remaining()];
+        if (csd != null) {
+            csd.duplicate().get(config);
+        }
+
+        boxes.start("mp4a").putZeros(6).putShort(1).putZeros(8).putShort(track.channelCount).putShort(16)
+                .putZeros(4).putInt(sampleRateField(track.timescale));
+        boxes.start("esds", 0, 0);
+        int decoderSpecificInfo = config.length == 0 ? 0 : 2 + config.length;
+        int decoderConfig = 13 + decoderSpecificInfo;
+        boxes.putByte(0x03).putByte(3 + 2 + decoderConfig + 3).putShort(track.id).putByte(0);
+        boxes.putByte(0x04).putByte(decoderConfig).putByte(0x40).putByte(0x15).putZeros(3).putInt(0).putInt(0);
+        if (config.length > 0) {
+            boxes.putByte(0x05).putByte(config.length).put(config);
+        }
+        boxes.putByte(0x06).putByte(1).putByte(0x02);
+        boxes.end();
+        boxes.end();
+    }
+
+    private void putMatrix(int degrees) {
+        int one = 0x10000;
+        int a = one, b = 0, c = 0, d = one;
+        if (degrees == 90) {
+            a = 0; b = one; c = -one; d = 0;
+        } else if (degrees == 180) {
+            a = -one; d = -one;
+        } else if (degrees == 270) {
+            a = 0; b = -one; c = one; d = 0;
+        }
+        boxes.putInt(a).putInt(b).putInt(0).putInt(c).putInt(d).putInt(0).putInt(0).putInt(0).putInt(0x40000000);
+    }
+
+    /**
+     * Decode times of a fragment are its presentation times in ascending order, reordered frames get composition
+     * time offsets.
+     */
+    private void writeFragment() {
+        if (fragmentSize == 0) {
+            return;
+        }
+
+        boxes.clear();
+        boxes.start("moof");
+        boxes.start("mfhd", 0, 0).putInt(++sequenceNumber).end();
+        for (Track track : tracks) {
+            if (track.count == 0) {
+                continue;
+            }
+
+            long[] decodeTimes = track.decodeTimes();
+            boolean reordered = false;
+            for (int i = 0; i < track.count; i++) {
+                reordered |= decodeTimes[i] != track.times[i];
+            }
+
+            boxes.start("traf");
+            boxes.start("tfhd", 0, TFHD_DEFAULT_BASE_IS_MOOF).putInt(track.id).end();
+            boxes.start("tfdt", 1, 0).putLong(track.toTimescale(decodeTimes[0])).end();
+            int flags = TRUN_DATA_OFFSET | TRUN_SAMPLE_DURATION | TRUN_SAMPLE_SIZE | TRUN_SAMPLE_FLAGS;
+            boxes.start("trun", reordered ? 1 : 0, reordered ? flags | TRUN_COMPOSITION_OFFSETS : flags).putInt(track.count);
+            track.dataOffsetPosition = boxes.position();
+            boxes.putInt(0);
+            for (int i = 0; i < track.count; i++) {
+                long duration = track.lastDuration;
+                if (i + 1 < track.count) {
+                    duration = track.toTimescale(decodeTimes[i + 1]) - track.toTimescale(decodeTimes[i]);
+                    if (duration > 0) {
+                        track.lastDuration = duration;
+                    }
+                }
+                boxes.putInt((int) duration).putInt(track.sizes[i]).putInt(track.sync[i] ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+                if (reordered) {
+                    boxes.putInt((int) (track.toTimescale(track.times[i]) - track.toTimescale(decodeTimes[i])));
+                }
+            }
+            boxes.end();
+            boxes.end();
+        }
+        boxes.end();
+
+        long mdatSize = 8L + fragmentSize;
+        mdatHeader.clear();
+        if (mdatSize > 0xffffffffL) {
+            mdatHeader.putInt(1).putInt(Mp4Parser.fourcc("mdat")).putLong(mdatSize + 8);
+        } else {
+            mdatHeader.putInt((int) mdatSize).putInt(Mp4Parser.fourcc("mdat"));
+        }
+        mdatHeader.flip();
+
+        ByteBuffer moof = boxes.toBuffer();
+        ByteBuffer[] buffers = new ByteBuffer[tracks.size() + 2];
+        buffers[0] = moof;
+        buffers[1] = mdatHeader;
+        int dataOffset = moof.remaining() + mdatHeader.remaining();
+        for (int i = 0; i < tracks.size(); i++) {
+            Track track = tracks.get(i);
+            if (track.count > 0) {
+                moof.putInt(track.dataOffsetPosition, dataOffset);
+            }
+            dataOffset += track.dataSize;
+            buffers[i + 2] = ByteBuffer.wrap(track.data, 0, track.dataSize);
+        }
+        write(buffers);
+
+        for (Track track : tracks) {
+            track.clear();
+        }
+        fragmentSize = 0;
+    }
+
+    private void write(ByteBuffer... buffers) {
+        try {
+            long remaining = 0;
+            for (ByteBuffer buffer : buffers) {
+                remaining += buffer.remaining();
+            }
+            while (remaining > 0) {
+                remaining -= channel.write(buffers);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write " + path + ".", e);
+        }
+    }
+
+    private void close() {
+        if (output == null) {
+            return;
+        }
+        try {
+            channel.close();
+            output.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to close " + path + ".", e);
+        } finally {
+            output = null;
+            channel = null;
+        }
+    }
+
+    private static class Track {
+        private final int id;
+        private final MediaFormat format;
+        private final boolean video;
+        private final int timescale;
+        private final int width;
+        private final int height;
+        private final int channelCount;
+        private byte[] data = new byte[64 * 1024];
+        private byte[] scratch = new byte[0];
+        private int dataSize;
+        private int[] sizes = new int[64];
+        private long[] times = new long[64];
+        private boolean[] sync = new boolean[64];
+        private long[] sortedTimes = new long[64];
+        private int count;
+        private long lastDuration;
+        private int dataOffsetPosition;
+
+        Track(int id, MediaFormat format) {
+            this.id = id;
+            this.format = format;
+            String mimeType = format.getMimeType();
+            if (AVC.equals(mimeType)) {
+                VideoFormat videoFormat = (VideoFormat) format;
+                video = true;
+                timescale = VIDEO_TIMESCALE;
+                width = videoFormat.getVideoFrameSize().width();
+                height = videoFormat.getVideoFrameSize().height();
+                channelCount = 0;
+                lastDuration = DEFAULT_VIDEO_SAMPLE_DURATION;
+            } else if (AAC.equals(mimeType)) {
+                AudioFormat audioFormat = (AudioFormat) format;
+                video = false;
+                timescale = audioFormat.getAudioSampleRateInHz();
+                width = 0;
+                height = 0;
+                channelCount = audioFormat.getAudioChannelCount();
+                lastDuration = DEFAULT_AUDIO_SAMPLE_DURATION;
+            } else {
+                throw new IllegalArgumentException("Unsupported track format " + mimeType + ".");
+            }
+        }
+
+        /**
+         * Appends sample, Annex B video samples are converted to length prefixed NAL units.
+         *
+         * @return Number of bytes stored.
+         */
+        int add(ByteBuffer sample, long time, boolean isSync) {
+            int size = sample.remaining();
+            int stored;
+            if (video && AvcConfiguration.isAnnexB(sampleBytes(sample, size), 0, size)) {
+                List<int[]> units = AvcConfiguration.splitNalUnits(scratch, 0, size);
+                stored = 0;
+                for (int[] unit : units) {
+                    stored += 4 + unit[1] - unit[0];
+                }
+                ensureData(stored);
+                ByteBuffer target = ByteBuffer.wrap(data, dataSize, stored);
+                for (int[] unit : units) {
+                    target.putInt(unit[1] - unit[0]);
+                    target.put(scratch, unit[0], unit[1] - unit[0]);
+                }
+            } else {
+                stored = size;
+                ensureData(stored);
+                sample.get(data, dataSize, size);
+            }
+
+            if (count == sizes.length) {
+                sizes = Arrays.copyOf(sizes, count * 2);
+                times = Arrays.copyOf(times, count * 2);
+                sync = Arrays.copyOf(sync, count * 2);
+                sortedTimes = new long[count * 2];
+            }
+            sizes[count] = stored;
+            times[count] = time;
+            sync[count] = isSync;
+            count++;
+            dataSize += stored;
+            return stored;
+        }
+
+        long[] decodeTimes() {
+            System.arraycopy(times, 0, sortedTimes, 0, count);
+            Arrays.sort(sortedTimes, 0, count);
+            return sortedTimes;
+        }
+
+        long toTimescale(long timeUs) {
+            return timeUs * timescale / 1000000;
+        }
+
+        void clear() {
+            count = 0;
+            dataSize = 0;
+        }
+
+        private byte[] sampleBytes(ByteBuffer sample, int size) {
+            if (scratch.length < size) {
+                scratch = new byte[size];
+            }
+            sample.duplicate().get(scratch, 0, size);
+            return scratch;
+        }
+
+        private void ensureData(int bytes) {
+            if (dataSize + bytes > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, dataSize + bytes));
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.domain.mp4;
+
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read only file mapped into memory by 1 GB segments, so files larger than 2 GB can be mapped as well.
+ * Segments are never repositioned, so several threads can copy from one file at the same time.
+ */
+class MappedFile implements Closeable {
+    private static final long SEGMENT_SIZE = 1L << 30;
+
+    private final RandomAccessFile file;
+    private final ByteBuffer[] segments;
+    private final long segmentSize;
+    private final long length;
+
+    public MappedFile(String path) throws IOException {
+        this(path, SEGMENT_SIZE);
+    }
+
+    MappedFile(String path, long segmentSize) throws IOException {
+        this.segmentSize = segmentSize;
+        file = new RandomAccessFile(path, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            length = channel.size();
+            segments = new ByteBuffer[(int) ((length + segmentSize - 1) / segmentSize)];
+            for (int i = 0; i < segments.length; i++) {
+                long start = i * segmentSize;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(segmentSize, length - start));
+            }
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    public long length() {
+        return length;
+    }
+
+    public FileDescriptor getFileDescriptor() throws IOException {
+        return file.getFD();
+    }
+
+    /**
+     * Copies {@code size} bytes starting at {@code position} of the file to the current position of {@code destination}.
+     */
+    public void copy(long position, ByteBuffer destination, int size) {
+        if (position < 0 || size < 0 || position + size > length) {
+            throw new RuntimeException("Attempt to read outside of file: position=" + position + ", size=" + size + ", length=" + length);
+        }
+
+        while (size > 0) {
+            ByteBuffer segment = segments[(int) (position / segmentSize)].duplicate();
+            int offset = (int) (position % segmentSize);
+            int chunk = Math.min(size, segment.capacity() - offset);
+
+            segment.position(offset);
+            segment.limit(offset + chunk);
+            destination.put(segment);
+
+            position += chunk;
+            size -= chunk;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
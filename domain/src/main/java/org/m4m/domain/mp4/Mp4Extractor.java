@@ -0,0 +1,219 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.domain.mp4;
+
+import org.m4m.Uri;
+import org.m4m.domain.IMediaExtractor;
+import org.m4m.domain.MediaFormat;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Pure Java MP4 demuxer. The file is memory mapped, sample tables are parsed once into primitive arrays
+ * and samples are served by bulk copy from the mapped region, without any native calls.
+ */
+public class Mp4Extractor implements IMediaExtractor {
+    public static final int SAMPLE_FLAG_SYNC = 1;
+
+    private final String path;
+    private final MappedFile file;
+    private final Mp4Track[] tracks;
+    private final int rotation;
+    private final boolean[] selected;
+    private final int[] samples;
+    private int currentTrack = -1;
+
+    public Mp4Extractor(String path) throws IOException {
+        this(path, null);
+    }
+
+    /**
+     * @param cache Sample index cache to take parsed tables from, null to parse the file on every open.
+     */
+    public Mp4Extractor(String path, SampleIndexCache cache) throws IOException {
+        this.path = path;
+        this.file = new MappedFile(path);
+
+        Mp4Index index;
+        try {
+            index = cache == null ? new Mp4Parser(file).parse() : cache.get(path, file);
+        } catch (RuntimeException e) {
+            file.close();
+            throw e;
+        }
+
+        tracks = index.getTracks();
+        rotation = index.getRotation();
+        selected = new boolean[tracks.length];
+        samples = new int[tracks.length];
+    }
+
+    @Override
+    public int readSampleData(ByteBuffer inputBuffer) {
+        if (currentTrack < 0) {
+            return -1;
+        }
+
+        int sample = samples[currentTrack];
+        int size = tracks[currentTrack].getSize(sample);
+        if (size > inputBuffer.capacity()) {
+            throw new IllegalArgumentException("Sample of " + size + " bytes does not fit into buffer of " + inputBuffer.capacity() + " bytes.");
+        }
+
+        inputBuffer.clear();
+        file.copy(tracks[currentTrack].getOffset(sample), inputBuffer, size);
+        inputBuffer.flip();
+        return size;
+    }
+
+    @Override
+    public MediaFormat getTrackFormat(int i) {
+        return tracks[i].getFormat();
+    }
+
+    /**
+     * Returns keys and values of the track format for platforms that build their own format objects.
+     * Values are integers, longs, strings and codec specific data buffers, buffers are duplicates.
+     */
+    public Map<String, Object> getTrackFormatValues(int i) {
+        MediaFormat format = tracks[i].getFormat();
+        HashMap<String, Object> values = new HashMap<String, Object>(format instanceof Mp4VideoFormat
+                ? ((Mp4VideoFormat) format).getValues()
+                : ((Mp4AudioFormat) format).getValues());
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            if (entry.getValue() instanceof ByteBuffer) {
+                entry.setValue(((ByteBuffer) entry.getValue()).duplicate());
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public long getSampleTime() {
+        return currentTrack < 0 ? -1 : tracks[currentTrack].getPresentationTime(samples[currentTrack]);
+    }
+
+    @Override
+    public boolean advance() {
+        if (currentTrack < 0) {
+            return false;
+        }
+        samples[currentTrack]++;
+        selectCurrentTrack();
+        return currentTrack >= 0;
+    }
+
+    @Override
+    public int getTrackCount() {
+        return tracks.length;
+    }
+
+    @Override
+    public void selectTrack(int index) {
+        selected[index] = true;
+        selectCurrentTrack();
+    }
+
+    @Override
+    public void unselectTrack(int index) {
+        selected[index] = false;
+        selectCurrentTrack();
+    }
+
+    @Override
+    public int getSampleTrackIndex() {
+        return currentTrack;
+    }
+
+    @Override
+    public void release() {
+        try {
+            file.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public int getSampleFlags() {
+        if (currentTrack < 0) {
+            return 0;
+        }
+        return tracks[currentTrack].isSync(samples[currentTrack]) ? SAMPLE_FLAG_SYNC : 0;
+    }
+
+    @Override
+    public void seekTo(long timeUs, int mode) {
+        for (int i = 0; i < tracks.length; i++) {
+            if (selected[i]) {
+                samples[i] = tracks[i].findSyncSample(timeUs, mode);
+            }
+        }
+        selectCurrentTrack();
+    }
+
+    @Override
+    public int getRotation() {
+        return rotation;
+    }
+
+    @Override
+    public String getFilePath() {
+        return path;
+    }
+
+    @Override
+    public FileDescriptor getFileDescriptor() {
+        try {
+            return file.getFileDescriptor();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public Uri getUri() {
+        return null;
+    }
+
+    /**
+     * Samples of selected tracks are interleaved by decode time, ties are broken by file offset.
+     */
+    private void selectCurrentTrack() {
+        currentTrack = -1;
+        for (int i = 0; i < tracks.length; i++) {
+            if (!selected[i] || samples[i] >= tracks[i].getSampleCount()) {
+                continue;
+            }
+            if (currentTrack < 0) {
+                currentTrack = i;
+                continue;
+            }
+
+            long time = tracks[i].getDecodeTime(samples[i]);
+            long currentTime = tracks[currentTrack].getDecodeTime(samples[currentTrack]);
+            if (time < currentTime || (time == currentTime
+                    && tracks[i].getOffset(samples[i]) < tracks[currentTrack].getOffset(samples[currentTrack]))) {
+                currentTrack = i;
+            }
+        }
+    }
+}
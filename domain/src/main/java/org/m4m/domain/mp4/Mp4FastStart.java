@@ -0,0 +1,242 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.domain.mp4;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rewrites an MP4 file with the movie box in front of the media data, so it can be played while it is
+ * downloaded. Chunk offsets of the movie box are patched for the new layout. Only the movie box is held
+ * in memory, the rest of the file is copied between channels with transferTo.
+ */
+public class Mp4FastStart {
+    private static final int MOOV = Mp4Parser.fourcc("moov");
+    private static final int MDAT = Mp4Parser.fourcc("mdat");
+    private static final int TRAK = Mp4Parser.fourcc("trak");
+    private static final int MDIA = Mp4Parser.fourcc("mdia");
+    private static final int MINF = Mp4Parser.fourcc("minf");
+    private static final int STBL = Mp4Parser.fourcc("stbl");
+    private static final int STCO = Mp4Parser.fourcc("stco");
+    private static final int CO64 = Mp4Parser.fourcc("co64");
+
+    private Mp4FastStart() {
+    }
+
+    /**
+     * Writes input file with relocated movie box to output. A file that already has the movie box before
+     * media data is copied unchanged.
+     *
+     * @return true if the movie box was moved.
+     */
+    public static boolean process(String inputPath, String outputPath) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(inputPath, "r");
+        try {
+            RandomAccessFile output = new RandomAccessFile(outputPath, "rw");
+            try {
+                output.setLength(0);
+                return process(input.getChannel(), output.getChannel());
+            } finally {
+                output.close();
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    private static boolean process(FileChannel input, FileChannel output) throws IOException {
+        List<Box> boxes = readBoxes(input);
+        Box moov = null;
+        Box firstMdat = null;
+        for (Box box : boxes) {
+            if (box.type == MOOV && moov == null) {
+                moov = box;
+            } else if (box.type == MDAT && firstMdat == null) {
+                firstMdat = box;
+            }
+        }
+        if (moov == null) {
+            throw new RuntimeException("Movie box not found, file is not MP4.");
+        }
+        if (firstMdat == null || moov.start < firstMdat.start) {
+            transfer(input, 0, input.size(), output);
+            return false;
+        }
+        if (moov.size > Integer.MAX_VALUE) {
+            throw new RuntimeException("Movie box is too large.");
+        }
+
+        List<Box> layout = new ArrayList<Box>();
+        for (Box box : boxes) {
+            if (box.start < firstMdat.start && box != moov) {
+                layout.add(box);
+            }
+        }
+        layout.add(moov);
+        for (Box box : boxes) {
+            if (box.start >= firstMdat.start && box != moov) {
+                layout.add(box);
+            }
+        }
+        long position = 0;
+        for (Box box : layout) {
+            box.newStart = position;
+            position += box.size;
+        }
+
+        ByteBuffer movie = ByteBuffer.allocate((int) moov.size);
+        read(input, moov.start, movie);
+        patchChunkOffsets(movie, moov.headerSize, movie.limit(), MOOV, boxes);
+
+        for (Box box : layout) {
+            if (box == moov) {
+                movie.rewind();
+                while (movie.hasRemaining()) {
+                    output.write(movie);
+                }
+            } else {
+                transfer(input, box.start, box.size, output);
+            }
+        }
+        return true;
+    }
+
+    private static List<Box> readBoxes(FileChannel input) throws IOException {
+        List<Box> boxes = new ArrayList<Box>();
+        ByteBuffer header = ByteBuffer.allocate(16);
+        long length = input.size();
+        long position = 0;
+
+        while (position + 8 <= length) {
+            header.clear();
+            header.limit((int) Math.min(16, length - position));
+            read(input, position, header);
+
+            long size = header.getInt(0) & 0xffffffffL;
+            int type = header.getInt(4);
+            int headerSize = 8;
+            if (size == 1) {
+                size = header.getLong(8);
+                headerSize = 16;
+            } else if (size == 0) {
+                size = length - position;
+            }
+            if (size < headerSize || position + size > length) {
+                throw new RuntimeException("Malformed box at offset " + position + ".");
+            }
+
+            boxes.add(new Box(type, position, size, headerSize));
+            position += size;
+        }
+        return boxes;
+    }
+
+    /**
+     * Rewrites chunk offset tables found in boxes in [start, end) of the container of the given type.
+     */
+    private static void patchChunkOffsets(ByteBuffer b, int start, int end, int container, List<Box> boxes) {
+        for (int box = start; box + 8 <= end; ) {
+            long size = b.getInt(box) & 0xffffffffL;
+            int headerSize = 8;
+            if (size == 1) {
+                size = b.getLong(box + 8);
+                headerSize = 16;
+            } else if (size == 0) {
+                size = end - box;
+            }
+            if (size < headerSize || box + size > end) {
+                throw new RuntimeException("Malformed box at movie offset " + box + ".");
+            }
+
+            int type = b.getInt(box + 4);
+            int payload = box + headerSize;
+            if (isContainer(container, type)) {
+                patchChunkOffsets(b, payload, (int) (box + size), type, boxes);
+            } else if (type == STCO) {
+                int count = b.getInt(payload + 4);
+                for (int i = 0; i < count; i++) {
+                    int at = payload + 8 + 4 * i;
+                    long offset = relocate(b.getInt(at) & 0xffffffffL, boxes);
+                    if (offset > 0xffffffffL) {
+                        throw new RuntimeException("Chunk offset " + offset + " does not fit into stco box.");
+                    }
+                    b.putInt(at, (int) offset);
+                }
+            } else if (type == CO64) {
+                int count = b.getInt(payload + 4);
+                for (int i = 0; i < count; i++) {
+                    int at = payload + 8 + 8 * i;
+                    b.putLong(at, relocate(b.getLong(at), boxes));
+                }
+            }
+            box += size;
+        }
+    }
+
+    private static boolean isContainer(int parent, int type) {
+        return (parent == MOOV && type == TRAK) || (parent == TRAK && type == MDIA)
+                || (parent == MDIA && type == MINF) || (parent == MINF && type == STBL);
+    }
+
+    private static long relocate(long offset, List<Box> boxes) {
+        for (Box box : boxes) {
+            if (offset >= box.start && offset < box.start + box.size) {
+                return offset - box.start + box.newStart;
+            }
+        }
+        throw new RuntimeException("Chunk offset " + offset + " is outside of the file.");
+    }
+
+    private static void read(FileChannel input, long position, ByteBuffer destination) throws IOException {
+        while (destination.hasRemaining()) {
+            if (input.read(destination, position + destination.position()) < 0) {
+                throw new IOException("Unexpected end of file at offset " + (position + destination.position()) + ".");
+            }
+        }
+        destination.flip();
+    }
+
+    private static void transfer(FileChannel input, long position, long size, FileChannel output) throws IOException {
+        long done = 0;
+        while (done < size) {
+            long transferred = input.transferTo(position + done, size - done, output);
+            if (transferred <= 0) {
+                throw new IOException("Failed to copy " + (size - done) + " bytes at offset " + (position + done) + ".");
+            }
+            done += transferred;
+        }
+    }
+
+    private static class Box {
+        final int type;
+        final long start;
+        final long size;
+        final int headerSize;
+        long newStart;
+
+        Box(int type, long start, long size, int headerSize) {
+            this.type = type;
+            this.start = start;
+            this.size = size;
+            this.headerSize = headerSize;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.domain.mp4;
+
+/**
+ * Parsed sample index of a file: sample tables of audio and video tracks and video rotation.
+ */
+class Mp4Index {
+    private final Mp4Track[] tracks;
+    private final int rotation;
+
+    public Mp4Index(Mp4Track[] tracks, int rotation) {
+        this.tracks = tracks;
+        this.rotation = rotation;
+    }
+
+    public Mp4Track[] getTracks() {
+        return tracks;
+    }
+
+    public int getRotation() {
+        return rotation;
+    }
+}
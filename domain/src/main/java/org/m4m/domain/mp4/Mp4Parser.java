@@ -0,0 +1,556 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.domain.mp4;
+
+import org.m4m.domain.MediaFormat;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses ISO BMFF movie box into sample tables of audio and video tracks. Movie fragments are not supported.
+ */
+class Mp4Parser {
+    private static final int MOOV = fourcc("moov");
+    private static final int TRAK = fourcc("trak");
+    private static final int TKHD = fourcc("tkhd");
+    private static final int EDTS = fourcc("edts");
+    private static final int ELST = fourcc("elst");
+    private static final int MDIA = fourcc("mdia");
+    private static final int MDHD = fourcc("mdhd");
+    private static final int HDLR = fourcc("hdlr");
+    private static final int MINF = fourcc("minf");
+    private static final int STBL = fourcc("stbl");
+    private static final int STSD = fourcc("stsd");
+    private static final int STTS = fourcc("stts");
+    private static final int CTTS = fourcc("ctts");
+    private static final int STSS = fourcc("stss");
+    private static final int STSZ = fourcc("stsz");
+    private static final int STSC = fourcc("stsc");
+    private static final int STCO = fourcc("stco");
+    private static final int CO64 = fourcc("co64");
+    private static final int AVCC = fourcc("avcC");
+    private static final int HVCC = fourcc("hvcC");
+    private static final int ESDS = fourcc("esds");
+    private static final int VIDE = fourcc("vide");
+    private static final int SOUN = fourcc("soun");
+
+    private static final int[] AAC_SAMPLE_RATES = {
+            96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350};
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+
+    private final MappedFile file;
+    private int rotation;
+
+    public Mp4Parser(MappedFile file) {
+        this.file = file;
+    }
+
+    public Mp4Index parse() {
+        ByteBuffer header = ByteBuffer.allocate(16);
+        long length = file.length();
+        long position = 0;
+
+        while (position + 8 <= length) {
+            header.clear();
+            file.copy(position, header, (int) Math.min(16, length - position));
+            header.flip();
+
+            long size = header.getInt() & 0xffffffffL;
+            int type = header.getInt();
+            int headerSize = 8;
+            if (size == 1) {
+                size = header.getLong();
+                headerSize = 16;
+            } else if (size == 0) {
+                size = length - position;
+            }
+            if (size < headerSize) {
+                throw new RuntimeException("Malformed box at offset " + position + ".");
+            }
+
+            if (type == MOOV) {
+                if (size > Integer.MAX_VALUE) {
+                    throw new RuntimeException("Movie box is too large.");
+                }
+                ByteBuffer moov = ByteBuffer.allocate((int) size - headerSize);
+                file.copy(position + headerSize, moov, moov.capacity());
+                moov.flip();
+                List<Mp4Track> tracks = parseMovie(moov);
+                return new Mp4Index(tracks.toArray(new Mp4Track[tracks.size()]), rotation);
+            }
+            position += size;
+        }
+
+        throw new RuntimeException("Movie box not found, file is not MP4.");
+    }
+
+    private List<Mp4Track> parseMovie(ByteBuffer moov) {
+        List<Mp4Track> tracks = new ArrayList<Mp4Track>();
+        for (int box = 0; box + 8 <= moov.limit(); box += boxSize(moov, box, moov.limit())) {
+            if (moov.getInt(box + 4) == TRAK) {
+                Mp4Track track = parseTrack(moov, payload(moov, box), box + boxSize(moov, box, moov.limit()));
+                if (track != null) {
+                    tracks.add(track);
+                }
+            }
+        }
+        return tracks;
+    }
+
+    private Mp4Track parseTrack(ByteBuffer b, int start, int end) {
+        int mdia = findBox(b, start, end, MDIA);
+        int minf = findBox(b, mdia, MINF);
+        int stbl = findBox(b, minf, STBL);
+        int mdhd = findBox(b, mdia, MDHD);
+        int hdlr = findBox(b, mdia, HDLR);
+        if (mdhd < 0 || hdlr < 0 || stbl < 0) {
+            return null;
+        }
+
+        int handler = b.getInt(payload(b, hdlr) + 8);
+        if (handler != VIDE && handler != SOUN) {
+            return null;
+        }
+
+        int at = payload(b, mdhd);
+        boolean version1 = b.get(at) == 1;
+        long timescale = b.getInt(at + (version1 ? 20 : 12)) & 0xffffffffL;
+        long duration = version1 ? b.getLong(at + 24) : b.getInt(at + 16) & 0xffffffffL;
+        if (timescale == 0) {
+            throw new RuntimeException("Track has zero timescale.");
+        }
+
+        long shift = 0;
+        int elst = findBox(b, findBox(b, start, end, EDTS), ELST);
+        if (elst >= 0) {
+            shift = parseMediaTimeShift(b, payload(b, elst));
+        }
+
+        MediaFormat format = handler == VIDE
+                ? parseVideoFormat(b, findBox(b, stbl, STSD), findBox(b, start, end, TKHD))
+                : parseAudioFormat(b, findBox(b, stbl, STSD));
+        if (format == null) {
+            return null;
+        }
+
+        Mp4Track track = buildTrack(b, stbl, format, timescale, shift);
+        long durationUs = duration > 0 ? toMicroseconds(duration, timescale) : track.getEndTime();
+        setDuration(format, durationUs);
+        if (format instanceof Mp4VideoFormat && durationUs > 0) {
+            ((Mp4VideoFormat) format).setVideoFrameRate((int) Math.round(track.getSampleCount() * 1000000.0 / durationUs));
+        }
+        return track;
+    }
+
+    private long parseMediaTimeShift(ByteBuffer b, int at) {
+        boolean version1 = b.get(at) == 1;
+        int entries = b.getInt(at + 4);
+        int entry = at + 8;
+        for (int i = 0; i < entries; i++) {
+            long mediaTime = version1 ? b.getLong(entry + 8) : b.getInt(entry + 4);
+            if (mediaTime >= 0) {
+                return mediaTime;
+            }
+            entry += version1 ? 20 : 12;
+        }
+        return 0;
+    }
+
+    private MediaFormat parseVideoFormat(ByteBuffer b, int stsd, int tkhd) {
+        if (stsd < 0) {
+            return null;
+        }
+
+        int entry = payload(b, stsd) + 8;
+        String mimeType = videoMimeType(b.getInt(entry + 4));
+        if (mimeType == null) {
+            return null;
+        }
+
+        int width = b.getShort(entry + 32) & 0xffff;
+        int height = b.getShort(entry + 34) & 0xffff;
+        if (tkhd >= 0) {
+            parseTrackHeader(b, payload(b, tkhd));
+        }
+
+        Mp4VideoFormat format = new Mp4VideoFormat(mimeType, width, height);
+        int entryEnd = entry + boxSize(b, entry, b.limit());
+        int avcC = findBox(b, entry + 86, entryEnd, AVCC);
+        if (avcC >= 0) {
+            parseAvcConfiguration(b, payload(b, avcC), format);
+        }
+        int hvcC = findBox(b, entry + 86, entryEnd, HVCC);
+        if (hvcC >= 0) {
+            parseHevcConfiguration(b, payload(b, hvcC), format);
+        }
+        return format;
+    }
+
+    private void parseTrackHeader(ByteBuffer b, int at) {
+        int matrix = at + (b.get(at) == 1 ? 52 : 40);
+        int a = b.getInt(matrix);
+        int bb = b.getInt(matrix + 4);
+        int c = b.getInt(matrix + 12);
+        int d = b.getInt(matrix + 16);
+        int one = 0x10000;
+
+        if (a == 0 && bb == one && c == -one && d == 0) {
+            rotation = 90;
+        } else if (a == -one && bb == 0 && c == 0 && d == -one) {
+            rotation = 180;
+        } else if (a == 0 && bb == -one && c == one && d == 0) {
+            rotation = 270;
+        }
+    }
+
+    private void parseAvcConfiguration(ByteBuffer b, int at, Mp4VideoFormat format) {
+        int position = at + 5;
+        int spsCount = b.get(position++) & 0x1f;
+        ByteBuffer sps = ByteBuffer.allocate(parameterSetsSize(b, position, spsCount));
+        position = copyParameterSets(b, position, spsCount, sps);
+
+        int ppsCount = b.get(position++) & 0xff;
+        ByteBuffer pps = ByteBuffer.allocate(parameterSetsSize(b, position, ppsCount));
+        copyParameterSets(b, position, ppsCount, pps);
+
+        format.setByteBuffer("csd-0", (ByteBuffer) sps.flip());
+        format.setByteBuffer("csd-1", (ByteBuffer) pps.flip());
+    }
+
+    private void parseHevcConfiguration(ByteBuffer b, int at, Mp4VideoFormat format) {
+        int arrays = b.get(at + 22) & 0xff;
+        int size = 0;
+        int position = at + 23;
+        for (int i = 0; i < arrays; i++) {
+            int count = b.getShort(position + 1) & 0xffff;
+            size += parameterSetsSize(b, position + 3, count);
+            position = skipParameterSets(b, position + 3, count);
+        }
+
+        ByteBuffer csd = ByteBuffer.allocate(size);
+        position = at + 23;
+        for (int i = 0; i < arrays; i++) {
+            int count = b.getShort(position + 1) & 0xffff;
+            position = copyParameterSets(b, position + 3, count, csd);
+        }
+        format.setByteBuffer("csd-0", (ByteBuffer) csd.flip());
+    }
+
+    private int parameterSetsSize(ByteBuffer b, int position, int count) {
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            int length = b.getShort(position) & 0xffff;
+            size += START_CODE.length + length;
+            position += 2 + length;
+        }
+        return size;
+    }
+
+    private int skipParameterSets(ByteBuffer b, int position, int count) {
+        for (int i = 0; i < count; i++) {
+            position += 2 + (b.getShort(position) & 0xffff);
+        }
+        return position;
+    }
+
+    private int copyParameterSets(ByteBuffer b, int position, int count, ByteBuffer destination) {
+        for (int i = 0; i < count; i++) {
+            int length = b.getShort(position) & 0xffff;
+            destination.put(START_CODE);
+            ByteBuffer parameterSet = b.duplicate();
+            parameterSet.limit(position + 2 + length);
+            parameterSet.position(position + 2);
+            destination.put(parameterSet);
+            position += 2 + length;
+        }
+        return position;
+    }
+
+    private MediaFormat parseAudioFormat(ByteBuffer b, int stsd) {
+        if (stsd < 0) {
+            return null;
+        }
+
+        int entry = payload(b, stsd) + 8;
+        String mimeType = audioMimeType(b.getInt(entry + 4));
+        if (mimeType == null) {
+            return null;
+        }
+
+        int quickTimeVersion = b.getShort(entry + 16) & 0xffff;
+        int channelCount = b.getShort(entry + 24) & 0xffff;
+        int sampleRate = (b.getInt(entry + 32) >>> 16);
+        int children = entry + 36 + (quickTimeVersion == 1 ? 16 : quickTimeVersion == 2 ? 36 : 0);
+
+        Mp4AudioFormat format = new Mp4AudioFormat(mimeType, sampleRate, channelCount);
+        int esds = findBox(b, children, entry + boxSize(b, entry, b.limit()), ESDS);
+        if (esds >= 0) {
+            parseElementaryStreamDescriptor(b, payload(b, esds) + 4, format);
+        }
+        return format;
+    }
+
+    private void parseElementaryStreamDescriptor(ByteBuffer b, int position, Mp4AudioFormat format) {
+        if (b.get(position++) != 0x03) {
+            return;
+        }
+        position = skipDescriptorLength(b, position);
+        int flags = b.get(position + 2) & 0xff;
+        position += 3;
+        if ((flags & 0x80) != 0) {
+            position += 2;
+        }
+        if ((flags & 0x40) != 0) {
+            position += 1 + (b.get(position) & 0xff);
+        }
+        if ((flags & 0x20) != 0) {
+            position += 2;
+        }
+
+        if (b.get(position++) != 0x04) {
+            return;
+        }
+        position = skipDescriptorLength(b, position);
+        int averageBitRate = b.getInt(position + 9);
+        if (averageBitRate > 0) {
+            format.setAudioBitrateInBytes(averageBitRate);
+        }
+        position += 13;
+
+        if (b.get(position++) != 0x05) {
+            return;
+        }
+        int length = descriptorLength(b, position);
+        position = skipDescriptorLength(b, position);
+
+        ByteBuffer config = ByteBuffer.allocate(length);
+        ByteBuffer source = b.duplicate();
+        source.limit(position + length);
+        source.position(position);
+        config.put(source);
+        config.flip();
+        format.setByteBuffer("csd-0", config);
+
+        if (length >= 2) {
+            int objectType = (config.get(0) & 0xff) >>> 3;
+            int frequencyIndex = ((config.get(0) & 0x07) << 1) | ((config.get(1) & 0x80) >>> 7);
+            int channelConfiguration = (config.get(1) & 0x78) >>> 3;
+            if (objectType != 31 && frequencyIndex < AAC_SAMPLE_RATES.length) {
+                format.setAudioSampleRateInHz(AAC_SAMPLE_RATES[frequencyIndex]);
+                if (channelConfiguration > 0) {
+                    format.setAudioChannelCount(channelConfiguration);
+                }
+            }
+        }
+    }
+
+    private int descriptorLength(ByteBuffer b, int position) {
+        int length = 0;
+        for (int i = 0; i < 4; i++) {
+            int value = b.get(position + i) & 0xff;
+            length = (length << 7) | (value & 0x7f);
+            if ((value & 0x80) == 0) {
+                break;
+            }
+        }
+        return length;
+    }
+
+    private int skipDescriptorLength(ByteBuffer b, int position) {
+        for (int i = 0; i < 4; i++) {
+            if ((b.get(position++) & 0x80) == 0) {
+                break;
+            }
+        }
+        return position;
+    }
+
+    private Mp4Track buildTrack(ByteBuffer b, int stbl, MediaFormat format, long timescale, long shift) {
+        int stsz = findBox(b, stbl, STSZ);
+        int stsc = findBox(b, stbl, STSC);
+        int stts = findBox(b, stbl, STTS);
+        int stco = findBox(b, stbl, STCO);
+        int co64 = findBox(b, stbl, CO64);
+        if (stsz < 0 || stsc < 0 || stts < 0 || (stco < 0 && co64 < 0)) {
+            throw new RuntimeException("Track misses mandatory sample table box.");
+        }
+
+        int at = payload(b, stsz);
+        int defaultSize = b.getInt(at + 4);
+        int sampleCount = b.getInt(at + 8);
+        int[] sizes = new int[sampleCount];
+        for (int i = 0; i < sampleCount; i++) {
+            sizes[i] = defaultSize != 0 ? defaultSize : b.getInt(at + 12 + 4 * i);
+        }
+
+        long[] offsets = new long[sampleCount];
+        boolean wideOffsets = stco < 0;
+        int chunkOffsets = payload(b, wideOffsets ? co64 : stco) + 8;
+        int chunkCount = b.getInt(chunkOffsets - 4);
+        at = payload(b, stsc);
+        int entries = b.getInt(at + 4);
+        int sample = 0;
+        for (int e = 0; e < entries && sample < sampleCount; e++) {
+            int entry = at + 8 + 12 * e;
+            int firstChunk = b.getInt(entry) - 1;
+            int samplesPerChunk = b.getInt(entry + 4);
+            int lastChunk = e + 1 < entries ? b.getInt(entry + 12) - 1 : chunkCount;
+            for (int chunk = firstChunk; chunk < lastChunk && sample < sampleCount; chunk++) {
+                long offset = wideOffsets ? b.getLong(chunkOffsets + 8 * chunk) : b.getInt(chunkOffsets + 4 * chunk) & 0xffffffffL;
+                for (int i = 0; i < samplesPerChunk && sample < sampleCount; i++) {
+                    offsets[sample] = offset;
+                    offset += sizes[sample];
+                    sample++;
+                }
+            }
+        }
+        if (sample < sampleCount) {
+            throw new RuntimeException("Sample to chunk table covers " + sample + " of " + sampleCount + " samples.");
+        }
+
+        long[] decodeTimes = new long[sampleCount];
+        long[] presentationTimes = new long[sampleCount];
+        long[] compositionOffsets = parseCompositionOffsets(b, findBox(b, stbl, CTTS), sampleCount);
+        at = payload(b, stts);
+        entries = b.getInt(at + 4);
+        long time = 0;
+        sample = 0;
+        for (int e = 0; e < entries; e++) {
+            int count = b.getInt(at + 8 + 8 * e);
+            long delta = b.getInt(at + 12 + 8 * e) & 0xffffffffL;
+            for (int i = 0; i < count && sample < sampleCount; i++) {
+                decodeTimes[sample] = toMicroseconds(time - shift, timescale);
+                presentationTimes[sample] = toMicroseconds(time + compositionOffsets[sample] - shift, timescale);
+                time += delta;
+                sample++;
+            }
+        }
+        for (; sample < sampleCount; sample++) {
+            decodeTimes[sample] = toMicroseconds(time - shift, timescale);
+            presentationTimes[sample] = toMicroseconds(time + compositionOffsets[sample] - shift, timescale);
+        }
+
+        int[] syncSamples = null;
+        int stss = findBox(b, stbl, STSS);
+        if (stss >= 0) {
+            at = payload(b, stss);
+            syncSamples = new int[b.getInt(at + 4)];
+            for (int i = 0; i < syncSamples.length; i++) {
+                syncSamples[i] = b.getInt(at + 8 + 4 * i) - 1;
+            }
+        }
+
+        Mp4Track track = new Mp4Track(format, offsets, sizes, decodeTimes, presentationTimes, syncSamples, toMicroseconds(time - shift, timescale));
+        if (format instanceof Mp4VideoFormat) {
+            ((Mp4VideoFormat) format).setKeyMaxInputSize(track.getMaxSampleSize());
+        } else {
+            ((Mp4AudioFormat) format).setKeyMaxInputSize(track.getMaxSampleSize());
+        }
+        return track;
+    }
+
+    private long[] parseCompositionOffsets(ByteBuffer b, int ctts, int sampleCount) {
+        long[] offsets = new long[sampleCount];
+        if (ctts < 0) {
+            return offsets;
+        }
+
+        int at = payload(b, ctts);
+        int entries = b.getInt(at + 4);
+        int sample = 0;
+        for (int e = 0; e < entries; e++) {
+            int count = b.getInt(at + 8 + 8 * e);
+            int offset = b.getInt(at + 12 + 8 * e);
+            for (int i = 0; i < count && sample < sampleCount; i++) {
+                offsets[sample++] = offset;
+            }
+        }
+        return offsets;
+    }
+
+    private void setDuration(MediaFormat format, long durationUs) {
+        if (format instanceof Mp4VideoFormat) {
+            ((Mp4VideoFormat) format).setDuration(durationUs);
+        } else {
+            ((Mp4AudioFormat) format).setDuration(durationUs);
+        }
+    }
+
+    private static String videoMimeType(int type) {
+        if (type == fourcc("avc1") || type == fourcc("avc3")) return "video/avc";
+        if (type == fourcc("hvc1") || type == fourcc("hev1")) return "video/hevc";
+        if (type == fourcc("mp4v")) return "video/mp4v-es";
+        if (type == fourcc("s263")) return "video/3gpp";
+        return null;
+    }
+
+    private static String audioMimeType(int type) {
+        if (type == fourcc("mp4a")) return "audio/mp4a-latm";
+        if (type == fourcc("samr")) return "audio/3gpp";
+        if (type == fourcc("sawb")) return "audio/amr-wb";
+        return null;
+    }
+
+    private static long toMicroseconds(long time, long timescale) {
+        return time * 1000000 / timescale;
+    }
+
+    private static int findBox(ByteBuffer b, int parent, int type) {
+        if (parent < 0) {
+            return -1;
+        }
+        return findBox(b, payload(b, parent), parent + boxSize(b, parent, b.limit()), type);
+    }
+
+    /**
+     * Returns offset of the first box of the given type among boxes in [start, end), or -1.
+     */
+    private static int findBox(ByteBuffer b, int start, int end, int type) {
+        if (start < 0) {
+            return -1;
+        }
+        for (int box = start; box + 8 <= end; box += boxSize(b, box, end)) {
+            if (b.getInt(box + 4) == type) {
+                return box;
+            }
+        }
+        return -1;
+    }
+
+    private static int boxSize(ByteBuffer b, int box, int end) {
+        long size = b.getInt(box) & 0xffffffffL;
+        if (size == 1) {
+            size = b.getLong(box + 8);
+        } else if (size == 0) {
+            size = end - box;
+        }
+        if (size < 8 || box + size > end) {
+            throw new RuntimeException("Malformed box at movie offset " + box + ".");
+        }
+        return (int) size;
+    }
+
+    private static int payload(ByteBuffer b, int box) {
+        return box + (b.getInt(box) == 1 ? 16 : 8);
+    }
+
+    static int fourcc(String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) | type.charAt(3);
+    }
+}
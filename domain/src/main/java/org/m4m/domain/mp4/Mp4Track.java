@@ -0,0 +1,203 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.domain.mp4;
+
+import org.m4m.domain.MediaFormat;
+
+import java.util.Arrays;
+
+/**
+ * Sample tables of a single track, expanded into primitive arrays indexed by sample number in decode order.
+ * Tables are immutable, so one instance can be shared by all extractors of the same file.
+ */
+class Mp4Track {
+    private final MediaFormat format;
+    private final long[] offsets;
+    private final int[] sizes;
+    private final long[] decodeTimes;
+    private final long[] presentationTimes;
+    private final boolean[] sync;
+    private final int[] syncSamples;
+    private final long endTime;
+    private final int maxSampleSize;
+
+    /**
+     * @param syncSamples Sorted indexes of sync samples, null when every sample is a sync sample.
+     */
+    public Mp4Track(MediaFormat format, long[] offsets, int[] sizes, long[] decodeTimes, long[] presentationTimes, int[] syncSamples, long endTime) {
+        this.format = format;
+        this.offsets = offsets;
+        this.sizes = sizes;
+        this.decodeTimes = decodeTimes;
+        this.presentationTimes = presentationTimes;
+        this.syncSamples = syncSamples;
+        this.endTime = endTime;
+
+        sync = new boolean[sizes.length];
+        if (syncSamples == null) {
+            Arrays.fill(sync, true);
+        } else {
+            for (int syncSample : syncSamples) {
+                sync[syncSample] = true;
+            }
+        }
+
+        int max = 0;
+        for (int size : sizes) {
+            max = Math.max(max, size);
+        }
+        maxSampleSize = max;
+    }
+
+    private Mp4Track(Mp4Track track, MediaFormat format) {
+        this.format = format;
+        this.offsets = track.offsets;
+        this.sizes = track.sizes;
+        this.decodeTimes = track.decodeTimes;
+        this.presentationTimes = track.presentationTimes;
+        this.sync = track.sync;
+        this.syncSamples = track.syncSamples;
+        this.endTime = track.endTime;
+        this.maxSampleSize = track.maxSampleSize;
+    }
+
+    public MediaFormat getFormat() {
+        return format;
+    }
+
+    public int getSampleCount() {
+        return sizes.length;
+    }
+
+    public int getMaxSampleSize() {
+        return maxSampleSize;
+    }
+
+    public long getEndTime() {
+        return endTime;
+    }
+
+    public long getOffset(int sample) {
+        return offsets[sample];
+    }
+
+    public int getSize(int sample) {
+        return sizes[sample];
+    }
+
+    public long getDecodeTime(int sample) {
+        return decodeTimes[sample];
+    }
+
+    public long getPresentationTime(int sample) {
+        return presentationTimes[sample];
+    }
+
+    public boolean isSync(int sample) {
+        return sync[sample];
+    }
+
+    long[] getOffsets() {
+        return offsets;
+    }
+
+    int[] getSizes() {
+        return sizes;
+    }
+
+    long[] getDecodeTimes() {
+        return decodeTimes;
+    }
+
+    long[] getPresentationTimes() {
+        return presentationTimes;
+    }
+
+    int[] getSyncSamples() {
+        return syncSamples;
+    }
+
+    /**
+     * Returns approximate memory taken by the tables in bytes.
+     */
+    public long getTableSize() {
+        return 29L * sizes.length + 4L * (syncSamples == null ? 0 : syncSamples.length);
+    }
+
+    /**
+     * Returns a track sharing these tables with another format instance, formats are mutable and not shared.
+     */
+    public Mp4Track withFormat(MediaFormat format) {
+        return new Mp4Track(this, format);
+    }
+
+    /**
+     * Returns the sync sample chosen by {@code mode} for the given presentation time, or sample count when there is none.
+     * Sync samples are looked up by binary search, their presentation times are expected to grow in decode order.
+     */
+    public int findSyncSample(long timeUs, int mode) {
+        int count = syncSamples == null ? sizes.length : syncSamples.length;
+        if (count == 0) {
+            return sizes.length;
+        }
+
+        int low = 0;
+        int high = count - 1;
+        int previous = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (presentationTimes[syncSample(middle)] <= timeUs) {
+                previous = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        int next = previous + 1;
+        if (previous >= 0 && presentationTimes[syncSample(previous)] == timeUs) {
+            next = previous;
+        }
+
+        int chosen;
+        switch (mode) {
+            case Mp4Extractor.SEEK_TO_NEXT_SYNC:
+                chosen = next;
+                break;
+            case Mp4Extractor.SEEK_TO_CLOSEST_SYNC:
+                if (previous < 0) {
+                    chosen = next;
+                } else if (next >= count) {
+                    chosen = previous;
+                } else {
+                    long before = timeUs - presentationTimes[syncSample(previous)];
+                    long after = presentationTimes[syncSample(next)] - timeUs;
+                    chosen = before <= after ? previous : next;
+                }
+                break;
+            default:
+                chosen = Math.max(previous, 0);
+                break;
+        }
+
+        return chosen < count ? syncSample(chosen) : sizes.length;
+    }
+
+    private int syncSample(int index) {
+        return syncSamples == null ? index : syncSamples[index];
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.domain.mp4;
+
+import org.m4m.VideoFormat;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+class Mp4VideoFormat extends VideoFormat {
+    private static final String KEY_MAX_INPUT_SIZE = "max-input-size";
+
+    private final HashMap<String, Object> values = new HashMap<String, Object>();
+
+    public Mp4VideoFormat(String mimeType, int width, int height) {
+        setVideoCodec(mimeType);
+        values.put(KEY_MIME, mimeType);
+        setVideoFrameSize(width, height);
+        setInteger(KEY_WIDTH, width);
+        setInteger(KEY_HEIGHT, height);
+    }
+
+    Mp4VideoFormat(HashMap<String, Object> values) {
+        this((String) values.get(KEY_MIME), (Integer) values.get(KEY_WIDTH), (Integer) values.get(KEY_HEIGHT));
+        this.values.putAll(values);
+    }
+
+    HashMap<String, Object> getValues() {
+        return values;
+    }
+
+    public void setKeyMaxInputSize(int size) {
+        setInteger(KEY_MAX_INPUT_SIZE, size);
+    }
+
+    public void setDuration(long durationUs) {
+        values.put(KEY_DURATION, durationUs);
+    }
+
+    public void setByteBuffer(String key, ByteBuffer buffer) {
+        values.put(key, buffer);
+    }
+
+    @Override
+    public ByteBuffer getByteBuffer(String key) {
+        ByteBuffer buffer = (ByteBuffer) values.get(key);
+        return buffer == null ? null : buffer.duplicate();
+    }
+
+    @Override
+    protected void setInteger(String key, int value) {
+        values.put(key, value);
+    }
+
+    @Override
+    protected int getInteger(String key) {
+        return (Integer) values.get(key);
+    }
+
+    @Override
+    protected long getLong(String key) {
+        return (Long) values.get(key);
+    }
+
+    @Override
+    protected String getString(String key) {
+        return (String) values.get(key);
+    }
+}
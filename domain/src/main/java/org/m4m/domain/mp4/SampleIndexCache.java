@@ -0,0 +1,433 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.domain.mp4;
+
+import org.m4m.domain.MediaFormat;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of parsed sample indexes keyed by file path, size and modification time. Indexes are kept in an in-memory
+ * LRU bounded by the size of their tables and persisted in a compact binary form to a directory, which is trimmed
+ * to the given size by evicting least recently used files. Index files are read and written outside the cache lock.
+ * Warm files are opened without parsing the container, every extractor gets its own copy of the track formats.
+ */
+public class SampleIndexCache {
+    private static final int MAGIC = 0x4d344d49;
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".idx";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File directory;
+    private final long maxDiskSize;
+    private final long maxSize;
+    private final LinkedHashMap<String, Mp4Index> indexes = new LinkedHashMap<String, Mp4Index>(16, 0.75f, true);
+
+    private long size;
+    private long hits;
+    private long diskHits;
+    private long misses;
+
+    /**
+     * Creates a cache kept in memory only.
+     *
+     * @param maxSize Maximum size of cached sample tables in bytes.
+     */
+    public SampleIndexCache(long maxSize) {
+        this(null, 0, maxSize);
+    }
+
+    /**
+     * @param directory   Directory to keep index files in, null keeps indexes in memory only.
+     * @param maxDiskSize Maximum total size of index files in bytes.
+     * @param maxSize     Maximum size of sample tables kept in memory in bytes.
+     */
+    public SampleIndexCache(File directory, long maxDiskSize, long maxSize) {
+        this.directory = directory;
+        this.maxDiskSize = maxDiskSize;
+        this.maxSize = maxSize;
+        if (directory != null) {
+            directory.mkdirs();
+        }
+    }
+
+    /**
+     * Returns number of lookups served from memory or disk.
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * Returns number of lookups served from disk, they are included in hit count.
+     */
+    public synchronized long getDiskHitCount() {
+        return diskHits;
+    }
+
+    /**
+     * Returns number of lookups that required parsing the file.
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Returns approximate size of sample tables kept in memory in bytes.
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    Mp4Index get(String path, MappedFile file) {
+        File source = new File(path);
+        String key = source.getAbsolutePath() + '|' + file.length() + '|' + source.lastModified();
+
+        Mp4Index index;
+        synchronized (this) {
+            index = indexes.get(key);
+            if (index != null) {
+                hits++;
+                return copy(index);
+            }
+        }
+
+        File indexFile = directory == null ? null : new File(directory, name(key));
+        index = indexFile == null ? null : read(indexFile, key);
+        if (index != null) {
+            indexFile.setLastModified(System.currentTimeMillis());
+            synchronized (this) {
+                hits++;
+                diskHits++;
+                put(key, index);
+            }
+            return copy(index);
+        }
+
+        synchronized (this) {
+            misses++;
+        }
+        index = new Mp4Parser(file).parse();
+        synchronized (this) {
+            put(key, index);
+        }
+        if (indexFile != null) {
+            write(indexFile, key, index);
+            trimDirectory();
+        }
+        return copy(index);
+    }
+
+    private void put(String key, Mp4Index index) {
+        long indexSize = sizeOf(index);
+        if (indexSize > maxSize) {
+            return;
+        }
+
+        Mp4Index previous = indexes.put(key, index);
+        size += indexSize - (previous == null ? 0 : sizeOf(previous));
+
+        Iterator<Mp4Index> eldest = indexes.values().iterator();
+        while (size > maxSize) {
+            size -= sizeOf(eldest.next());
+            eldest.remove();
+        }
+    }
+
+    private static long sizeOf(Mp4Index index) {
+        long size = 0;
+        for (Mp4Track track : index.getTracks()) {
+            size += track.getTableSize();
+        }
+        return size;
+    }
+
+    private static Mp4Index copy(Mp4Index index) {
+        Mp4Track[] tracks = new Mp4Track[index.getTracks().length];
+        for (int i = 0; i < tracks.length; i++) {
+            Mp4Track track = index.getTracks()[i];
+            tracks[i] = track.withFormat(copy(track.getFormat()));
+        }
+        return new Mp4Index(tracks, index.getRotation());
+    }
+
+    private static MediaFormat copy(MediaFormat format) {
+        if (format instanceof Mp4VideoFormat) {
+            return new Mp4VideoFormat(copy(((Mp4VideoFormat) format).getValues()));
+        }
+        return new Mp4AudioFormat(copy(((Mp4AudioFormat) format).getValues()));
+    }
+
+    private static HashMap<String, Object> copy(HashMap<String, Object> values) {
+        HashMap<String, Object> copy = new HashMap<String, Object>(values);
+        for (Map.Entry<String, Object> entry : copy.entrySet()) {
+            if (entry.getValue() instanceof ByteBuffer) {
+                ByteBuffer buffer = ((ByteBuffer) entry.getValue()).duplicate();
+                buffer.rewind();
+                ByteBuffer bytes = ByteBuffer.allocate(buffer.remaining());
+                bytes.put(buffer);
+                bytes.flip();
+                entry.setValue(bytes);
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * @return Index stored for the key, or null if there is none. Unreadable files are deleted.
+     */
+    private static Mp4Index read(File indexFile, String key) {
+        if (!indexFile.exists()) {
+            return null;
+        }
+
+        try {
+            RandomAccessFile input = new RandomAccessFile(indexFile, "r");
+            ByteBuffer b;
+            try {
+                b = ByteBuffer.allocate((int) input.length());
+                while (b.hasRemaining()) {
+                    if (input.getChannel().read(b) < 0) {
+                        return null;
+                    }
+                }
+            } finally {
+                input.close();
+            }
+            b.flip();
+
+            if (b.getInt() != MAGIC || b.getInt() != VERSION || !key.equals(readString(b))) {
+                return null;
+            }
+
+            int rotation = b.getInt();
+            Mp4Track[] tracks = new Mp4Track[b.getInt()];
+            for (int i = 0; i < tracks.length; i++) {
+                tracks[i] = readTrack(b);
+            }
+            return new Mp4Index(tracks, rotation);
+        } catch (Exception e) {
+            indexFile.delete();
+            return null;
+        }
+    }
+
+    private static Mp4Track readTrack(ByteBuffer b) {
+        boolean video = b.get() == 0;
+        HashMap<String, Object> values = new HashMap<String, Object>();
+        int count = b.getInt();
+        for (int i = 0; i < count; i++) {
+            String key = readString(b);
+            byte type = b.get();
+            if (type == 'I') {
+                values.put(key, b.getInt());
+            } else if (type == 'L') {
+                values.put(key, b.getLong());
+            } else if (type == 'S') {
+                values.put(key, readString(b));
+            } else {
+                ByteBuffer buffer = ByteBuffer.allocate(b.getInt());
+                b.get(buffer.array());
+                values.put(key, buffer);
+            }
+        }
+        MediaFormat format = video ? new Mp4VideoFormat(values) : new Mp4AudioFormat(values);
+
+        int sampleCount = b.getInt();
+        int syncCount = b.getInt();
+        long endTime = b.getLong();
+        long[] offsets = new long[sampleCount];
+        int[] sizes = new int[sampleCount];
+        long[] decodeTimes = new long[sampleCount];
+        long[] presentationTimes = new long[sampleCount];
+        int[] syncSamples = syncCount < 0 ? null : new int[syncCount];
+
+        b.asLongBuffer().get(offsets);
+        b.position(b.position() + 8 * sampleCount);
+        b.asIntBuffer().get(sizes);
+        b.position(b.position() + 4 * sampleCount);
+        b.asLongBuffer().get(decodeTimes);
+        b.position(b.position() + 8 * sampleCount);
+        b.asLongBuffer().get(presentationTimes);
+        b.position(b.position() + 8 * sampleCount);
+        if (syncSamples != null) {
+            b.asIntBuffer().get(syncSamples);
+            b.position(b.position() + 4 * syncCount);
+        }
+
+        return new Mp4Track(format, offsets, sizes, decodeTimes, presentationTimes, syncSamples, endTime);
+    }
+
+    /**
+     * Writes through a temporary file of its own, so concurrent misses of the same file do not mix their output.
+     */
+    private void write(File indexFile, String key, Mp4Index index) {
+        File temporary = null;
+        try {
+            temporary = File.createTempFile(indexFile.getName(), ".tmp", directory);
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary), 1 << 16));
+            try {
+                output.writeInt(MAGIC);
+                output.writeInt(VERSION);
+                writeString(output, key);
+                output.writeInt(index.getRotation());
+                output.writeInt(index.getTracks().length);
+                for (Mp4Track track : index.getTracks()) {
+                    writeTrack(output, track);
+                }
+            } finally {
+                output.close();
+            }
+
+            if (!temporary.renameTo(indexFile)) {
+                indexFile.delete();
+                temporary.renameTo(indexFile);
+            }
+        } catch (IOException e) {
+            // Cache is best effort, file will be parsed next time
+            if (temporary != null) {
+                temporary.delete();
+            }
+        }
+    }
+
+    private static void writeTrack(DataOutputStream output, Mp4Track track) throws IOException {
+        HashMap<String, Object> values;
+        if (track.getFormat() instanceof Mp4VideoFormat) {
+            output.writeByte(0);
+            values = ((Mp4VideoFormat) track.getFormat()).getValues();
+        } else {
+            output.writeByte(1);
+            values = ((Mp4AudioFormat) track.getFormat()).getValues();
+        }
+
+        output.writeInt(values.size());
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            writeString(output, entry.getKey());
+            Object value = entry.getValue();
+            if (value instanceof Integer) {
+                output.writeByte('I');
+                output.writeInt((Integer) value);
+            } else if (value instanceof Long) {
+                output.writeByte('L');
+                output.writeLong((Long) value);
+            } else if (value instanceof String) {
+                output.writeByte('S');
+                writeString(output, (String) value);
+            } else {
+                ByteBuffer buffer = ((ByteBuffer) value).duplicate();
+                buffer.rewind();
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                output.writeByte('B');
+                output.writeInt(bytes.length);
+                output.write(bytes);
+            }
+        }
+
+        int[] syncSamples = track.getSyncSamples();
+        output.writeInt(track.getSampleCount());
+        output.writeInt(syncSamples == null ? -1 : syncSamples.length);
+        output.writeLong(track.getEndTime());
+        for (long offset : track.getOffsets()) {
+            output.writeLong(offset);
+        }
+        for (int size : track.getSizes()) {
+            output.writeInt(size);
+        }
+        for (long time : track.getDecodeTimes()) {
+            output.writeLong(time);
+        }
+        for (long time : track.getPresentationTimes()) {
+            output.writeLong(time);
+        }
+        if (syncSamples != null) {
+            for (int sample : syncSamples) {
+                output.writeInt(sample);
+            }
+        }
+    }
+
+    private void trimDirectory() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        long totalSize = 0;
+        for (File file : files) {
+            totalSize += file.length();
+        }
+        if (totalSize <= maxDiskSize) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File left, File right) {
+                long difference = left.lastModified() - right.lastModified();
+                return difference < 0 ? -1 : difference > 0 ? 1 : 0;
+            }
+        });
+        for (int i = 0; i < files.length && totalSize > maxDiskSize; i++) {
+            if (files[i].getName().endsWith(SUFFIX)) {
+                totalSize -= files[i].length();
+                files[i].delete();
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static String readString(ByteBuffer b) {
+        byte[] bytes = new byte[b.getInt()];
+        b.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private static String name(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(UTF8));
+            StringBuilder name = new StringBuilder();
+            for (byte value : digest) {
+                name.append(String.format("%02x", value & 0xff));
+            }
+            return name.append(SUFFIX).toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(key.hashCode()) + SUFFIX;
+        }
+    }
+}
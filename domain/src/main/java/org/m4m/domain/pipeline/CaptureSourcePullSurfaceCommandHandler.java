@@ -18,10 +18,10 @@ package org.m4m.domain.pipeline;
 
 import org.m4m.domain.Frame;
 import org.m4m.domain.ICameraSource;
-import org.m4m.domain.ICommandHandler;
+import org.m4m.domain.IReusableCommandHandler;
 import org.m4m.domain.MediaCodecPlugin;
 
-class CaptureSourcePullSurfaceCommandHandler implements ICommandHandler {
+class CaptureSourcePullSurfaceCommandHandler implements IReusableCommandHandler {
     private ICameraSource source;
     private MediaCodecPlugin plugin;
 
@@ -33,6 +33,7 @@ import org.m4m.domain.IPluginOutput;
 import org.m4m.domain.IsConnectable;
 import org.m4m.domain.MediaFormatType;
 import org.m4m.domain.MediaSource;
+import org.m4m.domain.Pair;
 import org.m4m.domain.PassThroughPlugin;
 import org.m4m.domain.Plugin;
 import org.m4m.domain.Render;
@@ -42,114 +43,228 @@ import org.m4m.domain.VideoEffector;
 import org.m4m.domain.VideoEncoder;
 import org.m4m.domain.VideoTimeScaler;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static org.m4m.domain.pipeline.ManyToOneConnectable.ManyToOneConnections;
 import static org.m4m.domain.pipeline.OneToManyConnectable.OneToManyConnection;
 import static org.m4m.domain.pipeline.OneToOneConnectable.OneToOneConnection;
 
 public class ConnectorFactory {
+    private static final Map<Pair<Class<?>, Class<?>>, DefaultConnection> defaultDispatch =
+        new ConcurrentHashMap<Pair<Class<?>, Class<?>>, DefaultConnection>();
+
     private final ICommandProcessor commandProcessor;
-    private final AudioFormat audioMediaFormat;
+    private AudioFormat audioMediaFormat;
+    private final List<Registration<?, ?>> registrations = new ArrayList<Registration<?, ?>>();
+    private final List<IsConnectable> customRules = new ArrayList<IsConnectable>();
 
     public ConnectorFactory(ICommandProcessor commandProcessor, AudioFormat audioMediaFormat) {
         this.commandProcessor = commandProcessor;
         this.audioMediaFormat = audioMediaFormat;
     }
 
-    public void connect(IOutputRaw source, IInputRaw transform) {
-
-        if (source instanceof IMediaSource && transform instanceof Plugin) {
-            new PluginConnector(commandProcessor).connect((IMediaSource) source, (Plugin) transform);
-            return;
-        }
-
-        if (source instanceof IMediaSource && transform instanceof Render) {
-            new PluginConnector(commandProcessor).connect((IMediaSource) source, (Render) transform);
-            return;
-        }
-
-        if (source instanceof VideoDecoder && transform instanceof VideoEncoder) {
-            new PluginConnector(commandProcessor).connect((VideoDecoder) source, (VideoEncoder) transform);
-            return;
-        }
-
-        if (source instanceof AudioDecoder && transform instanceof AudioEncoder) {
-            new PluginConnector(commandProcessor).connect((AudioDecoder) source, (AudioEncoder) transform, audioMediaFormat);
-            return;
-        }
+    public void setAudioMediaFormat(AudioFormat audioMediaFormat) {
+        this.audioMediaFormat = audioMediaFormat;
+    }
 
-        if (source instanceof VideoEffector && transform instanceof VideoEncoder) {
-            new PluginConnector(commandProcessor).connect((VideoEffector) source, (VideoEncoder) transform);
-            return;
-        }
+    /**
+     * Registers a connector for a custom pair of node types, checked before the built-in connections.
+     */
+    public <TOutput, TInput> void register(Class<TOutput> sourceClass, Class<TInput> inputClass, INodeConnector<? super TOutput, ? super TInput> connector) {
+        registrations.add(new Registration<TOutput, TInput>(sourceClass, inputClass, connector));
+    }
 
-        if (source instanceof VideoDecoder && transform instanceof VideoEffector) {
-            new PluginConnector(commandProcessor).connect((VideoDecoder) source, (VideoEffector) transform);
-            return;
-        }
+    /**
+     * Adds a topology rule for custom node types, returned by {@link #createConnectionRules()} after the built-in ones.
+     */
+    public void addConnectionRule(IsConnectable rule) {
+        customRules.add(rule);
+    }
 
-        if (source instanceof CompositeVideoDecoder && transform instanceof VideoEffector) {
-            new PluginConnector(commandProcessor).connect((CompositeVideoDecoder) source, (VideoEffector) transform);
-            return;
-        }
+    public boolean hasCustomConnectionRules() {
+        return !customRules.isEmpty();
+    }
 
-        if (source instanceof VideoDecoder  && transform instanceof SurfaceRender) {
-            new PluginConnector(commandProcessor).connect((VideoDecoder  ) source, (SurfaceRender) transform);
+    public void connect(IOutputRaw source, IInputRaw transform) {
+        for (Registration<?, ?> registration : registrations) {
+            if (registration.matches(source, transform)) {
+                registration.connect(commandProcessor, audioMediaFormat, source, transform);
+                return;
+            }
         }
 
-        if (source instanceof AudioEffector && transform instanceof AudioEncoder) {
-            new PluginConnector(commandProcessor).connect((AudioEffector) source, (AudioEncoder) transform, audioMediaFormat);
-            return;
+        DefaultConnection connection = findDefaultConnection(source.getClass(), transform.getClass());
+        if (connection == null) {
+            throw new RuntimeException("No connection between " + source.getClass().toString() + " and " + transform.getClass().toString());
         }
+        connection.connect(new PluginConnector(commandProcessor), audioMediaFormat, source, transform);
+    }
 
-        if (source instanceof AudioDecoder && transform instanceof AudioEffector) {
-            new PluginConnector(commandProcessor).connect((AudioDecoder) source, (AudioEffector) transform);
-            return;
+    private static DefaultConnection findDefaultConnection(Class<?> sourceClass, Class<?> inputClass) {
+        Pair<Class<?>, Class<?>> key = new Pair<Class<?>, Class<?>>(sourceClass, inputClass);
+        DefaultConnection connection = defaultDispatch.get(key);
+        if (connection != null) {
+            return connection;
         }
 
-        if (source instanceof ICaptureSource && transform instanceof Encoder) {
-            new PluginConnector(commandProcessor).connect((ICaptureSource) source, (Encoder) transform);
-            return;
+        for (DefaultConnection candidate : DefaultConnection.values()) {
+            if (candidate.sourceClass.isAssignableFrom(sourceClass) && candidate.inputClass.isAssignableFrom(inputClass)) {
+                defaultDispatch.put(key, candidate);
+                return candidate;
+            }
         }
+        return null;
+    }
 
-        if (source instanceof ICameraSource && transform instanceof Encoder) {
-            new PluginConnector(commandProcessor).connect((ICameraSource) source, (Encoder) transform);
-            return;
-        }
+    private static class Registration<TOutput, TInput> {
+        private final Class<TOutput> sourceClass;
+        private final Class<TInput> inputClass;
+        private final INodeConnector<? super TOutput, ? super TInput> connector;
 
-        if (source instanceof ICameraSource && transform instanceof VideoEffector) {
-            new PluginConnector(commandProcessor).connect((ICameraSource) source, (VideoEffector) transform);
-            return;
+        Registration(Class<TOutput> sourceClass, Class<TInput> inputClass, INodeConnector<? super TOutput, ? super TInput> connector) {
+            this.sourceClass = sourceClass;
+            this.inputClass = inputClass;
+            this.connector = connector;
         }
 
-        if (source instanceof IMicrophoneSource && transform instanceof AudioEncoder) {
-            new PluginConnector(commandProcessor).connect((IMicrophoneSource) source, (AudioEncoder) transform);
-            return;
+        boolean matches(IOutputRaw source, IInputRaw input) {
+            return sourceClass.isInstance(source) && inputClass.isInstance(input);
         }
 
-        if (source instanceof IMicrophoneSource && transform instanceof AudioEffector) {
-            new PluginConnector(commandProcessor).connect((IMicrophoneSource) source, (AudioEffector) transform);
-            return;
+        void connect(ICommandProcessor commandProcessor, AudioFormat audioFormat, IOutputRaw source, IInputRaw input) {
+            connector.connect(commandProcessor, audioFormat, sourceClass.cast(source), inputClass.cast(input));
         }
+    }
 
-        if (source instanceof IPluginOutput && transform instanceof Render) {
-            new PluginConnector(commandProcessor).connect((IPluginOutput) source, (Render) transform);
-            return;
-        }
+    /**
+     * Built-in connections, matched in declaration order; the first one accepting the node types wins.
+     */
+    private enum DefaultConnection {
+        MediaSourceToPlugin(IMediaSource.class, Plugin.class) {
+            @Override
+            void connect(PluginConnector connector, AudioFormat audioFormat, IOutputRaw source, IInputRaw input) {
+                connector.connect((IMediaSource) source, (Plugin) input);
+            }
+        },
+        MediaSourceToRender(IMediaSource.class, Render.class) {
+            @Override
+            void connect(PluginConnector connector, AudioFormat audioFormat, IOutputRaw source, IInputRaw input) {
+                connector.connect((IMediaSource) source, (Render) input);
+            }
+        },
+        VideoDecoderToVideoEncoder(VideoDecoder.class, VideoEncoder.class) {
+            @Override
+            void connect(PluginConnector connector, AudioFormat audioFormat, IOutputRaw source, IInputRaw input) {
+                connector.connect((VideoDecoder) source, (VideoEncoder) input);
+            }
+        },
+        AudioDecoderToAudioEncoder(AudioDecoder.class, AudioEncoder.class) {
+            @Override
+            void connect(PluginConnector connector, AudioFormat audioFormat, IOutputRaw source, IInputRaw input) {
+                connector.connect((AudioDecoder) source, (AudioEncoder) input, audioFormat);
+            }
+        },
+        VideoEffectorToVideoEncoder(VideoEffector.class, VideoEncoder.class) {
+            @Override
+            void connect(PluginConnector connector, AudioFormat audioFormat, IOutputRaw source, IInputRaw input) {
+                connector.connect((VideoEffector) source, (VideoEncoder) input);
+            }
+        },
+        VideoDecoderToVideoEffector(VideoDecoder.class, VideoEffector.class) {
+            @Override
+            void connect(PluginConnector connector, AudioFormat audioFormat, IOutputRaw source, IInputRaw input) {
+                connector.connect((VideoDecoder) source, (VideoEffector) input);
+            }
+        },
+        CompositeVideoDecoderToVideoEffector(CompositeVideoDecoder.class, VideoEffector.class) {
+            @Override
+            void connect(PluginConnector connector, AudioFormat audioFormat, IOutputRaw source, IInputRaw input) {
+                connector.connect((CompositeVideoDecoder) source, (VideoEffector) input);
+            }
+        },
+        VideoDecoderToSurfaceRender(VideoDecoder.class, SurfaceRender.class) {
+            @Override
+            void connect(PluginConnector connector, AudioFormat audioFormat, IOutputRaw source, IInputRaw input) {
+                connector.connect((VideoDecoder) source, (SurfaceRender) input);
+                //surface render is fed as a plain render as well
+                connector.connect((IPluginOutput) source, (Render) input);
+            }
+        },
+        AudioEffectorToAudioEncoder(AudioEffector.class, AudioEncoder.class) {
+            @Override
+            void connect(PluginConnector connector, AudioFormat audioFormat, IOutputRaw source, IInputRaw input) {
+                connector.connect((AudioEffector) source, (AudioEncoder) input, audioFormat);
+            }
+        },
+        AudioDecoderToAudioEffector(AudioDecoder.class, AudioEffector.class) {
+            @Override
+            void connect(PluginConnector connector, AudioFormat audioFormat, IOutputRaw source, IInputRaw input) {
+                connector.connect((AudioDecoder) source, (AudioEffector) input);
+            }
+        },
+        CaptureSourceToEncoder(ICaptureSource.class, Encoder.class) {
+            @Override
+            void connect(PluginConnector connector, AudioFormat audioFormat, IOutputRaw source, IInputRaw input) {
+                connector.connect((ICaptureSource) source, (Encoder) input);
+            }
+        },
+        CameraSourceToEncoder(ICameraSource.class, Encoder.class) {
+            @Override
+            void connect(PluginConnector connector, AudioFormat audioFormat, IOutputRaw source, IInputRaw input) {
+                connector.connect((ICameraSource) source, (Encoder) input);
+            }
+        },
+        CameraSourceToVideoEffector(ICameraSource.class, VideoEffector.class) {
+            @Override
+            void connect(PluginConnector connector, AudioFormat audioFormat, IOutputRaw source, IInputRaw input) {
+                connector.connect((ICameraSource) source, (VideoEffector) input);
+            }
+        },
+        MicrophoneSourceToAudioEncoder(IMicrophoneSource.class, AudioEncoder.class) {
+            @Override
+            void connect(PluginConnector connector, AudioFormat audioFormat, IOutputRaw source, IInputRaw input) {
+                connector.connect((IMicrophoneSource) source, (AudioEncoder) input);
+            }
+        },
+        MicrophoneSourceToAudioEffector(IMicrophoneSource.class, AudioEffector.class) {
+            @Override
+            void connect(PluginConnector connector, AudioFormat audioFormat, IOutputRaw source, IInputRaw input) {
+                connector.connect((IMicrophoneSource) source, (AudioEffector) input);
+            }
+        },
+        PluginOutputToRender(IPluginOutput.class, Render.class) {
+            @Override
+            void connect(PluginConnector connector, AudioFormat audioFormat, IOutputRaw source, IInputRaw input) {
+                connector.connect((IPluginOutput) source, (Render) input);
+            }
+        },
+        VideoTimeScalerToVideoEncoder(VideoTimeScaler.class, VideoEncoder.class) {
+            @Override
+            void connect(PluginConnector connector, AudioFormat audioFormat, IOutputRaw source, IInputRaw input) {
+                connector.connect((VideoTimeScaler) source, (VideoEncoder) input);
+            }
+        },
+        VideoDecoderToVideoTimeScaler(VideoDecoder.class, VideoTimeScaler.class) {
+            @Override
+            void connect(PluginConnector connector, AudioFormat audioFormat, IOutputRaw source, IInputRaw input) {
+                connector.connect((VideoDecoder) source, (VideoTimeScaler) input);
+            }
+        };
 
-        if (source instanceof VideoTimeScaler && transform instanceof VideoEncoder) {
-            new PluginConnector(commandProcessor).connect((VideoTimeScaler) source, (VideoEncoder) transform);
-            return;
-        }
+        private final Class<?> sourceClass;
+        private final Class<?> inputClass;
 
-        if (source instanceof VideoDecoder && transform instanceof VideoTimeScaler) {
-            new PluginConnector(commandProcessor).connect((VideoDecoder) source, (VideoTimeScaler) transform);
-            return;
+        DefaultConnection(Class<?> sourceClass, Class<?> inputClass) {
+            this.sourceClass = sourceClass;
+            this.inputClass = inputClass;
         }
 
-        throw new RuntimeException("No connection between " + source.getClass().toString() + " and " + transform.getClass().toString());
+        abstract void connect(PluginConnector connector, AudioFormat audioFormat, IOutputRaw source, IInputRaw input);
     }
 
     public Collection<IsConnectable> createConnectionRules() {
@@ -205,6 +320,7 @@ public class ConnectorFactory {
                 AudioDecoder.class,
                 PassThroughPlugin.class)));
 
+        collection.addAll(customRules);
         return collection;
     }
 }
@@ -18,11 +18,11 @@ package org.m4m.domain.pipeline;
 
 import org.m4m.domain.Command;
 import org.m4m.domain.Frame;
-import org.m4m.domain.ICommandHandler;
 import org.m4m.domain.IPluginOutput;
+import org.m4m.domain.IReusableCommandHandler;
 import org.m4m.domain.MediaCodecPlugin;
 
-class CopyDataCommandHandler implements ICommandHandler {
+class CopyDataCommandHandler implements IReusableCommandHandler {
     private final IPluginOutput output;
     private final MediaCodecPlugin input;
 
@@ -40,10 +40,14 @@ class CopyDataCommandHandler implements ICommandHandler {
         }
 
         Frame decoderFrame = output.getFrame();
-        if (decoderFrame == null) return;
+        if (decoderFrame == null) {
+            input.releaseFrame(encoderFrame);
+            return;
+        }
 
         encoderFrame.copyDataFrom(decoderFrame);
         input.push(encoderFrame);
+        input.releaseFrame(encoderFrame);
 
         output.releaseOutputBuffer(decoderFrame.getBufferIndex());
     }
@@ -16,10 +16,10 @@
 
 package org.m4m.domain.pipeline;
 
-import org.m4m.domain.ICommandHandler;
+import org.m4m.domain.IReusableCommandHandler;
 import org.m4m.domain.MediaCodecPlugin;
 
-class DrainCommandHandler implements ICommandHandler {
+class DrainCommandHandler implements IReusableCommandHandler {
     protected final MediaCodecPlugin plugin;
 
     public DrainCommandHandler(MediaCodecPlugin plugin) {
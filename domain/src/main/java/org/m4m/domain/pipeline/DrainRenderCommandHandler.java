@@ -17,10 +17,10 @@
 
 package org.m4m.domain.pipeline;
 
-import org.m4m.domain.ICommandHandler;
+import org.m4m.domain.IReusableCommandHandler;
 import org.m4m.domain.Render;
 
-public class DrainRenderCommandHandler implements ICommandHandler {
+public class DrainRenderCommandHandler implements IReusableCommandHandler {
     protected final Render render;
 
     public DrainRenderCommandHandler(Render render) {
@@ -18,12 +18,12 @@ package org.m4m.domain.pipeline;
 
 import org.m4m.domain.Command;
 import org.m4m.domain.Frame;
-import org.m4m.domain.ICommandHandler;
 import org.m4m.domain.IFrameAllocator;
 import org.m4m.domain.IOutput;
+import org.m4m.domain.IReusableCommandHandler;
 import org.m4m.domain.Plugin;
 
-class EofCommandHandler implements ICommandHandler {
+class EofCommandHandler implements IReusableCommandHandler {
     protected IOutput output;
     protected Plugin plugin;
     private IFrameAllocator inputWithAllocator;
@@ -40,6 +40,7 @@ class EofCommandHandler implements ICommandHandler {
 
         if (frame != null) {
             plugin.drain(frame.getBufferIndex());
+            inputWithAllocator.releaseFrame(frame);
         } else {
             handleNoFreeInputBuffer();
         }
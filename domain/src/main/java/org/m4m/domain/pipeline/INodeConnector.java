@@ -0,0 +1,27 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.domain.pipeline;
+
+import org.m4m.AudioFormat;
+import org.m4m.domain.ICommandProcessor;
+
+/**
+ * Wires command handlers between an output node and an input node of custom types.
+ */
+public interface INodeConnector<TOutput, TInput> {
+    void connect(ICommandProcessor commandProcessor, AudioFormat audioFormat, TOutput output, TInput input);
+}
@@ -19,10 +19,10 @@ package org.m4m.domain.pipeline;
 import org.m4m.domain.AudioEncoder;
 import org.m4m.domain.Command;
 import org.m4m.domain.Frame;
-import org.m4m.domain.ICommandHandler;
 import org.m4m.domain.IMicrophoneSource;
+import org.m4m.domain.IReusableCommandHandler;
 
-class MicrophoneSourcePullFrameCommandHandler implements ICommandHandler {
+class MicrophoneSourcePullFrameCommandHandler implements IReusableCommandHandler {
     private IMicrophoneSource source;
     private AudioEncoder encoder;
 
@@ -49,6 +49,7 @@ class MicrophoneSourcePullFrameCommandHandler implements ICommandHandler {
         if (!encoderFrame.equals(Frame.EOF())) {
             encoder.checkIfOutputQueueHasData();
         }
+        encoder.releaseFrame(encoderFrame);
     }
 
     private void handleNoFreeInputBuffer() {
@@ -48,6 +48,7 @@ class OutputFormatChangedHandler implements ICommandHandler {
             }
 
             plugin.drain(frame.getBufferIndex());
+            inputWithAllocator.releaseFrame(frame);
             plugin.stop();
             plugin.setMediaFormat(output.getMediaFormatByType(plugin.getMediaFormatType()));
             plugin.configure();
@@ -108,6 +108,7 @@ class PluginConnector implements IConnector {
                 effector.configure();
                 effector.start();
                 encoder.start();
+                commandProcessor.wakeUp();
             }
         });
     }
@@ -155,8 +156,17 @@ class PluginConnector implements IConnector {
         effector.start();
     }
 
-    public void connect(AudioDecoder decoder, AudioEffector effector) {
-        configureAudioPipelineCommandProcessorCopy(decoder, effector);
+    public void connect(final AudioDecoder decoder, final AudioEffector effector) {
+        if (effector.isInPlaceProcessing()) {
+            configureAudioPipelineCommandProcessor(decoder, effector, new IHandlerCreator() {
+                @Override
+                public ICommandHandler create() {
+                    return new BorrowDataCommandHandler(decoder, effector);
+                }
+            });
+        } else {
+            configureAudioPipelineCommandProcessorCopy(decoder, effector);
+        }
 
         decoder.configure();
         decoder.start();
@@ -337,13 +347,17 @@ class PluginConnector implements IConnector {
     }
 
     private void configureAudioPipelineCommandProcessorCopy(final MediaCodecPlugin decoder, final MediaCodecPlugin encoder) {
-        CommandHandlerFactory factory = new CommandHandlerFactory();
-        factory.register(new Pair<Command, Integer>(Command.HasData, 0), new Pair<Command, Integer>(Command.NeedData, 0), new IHandlerCreator() {
+        configureAudioPipelineCommandProcessor(decoder, encoder, new IHandlerCreator() {
             @Override
             public ICommandHandler create() {
                 return new CopyDataCommandHandler(decoder, encoder);
             }
         });
+    }
+
+    private void configureAudioPipelineCommandProcessor(final MediaCodecPlugin decoder, final MediaCodecPlugin encoder, IHandlerCreator dataHandler) {
+        CommandHandlerFactory factory = new CommandHandlerFactory();
+        factory.register(new Pair<Command, Integer>(Command.HasData, 0), new Pair<Command, Integer>(Command.NeedData, 0), dataHandler);
         factory.register(new Pair<Command, Integer>(Command.OutputFormatChanged, 0), new Pair<Command, Integer>(Command.NeedData, 0), new IHandlerCreator() {
             @Override
             public ICommandHandler create() {
@@ -401,6 +415,7 @@ class PluginConnector implements IConnector {
                 ISurface surface = encoder.getSurface();
                 source.setOutputSurface(surface);
                 encoder.start();
+                commandProcessor.wakeUp();
             }
         });
     }
@@ -414,6 +429,7 @@ class PluginConnector implements IConnector {
                 decoder.setOutputSurface(render.getSurface());
                 decoder.configure();
                 decoder.start();
+                commandProcessor.wakeUp();
             }
         });
     }
@@ -622,6 +638,7 @@ class PluginConnector implements IConnector {
                 camera.setPreview(effector.getPreview());
                 camera.setOutputSurface(effector.getSurface());
                 camera.configure();
+                commandProcessor.wakeUp();
             }
         });
     }
@@ -651,6 +668,7 @@ class PluginConnector implements IConnector {
                 scaler.configure();
                 scaler.start();
                 encoder.start();
+                commandProcessor.wakeUp();
             }
         });
     }
@@ -17,11 +17,11 @@
 package org.m4m.domain.pipeline;
 
 import org.m4m.domain.Frame;
-import org.m4m.domain.ICommandHandler;
 import org.m4m.domain.IPluginOutput;
+import org.m4m.domain.IReusableCommandHandler;
 import org.m4m.domain.Render;
 
-class PullDataCommandHandler implements ICommandHandler {
+class PullDataCommandHandler implements IReusableCommandHandler {
     protected Render input;
     protected IPluginOutput output;
 
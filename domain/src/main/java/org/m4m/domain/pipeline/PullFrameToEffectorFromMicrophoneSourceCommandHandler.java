@@ -18,12 +18,12 @@ package org.m4m.domain.pipeline;
 
 import org.m4m.domain.Command;
 import org.m4m.domain.Frame;
-import org.m4m.domain.ICommandHandler;
 import org.m4m.domain.IMicrophoneSource;
+import org.m4m.domain.IReusableCommandHandler;
 import org.m4m.domain.MediaCodecPlugin;
 
 
-public class PullFrameToEffectorFromMicrophoneSourceCommandHandler implements ICommandHandler {
+public class PullFrameToEffectorFromMicrophoneSourceCommandHandler implements IReusableCommandHandler {
     private final IMicrophoneSource output;
     private final MediaCodecPlugin input;
 
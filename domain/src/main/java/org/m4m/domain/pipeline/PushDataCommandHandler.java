@@ -18,12 +18,12 @@ package org.m4m.domain.pipeline;
 
 import org.m4m.domain.Command;
 import org.m4m.domain.Frame;
-import org.m4m.domain.ICommandHandler;
 import org.m4m.domain.IFrameAllocator;
 import org.m4m.domain.IOutput;
+import org.m4m.domain.IReusableCommandHandler;
 import org.m4m.domain.Plugin;
 
-class PushDataCommandHandler implements ICommandHandler {
+class PushDataCommandHandler implements IReusableCommandHandler {
     //Logger log = Logger.getLogger(getClass().getSimpleName());
 
     protected IOutput output;
@@ -48,6 +48,7 @@ class PushDataCommandHandler implements ICommandHandler {
 
         output.pull(frame);
         plugin.push(frame);
+        inputWithAllocator.releaseFrame(frame);
         plugin.checkIfOutputQueueHasData();
     }
 
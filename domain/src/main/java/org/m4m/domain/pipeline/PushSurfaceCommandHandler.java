@@ -17,11 +17,11 @@
 package org.m4m.domain.pipeline;
 
 import org.m4m.domain.Frame;
-import org.m4m.domain.ICommandHandler;
 import org.m4m.domain.IPluginOutput;
+import org.m4m.domain.IReusableCommandHandler;
 import org.m4m.domain.MediaCodecPlugin;
 
-class PushSurfaceCommandHandler implements ICommandHandler {
+class PushSurfaceCommandHandler implements IReusableCommandHandler {
     protected final IPluginOutput output;
     protected final MediaCodecPlugin input;
 
@@ -7,10 +7,10 @@ package org.m4m.domain.pipeline;
 import org.m4m.IVideoEffect;
 import org.m4m.domain.CompositeVideoDecoder;
 import org.m4m.domain.Frame;
-import org.m4m.domain.ICommandHandler;
+import org.m4m.domain.IReusableCommandHandler;
 import org.m4m.domain.VideoEffector;
 
-public class PushSurfaceCommandHandlerForCompositeDecoderEffector implements ICommandHandler {
+public class PushSurfaceCommandHandlerForCompositeDecoderEffector implements IReusableCommandHandler {
     private final CompositeVideoDecoder compositeVideoDecoder;
     protected final VideoEffector videoEffector;
 
@@ -17,14 +17,14 @@
 package org.m4m.domain.pipeline;
 
 import org.m4m.domain.Frame;
-import org.m4m.domain.ICommandHandler;
 import org.m4m.domain.IPluginOutput;
+import org.m4m.domain.IReusableCommandHandler;
 import org.m4m.domain.Plugin;
 
 /* Will be merged with PushSurfaceCommandHandler. It should be one universal
  * handler version suits for all component used GL surface.
  */
-class PushSurfaceCommandHandlerForEffector implements ICommandHandler {
+class PushSurfaceCommandHandlerForEffector implements IReusableCommandHandler {
     protected final IPluginOutput output;
     protected final Plugin input;
 
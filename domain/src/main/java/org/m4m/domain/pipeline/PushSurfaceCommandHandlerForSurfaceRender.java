@@ -16,11 +16,11 @@
 package org.m4m.domain.pipeline;
 
 import org.m4m.domain.Frame;
-import org.m4m.domain.ICommandHandler;
 import org.m4m.domain.IPluginOutput;
+import org.m4m.domain.IReusableCommandHandler;
 import org.m4m.domain.SurfaceRender;
 
-public class PushSurfaceCommandHandlerForSurfaceRender implements ICommandHandler {
+public class PushSurfaceCommandHandlerForSurfaceRender implements IReusableCommandHandler {
     private IPluginOutput decoder;
     private SurfaceRender render;
 
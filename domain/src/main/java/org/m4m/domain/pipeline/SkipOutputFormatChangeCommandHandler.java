@@ -17,10 +17,10 @@
 package org.m4m.domain.pipeline;
 
 import org.m4m.domain.Frame;
-import org.m4m.domain.ICommandHandler;
 import org.m4m.domain.IInput;
+import org.m4m.domain.IReusableCommandHandler;
 
-class SkipOutputFormatChangeCommandHandler implements ICommandHandler {
+class SkipOutputFormatChangeCommandHandler implements IReusableCommandHandler {
     private IInput encoder;
 
     public SkipOutputFormatChangeCommandHandler(IInput encoder) {
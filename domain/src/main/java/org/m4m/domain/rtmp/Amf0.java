@@ -0,0 +1,152 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.domain.rtmp;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes and decodes AMF0 values used by RTMP commands: numbers, booleans, strings, objects, ECMA arrays
+ * and null. Numbers are decoded as Double, objects and arrays as Map.
+ */
+class Amf0 {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int NUMBER = 0x00;
+    private static final int BOOLEAN = 0x01;
+    private static final int STRING = 0x02;
+    private static final int OBJECT = 0x03;
+    private static final int NULL = 0x05;
+    private static final int UNDEFINED = 0x06;
+    private static final int ECMA_ARRAY = 0x08;
+    private static final int OBJECT_END = 0x09;
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    Amf0 write(Object value) {
+        if (value == null) {
+            out.write(NULL);
+        } else if (value instanceof Number) {
+            out.write(NUMBER);
+            putLong(Double.doubleToLongBits(((Number) value).doubleValue()));
+        } else if (value instanceof Boolean) {
+            out.write(BOOLEAN);
+            out.write((Boolean) value ? 1 : 0);
+        } else if (value instanceof String) {
+            out.write(STRING);
+            putString((String) value);
+        } else if (value instanceof Map) {
+            out.write(OBJECT);
+            putProperties((Map<?, ?>) value);
+        } else {
+            throw new IllegalArgumentException("Unsupported AMF0 value " + value.getClass() + ".");
+        }
+        return this;
+    }
+
+    Amf0 writeEcmaArray(Map<String, ?> properties) {
+        out.write(ECMA_ARRAY);
+        putInt(properties.size());
+        putProperties(properties);
+        return this;
+    }
+
+    byte[] toByteArray() {
+        return out.toByteArray();
+    }
+
+    static List<Object> read(byte[] data, int length) {
+        ByteBuffer b = ByteBuffer.wrap(data, 0, length);
+        List<Object> values = new ArrayList<Object>();
+        while (b.hasRemaining()) {
+            values.add(readValue(b));
+        }
+        return values;
+    }
+
+    private static Object readValue(ByteBuffer b) {
+        int type = b.get() & 0xff;
+        switch (type) {
+            case NUMBER:
+                return b.getDouble();
+            case BOOLEAN:
+                return b.get() != 0;
+            case STRING:
+                return readString(b);
+            case OBJECT:
+                return readProperties(b);
+            case NULL:
+            case UNDEFINED:
+                return null;
+            case ECMA_ARRAY:
+                b.getInt();
+                return readProperties(b);
+            default:
+                throw new IllegalArgumentException("Unsupported AMF0 type " + type + ".");
+        }
+    }
+
+    private static Map<String, Object> readProperties(ByteBuffer b) {
+        Map<String, Object> properties = new LinkedHashMap<String, Object>();
+        while (true) {
+            String key = readString(b);
+            if (key.isEmpty() && (b.get(b.position()) & 0xff) == OBJECT_END) {
+                b.get();
+                return properties;
+            }
+            properties.put(key, readValue(b));
+        }
+    }
+
+    private static String readString(ByteBuffer b) {
+        byte[] bytes = new byte[b.getShort() & 0xffff];
+        b.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private void putProperties(Map<?, ?> properties) {
+        for (Map.Entry<?, ?> property : properties.entrySet()) {
+            putString(property.getKey().toString());
+            write(property.getValue());
+        }
+        putString("");
+        out.write(OBJECT_END);
+    }
+
+    private void putString(String value) {
+        byte[] bytes = value.getBytes(UTF_8);
+        out.write(bytes.length >> 8);
+        out.write(bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private void putInt(int value) {
+        out.write(value >> 24);
+        out.write(value >> 16);
+        out.write(value >> 8);
+        out.write(value);
+    }
+
+    private void putLong(long value) {
+        putInt((int) (value >> 32));
+        putInt((int) value);
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.domain.rtmp;
+
+/**
+ * Why a live sink dropped a video frame.
+ */
+public enum DropReason {
+    /**
+     * Send queue was full, a frame no other frame refers to was dropped.
+     */
+    NON_REFERENCE_FRAME,
+    /**
+     * Send queue was full, frames were dropped up to the next key frame.
+     */
+    GROUP_OF_PICTURES,
+    /**
+     * Frame waited longer than the latency budget, frames were dropped up to the next key frame.
+     */
+    LATENCY,
+    /**
+     * Frame refers to a dropped frame and arrived before the next key frame.
+     */
+    WAITING_FOR_KEY_FRAME
+}
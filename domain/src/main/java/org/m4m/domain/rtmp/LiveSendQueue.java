@@ -0,0 +1,199 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.domain.rtmp;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Send queue of a live sink limited by a video byte budget and a latency budget. Video is shed so the
+ * stream stays decodable: non-reference frames go first, then whole groups of pictures up to the next key
+ * frame. Audio is never dropped and does not count against the byte budget, it is bounded by the write
+ * timeout of {@link RtmpPublisher} failing a stalled stream. Not thread safe.
+ */
+class LiveSendQueue {
+    private final long byteBudget;
+    private final long maxLatencyMs;
+    private final ArrayDeque<Packet> packets = new ArrayDeque<Packet>();
+    private final ArrayDeque<Packet> freePackets;
+    private final long[] drops = new long[DropReason.values().length];
+    private long bytes;
+    private long videoBytes;
+    private boolean waitForKeyFrame;
+
+    /**
+     * @param freePackets Receives dropped packets for reuse.
+     */
+    LiveSendQueue(long byteBudget, long maxLatencyMs, ArrayDeque<Packet> freePackets) {
+        this.byteBudget = byteBudget;
+        this.maxLatencyMs = maxLatencyMs;
+        this.freePackets = freePackets;
+    }
+
+    /**
+     * Queues packet or drops it, possibly dropping queued video to make room.
+     *
+     * @return true if the packet was queued.
+     */
+    boolean offer(Packet packet) {
+        if (packet.video) {
+            evictLateVideo(packet.timestamp);
+            while (videoBytes + packet.length > byteBudget) {
+                if (!evictNonReferenceFrame() && !evictGroupOfPictures(DropReason.GROUP_OF_PICTURES)) {
+                    break;
+                }
+            }
+
+            if (waitForKeyFrame && !packet.keyFrame) {
+                drop(packet, DropReason.WAITING_FOR_KEY_FRAME);
+                return false;
+            }
+            if (videoBytes + packet.length > byteBudget) {
+                waitForKeyFrame = packet.reference;
+                drop(packet, packet.reference ? DropReason.GROUP_OF_PICTURES : DropReason.NON_REFERENCE_FRAME);
+                return false;
+            }
+        }
+
+        if (packet.video && packet.keyFrame) {
+            waitForKeyFrame = false;
+        }
+        packets.add(packet);
+        bytes += packet.length;
+        if (packet.video) {
+            videoBytes += packet.length;
+        }
+        return true;
+    }
+
+    Packet poll() {
+        Packet packet = packets.poll();
+        if (packet != null) {
+            bytes -= packet.length;
+            if (packet.video) {
+                videoBytes -= packet.length;
+            }
+        }
+        return packet;
+    }
+
+    boolean isEmpty() {
+        return packets.isEmpty();
+    }
+
+    int size() {
+        return packets.size();
+    }
+
+    long getBytes() {
+        return bytes;
+    }
+
+    long getDropCount(DropReason reason) {
+        return drops[reason.ordinal()];
+    }
+
+    long getDropCount() {
+        long count = 0;
+        for (long drop : drops) {
+            count += drop;
+        }
+        return count;
+    }
+
+    void clear() {
+        freePackets.addAll(packets);
+        packets.clear();
+        bytes = 0;
+        videoBytes = 0;
+    }
+
+    private void evictLateVideo(long timestamp) {
+        while (true) {
+            Packet oldest = null;
+            for (Packet packet : packets) {
+                if (packet.video) {
+                    oldest = packet;
+                    break;
+                }
+            }
+            if (oldest == null || timestamp - oldest.timestamp <= maxLatencyMs) {
+                return;
+            }
+            evictGroupOfPictures(DropReason.LATENCY);
+        }
+    }
+
+    private boolean evictNonReferenceFrame() {
+        for (Iterator<Packet> iterator = packets.iterator(); iterator.hasNext(); ) {
+            Packet packet = iterator.next();
+            if (packet.video && !packet.reference) {
+                iterator.remove();
+                bytes -= packet.length;
+                videoBytes -= packet.length;
+                drop(packet, DropReason.NON_REFERENCE_FRAME);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drops the oldest queued video frame and the frames following it up to the next queued key frame.
+     * Without a later key frame in the queue incoming video is dropped until one arrives.
+     */
+    private boolean evictGroupOfPictures(DropReason reason) {
+        boolean evicted = false;
+        for (Iterator<Packet> iterator = packets.iterator(); iterator.hasNext(); ) {
+            Packet packet = iterator.next();
+            if (!packet.video) {
+                continue;
+            }
+            if (evicted && packet.keyFrame) {
+                return true;
+            }
+            iterator.remove();
+            bytes -= packet.length;
+            videoBytes -= packet.length;
+            drop(packet, reason);
+            evicted = true;
+        }
+        if (evicted) {
+            waitForKeyFrame = true;
+        }
+        return evicted;
+    }
+
+    private void drop(Packet packet, DropReason reason) {
+        drops[reason.ordinal()]++;
+        freePackets.add(packet);
+    }
+
+    static class Packet {
+        final byte[] data;
+        int length;
+        int type;
+        long timestamp;
+        boolean video;
+        boolean keyFrame;
+        boolean reference;
+
+        Packet(byte[] data) {
+            this.data = data;
+        }
+    }
+}
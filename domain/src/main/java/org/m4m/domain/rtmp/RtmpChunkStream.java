@@ -0,0 +1,215 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.domain.rtmp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Splits RTMP messages into chunks and assembles received chunks back into messages. Written messages
+ * always use a full chunk header. Callers synchronize writes and apply chunk size messages themselves.
+ */
+class RtmpChunkStream {
+    static final int DEFAULT_CHUNK_SIZE = 128;
+    private static final int MAX_TIMESTAMP = 0xffffff;
+
+    private final InputStream in;
+    private final OutputStream out;
+    private final Map<Integer, ChunkState> states = new HashMap<Integer, ChunkState>();
+    private final byte[] header = new byte[18];
+    private int inChunkSize = DEFAULT_CHUNK_SIZE;
+    private int outChunkSize = DEFAULT_CHUNK_SIZE;
+    private long bytesRead;
+    private long bytesWritten;
+
+    RtmpChunkStream(InputStream in, OutputStream out) {
+        this.in = in;
+        this.out = out;
+    }
+
+    void setInChunkSize(int chunkSize) {
+        this.inChunkSize = chunkSize;
+    }
+
+    void setOutChunkSize(int chunkSize) {
+        this.outChunkSize = chunkSize;
+    }
+
+    long getBytesRead() {
+        return bytesRead;
+    }
+
+    long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    RtmpMessage readMessage() throws IOException {
+        while (true) {
+            int first = readByte();
+            int format = first >> 6;
+            int chunkStreamId = first & 0x3f;
+            if (chunkStreamId == 0) {
+                chunkStreamId = 64 + readByte();
+            } else if (chunkStreamId == 1) {
+                chunkStreamId = 64 + readByte() + (readByte() << 8);
+            }
+
+            ChunkState state = states.get(chunkStreamId);
+            if (state == null) {
+                if (format != 0) {
+                    throw new IOException("Chunk stream " + chunkStreamId + " starts without a full header.");
+                }
+                state = new ChunkState();
+                states.put(chunkStreamId, state);
+            }
+
+            long time = 0;
+            if (format <= 2) {
+                time = readBigEndian(3);
+                state.extendedTimestamp = time == MAX_TIMESTAMP;
+            }
+            if (format <= 1) {
+                state.length = (int) readBigEndian(3);
+                state.type = readByte();
+            }
+            if (format == 0) {
+                state.streamId = readByte() | (readByte() << 8) | (readByte() << 16) | (readByte() << 24);
+            }
+            if (state.extendedTimestamp) {
+                long extended = readBigEndian(4);
+                if (format <= 2) {
+                    time = extended;
+                }
+            }
+
+            if (state.received == 0) {
+                if (format == 0) {
+                    state.timestamp = time;
+                    state.delta = 0;
+                } else if (format <= 2) {
+                    state.delta = time;
+                    state.timestamp += time;
+                } else {
+                    state.timestamp += state.delta;
+                }
+                if (state.payload == null || state.payload.length < state.length) {
+                    state.payload = new byte[state.length];
+                }
+            }
+
+            int size = Math.min(inChunkSize, state.length - state.received);
+            readFully(state.payload, state.received, size);
+            state.received += size;
+            if (state.received == state.length) {
+                state.received = 0;
+                byte[] payload = state.payload;
+                state.payload = null;
+                return new RtmpMessage(state.type, state.streamId, state.timestamp, payload, state.length);
+            }
+        }
+    }
+
+    void writeMessage(int chunkStreamId, int type, int streamId, long timestamp, byte[] payload, int length) throws IOException {
+        boolean extended = timestamp >= MAX_TIMESTAMP;
+        int at = 0;
+        header[at++] = (byte) chunkStreamId;
+        at = putBigEndian(at, extended ? MAX_TIMESTAMP : timestamp, 3);
+        at = putBigEndian(at, length, 3);
+        header[at++] = (byte) type;
+        header[at++] = (byte) streamId;
+        header[at++] = (byte) (streamId >> 8);
+        header[at++] = (byte) (streamId >> 16);
+        header[at++] = (byte) (streamId >> 24);
+        if (extended) {
+            at = putBigEndian(at, timestamp, 4);
+        }
+        out.write(header, 0, at);
+        bytesWritten += at;
+
+        int written = 0;
+        do {
+            if (written > 0) {
+                int continuation = 0;
+                header[continuation++] = (byte) (0xc0 | chunkStreamId);
+                if (extended) {
+                    continuation = putBigEndian(continuation, timestamp, 4);
+                }
+                out.write(header, 0, continuation);
+                bytesWritten += continuation;
+            }
+            int size = Math.min(outChunkSize, length - written);
+            out.write(payload, written, size);
+            bytesWritten += size;
+            written += size;
+        } while (written < length);
+    }
+
+    void flush() throws IOException {
+        out.flush();
+    }
+
+    private int putBigEndian(int at, long value, int bytes) {
+        for (int i = bytes - 1; i >= 0; i--) {
+            header[at++] = (byte) (value >> (8 * i));
+        }
+        return at;
+    }
+
+    private long readBigEndian(int bytes) throws IOException {
+        long value = 0;
+        for (int i = 0; i < bytes; i++) {
+            value = (value << 8) | readByte();
+        }
+        return value;
+    }
+
+    private int readByte() throws IOException {
+        int value = in.read();
+        if (value < 0) {
+            throw new EOFException("Connection closed.");
+        }
+        bytesRead++;
+        return value;
+    }
+
+    private void readFully(byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            int read = in.read(buffer, offset, length);
+            if (read < 0) {
+                throw new EOFException("Connection closed.");
+            }
+            bytesRead += read;
+            offset += read;
+            length -= read;
+        }
+    }
+
+    private static class ChunkState {
+        long timestamp;
+        long delta;
+        int length;
+        int type;
+        int streamId;
+        boolean extendedTimestamp;
+        byte[] payload;
+        int received;
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.domain.rtmp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Client side of an RTMP connection publishing one stream. Setup commands are executed on the calling
+ * thread; after publishing, a reader thread answers pings and takes round trip times from acknowledgements
+ * of sent bytes.
+ */
+class RtmpConnection {
+    static final int CONTROL_CHUNK_STREAM = 2;
+    static final int COMMAND_CHUNK_STREAM = 3;
+    static final int AUDIO_CHUNK_STREAM = 4;
+    static final int VIDEO_CHUNK_STREAM = 6;
+    static final int DATA_CHUNK_STREAM = 5;
+
+    static final int HANDSHAKE_SIZE = 1536;
+    private static final int CHUNK_SIZE = 4096;
+    private static final int ACKNOWLEDGEMENT_WINDOW = 256 * 1024;
+    private static final int SEND_TIME_INTERVAL = 16 * 1024;
+    private static final int MAX_SEND_TIMES = 1024;
+    private static final int PING_REQUEST = 6;
+    private static final int PING_RESPONSE = 7;
+
+    private final Socket socket;
+    private RtmpChunkStream chunks;
+    private OutputStream out;
+    private final Object writeLock = new Object();
+    private final Object statisticsLock = new Object();
+    private final ArrayDeque<long[]> sendTimes = new ArrayDeque<long[]>();
+    private Thread reader;
+    private volatile boolean closed;
+    private int transactionId;
+    private int streamId;
+    private long peerAcknowledgementWindow;
+    private long lastAcknowledged;
+    private long roundTripTimeNs = -1;
+
+    RtmpConnection(Socket socket) {
+        this.socket = socket;
+    }
+
+    void connect(String host, int port, int timeoutMs) throws IOException {
+        socket.connect(new InetSocketAddress(host, port), timeoutMs);
+        socket.setSoTimeout(timeoutMs);
+        socket.setTcpNoDelay(true);
+        out = new BufferedOutputStream(socket.getOutputStream(), CHUNK_SIZE + 64);
+        chunks = new RtmpChunkStream(new BufferedInputStream(socket.getInputStream()), out);
+        handshake();
+    }
+
+    private void handshake() throws IOException {
+        byte[] c1 = new byte[HANDSHAKE_SIZE];
+        new Random().nextBytes(c1);
+        for (int i = 0; i < 8; i++) {
+            c1[i] = 0;
+        }
+        out.write(3);
+        out.write(c1);
+        out.flush();
+
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        int version = in.readUnsignedByte();
+        if (version != 3) {
+            throw new IOException("Unsupported RTMP version " + version + ".");
+        }
+        byte[] s1 = new byte[HANDSHAKE_SIZE];
+        in.readFully(s1);
+        out.write(s1);
+        out.flush();
+        in.readFully(new byte[HANDSHAKE_SIZE]);
+    }
+
+    /**
+     * Connects to application and publishes live stream on it.
+     */
+    void publish(String application, String tcUrl, String streamName) throws IOException {
+        synchronized (writeLock) {
+            chunks.writeMessage(CONTROL_CHUNK_STREAM, RtmpMessage.SET_CHUNK_SIZE, 0, 0, int32(CHUNK_SIZE), 4);
+            chunks.setOutChunkSize(CHUNK_SIZE);
+            chunks.writeMessage(CONTROL_CHUNK_STREAM, RtmpMessage.WINDOW_ACKNOWLEDGEMENT_SIZE, 0, 0, int32(ACKNOWLEDGEMENT_WINDOW), 4);
+        }
+
+        Map<String, Object> properties = new LinkedHashMap<String, Object>();
+        properties.put("app", application);
+        properties.put("type", "nonprivate");
+        properties.put("flashVer", "FMLE/3.0 (compatible; m4m)");
+        properties.put("tcUrl", tcUrl);
+        long start = System.nanoTime();
+        expectResult(command(0, "connect", properties));
+        synchronized (statisticsLock) {
+            roundTripTimeNs = System.nanoTime() - start;
+        }
+
+        command(0, "releaseStream", null, streamName);
+        command(0, "FCPublish", null, streamName);
+        List<Object> result = expectResult(command(0, "createStream", (Object) null));
+        if (result.size() < 4 || !(result.get(3) instanceof Double)) {
+            throw new IOException("Server did not return a stream id.");
+        }
+        streamId = ((Double) result.get(3)).intValue();
+
+        command(streamId, "publish", null, streamName, "live");
+        while (true) {
+            List<Object> status = readCommand();
+            if ("onStatus".equals(status.get(0))) {
+                String code = statusCode(status);
+                if ("NetStream.Publish.Start".equals(code)) {
+                    break;
+                }
+                throw new IOException("Publishing " + streamName + " failed: " + code + ".");
+            }
+        }
+
+        startReader();
+    }
+
+    void unpublish(String streamName) throws IOException {
+        command(0, "FCUnpublish", null, streamName);
+        command(0, "deleteStream", null, (double) streamId);
+    }
+
+    void send(int chunkStreamId, int type, long timestamp, byte[] payload, int length) throws IOException {
+        synchronized (writeLock) {
+            chunks.writeMessage(chunkStreamId, type, streamId, timestamp, payload, length);
+        }
+        recordSendTime();
+    }
+
+    void flush() throws IOException {
+        synchronized (writeLock) {
+            chunks.flush();
+        }
+    }
+
+    long getBytesSent() {
+        synchronized (writeLock) {
+            return chunks.getBytesWritten();
+        }
+    }
+
+    /**
+     * @return Latest round trip time in milliseconds, or -1 if it was not measured yet.
+     */
+    long getRoundTripTimeMs() {
+        synchronized (statisticsLock) {
+            return roundTripTimeNs < 0 ? -1 : roundTripTimeNs / 1000000;
+        }
+    }
+
+    void close() {
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Socket is closed anyway.
+        }
+        if (reader != null && reader != Thread.currentThread()) {
+            try {
+                reader.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private int command(int messageStreamId, String name, Object... arguments) throws IOException {
+        int transaction = ++transactionId;
+        Amf0 amf = new Amf0().write(name).write((double) transaction);
+        for (Object argument : arguments) {
+            amf.write(argument);
+        }
+        byte[] payload = amf.toByteArray();
+        synchronized (writeLock) {
+            chunks.writeMessage(COMMAND_CHUNK_STREAM, RtmpMessage.COMMAND, messageStreamId, 0, payload, payload.length);
+            chunks.flush();
+        }
+        return transaction;
+    }
+
+    private List<Object> expectResult(int transaction) throws IOException {
+        while (true) {
+            List<Object> command = readCommand();
+            Object name = command.get(0);
+            if (("_result".equals(name) || "_error".equals(name)) && command.size() > 1
+                    && command.get(1) instanceof Double && ((Double) command.get(1)).intValue() == transaction) {
+                if ("_error".equals(name)) {
+                    throw new IOException("Command failed: " + statusCode(command) + ".");
+                }
+                return command;
+            }
+        }
+    }
+
+    private List<Object> readCommand() throws IOException {
+        while (true) {
+            RtmpMessage message = chunks.readMessage();
+            if (!handleControl(message) && message.type == RtmpMessage.COMMAND) {
+                List<Object> command = Amf0.read(message.payload, message.length);
+                if (!command.isEmpty()) {
+                    return command;
+                }
+            }
+        }
+    }
+
+    private boolean handleControl(RtmpMessage message) throws IOException {
+        switch (message.type) {
+            case RtmpMessage.SET_CHUNK_SIZE:
+                chunks.setInChunkSize(message.getInt(0) & 0x7fffffff);
+                break;
+            case RtmpMessage.WINDOW_ACKNOWLEDGEMENT_SIZE:
+                peerAcknowledgementWindow = message.getInt(0) & 0xffffffffL;
+                break;
+            case RtmpMessage.ACKNOWLEDGEMENT:
+                onAcknowledgement(message.getInt(0) & 0xffffffffL);
+                break;
+            case RtmpMessage.USER_CONTROL:
+                int event = ((message.payload[0] & 0xff) << 8) | (message.payload[1] & 0xff);
+                if (event == PING_REQUEST) {
+                    byte[] response = new byte[6];
+                    response[1] = PING_RESPONSE;
+                    System.arraycopy(message.payload, 2, response, 2, 4);
+                    synchronized (writeLock) {
+                        chunks.writeMessage(CONTROL_CHUNK_STREAM, RtmpMessage.USER_CONTROL, 0, 0, response, response.length);
+                        chunks.flush();
+                    }
+                }
+                break;
+            case RtmpMessage.SET_PEER_BANDWIDTH:
+                break;
+            default:
+                return false;
+        }
+
+        long received = chunks.getBytesRead();
+        if (peerAcknowledgementWindow > 0 && received - lastAcknowledged >= peerAcknowledgementWindow) {
+            lastAcknowledged = received;
+            synchronized (writeLock) {
+                chunks.writeMessage(CONTROL_CHUNK_STREAM, RtmpMessage.ACKNOWLEDGEMENT, 0, 0, int32((int) received), 4);
+                chunks.flush();
+            }
+        }
+        return true;
+    }
+
+    private void recordSendTime() {
+        long sent = getBytesSent();
+        synchronized (statisticsLock) {
+            long[] last = sendTimes.peekLast();
+            if (last == null || sent - last[0] >= SEND_TIME_INTERVAL) {
+                if (sendTimes.size() == MAX_SEND_TIMES) {
+                    sendTimes.poll();
+                }
+                sendTimes.add(new long[]{sent, System.nanoTime()});
+            }
+        }
+    }
+
+    /**
+     * Sequence number of acknowledgement is the low 32 bits of the number of bytes the peer received.
+     */
+    private void onAcknowledgement(long sequenceNumber) {
+        long sent = getBytesSent();
+        long acknowledged = sent - ((sent - sequenceNumber) & 0xffffffffL);
+        long now = System.nanoTime();
+        synchronized (statisticsLock) {
+            long[] newest = null;
+            while (!sendTimes.isEmpty() && sendTimes.peek()[0] <= acknowledged) {
+                newest = sendTimes.poll();
+            }
+            if (newest != null) {
+                roundTripTimeNs = now - newest[1];
+            }
+        }
+    }
+
+    private void startReader() throws IOException {
+        socket.setSoTimeout(0);
+        reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (!closed) {
+                        handleControl(chunks.readMessage());
+                    }
+                } catch (IOException e) {
+                    // Connection is closed, the sender notices on its next write.
+                }
+            }
+        }, "RtmpConnection");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private static String statusCode(List<Object> command) {
+        for (Object value : command) {
+            if (value instanceof Map) {
+                Object code = ((Map<?, ?>) value).get("code");
+                if (code != null) {
+                    return code.toString();
+                }
+            }
+        }
+        return "unknown";
+    }
+
+    private static byte[] int32(int value) {
+        return new byte[]{(byte) (value >> 24), (byte) (value >> 16), (byte) (value >> 8), (byte) value};
+    }
+}
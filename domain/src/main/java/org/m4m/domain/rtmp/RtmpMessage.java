@@ -0,0 +1,48 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.domain.rtmp;
+
+class RtmpMessage {
+    static final int SET_CHUNK_SIZE = 1;
+    static final int ACKNOWLEDGEMENT = 3;
+    static final int USER_CONTROL = 4;
+    static final int WINDOW_ACKNOWLEDGEMENT_SIZE = 5;
+    static final int SET_PEER_BANDWIDTH = 6;
+    static final int AUDIO = 8;
+    static final int VIDEO = 9;
+    static final int DATA = 18;
+    static final int COMMAND = 20;
+
+    final int type;
+    final int streamId;
+    final long timestamp;
+    final byte[] payload;
+    final int length;
+
+    RtmpMessage(int type, int streamId, long timestamp, byte[] payload, int length) {
+        this.type = type;
+        this.streamId = streamId;
+        this.timestamp = timestamp;
+        this.payload = payload;
+        this.length = length;
+    }
+
+    int getInt(int offset) {
+        return ((payload[offset] & 0xff) << 24) | ((payload[offset + 1] & 0xff) << 16)
+                | ((payload[offset + 2] & 0xff) << 8) | (payload[offset + 3] & 0xff);
+    }
+}
@@ -0,0 +1,544 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.domain.rtmp;
+
+import org.m4m.AudioFormat;
+import org.m4m.StreamingParameters;
+import org.m4m.VideoFormat;
+import org.m4m.domain.IMediaCodec;
+import org.m4m.domain.IMediaMuxer;
+import org.m4m.domain.MediaFormat;
+import org.m4m.domain.mp4.AvcConfiguration;
+import org.m4m.domain.rtmp.LiveSendQueue.Packet;
+
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Publishes AVC video and AAC audio as FLV tags over RTMP. Samples are packaged on the calling thread and
+ * put into a send queue; a sender thread connects and writes the queue to the socket, so network stalls
+ * never block the caller. When the uplink can not keep up the queue sheds video, see {@link LiveSendQueue}.
+ * A send blocked for longer than the write timeout fails the stream, which also bounds the queued audio.
+ */
+public class RtmpPublisher implements IMediaMuxer {
+    public static final long DEFAULT_SEND_QUEUE_BUDGET = 2 * 1024 * 1024;
+    public static final long DEFAULT_MAX_LATENCY_MS = 3000;
+    public static final int DEFAULT_WRITE_TIMEOUT_MS = 10000;
+    private static final int DEFAULT_PORT = 1935;
+    private static final int CONNECT_TIMEOUT_MS = 10000;
+    private static final int STOP_TIMEOUT_MS = 5000;
+    private static final long BITRATE_WINDOW_NS = 1000000000L;
+    private static final int KEY_FRAME_FLAG = 1;
+    private static final String AVC = "video/avc";
+    private static final String AAC = "audio/mp4a-latm";
+
+    private final StreamingParameters parameters;
+    private final long sendQueueBudget;
+    private final long maxLatencyMs;
+    private final List<Track> tracks = new ArrayList<Track>();
+    private final Object lock = new Object();
+    private final ArrayDeque<Packet> freePackets = new ArrayDeque<Packet>();
+    private final LiveSendQueue queue;
+    private final ArrayDeque<long[]> sentPackets = new ArrayDeque<long[]>();
+    private Thread sender;
+    private RtmpConnection connection;
+    private boolean stopping;
+    private IOException error;
+    private volatile int writeTimeoutMs = DEFAULT_WRITE_TIMEOUT_MS;
+    private long sendingSinceNs;
+    private long sentBytes;
+    private long firstTimeUs = -1;
+
+    public RtmpPublisher(StreamingParameters parameters) {
+        this(parameters, DEFAULT_SEND_QUEUE_BUDGET, DEFAULT_MAX_LATENCY_MS);
+    }
+
+    /**
+     * @param sendQueueBudget Maximum bytes of packaged video waiting to be sent.
+     * @param maxLatencyMs    Maximum time span of video waiting to be sent.
+     */
+    public RtmpPublisher(StreamingParameters parameters, long sendQueueBudget, long maxLatencyMs) {
+        this.parameters = parameters;
+        this.sendQueueBudget = sendQueueBudget;
+        this.maxLatencyMs = maxLatencyMs;
+        this.queue = new LiveSendQueue(sendQueueBudget, maxLatencyMs, freePackets);
+    }
+
+    @Override
+    public int addTrack(MediaFormat mediaFormat) {
+        if (sender != null) {
+            throw new IllegalStateException("Tracks can not be added after start.");
+        }
+        tracks.add(new Track(mediaFormat, parameters));
+        return tracks.size() - 1;
+    }
+
+    @Override
+    public void release() {
+        stop();
+    }
+
+    @Override
+    public void setOrientationHint(int degrees) {
+    }
+
+    @Override
+    public void start() {
+        if (sender != null) {
+            return;
+        }
+        sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    send();
+                } catch (IOException e) {
+                    fail(e);
+                } catch (RuntimeException e) {
+                    fail(new IOException("Streaming failed.", e));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    closeConnection();
+                }
+            }
+        }, "RtmpPublisher");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * Lets the sender flush queued packets for a limited time and closes the connection.
+     */
+    @Override
+    public void stop() {
+        Thread thread;
+        synchronized (lock) {
+            stopping = true;
+            thread = sender;
+            lock.notifyAll();
+        }
+        if (thread == null) {
+            return;
+        }
+
+        try {
+            thread.join(STOP_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closeConnection();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer byteBuf, IMediaCodec.BufferInfo bufferInfo) {
+        if (bufferInfo.size == 0 || (bufferInfo.flags & IMediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            return;
+        }
+        Track track = tracks.get(trackIndex);
+        if (!track.published) {
+            return;
+        }
+        boolean timedOut = false;
+        synchronized (lock) {
+            if (error == null && sendingSinceNs != 0 && System.nanoTime() - sendingSinceNs > writeTimeoutMs * 1000000L) {
+                error = new IOException("Sending to " + parameters.Host + " blocked for more than " + writeTimeoutMs + " ms.");
+                queue.clear();
+                timedOut = true;
+            }
+        }
+        if (timedOut) {
+            // Unblocks the sender, it exits on the failed write
+            closeConnection();
+        }
+        synchronized (lock) {
+            if (error != null) {
+                throw new RuntimeException("Streaming to " + parameters.Host + " failed.", error);
+            }
+        }
+
+        boolean keyFrame = (bufferInfo.flags & KEY_FRAME_FLAG) != 0;
+        ByteBuffer sample = byteBuf.duplicate();
+        sample.limit(bufferInfo.offset + bufferInfo.size);
+        sample.position(bufferInfo.offset);
+        long time = bufferInfo.presentationTimeUs;
+        if (firstTimeUs < 0) {
+            firstTimeUs = time;
+        }
+        long decodeTime = Math.max(track.lastDecodeTimeUs, time);
+        track.lastDecodeTimeUs = decodeTime;
+
+        Packet packet = track.video
+                ? videoPacket(sample, keyFrame, (int) ((time - decodeTime) / 1000))
+                : audioPacket(sample);
+        packet.timestamp = Math.max(0, (decodeTime - firstTimeUs) / 1000);
+        packet.type = track.video ? RtmpMessage.VIDEO : RtmpMessage.AUDIO;
+        packet.video = track.video;
+        packet.keyFrame = keyFrame;
+        packet.reference = !track.video || keyFrame || isReference(packet);
+
+        synchronized (lock) {
+            if (queue.offer(packet)) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    public long getSendQueueBudget() {
+        return sendQueueBudget;
+    }
+
+    public long getMaxLatencyMs() {
+        return maxLatencyMs;
+    }
+
+    /**
+     * Sets how long connecting or sending a single packet may block before the stream fails. The timeout is
+     * checked when samples are written.
+     *
+     * @param milliseconds Upper bound of a blocked socket operation.
+     */
+    public void setWriteTimeout(int milliseconds) {
+        this.writeTimeoutMs = milliseconds;
+    }
+
+    public int getWriteTimeout() {
+        return writeTimeoutMs;
+    }
+
+    public int getQueuedPacketCount() {
+        synchronized (lock) {
+            return queue.size();
+        }
+    }
+
+    public long getQueuedBytes() {
+        synchronized (lock) {
+            return queue.getBytes();
+        }
+    }
+
+    /**
+     * @return Number of video frames dropped to keep up with the uplink.
+     */
+    public long getDroppedPacketCount() {
+        synchronized (lock) {
+            return queue.getDropCount();
+        }
+    }
+
+    public long getDroppedPacketCount(DropReason reason) {
+        synchronized (lock) {
+            return queue.getDropCount(reason);
+        }
+    }
+
+    /**
+     * @return Bytes of FLV tags written to the socket.
+     */
+    public long getSentBytes() {
+        synchronized (lock) {
+            return sentBytes;
+        }
+    }
+
+    /**
+     * @return Bits per second written to the socket during the last second.
+     */
+    public long getBitrate() {
+        synchronized (lock) {
+            long now = System.nanoTime();
+            long bytes = 0;
+            for (long[] packet : sentPackets) {
+                if (now - packet[0] <= BITRATE_WINDOW_NS) {
+                    bytes += packet[1];
+                }
+            }
+            return bytes * 8 * 1000000000L / BITRATE_WINDOW_NS;
+        }
+    }
+
+    /**
+     * @return Latest round trip time to the server in milliseconds, or -1 if it was not measured yet.
+     */
+    public long getRoundTripTimeMs() {
+        synchronized (lock) {
+            return connection == null ? -1 : connection.getRoundTripTimeMs();
+        }
+    }
+
+    private void send() throws IOException, InterruptedException {
+        String application = parameters.ApplicationName;
+        int port = parameters.Port > 0 ? parameters.Port : DEFAULT_PORT;
+        String tcUrl = (parameters.Secure ? "rtmps://" : "rtmp://") + parameters.Host + ":" + port + "/" + application;
+
+        Socket socket = parameters.Secure ? SSLSocketFactory.getDefault().createSocket() : new Socket();
+        RtmpConnection rtmp = new RtmpConnection(socket);
+        synchronized (lock) {
+            if (stopping && queue.isEmpty()) {
+                return;
+            }
+            connection = rtmp;
+            sendingSinceNs = System.nanoTime();
+        }
+        rtmp.connect(parameters.Host, port, CONNECT_TIMEOUT_MS);
+        rtmp.publish(application, tcUrl, parameters.StreamName);
+
+        byte[] metadata = metadata();
+        rtmp.send(RtmpConnection.DATA_CHUNK_STREAM, RtmpMessage.DATA, 0, metadata, metadata.length);
+        for (Track track : tracks) {
+            if (track.published) {
+                byte[] header = track.sequenceHeader();
+                rtmp.send(track.video ? RtmpConnection.VIDEO_CHUNK_STREAM : RtmpConnection.AUDIO_CHUNK_STREAM,
+                        track.video ? RtmpMessage.VIDEO : RtmpMessage.AUDIO, 0, header, header.length);
+            }
+        }
+        rtmp.flush();
+
+        while (true) {
+            Packet packet;
+            synchronized (lock) {
+                sendingSinceNs = 0;
+                while (queue.isEmpty() && !stopping) {
+                    lock.wait();
+                }
+                packet = queue.poll();
+                if (packet != null) {
+                    sendingSinceNs = System.nanoTime();
+                }
+            }
+            if (packet == null) {
+                break;
+            }
+
+            rtmp.send(packet.type == RtmpMessage.VIDEO ? RtmpConnection.VIDEO_CHUNK_STREAM : RtmpConnection.AUDIO_CHUNK_STREAM,
+                    packet.type, packet.timestamp, packet.data, packet.length);
+            boolean drained;
+            synchronized (lock) {
+                sentBytes += packet.length;
+                long now = System.nanoTime();
+                sentPackets.add(new long[]{now, packet.length});
+                while (now - sentPackets.peek()[0] > BITRATE_WINDOW_NS) {
+                    sentPackets.poll();
+                }
+                freePackets.add(packet);
+                drained = queue.isEmpty();
+            }
+            if (drained) {
+                rtmp.flush();
+            }
+        }
+
+        rtmp.unpublish(parameters.StreamName);
+    }
+
+    private byte[] metadata() {
+        Map<String, Object> properties = new LinkedHashMap<String, Object>();
+        properties.put("duration", 0.0);
+        for (Track track : tracks) {
+            if (!track.published) {
+                continue;
+            }
+            if (track.video) {
+                VideoFormat format = (VideoFormat) track.format;
+                properties.put("width", (double) format.getVideoFrameSize().width());
+                properties.put("height", (double) format.getVideoFrameSize().height());
+                properties.put("videocodecid", 7.0);
+            } else {
+                AudioFormat format = (AudioFormat) track.format;
+                properties.put("audiocodecid", 10.0);
+                properties.put("audiosamplerate", (double) format.getAudioSampleRateInHz());
+                properties.put("audiosamplesize", 16.0);
+                properties.put("stereo", format.getAudioChannelCount() > 1);
+            }
+        }
+        return new Amf0().write("@setDataFrame").write("onMetaData").writeEcmaArray(properties).toByteArray();
+    }
+
+    /**
+     * AVC video tag: frame type and codec, packet type 1, composition time and length prefixed NAL units.
+     */
+    private Packet videoPacket(ByteBuffer sample, boolean keyFrame, int compositionTimeMs) {
+        int size = sample.remaining();
+        Packet packet = obtain(size + 5 + 4);
+        byte[] data = packet.data;
+        sample.get(data, 5, size);
+
+        if (AvcConfiguration.isAnnexB(data, 5, 5 + size)) {
+            List<int[]> units = AvcConfiguration.splitNalUnits(data, 5, 5 + size);
+            int length = 5;
+            for (int[] unit : units) {
+                length += 4 + unit[1] - unit[0];
+            }
+            Packet converted = obtain(length);
+            int at = 5;
+            for (int[] unit : units) {
+                int unitSize = unit[1] - unit[0];
+                putInt(converted.data, at, unitSize);
+                System.arraycopy(data, unit[0], converted.data, at + 4, unitSize);
+                at += 4 + unitSize;
+            }
+            release(packet);
+            packet = converted;
+            data = packet.data;
+            packet.length = length;
+        } else {
+            packet.length = size + 5;
+        }
+
+        data[0] = (byte) (keyFrame ? 0x17 : 0x27);
+        data[1] = 1;
+        data[2] = (byte) (compositionTimeMs >> 16);
+        data[3] = (byte) (compositionTimeMs >> 8);
+        data[4] = (byte) compositionTimeMs;
+        return packet;
+    }
+
+    private Packet audioPacket(ByteBuffer sample) {
+        int size = sample.remaining();
+        Packet packet = obtain(size + 2);
+        packet.data[0] = (byte) 0xaf;
+        packet.data[1] = 1;
+        sample.get(packet.data, 2, size);
+        packet.length = size + 2;
+        return packet;
+    }
+
+    private Packet obtain(int size) {
+        synchronized (lock) {
+            for (Packet free : freePackets) {
+                if (free.data.length >= size) {
+                    freePackets.remove(free);
+                    return free;
+                }
+            }
+        }
+        return new Packet(new byte[Math.max(size, 1024)]);
+    }
+
+    private void release(Packet packet) {
+        synchronized (lock) {
+            freePackets.add(packet);
+        }
+    }
+
+    private void fail(IOException e) {
+        synchronized (lock) {
+            if (error == null && !stopping) {
+                error = e;
+            }
+            queue.clear();
+        }
+    }
+
+    private void closeConnection() {
+        RtmpConnection rtmp;
+        synchronized (lock) {
+            rtmp = connection;
+        }
+        if (rtmp != null) {
+            rtmp.close();
+        }
+    }
+
+    /**
+     * A frame is non-reference when all its slices have nal_ref_idc 0. Unparsable frames count as reference.
+     */
+    private static boolean isReference(Packet packet) {
+        byte[] data = packet.data;
+        boolean slices = false;
+        int at = 5;
+        while (at + 4 < packet.length) {
+            int size = ((data[at] & 0xff) << 24) | ((data[at + 1] & 0xff) << 16) | ((data[at + 2] & 0xff) << 8) | (data[at + 3] & 0xff);
+            if (size <= 0 || size > packet.length - at - 4) {
+                return true;
+            }
+            int header = data[at + 4] & 0xff;
+            int type = header & 0x1f;
+            if (type >= 1 && type <= 5) {
+                if ((header & 0x60) != 0) {
+                    return true;
+                }
+                slices = true;
+            }
+            at += 4 + size;
+        }
+        return !slices;
+    }
+
+    private static void putInt(byte[] b, int at, int value) {
+        b[at] = (byte) (value >> 24);
+        b[at + 1] = (byte) (value >> 16);
+        b[at + 2] = (byte) (value >> 8);
+        b[at + 3] = (byte) value;
+    }
+
+    private static class Track {
+        final MediaFormat format;
+        final boolean video;
+        final boolean published;
+        long lastDecodeTimeUs = Long.MIN_VALUE;
+
+        Track(MediaFormat format, StreamingParameters parameters) {
+            this.format = format;
+            String mimeType = format.getMimeType();
+            if (AVC.equals(mimeType)) {
+                video = true;
+                published = parameters.isToPublishVideo;
+            } else if (AAC.equals(mimeType)) {
+                video = false;
+                published = parameters.isToPublishAudio;
+            } else {
+                throw new IllegalArgumentException("Unsupported track format " + mimeType + ".");
+            }
+        }
+
+        /**
+         * AVC decoder configuration record or AAC audio specific config with packet type 0.
+         */
+        byte[] sequenceHeader() {
+            byte[] config;
+            if (video) {
+                config = AvcConfiguration.decoderConfigurationRecord(format);
+            } else {
+                ByteBuffer csd = format.getByteBuffer("csd-0");
+                config = new byte[csd == null ? 0 : csd.remaining()];
+                if (csd != null) {
+                    csd.duplicate().get(config);
+                }
+            }
+
+            int headerSize = video ? 5 : 2;
+            byte[] header = new byte[headerSize + config.length];
+            header[0] = (byte) (video ? 0x17 : 0xaf);
+            System.arraycopy(config, 0, header, headerSize, config.length);
+            return header;
+        }
+    }
+}
@@ -23,8 +23,13 @@ import org.junit.Test;
 import java.nio.ByteBuffer;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.same;
 import static org.mockito.Mockito.*;
 
 public class AudioEffectorTest extends TestBase {
@@ -70,4 +75,74 @@ public class AudioEffectorTest extends TestBase {
     public void getFrameReturnsNullUntilFindFreeFrameIsCalled() {
         assertEquals(null, effector.getFrame());
     }
+
+    @Test
+    public void inPlaceProcessing_AppliesEffectToBorrowedBuffer() {
+        IAudioEffect effect = mock(IAudioEffect.class);
+        effector.getAudioEffects().add(effect);
+        effector.setInPlaceProcessing(true);
+        effector.start();
+        Frame decoderFrame = create.frame().withTimeStamp(10).withInputBufferIndex(2).construct();
+
+        effector.pushBorrowed(decoderFrame, mock(IPluginOutput.class));
+
+        verify(effect).applyEffect(same(decoderFrame.getByteBuffer()), eq(10l));
+        assertSame(decoderFrame, effector.getFrame());
+    }
+
+    @Test
+    public void inPlaceProcessing_ReturnsBufferToOwnerWhenOutputConsumed() {
+        IPluginOutput decoder = mock(IPluginOutput.class);
+        effector.setInPlaceProcessing(true);
+        effector.start();
+
+        effector.pushBorrowed(create.frame().withInputBufferIndex(2).construct(), decoder);
+        verify(decoder, never()).releaseOutputBuffer(anyInt());
+
+        effector.releaseOutputBuffer(effector.getFrame().getBufferIndex());
+        verify(decoder).releaseOutputBuffer(2);
+    }
+
+    @Test
+    public void inPlaceProcessing_KeepsBorrowedBufferWhenDecoderHasNoOutput() {
+        IPluginOutput decoder = mock(IPluginOutput.class);
+        effector.setInPlaceProcessing(true);
+        effector.start();
+
+        effector.pushBorrowed(create.frame().withInputBufferIndex(0).construct(), decoder);
+        effector.pushBorrowed(Frame.empty(), decoder);
+        verify(decoder, never()).releaseOutputBuffer(anyInt());
+
+        effector.releaseOutputBuffer(effector.getFrame().getBufferIndex());
+        verify(decoder, times(1)).releaseOutputBuffer(0);
+    }
+
+    @Test
+    public void inPlaceProcessing_ReturnsZeroSizeBufferToOwnerImmediately() {
+        IPluginOutput decoder = mock(IPluginOutput.class);
+        effector.setInPlaceProcessing(true);
+        effector.start();
+
+        effector.pushBorrowed(create.frame().withInputBufferIndex(0).construct(), decoder);
+        effector.pushBorrowed(create.frame().withLength(0).withInputBufferIndex(1).construct(), decoder);
+
+        verify(decoder).releaseOutputBuffer(1);
+        verify(decoder, never()).releaseOutputBuffer(0);
+    }
+
+    @Test
+    public void inPlaceProcessing_HoldsAtMostThreeBorrowedFrames() {
+        IPluginOutput decoder = mock(IPluginOutput.class);
+        effector.setInPlaceProcessing(true);
+        effector.start();
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue(effector.canBorrowFrame());
+            effector.pushBorrowed(create.frame().withTimeStamp(i).withInputBufferIndex(i).construct(), decoder);
+        }
+        assertFalse(effector.canBorrowFrame());
+
+        effector.getFrame();
+        assertTrue(effector.canBorrowFrame());
+    }
 }
\ No newline at end of file
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.domain;
+
+import org.m4m.MediaFile;
+import org.m4m.domain.mp4.Mp4Extractor;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ChunkPlannerTest extends TestBase {
+    private final List<MediaSource> sources = new ArrayList<MediaSource>();
+
+    @After
+    public void release() throws IOException {
+        for (MediaSource source : sources) {
+            source.close();
+        }
+    }
+
+    @Test
+    public void chunksStartOnKeyFrames() throws IOException {
+        MediaFile file = mediaFile();
+
+        List<Pair<Long, Long>> chunks = new ChunkPlanner(3).plan(file);
+
+        long duration = file.getDurationInMicroSec();
+        assertEquals(Arrays.asList(
+                new Pair<Long, Long>(0L, 333332L),
+                new Pair<Long, Long>(333333L, 666665L),
+                new Pair<Long, Long>(666666L, duration)), chunks);
+    }
+
+    @Test
+    public void splitPointIsMovedBackToKeyFrame() throws IOException {
+        List<Pair<Long, Long>> chunks = new ChunkPlanner(2).plan(mediaFile());
+
+        assertEquals(new Pair<Long, Long>(0L, 333332L), chunks.get(0));
+        assertEquals(333333L, (long) chunks.get(1).left);
+    }
+
+    @Test
+    public void chunksCoverOnlySegment() throws IOException {
+        MediaFile file = mediaFile(new Pair<Long, Long>(100000L, 900000L));
+
+        List<Pair<Long, Long>> chunks = new ChunkPlanner(4).plan(file);
+
+        assertEquals(Arrays.asList(
+                new Pair<Long, Long>(100000L, 333332L),
+                new Pair<Long, Long>(333333L, 666665L),
+                new Pair<Long, Long>(666666L, 900000L)), chunks);
+    }
+
+    @Test
+    public void segmentWithoutInnerKeyFrameIsNotSplit() throws IOException {
+        MediaFile file = mediaFile(new Pair<Long, Long>(400000L, 600000L));
+
+        List<Pair<Long, Long>> chunks = new ChunkPlanner(2).plan(file);
+
+        assertEquals(Arrays.asList(new Pair<Long, Long>(400000L, 600000L)), chunks);
+    }
+
+    @Test
+    public void fileWithSeveralSegmentsIsNotSplit() throws IOException {
+        MediaFile file = mediaFile(new Pair<Long, Long>(0L, 300000L), new Pair<Long, Long>(400000L, 900000L));
+
+        assertNull(new ChunkPlanner(2).plan(file));
+    }
+
+    private MediaFile mediaFile(Pair<Long, Long>... segments) throws IOException {
+        MediaSource source = new MediaSource(new Mp4Extractor(create.mp4File().withVideoSamples(30, 10).withAudioSamples(28).construct().getPath()));
+        sources.add(source);
+        MediaFile file = new MediaFile(source);
+        for (Pair<Long, Long> segment : segments) {
+            file.addSegment(segment);
+        }
+        return file;
+    }
+}
@@ -18,6 +18,11 @@ package org.m4m.domain;
 
 import org.junit.Test;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import static org.junit.Assert.*;
 
 public class CommandQueueTest extends TestBase {
@@ -65,4 +70,83 @@ public class CommandQueueTest extends TestBase {
 
         assertEquals(queueSpecification.satisfiedBy(outputQueue.first(), inputQueue.first()),false);
     }
+
+    @Test
+    public void keepsOrderWhenGrowingAfterWrapAround() {
+        CommandQueue commandQueue = new CommandQueue();
+        for (int i = 0; i < 5; i++) {
+            commandQueue.queue(Command.HasData, i);
+        }
+        for (int i = 0; i < 3; i++) {
+            commandQueue.dequeue();
+        }
+        for (int i = 5; i < 20; i++) {
+            commandQueue.queue(Command.NeedData, i);
+        }
+
+        assertEquals(17, commandQueue.size());
+        assertEquals(new Pair<Command, Integer>(Command.HasData, 3), commandQueue.first());
+        assertEquals(new Pair<Command, Integer>(Command.NeedData, 19), commandQueue.last());
+        for (int i = 3; i < 20; i++) {
+            assertEquals(Integer.valueOf(i), commandQueue.dequeue().right);
+        }
+        assertNull(commandQueue.dequeue());
+    }
+
+    @Test
+    public void iteratesInQueueOrder() {
+        CommandQueue commandQueue = new CommandQueue();
+        commandQueue.queue(Command.HasData, 0);
+        commandQueue.queue(Command.EndOfFile, 1);
+        commandQueue.queue(Command.NeedData, 1000);
+
+        List<Pair<Command, Integer>> actual = new ArrayList<Pair<Command, Integer>>();
+        for (Pair<Command, Integer> command : new CommandQueue(commandQueue)) {
+            actual.add(command);
+        }
+
+        assertEquals(Arrays.asList(
+                new Pair<Command, Integer>(Command.HasData, 0),
+                new Pair<Command, Integer>(Command.EndOfFile, 1),
+                new Pair<Command, Integer>(Command.NeedData, 1000)), actual);
+    }
+
+    @Test
+    public void givesPrimitiveViewOfFirstCommand() {
+        CommandQueue commandQueue = new CommandQueue();
+        assertNull(commandQueue.firstCommand());
+
+        commandQueue.queue(Command.OutputFormatChanged, -1);
+
+        assertEquals(Command.OutputFormatChanged, commandQueue.firstCommand());
+        assertEquals(-1, commandQueue.firstTrackId());
+        commandQueue.remove();
+        assertTrue(commandQueue.isEmpty());
+    }
+
+    @Test
+    public void doesNotAllocatePerFrame() {
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        CommandQueue outputQueue = new CommandQueue();
+        CommandQueue inputQueue = new CommandQueue();
+        long threadId = Thread.currentThread().getId();
+
+        transferFrames(outputQueue, inputQueue, 10000);
+        long before = threadMXBean.getThreadAllocatedBytes(threadId);
+        int frames = 100000;
+        transferFrames(outputQueue, inputQueue, frames);
+        long allocatedPerFrame = (threadMXBean.getThreadAllocatedBytes(threadId) - before) / frames;
+
+        assertEquals(0, allocatedPerFrame);
+    }
+
+    private void transferFrames(CommandQueue outputQueue, CommandQueue inputQueue, int frames) {
+        for (int i = 0; i < frames; i++) {
+            outputQueue.queue(Command.HasData, 1);
+            inputQueue.queue(Command.NeedData, 1);
+            assertSame(outputQueue.first().right, inputQueue.first().right);
+            outputQueue.dequeue();
+            inputQueue.dequeue();
+        }
+    }
 }
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.domain;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class FramePoolTest {
+    @Test
+    public void reusesReleasedFrame() {
+        FramePool pool = new FramePool();
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        Frame frame = pool.acquire(buffer, 1, 2, 3, 4, 5);
+        frame.toSkipFrame(true);
+        pool.release(frame);
+
+        Frame reused = pool.acquire(buffer, 6, 7, 8, 9, 10);
+
+        assertSame(frame, reused);
+        assertEquals(6, reused.getLength());
+        assertEquals(7, reused.getSampleTime());
+        assertEquals(8, reused.getBufferIndex());
+        assertEquals(9, reused.getFlags());
+        assertEquals(10, reused.getTrackId());
+        assertFalse(reused.isSkipFrame());
+        assertEquals(1, pool.getCreatedFrames());
+    }
+
+    @Test
+    public void doesNotPoolSharedFrames() {
+        FramePool pool = new FramePool();
+        pool.release(Frame.EOF());
+        pool.release(Frame.empty());
+
+        Frame frame = pool.acquire(null, 0, 0, 0, 0, 0);
+
+        assertFalse(frame == Frame.EOF() || frame == Frame.empty());
+        assertEquals(1, pool.getCreatedFrames());
+    }
+
+    @Test
+    public void reusesReleasedBufferInfoCleared() {
+        FramePool pool = new FramePool();
+        IMediaCodec.BufferInfo bufferInfo = pool.acquireBufferInfo();
+        bufferInfo.size = 10;
+        bufferInfo.flags = IMediaCodec.BUFFER_FLAG_END_OF_STREAM;
+        pool.release(bufferInfo);
+
+        IMediaCodec.BufferInfo reused = pool.acquireBufferInfo();
+
+        assertSame(bufferInfo, reused);
+        assertEquals(0, reused.size);
+        assertEquals(0, reused.flags);
+        assertEquals(1, pool.getCreatedBufferInfos());
+    }
+
+    @Test
+    public void releasedFrameDropsBuffer() {
+        FramePool pool = new FramePool();
+        Frame frame = pool.acquire(ByteBuffer.allocate(4), 0, 0, 0, 0, 0);
+        pool.release(frame);
+
+        assertNull(frame.getByteBuffer());
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.domain;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class InterleavingMediaMuxerTest extends TestBase {
+    private final RecordingMuxer recorder = new RecordingMuxer();
+    private final InterleavingMediaMuxer muxer = new InterleavingMediaMuxer(recorder, 100);
+
+    @Test
+    public void mergesTracksByTimeWithinWindow() {
+        startTracks(2);
+
+        write(0, 0);
+        write(0, 50);
+        write(1, 20);
+        write(0, 100);
+        write(1, 120);
+        write(0, 150);
+        write(1, 220);
+        muxer.stop();
+
+        assertEquals("0:0 1:20 0:50 0:100 1:120 0:150 1:220", recorder.toString());
+        assertEquals(0, muxer.getLateSampleCount());
+    }
+
+    @Test
+    public void keepsDecodeOrderWithinTrack() {
+        startTracks(1);
+
+        write(0, 0);
+        write(0, 66);
+        write(0, 33);
+        write(0, 133);
+        write(0, 100);
+        muxer.stop();
+
+        assertEquals("0:0 0:66 0:33 0:133 0:100", recorder.toString());
+    }
+
+    @Test
+    public void writesLateSamplesAndCountsThem() {
+        startTracks(2);
+
+        write(0, 0);
+        write(0, 200);
+        write(0, 400);
+        write(1, 10);
+        muxer.stop();
+
+        assertEquals("0:0 0:200 1:10 0:400", recorder.toString());
+        assertEquals(1, muxer.getLateSampleCount());
+    }
+
+    @Test
+    public void supportsMoreThanTwoTracks() {
+        startTracks(3);
+
+        write(2, 30);
+        write(1, 20);
+        write(0, 10);
+        write(2, 300);
+        muxer.stop();
+
+        assertEquals("0:10 1:20 2:30 2:300", recorder.toString());
+        assertEquals(4, muxer.getMaxReorderDepth());
+        assertEquals(0, muxer.getBufferedSampleCount());
+    }
+
+    @Test
+    public void copiesSampleData() {
+        startTracks(1);
+
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[]{1, 2, 3, 4});
+        IMediaCodec.BufferInfo bufferInfo = new IMediaCodec.BufferInfo();
+        bufferInfo.offset = 1;
+        bufferInfo.size = 2;
+        muxer.writeSampleData(0, buffer, bufferInfo);
+        buffer.put(1, (byte) 0);
+        muxer.stop();
+
+        assertEquals(2, recorder.data.get(0).length);
+        assertEquals(2, recorder.data.get(0)[0]);
+        assertEquals(3, recorder.data.get(0)[1]);
+    }
+
+    private void startTracks(int count) {
+        for (int i = 0; i < count; i++) {
+            muxer.addTrack(create.videoFormat().construct());
+        }
+        muxer.start();
+    }
+
+    private void write(int track, long time) {
+        IMediaCodec.BufferInfo bufferInfo = new IMediaCodec.BufferInfo();
+        bufferInfo.size = 1;
+        bufferInfo.presentationTimeUs = time;
+        muxer.writeSampleData(track, ByteBuffer.wrap(new byte[]{(byte) track}), bufferInfo);
+    }
+
+    private static class RecordingMuxer implements IMediaMuxer {
+        private final StringBuilder samples = new StringBuilder();
+        private final List<byte[]> data = new ArrayList<byte[]>();
+        private int tracks;
+
+        @Override
+        public int addTrack(MediaFormat mediaFormat) {
+            return tracks++;
+        }
+
+        @Override
+        public void release() {
+        }
+
+        @Override
+        public void setOrientationHint(int degrees) {
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public void writeSampleData(int trackIndex, ByteBuffer byteBuf, IMediaCodec.BufferInfo bufferInfo) {
+            if (samples.length() > 0) {
+                samples.append(' ');
+            }
+            samples.append(trackIndex).append(':').append(bufferInfo.presentationTimeUs);
+            byte[] bytes = new byte[bufferInfo.size];
+            ByteBuffer sample = byteBuf.duplicate();
+            sample.position(bufferInfo.offset);
+            sample.get(bytes);
+            data.add(bytes);
+        }
+
+        @Override
+        public String toString() {
+            return samples.toString();
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.m4m.domain;
+
+import org.m4m.MediaFile;
+import org.m4m.Uri;
+import org.m4m.domain.mp4.Mp4Extractor;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Joins short clips and records when every extractor is seeked and when it runs out of samples. With the next
+ * file prepared in background the seek of the next clip happens while the current clip is still being pulled.
+ */
+public class MultipleMediaSourcePrepareNextFileTest extends TestBase {
+    private static final int CLIPS = 3;
+    private static final int FRAMES_PER_CLIP = 10;
+
+    private final List<MultipleMediaSource> sources = new ArrayList<MultipleMediaSource>();
+    private final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+    private final List<CountDownLatch> seeks = new ArrayList<CountDownLatch>();
+    private boolean awaitNextSeek;
+
+    @After
+    public void release() throws IOException {
+        for (MultipleMediaSource source : sources) {
+            source.close();
+        }
+    }
+
+    @Test
+    public void seeksNextFileAfterEndOfCurrentFileByDefault() throws IOException {
+        join(false);
+
+        for (int clip = 0; clip < CLIPS - 1; clip++) {
+            assertTrue(events.indexOf("eos " + clip) < events.indexOf("seek " + (clip + 1)));
+        }
+    }
+
+    @Test
+    public void seeksNextFileBeforeEndOfCurrentFileWhenPrepared() throws IOException {
+        awaitNextSeek = true;
+        join(true);
+
+        for (int clip = 0; clip < CLIPS - 1; clip++) {
+            assertTrue(events.indexOf("seek " + (clip + 1)) < events.indexOf("eos " + clip));
+        }
+    }
+
+    private void join(boolean prepareNextFile) throws IOException {
+        File file = create.mp4File().withVideoSamples(FRAMES_PER_CLIP, FRAMES_PER_CLIP).withVideoSampleSize(40).construct();
+
+        MultipleMediaSource source = new MultipleMediaSource();
+        sources.add(source);
+        for (int clip = 0; clip < CLIPS; clip++) {
+            seeks.add(new CountDownLatch(1));
+            source.add(new MediaFile(new MediaSource(new RecordingExtractor(new Mp4Extractor(file.getPath()), clip))));
+        }
+        source.setPrepareNextFile(prepareNextFile);
+        source.selectTrack(0);
+        source.incrementConnectedPluginsCount();
+        source.start();
+
+        Frame frame = create.frame().withBuffer(new int[200]).construct();
+        int frames = 0;
+        while (true) {
+            Command command = source.getOutputCommandQueue().dequeue().left;
+            if (command == Command.HasData) {
+                source.pull(frame);
+                frames++;
+            } else if (command == Command.OutputFormatChanged) {
+                source.nextFile();
+            } else {
+                break;
+            }
+        }
+
+        assertEquals(CLIPS * FRAMES_PER_CLIP, frames);
+    }
+
+    private class RecordingExtractor implements IMediaExtractor {
+        private final IMediaExtractor extractor;
+        private final int clip;
+
+        RecordingExtractor(IMediaExtractor extractor, int clip) {
+            this.extractor = extractor;
+            this.clip = clip;
+        }
+
+        @Override
+        public void seekTo(long timeUs, int mode) {
+            extractor.seekTo(timeUs, mode);
+            events.add("seek " + clip);
+            seeks.get(clip).countDown();
+        }
+
+        @Override
+        public int readSampleData(ByteBuffer inputBuffer) {
+            return extractor.readSampleData(inputBuffer);
+        }
+
+        @Override
+        public MediaFormat getTrackFormat(int i) {
+            return extractor.getTrackFormat(i);
+        }
+
+        @Override
+        public long getSampleTime() {
+            return extractor.getSampleTime();
+        }
+
+        @Override
+        public boolean advance() {
+            boolean hasSample = extractor.advance();
+            if (!hasSample) {
+                if (awaitNextSeek && clip + 1 < CLIPS) {
+                    try {
+                        assertTrue(seeks.get(clip + 1).await(10, TimeUnit.SECONDS));
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                events.add("eos " + clip);
+            }
+            return hasSample;
+        }
+
+        @Override
+        public int getTrackCount() {
+            return extractor.getTrackCount();
+        }
+
+        @Override
+        public void selectTrack(int index) {
+            extractor.selectTrack(index);
+        }
+
+        @Override
+        public void unselectTrack(int index) {
+            extractor.unselectTrack(index);
+        }
+
+        @Override
+        public int getSampleTrackIndex() {
+            return extractor.getSampleTrackIndex();
+        }
+
+        @Override
+        public void release() {
+            extractor.release();
+        }
+
+        @Override
+        public int getSampleFlags() {
+            return extractor.getSampleFlags();
+        }
+
+        @Override
+        public int getRotation() {
+            return extractor.getRotation();
+        }
+
+        @Override
+        public String getFilePath() {
+            return extractor.getFilePath();
+        }
+
+        @Override
+        public FileDescriptor getFileDescriptor() {
+            return extractor.getFileDescriptor();
+        }
+
+        @Override
+        public Uri getUri() {
+            return extractor.getUri();
+        }
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.domain;
+
+import org.m4m.AudioFormat;
+import org.m4m.MediaFile;
+import org.m4m.VideoFormat;
+import org.m4m.domain.dsl.VideoFormatFake;
+import org.m4m.domain.mp4.Mp4Extractor;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ParallelJoinTest extends TestBase {
+    private final List<ElementaryStreamMuxer> muxers = new ArrayList<ElementaryStreamMuxer>();
+    private final List<IMediaExtractor> extractors = new ArrayList<IMediaExtractor>();
+
+    @After
+    public void release() {
+        for (IMediaExtractor extractor : extractors) {
+            extractor.release();
+        }
+        for (ElementaryStreamMuxer muxer : muxers) {
+            muxer.getFile().delete();
+        }
+    }
+
+    @Test
+    public void concurrencyIsLimitedByCodecBudget() {
+        VideoFormat videoFormat = create.videoFormat().construct();
+        AudioFormat audioFormat = create.audioFormat().construct();
+
+        assertEquals(1, new ParallelJoin(null, videoFormat, audioFormat, 4, 6).getConcurrency());
+        assertEquals(4, new ParallelJoin(null, videoFormat, audioFormat, 4, 16).getConcurrency());
+        assertEquals(3, new ParallelJoin(null, videoFormat, null, 4, 6).getConcurrency());
+        assertEquals(1, new ParallelJoin(null, videoFormat, audioFormat, 4, 0).getConcurrency());
+    }
+
+    @Test
+    public void intermediateStreamReadsBackWrittenSamples() throws IOException {
+        File file = create.mp4File().withVideoSamples(30, 10).withAudioSamples(28).construct();
+        ElementaryStreamExtractor extractor = open(transcode(file));
+        Mp4Extractor original = new Mp4Extractor(file.getPath());
+        extractors.add(original);
+
+        for (int i = 0; i < original.getTrackCount(); i++) {
+            original.selectTrack(i);
+            extractor.selectTrack(i);
+            assertEquals(original.getTrackFormat(i).getMimeType(), extractor.getTrackFormat(i).getMimeType());
+        }
+
+        ByteBuffer expected = ByteBuffer.allocate(64 * 1024);
+        ByteBuffer actual = ByteBuffer.allocate(64 * 1024);
+        int samples = 0;
+        long lastVideoTime = 0;
+        do {
+            assertEquals(original.getSampleTrackIndex(), extractor.getSampleTrackIndex());
+            assertEquals(original.getSampleTime(), extractor.getSampleTime());
+            assertEquals(original.getSampleFlags(), extractor.getSampleFlags());
+            assertEquals(original.readSampleData(expected), extractor.readSampleData(actual));
+            assertArrayEquals(bytes(expected), bytes(actual));
+            if (extractor.getTrackFormat(extractor.getSampleTrackIndex()) instanceof VideoFormat) {
+                lastVideoTime = extractor.getSampleTime();
+            }
+            samples++;
+        } while (original.advance() & extractor.advance());
+
+        assertEquals(-1, original.getSampleTrackIndex());
+        assertEquals(-1, extractor.getSampleTrackIndex());
+        assertEquals(30 + 28, samples);
+        assertTrue(extractor.getTrackFormat(0).getDuration() > lastVideoTime);
+    }
+
+    @Test
+    public void seekPositionsVideoAtKeyFrame() throws IOException {
+        ElementaryStreamExtractor extractor = open(transcode(create.mp4File().withVideoSamples(30, 10).construct()));
+        extractor.selectTrack(0);
+
+        extractor.seekTo(400000, IMediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        assertEquals(333333, extractor.getSampleTime());
+
+        extractor.seekTo(400000, IMediaExtractor.SEEK_TO_NEXT_SYNC);
+        assertEquals(666666, extractor.getSampleTime());
+
+        extractor.seekTo(400000, IMediaExtractor.SEEK_TO_CLOSEST_SYNC);
+        assertEquals(333333, extractor.getSampleTime());
+    }
+
+    @Test
+    public void joinedIntermediateStreamsHaveIncreasingTimeStamps() throws IOException {
+        File file = create.mp4File().withVideoSamples(30, 10).construct();
+        MultipleMediaSource joined = new MultipleMediaSource();
+        for (int i = 0; i < 3; i++) {
+            joined.add(new MediaFile(new MediaSource(transcode(file).createExtractor())));
+        }
+        joined.selectTrack(0);
+        joined.incrementConnectedPluginsCount();
+        joined.start();
+
+        Frame frame = create.frame().withBuffer(new int[200]).construct();
+        int frames = 0;
+        long lastTime = -1;
+        try {
+            while (true) {
+                Command command = joined.getOutputCommandQueue().dequeue().left;
+                if (command == Command.HasData) {
+                    joined.pull(frame);
+                    assertTrue(frame.getSampleTime() > lastTime);
+                    lastTime = frame.getSampleTime();
+                    frames++;
+                } else if (command == Command.OutputFormatChanged) {
+                    joined.nextFile();
+                } else {
+                    break;
+                }
+            }
+        } finally {
+            joined.close();
+        }
+
+        assertEquals(3 * 30, frames);
+        assertTrue(lastTime >= 2 * 30 * 33333);
+    }
+
+    @Test
+    public void chunksAreStitchedWithShiftedTimeStamps() throws IOException {
+        File file = create.mp4File().withVideoSamples(30, 10).withAudioSamples(28).construct();
+        List<ElementaryStreamMuxer> chunks = Arrays.asList(transcode(file), transcode(file));
+        ElementaryStreamExtractor extractor = ElementaryStreamMuxer.concat(chunks, new long[]{0, 1000000});
+        extractors.add(extractor);
+        extractor.selectTrack(0);
+        extractor.selectTrack(1);
+
+        int samples = 0;
+        long lastVideoTime = -1;
+        do {
+            if (extractor.getSampleTrackIndex() == 0) {
+                assertTrue(extractor.getSampleTime() > lastVideoTime);
+                lastVideoTime = extractor.getSampleTime();
+            }
+            samples++;
+        } while (extractor.advance());
+
+        assertEquals(2 * (30 + 28), samples);
+        assertEquals(1000000 + 29 * 1000000 / 30, lastVideoTime);
+        assertTrue(extractor.getTrackFormat(0).getDuration() > lastVideoTime);
+
+        extractor.seekTo(1000000, IMediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        assertEquals(1000000, extractor.getSampleTime());
+        assertEquals(ElementaryStreamExtractor.SAMPLE_FLAG_SYNC, extractor.getSampleFlags());
+    }
+
+    @Test
+    public void audioEncodedInOnePieceIsInterleavedWithVideoChunks() throws IOException {
+        File file = create.mp4File().withVideoSamples(60, 10).withAudioSamples(86).construct();
+        List<ElementaryStreamMuxer> chunks = Arrays.asList(encode(file, 0, 0, 1000000), encode(file, 0, 1000000, 2000000));
+        ElementaryStreamExtractor extractor = ElementaryStreamMuxer.concat(chunks, new long[]{0, 1000000}, encode(file, 1, 0, 2000000));
+        extractors.add(extractor);
+        Mp4Extractor original = new Mp4Extractor(file.getPath());
+        extractors.add(original);
+        original.selectTrack(1);
+        extractor.selectTrack(0);
+        extractor.selectTrack(1);
+
+        int videoSamples = 0;
+        long lastTime = -1;
+        do {
+            assertTrue(extractor.getSampleTime() >= lastTime);
+            lastTime = extractor.getSampleTime();
+            if (extractor.getSampleTrackIndex() == 0) {
+                videoSamples++;
+            } else {
+                assertEquals(original.getSampleTime(), extractor.getSampleTime());
+                original.advance();
+            }
+        } while (extractor.advance());
+
+        assertEquals(60, videoSamples);
+        assertEquals(-1, original.getSampleTrackIndex());
+    }
+
+    @Test
+    public void streamsWithSameCodecConfigAreCompatible() {
+        ElementaryStreamMuxer.checkCompatible(Arrays.asList(
+                encoded(formatWithConfig(new byte[]{0x67, 1})),
+                encoded(formatWithConfig(new byte[]{0x67, 1}))));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void streamsWithDifferentCodecConfigCanNotBeCopiedIntoOneTrack() {
+        ElementaryStreamMuxer.checkCompatible(Arrays.asList(
+                encoded(formatWithConfig(new byte[]{0x67, 1})),
+                encoded(formatWithConfig(new byte[]{0x67, 2}))));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void chunksWithDifferentCodecConfigAreNotStitched() throws IOException {
+        ElementaryStreamMuxer.concat(Arrays.asList(
+                encoded(formatWithConfig(new byte[]{0x67, 1})),
+                encoded(formatWithConfig(null))), new long[]{0, 1000000});
+    }
+
+    private ElementaryStreamMuxer encoded(MediaFormat format) {
+        ElementaryStreamMuxer muxer = new ElementaryStreamMuxer(new File("unused.es"));
+        muxer.addTrack(format);
+        return muxer;
+    }
+
+    private static MediaFormat formatWithConfig(final byte[] csd) {
+        return new VideoFormatFake() {
+            @Override
+            public ByteBuffer getByteBuffer(String key) {
+                return "csd-0".equals(key) && csd != null ? ByteBuffer.wrap(csd) : null;
+            }
+        };
+    }
+
+    /**
+     * Writes samples as a file pipeline would, with a codec config buffer ahead of the first frame.
+     */
+    private ElementaryStreamMuxer transcode(File file) throws IOException {
+        ElementaryStreamMuxer muxer = new ElementaryStreamMuxer(File.createTempFile("join", ".es"));
+        muxers.add(muxer);
+        Mp4Extractor extractor = new Mp4Extractor(file.getPath());
+        extractors.add(extractor);
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            muxer.addTrack(extractor.getTrackFormat(i));
+            extractor.selectTrack(i);
+        }
+        muxer.start();
+
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        IMediaCodec.BufferInfo bufferInfo = new IMediaCodec.BufferInfo();
+        bufferInfo.size = 4;
+        bufferInfo.flags = IMediaCodec.BUFFER_FLAG_CODEC_CONFIG;
+        muxer.writeSampleData(0, buffer, bufferInfo);
+
+        while (extractor.getSampleTrackIndex() >= 0) {
+            bufferInfo.size = extractor.readSampleData(buffer);
+            bufferInfo.presentationTimeUs = extractor.getSampleTime();
+            bufferInfo.flags = extractor.getSampleFlags();
+            muxer.writeSampleData(extractor.getSampleTrackIndex(), buffer, bufferInfo);
+            extractor.advance();
+        }
+        muxer.stop();
+        return muxer;
+    }
+
+    /**
+     * Writes samples of one track within a time range, as a pipeline transcoding a segment of the file would.
+     */
+    private ElementaryStreamMuxer encode(File file, int track, long fromUs, long toUs) throws IOException {
+        ElementaryStreamMuxer muxer = new ElementaryStreamMuxer(File.createTempFile("join", ".es"));
+        muxers.add(muxer);
+        Mp4Extractor extractor = new Mp4Extractor(file.getPath());
+        extractors.add(extractor);
+        muxer.addTrack(extractor.getTrackFormat(track));
+        extractor.selectTrack(track);
+        muxer.start();
+
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        IMediaCodec.BufferInfo bufferInfo = new IMediaCodec.BufferInfo();
+        for (; extractor.getSampleTrackIndex() >= 0; extractor.advance()) {
+            if (extractor.getSampleTime() < fromUs || extractor.getSampleTime() >= toUs) {
+                continue;
+            }
+            bufferInfo.size = extractor.readSampleData(buffer);
+            bufferInfo.presentationTimeUs = extractor.getSampleTime() - fromUs;
+            bufferInfo.flags = extractor.getSampleFlags();
+            muxer.writeSampleData(0, buffer, bufferInfo);
+        }
+        muxer.stop();
+        return muxer;
+    }
+
+    private ElementaryStreamExtractor open(ElementaryStreamMuxer muxer) throws IOException {
+        ElementaryStreamExtractor extractor = muxer.createExtractor();
+        extractors.add(extractor);
+        return extractor;
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+}
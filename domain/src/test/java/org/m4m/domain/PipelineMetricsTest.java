@@ -0,0 +1,105 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.m4m.domain;
+
+import org.junit.Test;
+import org.m4m.domain.mediaComposer.ProgressListenerFake;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PipelineMetricsTest extends TestBase {
+    @Test
+    public void histogramReportsBucketUpperBound() {
+        PipelineMetrics.Histogram histogram = new PipelineMetrics.Histogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.record(100);
+        }
+        histogram.record(5000);
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(5000, histogram.getMaxNanoseconds());
+        assertEquals(149, histogram.getMeanNanoseconds());
+        assertEquals(127, histogram.getPercentileNanoseconds(50));
+        assertEquals(5000, histogram.getPercentileNanoseconds(100));
+    }
+
+    @Test
+    public void snapshotDoesNotChangeWithFurtherEvents() {
+        PipelineMetrics metrics = new PipelineMetrics();
+        OutputInputPair pair = new OutputInputPair(null, null, null);
+        metrics.onPairDispatched(pair);
+
+        PipelineMetrics snapshot = metrics.snapshot();
+        metrics.onPairDispatched(pair);
+        metrics.onPaused(10);
+
+        assertEquals(1, snapshot.getPairs().get(pair).getDispatches());
+        assertEquals(0, snapshot.getPausedNanoseconds());
+        assertEquals(2, metrics.getPairs().get(pair).getDispatches());
+    }
+
+    @Test
+    public void collectsMetricsOfTranscoding() {
+        PipelineMetrics metrics = new PipelineMetrics();
+        CommandProcessor commandProcessor = new CommandProcessor(new ProgressListenerFake());
+        commandProcessor.setMetrics(metrics);
+
+        Pipeline pipeline = new Pipeline(commandProcessor);
+        pipeline.setMediaSource(create.multipleMediaSource()
+                .with(create.mediaSource().with(2).videoFrames().construct())
+                .construct());
+        pipeline.addVideoDecoder(create.videoDecoder().with(create.mediaCodec()
+                .withOutputBuffer(4, 5, 6)
+                .withOutputBuffer(4, 5, 6)
+                .withOutputBuffer()
+                .withDequeueOutputBufferIndex(IMediaCodec.INFO_OUTPUT_FORMAT_CHANGED, 0, 1)
+                .construct()).construct());
+        pipeline.addVideoEncoder(create.videoEncoder().with(create.mediaCodec()
+                .withOutputBuffer(44, 55, 66)
+                .withOutputBuffer(44, 55, 66)
+                .withOutputBuffer()
+                .withDequeueOutputBufferIndex(IMediaCodec.INFO_OUTPUT_FORMAT_CHANGED, 0, 1)
+                .construct()).construct());
+        pipeline.setSink(create.render().with(create.mediaMuxer().construct()).construct());
+        pipeline.resolve();
+
+        commandProcessor.process();
+        PipelineMetrics snapshot = metrics.snapshot();
+
+        assertFalse(snapshot.getPairs().isEmpty());
+        for (PipelineMetrics.PairStatistics statistics : snapshot.getPairs().values()) {
+            assertTrue(statistics.getDispatches() > 0);
+        }
+        long handled = 0;
+        for (Map.Entry<Class<?>, PipelineMetrics.Histogram> entry : snapshot.getHandlerLatencies().entrySet()) {
+            handled += entry.getValue().getCount();
+        }
+        long dispatched = 0;
+        for (PipelineMetrics.PairStatistics statistics : snapshot.getPairs().values()) {
+            dispatched += statistics.getDispatches();
+        }
+        assertEquals(dispatched, handled);
+        assertTrue(snapshot.getCodecOutputWaits().containsKey(VideoDecoder.class));
+        assertTrue(snapshot.getCodecOutputWaits().containsKey(VideoEncoder.class));
+        assertTrue(snapshot.getCodecInputWaits().containsKey(VideoDecoder.class));
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.m4m.domain;
+
+import org.junit.Test;
+import org.m4m.domain.mediaComposer.ProgressListenerFake;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PipelineTracerTest extends TestBase {
+    @Test
+    public void keepsLatestSpansWhenFull() throws IOException {
+        PipelineTracer tracer = new PipelineTracer(4);
+        for (int i = 0; i < 6; i++) {
+            tracer.record(MuxRender.class, "span" + i, 0, i * 1000, i * 1000 + 500);
+        }
+
+        String trace = chromeTrace(tracer);
+
+        assertEquals(4, tracer.size());
+        assertEquals(6, tracer.getRecordedCount());
+        assertFalse(trace.contains("MuxRender.span1\""));
+        assertTrue(trace.contains("MuxRender.span2\""));
+        assertTrue(trace.contains("MuxRender.span5\""));
+        assertTrue(trace.contains("\"dur\":0.500"));
+    }
+
+    @Test
+    public void writesEmptyTrace() throws IOException {
+        assertEquals("{\"traceEvents\":[\n],\"displayTimeUnit\":\"ms\"}\n", chromeTrace(new PipelineTracer()));
+    }
+
+    @Test
+    public void recordsTranscodingTimeline() throws IOException {
+        PipelineTracer tracer = new PipelineTracer();
+        CommandProcessor commandProcessor = new CommandProcessor(new ProgressListenerFake());
+        commandProcessor.setTracer(tracer);
+
+        Pipeline pipeline = new Pipeline(commandProcessor);
+        pipeline.setMediaSource(create.multipleMediaSource()
+                .with(create.mediaSource().with(2).videoFrames().construct())
+                .construct());
+        pipeline.addVideoDecoder(create.videoDecoder().with(create.mediaCodec()
+                .withOutputBuffer(4, 5, 6)
+                .withOutputBuffer(4, 5, 6)
+                .withOutputBuffer()
+                .withDequeueOutputBufferIndex(IMediaCodec.INFO_OUTPUT_FORMAT_CHANGED, 0, 1)
+                .construct()).construct());
+        pipeline.addVideoEncoder(create.videoEncoder().with(create.mediaCodec()
+                .withOutputBuffer(44, 55, 66)
+                .withOutputBuffer(44, 55, 66)
+                .withOutputBuffer()
+                .withDequeueOutputBufferIndex(IMediaCodec.INFO_OUTPUT_FORMAT_CHANGED, 0, 1)
+                .construct()).construct());
+        pipeline.setSink(create.render().with(create.mediaMuxer().construct()).construct());
+        pipeline.resolve();
+
+        commandProcessor.process();
+        String trace = chromeTrace(tracer);
+
+        assertTrue(trace.contains("\"name\":\"PushDataCommandHandler.handle\""));
+        assertTrue(trace.contains("\"name\":\"VideoDecoder.dequeueOutputBuffer\""));
+        assertTrue(trace.contains("\"name\":\"VideoDecoder.findFreeFrame\""));
+        assertTrue(trace.contains("\"name\":\"MuxRender.writeSampleData\""));
+    }
+
+    private String chromeTrace(PipelineTracer tracer) throws IOException {
+        StringWriter writer = new StringWriter();
+        tracer.writeChromeTrace(writer);
+        return writer.toString();
+    }
+}
@@ -53,6 +53,19 @@ public class ProgressTrackerTest extends TestBase {
         assertEquals(0.5f, progressTracker.getProgress(), 0.01);
     }
 
+    @Test
+    public void progressIsMappedToRangeOfStage() {
+        ProgressTracker progressTracker = new ProgressTracker();
+        progressTracker.setRange(0.9f, 1f);
+        progressTracker.setFinish(1000);
+
+        assertEquals(0.9f, progressTracker.getProgress(), 0.001);
+        progressTracker.track(500);
+        assertEquals(0.95f, progressTracker.getProgress(), 0.001);
+        progressTracker.track(1000);
+        assertEquals(1f, progressTracker.getProgress(), 0.001);
+    }
+
     @Test
     public void progressMonotonouslyIncreasing() {
         ProgressTracker progressTracker = new ProgressTracker();
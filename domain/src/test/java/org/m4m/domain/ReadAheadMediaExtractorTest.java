@@ -0,0 +1,139 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.domain;
+
+import org.m4m.domain.mp4.Mp4Extractor;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ReadAheadMediaExtractorTest extends TestBase {
+    private final List<IMediaExtractor> extractors = new ArrayList<IMediaExtractor>();
+
+    @After
+    public void release() {
+        for (IMediaExtractor extractor : extractors) {
+            extractor.release();
+        }
+    }
+
+    @Test
+    public void servesSameSamplesAsWrappedExtractor() throws IOException {
+        File file = create.mp4File().withVideoSamples(60, 10).withAudioSamples(86).construct();
+        IMediaExtractor direct = open(file);
+        IMediaExtractor readAhead = new ReadAheadMediaExtractor(open(file), 1000);
+        extractors.add(readAhead);
+
+        assertEquals(describe(direct), describe(readAhead));
+    }
+
+    @Test
+    public void seekDiscardsReadAheadSamples() throws IOException {
+        File file = create.mp4File().withVideoSamples(60, 10).withAudioSamples(86).construct();
+        IMediaExtractor direct = open(file);
+        ReadAheadMediaExtractor readAhead = new ReadAheadMediaExtractor(open(file), 1000);
+        extractors.add(readAhead);
+        readAhead.getSampleTime();
+
+        direct.seekTo(1000000, IMediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        readAhead.seekTo(1000000, IMediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+
+        assertEquals(describe(direct), describe(readAhead));
+    }
+
+    @Test
+    public void keepsQueueWithinByteBudget() throws IOException, InterruptedException {
+        File file = create.mp4File().withVideoSamples(60, 10).withVideoSampleSize(100).construct();
+        ReadAheadMediaExtractor readAhead = new ReadAheadMediaExtractor(open(file), 500);
+        extractors.add(readAhead);
+
+        readAhead.getSampleTime();
+        long deadline = System.currentTimeMillis() + 2000;
+        while (readAhead.getQueuedBytes() < 500 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        Thread.sleep(10);
+
+        assertTrue(readAhead.getQueuedBytes() >= 500);
+        assertTrue(readAhead.getMaxQueuedBytes() < 500 + 105);
+        assertEquals(5, readAhead.getQueuedSampleCount(0));
+    }
+
+    @Test
+    public void mediaSourceCutsSegmentThroughReadAhead() throws IOException {
+        File file = create.mp4File().withVideoSamples(30, 10).withAudioSamples(43).construct();
+        MediaSource mediaSource = new MediaSource(new ReadAheadMediaExtractor(new Mp4Extractor(file.getPath()), 4096));
+        mediaSource.selectTrack(0);
+        mediaSource.add(new Pair<Long, Long>(333333L, 1000000L));
+        mediaSource.start();
+
+        int frames = 0;
+        Frame frame = create.frame().withBuffer(new int[200]).construct();
+        while (mediaSource.getOutputCommandQueue().dequeue().left == Command.HasData) {
+            mediaSource.pull(frame);
+            frames++;
+        }
+        long maxQueuedBytes = mediaSource.getReadAheadExtractor().getMaxQueuedBytes();
+        mediaSource.close();
+
+        assertEquals(20, frames);
+        assertTrue(maxQueuedBytes > 0);
+    }
+
+    @Test
+    public void mediaSourceReadingDirectlyHasNoReadAheadExtractor() throws IOException {
+        File file = create.mp4File().withVideoSamples(30, 10).construct();
+        MediaSource mediaSource = new MediaSource(new Mp4Extractor(file.getPath()));
+
+        assertNull(mediaSource.getReadAheadExtractor());
+        mediaSource.close();
+    }
+
+    private IMediaExtractor open(File file) throws IOException {
+        IMediaExtractor extractor = new Mp4Extractor(file.getPath());
+        extractor.selectTrack(0);
+        if (extractor.getTrackCount() > 1) {
+            extractor.selectTrack(1);
+        }
+        extractors.add(extractor);
+        return extractor;
+    }
+
+    private static String describe(IMediaExtractor extractor) {
+        StringBuilder samples = new StringBuilder();
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        while (extractor.getSampleTrackIndex() != -1) {
+            int size = extractor.readSampleData(buffer);
+            samples.append(extractor.getSampleTrackIndex()).append(':')
+                    .append(extractor.getSampleTime()).append(':')
+                    .append(extractor.getSampleFlags()).append(':')
+                    .append(size).append(':')
+                    .append(buffer.get(0)).append(' ');
+            extractor.advance();
+        }
+        return samples.toString();
+    }
+}
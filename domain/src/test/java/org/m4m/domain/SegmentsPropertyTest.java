@@ -0,0 +1,118 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.domain;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs random segment lists and sample sequences through both {@link Segments} and {@link LinearSegments}.
+ */
+public class SegmentsPropertyTest {
+    private static final int RUNS = 500;
+
+    @Test
+    public void chronologicalSegments_BehaveAsLinearImplementation() {
+        for (int seed = 0; seed < RUNS; seed++) {
+            check(seed, false);
+        }
+    }
+
+    @Test
+    public void shuffledAndOverlappingSegments_BehaveAsLinearImplementation() {
+        for (int seed = 0; seed < RUNS; seed++) {
+            check(seed, true);
+        }
+    }
+
+    @Test
+    public void hundredsOfSegments_AreShiftedIntoContinuousTimeline() {
+        Segments segments = new Segments(new ArrayList<Pair<Long, Long>>());
+        for (long i = 0; i < 500; i++) {
+            segments.add(new Pair<Long, Long>(i * 1000 + 100, i * 1000 + 500));
+        }
+
+        for (long i = 0; i < 500; i++) {
+            for (long time = i * 1000 + 100; time <= i * 1000 + 500; time += 100) {
+                segments.saveSampleTime(time);
+                assertEquals(i * 400 + time - (i * 1000 + 100), segments.shift(time));
+            }
+        }
+    }
+
+    private void check(int seed, boolean shuffled) {
+        Random random = new Random(seed);
+        Segments segments = new Segments(new ArrayList<Pair<Long, Long>>());
+        LinearSegments reference = new LinearSegments(new ArrayList<Pair<Long, Long>>());
+        String run = "seed " + seed;
+
+        int count = 1 + random.nextInt(20);
+        long time = random.nextInt(50);
+        for (int i = 0; i < count; i++) {
+            long left;
+            long right;
+            if (shuffled) {
+                left = random.nextInt(1000);
+                right = left + random.nextInt(200);
+            } else {
+                left = time + random.nextInt(3) * random.nextInt(50);
+                right = left + random.nextInt(100);
+                time = right;
+            }
+
+            if (shuffled && random.nextInt(10) == 0 && !reference.isEmpty()) {
+                int index = random.nextInt(reference.asCollection().size());
+                segments.add(index, new Pair<Long, Long>(left, right));
+                reference.add(index, new Pair<Long, Long>(left, right));
+            } else if (shuffled && random.nextInt(10) == 0 && !reference.isEmpty()) {
+                int index = random.nextInt(reference.asCollection().size());
+                segments.remove(index);
+                reference.remove(index);
+            } else {
+                segments.add(new Pair<Long, Long>(left, right));
+                reference.add(new Pair<Long, Long>(left, right));
+            }
+            assertEquals(run, reference.asCollection(), segments.asCollection());
+        }
+
+        long sampleTime = 0;
+        for (int i = 0; i < 300; i++) {
+            sampleTime += random.nextInt(10) == 0 ? random.nextInt(300) - 100 : random.nextInt(20);
+            String at = run + ", sample time " + sampleTime;
+
+            assertEquals(at, reference.isInsideSegment(sampleTime), segments.isInsideSegment(sampleTime));
+            assertEquals(at, reference.getSegmentAfter(sampleTime), segments.getSegmentAfter(sampleTime));
+            assertEquals(at, reference.checkSegmentChanged(sampleTime), segments.checkSegmentChanged(sampleTime));
+
+            reference.saveSampleTime(sampleTime);
+            segments.saveSampleTime(sampleTime);
+
+            long expected;
+            try {
+                expected = reference.shift(sampleTime);
+            } catch (NullPointerException e) {
+                // Linear implementation fails on segments that were passed without any sample
+                return;
+            }
+            assertEquals(at, expected, segments.shift(sampleTime));
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.domain;
+
+import org.m4m.domain.dsl.MediaCodecFake;
+import org.m4m.domain.dsl.VideoFormatFake;
+import org.m4m.domain.mp4.Mp4Extractor;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SmartCutVideoPluginTest extends TestBase {
+    private static final byte[] SOURCE_SPS = {0, 0, 0, 1, 0x67, 1};
+    private static final byte[] SOURCE_PPS = {0, 0, 0, 1, 0x68, 2};
+    private static final byte[] ENCODER_SPS = {0, 0, 0, 1, 0x67, 3};
+    private static final byte[] ENCODER_PPS = {0, 0, 0, 1, 0x68, 4};
+
+    private MediaSource source;
+
+    @After
+    public void release() throws IOException {
+        if (source != null) {
+            source.close();
+        }
+    }
+
+    @Test
+    public void copiesFramesMarkedForCopyAndTranscodesOthers() {
+        MediaCodecFake encoder = new MediaCodecFake(formatWithConfig(ENCODER_SPS, ENCODER_PPS));
+        SmartCutVideoPlugin plugin = createPlugin(new MediaCodecFake(create.videoFormat().construct()), encoder);
+
+        plugin.push(frame(1000000, true, false, new byte[]{1}));
+        plugin.push(frame(0, false, false, new byte[]{2}));
+        plugin.push(frame(33333, false, false, new byte[]{3}));
+        plugin.push(frame(66666, false, true, new byte[]{0, 0, 0, 1, 5}));
+        plugin.push(frame(100000, false, true, new byte[]{0, 0, 0, 1, 6}));
+        plugin.drain(0);
+
+        List<Frame> frames = pullAll(plugin);
+        assertEquals(4, frames.size());
+        assertEquals(0, frames.get(0).getSampleTime());
+        assertEquals(33333, frames.get(1).getSampleTime());
+        assertEquals(66666, frames.get(2).getSampleTime());
+        assertEquals(100000, frames.get(3).getSampleTime());
+        assertEquals(2, plugin.getTranscodedFrameCount());
+        assertEquals(2, plugin.getCopiedFrameCount());
+        assertEquals(1, encoder.getDisposedSurfaceCount());
+    }
+
+    @Test
+    public void repeatsParameterSetsWhenSwitchingStreams() {
+        SmartCutVideoPlugin plugin = createPlugin();
+
+        plugin.push(frame(0, false, false, new byte[]{2}));
+        plugin.push(frame(33333, false, true, new byte[]{0, 0, 0, 1, 5}));
+        plugin.push(frame(66666, false, true, new byte[]{0, 0, 0, 1, 6}));
+        plugin.drain(0);
+
+        List<Frame> frames = pullAll(plugin);
+        assertEquals(3, frames.size());
+        assertTrue(startsWith(frames.get(0), concat(ENCODER_SPS, ENCODER_PPS)));
+        assertTrue(startsWith(frames.get(1), concat(SOURCE_SPS, SOURCE_PPS)));
+        assertEquals(5, frames.get(2).getLength());
+    }
+
+    @Test
+    public void keepsFramePendingUntilCodecsAreReadyOnNextPass() {
+        final boolean[] decoderStalled = {true};
+        final boolean[] encoderStalled = {false};
+        SmartCutVideoPlugin plugin = createPlugin(
+                new MediaCodecFake(create.videoFormat().construct()) {
+                    @Override
+                    public int dequeueInputBuffer(long timeout) {
+                        return decoderStalled[0] ? INFO_TRY_AGAIN_LATER : super.dequeueInputBuffer(timeout);
+                    }
+                },
+                new MediaCodecFake(formatWithConfig(ENCODER_SPS, ENCODER_PPS)) {
+                    @Override
+                    public int dequeueOutputBuffer(BufferInfo info, long timeout) {
+                        return encoderStalled[0] ? INFO_TRY_AGAIN_LATER : super.dequeueOutputBuffer(info, timeout);
+                    }
+                });
+
+        plugin.push(frame(0, false, false, new byte[]{2}));
+        plugin.fillCommandQueues();
+        assertNull(plugin.findFreeFrame());
+        assertEquals(0, plugin.getOutputCommandQueue().size());
+
+        decoderStalled[0] = false;
+        plugin.fillCommandQueues();
+        assertNotNull(plugin.findFreeFrame());
+        assertEquals(1, plugin.getTranscodedFrameCount());
+
+        encoderStalled[0] = true;
+        plugin.push(frame(33333, false, true, new byte[]{0, 0, 0, 1, 5}));
+        plugin.drain(0);
+        assertNull(plugin.findFreeFrame());
+        assertEquals(0, plugin.getCopiedFrameCount());
+
+        encoderStalled[0] = false;
+        plugin.fillCommandQueues();
+        assertEquals(1, plugin.getCopiedFrameCount());
+
+        List<Frame> frames = pullAll(plugin);
+        assertEquals(2, frames.size());
+        assertEquals(0, frames.get(0).getSampleTime());
+        assertEquals(33333, frames.get(1).getSampleTime());
+        assertEquals(Frame.EOF(), plugin.getFrame());
+    }
+
+    @Test
+    public void convertsParameterSetsToLengthPrefixedNalUnits() {
+        byte[] converted = SmartCutVideoPlugin.toLengthPrefixed(concat(SOURCE_SPS, new byte[]{0, 0, 1, 0x68, 2}));
+
+        assertArrayEquals(new byte[]{0, 0, 0, 2, 0x67, 1, 0, 0, 0, 2, 0x68, 2}, converted);
+    }
+
+    @Test
+    public void mediaSourceMarksVideoBetweenSegmentKeyFramesForCopy() throws IOException {
+        source = new MediaSource(new Mp4Extractor(create.mp4File().withVideoSamples(60, 10).withVideoSampleSize(40).construct().getPath()));
+        source.selectTrack(0);
+        source.add(new Pair<Long, Long>(400000L, 1900000L));
+        source.setSmartCut(true);
+        source.start();
+
+        SmartCutVideoPlugin plugin = createPlugin();
+        List<Frame> frames = new ArrayList<Frame>();
+        while (source.getOutputCommandQueue().dequeue().left == Command.HasData) {
+            Frame frame = plugin.findFreeFrame();
+            source.pull(frame);
+            plugin.push(frame);
+            frames.addAll(pullAll(plugin));
+        }
+        plugin.drain(0);
+        frames.addAll(pullAll(plugin));
+
+        assertEquals(30, plugin.getCopiedFrameCount());
+        assertTrue(plugin.getTranscodedFrameCount() >= 8 + 7);
+        assertEquals(plugin.getCopiedFrameCount() + plugin.getTranscodedFrameCount(), frames.size());
+        for (int i = 1; i < frames.size(); i++) {
+            assertTrue(frames.get(i).getSampleTime() > frames.get(i - 1).getSampleTime());
+        }
+    }
+
+    private SmartCutVideoPlugin createPlugin() {
+        return createPlugin(
+                new MediaCodecFake(create.videoFormat().construct()),
+                new MediaCodecFake(formatWithConfig(ENCODER_SPS, ENCODER_PPS)));
+    }
+
+    private SmartCutVideoPlugin createPlugin(IMediaCodec decoder, IMediaCodec encoder) {
+        SmartCutVideoPlugin plugin = new SmartCutVideoPlugin(decoder, encoder, create.videoFormat().construct());
+        plugin.setMediaFormat(formatWithConfig(SOURCE_SPS, SOURCE_PPS));
+        plugin.getOutputCommandQueue().clear();
+        return plugin;
+    }
+
+    private List<Frame> pullAll(SmartCutVideoPlugin plugin) {
+        List<Frame> frames = new ArrayList<Frame>();
+        while (plugin.getOutputCommandQueue().size() > 0 && plugin.getOutputCommandQueue().dequeue().left == Command.HasData) {
+            Frame frame = plugin.getFrame();
+            byte[] data = new byte[frame.getLength()];
+            frame.getByteBuffer().duplicate().get(data);
+            frames.add(new Frame(ByteBuffer.wrap(data), data.length, frame.getSampleTime(), 0, frame.getFlags(), 0));
+        }
+        return frames;
+    }
+
+    private static Frame frame(long sampleTime, boolean skip, boolean copy, byte[] data) {
+        Frame frame = new Frame(ByteBuffer.wrap(data), data.length, sampleTime, 0, 0, 0);
+        frame.toSkipFrame(skip);
+        frame.toCopyFrame(copy);
+        return frame;
+    }
+
+    private static boolean startsWith(Frame frame, byte[] prefix) {
+        if (frame.getLength() < prefix.length) {
+            return false;
+        }
+        byte[] data = new byte[prefix.length];
+        frame.getByteBuffer().duplicate().get(data);
+        return java.util.Arrays.equals(prefix, data);
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] result = new byte[first.length + second.length];
+        System.arraycopy(first, 0, result, 0, first.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    private static MediaFormat formatWithConfig(final byte[] sps, final byte[] pps) {
+        return new VideoFormatFake() {
+            @Override
+            public ByteBuffer getByteBuffer(String key) {
+                if ("csd-0".equals(key)) return ByteBuffer.wrap(sps);
+                if ("csd-1".equals(key)) return ByteBuffer.wrap(pps);
+                return null;
+            }
+        };
+    }
+}
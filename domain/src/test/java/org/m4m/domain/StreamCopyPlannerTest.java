@@ -0,0 +1,143 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.domain;
+
+import org.m4m.KeyframeSnapPolicy;
+import org.m4m.MediaFile;
+import org.m4m.StreamCopyReport;
+import org.m4m.domain.mp4.Mp4Extractor;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class StreamCopyPlannerTest extends TestBase {
+    private final List<MediaSource> sources = new ArrayList<MediaSource>();
+
+    @After
+    public void release() throws IOException {
+        for (MediaSource source : sources) {
+            source.close();
+        }
+    }
+
+    @Test
+    public void previousPolicySnapsSegmentStartBackToKeyFrame() throws IOException {
+        MediaFile file = mediaFile(0, new Pair<Long, Long>(400000L, 900000L));
+
+        StreamCopyReport report = new StreamCopyPlanner(KeyframeSnapPolicy.PREVIOUS, Long.MAX_VALUE).plan(Arrays.asList(file));
+
+        assertTrue(report.isStreamCopy());
+        assertEquals(new Pair<Long, Long>(333333L, 900000L), report.getSegments().get(0).getSnapped());
+    }
+
+    @Test
+    public void nextPolicySnapsSegmentStartForwardToKeyFrame() throws IOException {
+        MediaFile file = mediaFile(0, new Pair<Long, Long>(400000L, 900000L));
+
+        StreamCopyReport report = new StreamCopyPlanner(KeyframeSnapPolicy.NEXT, Long.MAX_VALUE).plan(Arrays.asList(file));
+
+        assertTrue(report.isStreamCopy());
+        assertEquals(new Pair<Long, Long>(666666L, 900000L), report.getSegments().get(0).getSnapped());
+    }
+
+    @Test
+    public void exactPolicyCopiesOnlyAlignedSegments() throws IOException {
+        MediaFile file = mediaFile(0, new Pair<Long, Long>(0L, 300000L), new Pair<Long, Long>(400000L, 900000L));
+
+        StreamCopyReport report = new StreamCopyPlanner(KeyframeSnapPolicy.EXACT, Long.MAX_VALUE).plan(Arrays.asList(file));
+
+        assertTrue(report.getSegments().get(0).isCopyable());
+        assertFalse(report.getSegments().get(1).isCopyable());
+        assertEquals(new Pair<Long, Long>(400000L, 900000L), report.getSegments().get(1).getSnapped());
+        assertFalse(report.isStreamCopy());
+        assertNotNull(report.getFallbackReason());
+    }
+
+    @Test
+    public void segmentIsNotCopyableWhenKeyFrameIsFartherThanSnapDistance() throws IOException {
+        MediaFile file = mediaFile(0, new Pair<Long, Long>(400000L, 900000L));
+
+        StreamCopyReport report = new StreamCopyPlanner(KeyframeSnapPolicy.PREVIOUS, 50000).plan(Arrays.asList(file));
+
+        assertFalse(report.getSegments().get(0).isCopyable());
+    }
+
+    @Test
+    public void filesWithDifferentTracksAreNotCopied() throws IOException {
+        List<MediaFile> files = Arrays.asList(mediaFile(43), mediaFile(0));
+
+        StreamCopyReport report = new StreamCopyPlanner(KeyframeSnapPolicy.PREVIOUS, Long.MAX_VALUE).plan(files);
+
+        assertEquals(2, report.getSegments().size());
+        assertFalse(report.isStreamCopy());
+    }
+
+    @Test
+    public void snappedSegmentsAreCopiedWithoutSamplesBeforeKeyFrame() throws IOException {
+        MediaFile file = mediaFile(43, new Pair<Long, Long>(400000L, 1000000L));
+        StreamCopyPlanner planner = new StreamCopyPlanner(KeyframeSnapPolicy.PREVIOUS, Long.MAX_VALUE);
+        StreamCopyReport report = planner.plan(Arrays.asList(file));
+        planner.apply(report, Arrays.asList(file));
+
+        MediaSource source = file.getMediaSource();
+        source.selectTrack(0);
+        source.selectTrack(1);
+        source.start();
+
+        StreamCopyPlugin plugin = new StreamCopyPlugin(MediaFormatType.VIDEO);
+        plugin.getOutputCommandQueue().clear();
+        int copied = 0;
+        while (source.getOutputCommandQueue().dequeue().left == Command.HasData) {
+            Frame frame = plugin.findFreeFrame();
+            source.pull(frame);
+            plugin.push(frame);
+            if (plugin.getOutputCommandQueue().size() > 0) {
+                plugin.getOutputCommandQueue().clear();
+                Frame copiedFrame = plugin.getFrame();
+                assertTrue(copiedFrame.getSampleTime() >= 0);
+                if (copied == 0) {
+                    assertEquals(Mp4Extractor.SAMPLE_FLAG_SYNC, copiedFrame.getFlags() & Mp4Extractor.SAMPLE_FLAG_SYNC);
+                }
+                copied++;
+            }
+        }
+
+        assertNull(report.getFallbackReason());
+        assertEquals(new Pair<Long, Long>(333333L, 1000000L), file.getSegments().iterator().next());
+        assertEquals(20 + 28, copied);
+    }
+
+    private MediaFile mediaFile(int audioSamples, Pair<Long, Long>... segments) throws IOException {
+        MediaSource source = new MediaSource(new Mp4Extractor(create.mp4File().withVideoSamples(30, 10).withAudioSamples(audioSamples).construct().getPath()));
+        sources.add(source);
+        MediaFile file = new MediaFile(source);
+        for (Pair<Long, Long> segment : segments) {
+            file.addSegment(segment);
+        }
+        return file;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.m4m.domain;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Resolves synthetic graphs of 10 to 50 nodes: a source fanning out to parallel chains of transforms joined
+ * by a sink. Every transform prefers the next stage of the neighbour chain, the last chain has no neighbour,
+ * so the preferred connections have to be handed back along the whole stage. The solver cost is measured in
+ * connection rule checks, which must grow polynomially with the number of nodes.
+ */
+public class TopologySolverComplexityTest extends TestBase {
+    private static final int CHAINS = 4;
+
+    private long ruleChecks;
+
+    @Test
+    public void resolvesSyntheticGraphsInPolynomialTime() {
+        for (int nodes = 10; nodes <= 50; nodes += 10) {
+            int stages = (nodes - 2) / CHAINS;
+
+            TopologySolver solver = createGraph(stages, true);
+            ruleChecks = 0;
+            Collection<Pair<IOutputRaw, IInputRaw>> connections = solver.getConnectionsQueue();
+
+            assertEquals(CHAINS * (stages + 1), connections.size());
+            assertTrue(nodes + " nodes took " + ruleChecks + " rule checks", ruleChecks <= cubicBound(nodes));
+        }
+    }
+
+    @Test
+    public void failsFastOnUnresolvableSyntheticGraph() {
+        TopologySolver solver = createGraph((50 - 2) / CHAINS, false);
+        ruleChecks = 0;
+
+        try {
+            solver.resolve();
+            fail();
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().startsWith("Cannot resolve topology"));
+        }
+        assertTrue(ruleChecks <= cubicBound(50));
+    }
+
+    private static long cubicBound(int nodes) {
+        return 2L * nodes * nodes * nodes;
+    }
+
+    private TopologySolver createGraph(int stages, boolean lastChainReachesSink) {
+        TopologySolver solver = new TopologySolver();
+        IOutputRaw source = mock(IOutputRaw.class);
+        IInputRaw sink = mock(IInputRaw.class);
+
+        ITransform[][] transforms = new ITransform[CHAINS][stages];
+        for (int stage = 0; stage < stages; stage++) {
+            for (int chain = 0; chain < CHAINS; chain++) {
+                transforms[chain][stage] = mock(ITransform.class);
+                solver.add(transforms[chain][stage]);
+            }
+        }
+        solver.add(source);
+        solver.add(sink);
+
+        List<Object> firstStage = new ArrayList<Object>();
+        List<Object> lastStage = new ArrayList<Object>();
+        for (int chain = 0; chain < CHAINS; chain++) {
+            firstStage.add(transforms[chain][0]);
+            if (lastChainReachesSink || chain != CHAINS - 1) {
+                lastStage.add(transforms[chain][stages - 1]);
+            }
+        }
+        solver.addConnectionRule(new Link(Arrays.<Object>asList(source), firstStage, true, false));
+        solver.addConnectionRule(new Link(lastStage, Arrays.<Object>asList(sink), false, true));
+
+        for (int stage = 0; stage + 1 < stages; stage++) {
+            for (int chain = 0; chain < CHAINS; chain++) {
+                if (chain + 1 < CHAINS) {
+                    solver.addConnectionRule(link(transforms[chain][stage], transforms[chain + 1][stage + 1]));
+                }
+                solver.addConnectionRule(link(transforms[chain][stage], transforms[chain][stage + 1]));
+            }
+        }
+        return solver;
+    }
+
+    private Link link(Object output, Object input) {
+        return new Link(Arrays.asList(output), Arrays.asList(input), false, false);
+    }
+
+    private class Link implements IsConnectable {
+        private final List<Object> outputs;
+        private final List<Object> inputs;
+        private final boolean manyInputs;
+        private final boolean manyOutputs;
+
+        Link(List<Object> outputs, List<Object> inputs, boolean manyInputs, boolean manyOutputs) {
+            this.outputs = outputs;
+            this.inputs = inputs;
+            this.manyInputs = manyInputs;
+            this.manyOutputs = manyOutputs;
+        }
+
+        @Override
+        public boolean isConnectable(IOutputRaw output, Collection<IInputRaw> input) {
+            ruleChecks++;
+            return outputs.contains(output) && (manyInputs || input.size() == 1) && inputs.containsAll(input);
+        }
+
+        @Override
+        public boolean isConnectable(Collection<IOutputRaw> output, IInputRaw input) {
+            ruleChecks++;
+            return inputs.contains(input) && (manyOutputs || output.size() == 1) && outputs.containsAll(output);
+        }
+    }
+}
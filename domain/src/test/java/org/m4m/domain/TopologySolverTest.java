@@ -22,11 +22,16 @@ import junit.framework.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 import static junit.framework.TestCase.assertTrue;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 
 public class TopologySolverTest extends TestBase {
 
@@ -427,4 +432,75 @@ public class TopologySolverTest extends TestBase {
 
         connectorFactory.connect(videoDecoder, surfaceRender);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void keepsConnectionOrderOfEffectorGraph() {
+        topologySolver.add(audioDecoder);
+        topologySolver.add(audioEncoder);
+        topologySolver.add(audioEffector);
+        topologySolver.add(videoEffector);
+        topologySolver.add(videoDecoder);
+        topologySolver.add(videoEncoder);
+        topologySolver.add(source);
+        topologySolver.add(render);
+
+        StringBuilder order = new StringBuilder();
+        for (Pair<IOutputRaw, IInputRaw> connection : topologySolver.getConnectionsQueue()) {
+            order.append(connection.left.getClass().getSimpleName()).append("->").append(connection.right.getClass().getSimpleName()).append(' ');
+        }
+
+        assertEquals("MediaSource->AudioDecoder AudioDecoder->AudioEffector AudioEffector->AudioEncoder AudioEncoder->MuxRender "
+                + "MediaSource->VideoDecoder VideoEffector->VideoEncoder VideoEncoder->MuxRender VideoDecoder->VideoEffector ", order.toString());
+    }
+
+    @Test
+    public void replaysTemplateOntoNodesOfSameSignature() {
+        topologySolver.add(audioDecoder);
+        topologySolver.add(audioEncoder);
+        topologySolver.add(videoDecoder);
+        topologySolver.add(videoEncoder);
+        topologySolver.add(source);
+        topologySolver.add(render);
+        TopologySolver.Template template = topologySolver.getTemplate();
+
+        AudioDecoder newAudioDecoder = create.audioDecoder().construct();
+        AudioEncoder newAudioEncoder = create.audioEncoder().construct();
+        VideoDecoder newVideoDecoder = create.videoDecoder().construct();
+        VideoEncoder newVideoEncoder = create.videoEncoder().construct();
+        IMediaSource newSource = create.mediaSource().construct();
+        Render newRender = create.render().construct();
+        TopologySolver replayed = new TopologySolver();
+        replayed.add(newAudioDecoder);
+        replayed.add(newAudioEncoder);
+        replayed.add(newVideoDecoder);
+        replayed.add(newVideoEncoder);
+        replayed.add(newSource);
+        replayed.add(newRender);
+        assertEquals(topologySolver.getSignature(), replayed.getSignature());
+
+        replayed.apply(template);
+
+        Map<Object, Object> replacements = new IdentityHashMap<Object, Object>();
+        replacements.put(audioDecoder, newAudioDecoder);
+        replacements.put(audioEncoder, newAudioEncoder);
+        replacements.put(videoDecoder, newVideoDecoder);
+        replacements.put(videoEncoder, newVideoEncoder);
+        replacements.put(source, newSource);
+        replacements.put(render, newRender);
+        List<Object> expected = new ArrayList<Object>();
+        for (Pair<IOutputRaw, IInputRaw> connection : topologySolver.getConnectionsQueue()) {
+            expected.add(replacements.get(connection.left));
+            expected.add(replacements.get(connection.right));
+        }
+        List<Object> actual = new ArrayList<Object>();
+        for (Pair<IOutputRaw, IInputRaw> connection : replayed.getConnectionsQueue()) {
+            actual.add(connection.left);
+            actual.add(connection.right);
+        }
+        assertEquals(12, expected.size());
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertSame(expected.get(i), actual.get(i));
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.domain;
+
+import org.junit.Test;
+import org.m4m.domain.dsl.MediaCodecFake;
+import org.m4m.domain.dsl.MediaExtractorFake;
+import org.m4m.domain.dsl.MediaMuxerFake;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TranscodeAllocationTest extends TestBase {
+    private final com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    @Test
+    public void doesNotAllocatePerFrame() {
+        transcode(1000);
+        long shortTranscode = transcode(1000);
+        long longTranscode = transcode(11000);
+
+        assertEquals(0, (longTranscode - shortTranscode) / 10000);
+    }
+
+    private long transcode(int frames) {
+        long threadId = Thread.currentThread().getId();
+        long before = threadMXBean.getThreadAllocatedBytes(threadId);
+
+        CommandProcessor commandProcessor = new CommandProcessor(new ProgressListenerStub());
+        Pipeline pipeline = new Pipeline(commandProcessor);
+        pipeline.setMediaSource(create.mediaSource().with(new MediaExtractorFake(frames)).construct());
+        pipeline.addVideoDecoder(create.videoDecoder().with(new MediaCodecFake(create.videoFormat().construct())).construct());
+        pipeline.addVideoEncoder(create.videoEncoder().with(new MediaCodecFake(create.videoFormat().construct())).construct());
+        MediaMuxerFake muxer = new MediaMuxerFake();
+        pipeline.setSink(create.render().with(muxer).withProgressListener(new ProgressListenerStub()).construct());
+        pipeline.resolve();
+        commandProcessor.process();
+
+        assertTrue(muxer.getSamples() > frames);
+        return threadMXBean.getThreadAllocatedBytes(threadId) - before;
+    }
+
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.domain;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WriteBehindChannelTest extends TestBase {
+    private File file;
+    private RandomAccessFile output;
+
+    @Before
+    public void createFile() throws IOException {
+        file = File.createTempFile("writeBehind", ".bin");
+        output = new RandomAccessFile(file, "rw");
+    }
+
+    @After
+    public void deleteFile() throws IOException {
+        output.close();
+        file.delete();
+    }
+
+    @Test
+    public void coalescesSmallWritesIntoChunks() throws IOException {
+        WriteBehindChannel channel = new WriteBehindChannel(output.getChannel(), 1024, 4);
+        byte[] expected = new byte[10000];
+        for (int i = 0; i < 1000; i++) {
+            byte[] sample = new byte[10];
+            for (int j = 0; j < sample.length; j++) {
+                sample[j] = (byte) (i + j);
+            }
+            System.arraycopy(sample, 0, expected, i * 10, 10);
+            assertEquals(10, channel.write(ByteBuffer.wrap(sample)));
+        }
+        channel.close();
+
+        assertArrayEquals(expected, read());
+        assertEquals(10000, channel.getBytesWritten());
+        assertTrue(channel.getWriteCount() <= 10);
+        assertTrue(channel.getBytesPerWrite() >= 1000);
+    }
+
+    @Test
+    public void budgetIsSplitIntoChunks() throws IOException {
+        WriteBehindChannel large = new WriteBehindChannel(output.getChannel(), 4L * 1024 * 1024);
+        WriteBehindChannel small = new WriteBehindChannel(output.getChannel(), 64 * 1024);
+        WriteBehindChannel tiny = new WriteBehindChannel(output.getChannel(), 1024);
+        large.close();
+        small.close();
+        tiny.close();
+
+        assertEquals(WriteBehindChannel.DEFAULT_CHUNK_SIZE, large.getChunkSize());
+        assertEquals(16, large.getChunkCount());
+        assertEquals(32 * 1024, small.getChunkSize());
+        assertEquals(2, small.getChunkCount());
+        assertEquals(WriteBehindChannel.MIN_CHUNK_SIZE, tiny.getChunkSize());
+        assertEquals(2, tiny.getChunkCount());
+    }
+
+    @Test
+    public void flushWritesPartialChunk() throws IOException {
+        WriteBehindChannel channel = new WriteBehindChannel(output.getChannel(), 1024, 2);
+        channel.write(new ByteBuffer[]{ByteBuffer.wrap(new byte[]{1, 2}), ByteBuffer.wrap(new byte[]{3})});
+        channel.flush();
+
+        assertArrayEquals(new byte[]{1, 2, 3}, read());
+        assertEquals(1, channel.getWriteCount());
+        channel.close();
+    }
+
+    @Test
+    public void writesLargeBuffersThroughSmallBudget() throws IOException {
+        WriteBehindChannel channel = new WriteBehindChannel(output.getChannel(), 256, 2);
+        byte[] expected = new byte[100000];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = (byte) (i * 7);
+        }
+        channel.write(ByteBuffer.wrap(expected));
+        channel.close();
+
+        assertArrayEquals(expected, read());
+    }
+
+    @Test(expected = ClosedChannelException.class)
+    public void rejectsWritesAfterClose() throws IOException {
+        WriteBehindChannel channel = new WriteBehindChannel(output.getChannel(), 256, 2);
+        channel.close();
+
+        channel.write(ByteBuffer.wrap(new byte[1]));
+    }
+
+    @Test
+    public void reportsWriteErrors() throws IOException {
+        RandomAccessFile readOnly = new RandomAccessFile(file, "r");
+        WriteBehindChannel channel = new WriteBehindChannel(readOnly.getChannel(), 256, 2);
+        channel.write(ByteBuffer.wrap(new byte[100]));
+        try {
+            channel.flush();
+            throw new AssertionError("Flush must fail on read only file.");
+        } catch (IOException e) {
+            assertTrue(channel.isOpen());
+        } finally {
+            readOnly.close();
+        }
+    }
+
+    private byte[] read() throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) input.length()];
+            input.readFully(bytes);
+            return bytes;
+        } finally {
+            input.close();
+        }
+    }
+}
@@ -46,6 +46,10 @@ public class Father {
         return new MediaExtractorFather(this);
     }
 
+    public Mp4FileFather mp4File() {
+        return new Mp4FileFather(this);
+    }
+
     public MediaCodecFather mediaCodec() {
         return new MediaCodecFather(this);
     }
@@ -47,7 +47,7 @@ public class InfiniteCommandQueue extends CommandQueue {
     }
 
     private boolean dequeueLastCommand() {
-        return queue.size() == 1;
+        return size() == 1;
     }
 }
 
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.domain.dsl;
+
+import org.m4m.domain.IEglContext;
+import org.m4m.domain.IMediaCodec;
+import org.m4m.domain.IDisposableSurface;
+import org.m4m.domain.ISurface;
+import org.m4m.domain.ISurfaceWrapper;
+import org.m4m.domain.MediaFormat;
+import org.m4m.domain.Resolution;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Allocation free codec for long running pipeline tests: every queued input buffer or swapped
+ * input surface comes out as an output buffer with the same sample time.
+ */
+public class MediaCodecFake implements IMediaCodec {
+    private static final int BUFFERS = 4;
+
+    private final ByteBuffer[] inputBuffers = new ByteBuffer[BUFFERS];
+    private final ByteBuffer[] outputBuffers = new ByteBuffer[BUFFERS];
+    private final boolean[] inputBusy = new boolean[BUFFERS];
+    private final boolean[] outputBusy = new boolean[BUFFERS];
+    private final int[] pendingIndexes = new int[BUFFERS];
+    private final int[] pendingSizes = new int[BUFFERS];
+    private final long[] pendingTimes = new long[BUFFERS];
+    private final int[] pendingFlags = new int[BUFFERS];
+    private int pendingHead;
+    private int pendingCount;
+    private final int[] queuedInputs = new int[BUFFERS * 2];
+    private final int[] queuedSizes = new int[BUFFERS * 2];
+    private final long[] queuedTimes = new long[BUFFERS * 2];
+    private final int[] queuedFlags = new int[BUFFERS * 2];
+    private int queuedHead;
+    private int queuedCount;
+    private final MediaFormat outputFormat;
+    private final SurfaceFake inputSurface = new SurfaceFake();
+    private boolean formatReported;
+    private long lastSampleTime;
+    private int disposedSurfaces;
+
+    public MediaCodecFake(MediaFormat outputFormat) {
+        this.outputFormat = outputFormat;
+        for (int i = 0; i < BUFFERS; i++) {
+            inputBuffers[i] = ByteBuffer.allocate(64);
+            outputBuffers[i] = ByteBuffer.allocate(64);
+        }
+    }
+
+    @Override
+    public void configure(MediaFormat mediaFormat, ISurfaceWrapper surface, int flags) {}
+
+    @Override
+    public void start() {}
+
+    @Override
+    public void releaseOutputBuffer(int bufferIndex, boolean render) {
+        outputBusy[bufferIndex] = false;
+        decode();
+    }
+
+    @Override
+    public ISurface createInputSurface() {
+        return inputSurface;
+    }
+
+    @Override
+    public ISurface createSimpleInputSurface(IEglContext eglSharedContext) {
+        return inputSurface;
+    }
+
+    @Override
+    public ByteBuffer[] getInputBuffers() {
+        return inputBuffers;
+    }
+
+    @Override
+    public ByteBuffer[] getOutputBuffers() {
+        return outputBuffers;
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        enqueue(index, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeout) {
+        for (int i = 0; i < BUFFERS; i++) {
+            if (!inputBusy[i]) {
+                inputBusy[i] = true;
+                return i;
+            }
+        }
+        return INFO_TRY_AGAIN_LATER;
+    }
+
+    @Override
+    public int dequeueOutputBuffer(BufferInfo info, long timeout) {
+        decode();
+        if (pendingCount == 0) {
+            return INFO_TRY_AGAIN_LATER;
+        }
+        if (!formatReported) {
+            formatReported = true;
+            return INFO_OUTPUT_FORMAT_CHANGED;
+        }
+
+        int index = pendingIndexes[pendingHead];
+        info.offset = 0;
+        info.size = pendingSizes[pendingHead];
+        info.presentationTimeUs = pendingTimes[pendingHead];
+        info.flags = pendingFlags[pendingHead];
+        pendingHead = (pendingHead + 1) % BUFFERS;
+        pendingCount--;
+        return index;
+    }
+
+    private void enqueue(int inputIndex, int size, long presentationTimeUs, int flags) {
+        if (queuedCount == queuedInputs.length) {
+            throw new IllegalStateException("Too many queued inputs");
+        }
+        int tail = (queuedHead + queuedCount) % queuedInputs.length;
+        queuedInputs[tail] = inputIndex;
+        queuedSizes[tail] = size;
+        queuedTimes[tail] = presentationTimeUs;
+        queuedFlags[tail] = flags;
+        queuedCount++;
+        lastSampleTime = presentationTimeUs;
+        decode();
+    }
+
+    private void decode() {
+        while (queuedCount > 0) {
+            int output = freeOutputBuffer();
+            if (output < 0) {
+                return;
+            }
+            int tail = (pendingHead + pendingCount) % BUFFERS;
+            pendingIndexes[tail] = output;
+            pendingSizes[tail] = queuedSizes[queuedHead];
+            pendingTimes[tail] = queuedTimes[queuedHead];
+            pendingFlags[tail] = queuedFlags[queuedHead];
+            pendingCount++;
+            if (queuedInputs[queuedHead] >= 0) {
+                inputBusy[queuedInputs[queuedHead]] = false;
+            }
+            queuedHead = (queuedHead + 1) % queuedInputs.length;
+            queuedCount--;
+        }
+    }
+
+    private int freeOutputBuffer() {
+        for (int i = 0; i < BUFFERS; i++) {
+            if (!outputBusy[i]) {
+                outputBusy[i] = true;
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public MediaFormat getOutputFormat() {
+        return outputFormat;
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        enqueue(-1, 0, lastSampleTime, BUFFER_FLAG_END_OF_STREAM);
+    }
+
+    @Override
+    public void stop() {}
+
+    @Override
+    public void release() {}
+
+    @Override
+    public void recreate() {}
+
+    public int getDisposedSurfaceCount() {
+        return disposedSurfaces;
+    }
+
+    private class SurfaceFake implements IDisposableSurface, ISurfaceWrapper {
+        private long presentationTimeUs;
+
+        @Override
+        public void awaitNewImage() {}
+
+        @Override
+        public void drawImage() {}
+
+        @Override
+        public void setPresentationTime(long presentationTimeInNanoSeconds) {
+            presentationTimeUs = presentationTimeInNanoSeconds / 1000;
+        }
+
+        @Override
+        public void swapBuffers() {
+            enqueue(-1, 16, presentationTimeUs, 0);
+        }
+
+        @Override
+        public void makeCurrent() {}
+
+        @Override
+        public ISurfaceWrapper getCleanObject() {
+            return this;
+        }
+
+        @Override
+        public void setProjectionMatrix(float[] projectionMatrix) {}
+
+        @Override
+        public void setViewport() {}
+
+        @Override
+        public void setInputSize(int width, int height) {}
+
+        @Override
+        public Resolution getInputSize() {
+            return null;
+        }
+
+        @Override
+        public void release() {}
+
+        @Override
+        public void dispose() {
+            disposedSurfaces++;
+        }
+
+        @Override
+        public void updateTexImage() {}
+
+        @Override
+        public void awaitAndCopyNewImage() {}
+    }
+}
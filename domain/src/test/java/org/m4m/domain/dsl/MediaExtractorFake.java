@@ -0,0 +1,110 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.domain.dsl;
+
+import org.m4m.Uri;
+import org.m4m.domain.IMediaExtractor;
+import org.m4m.domain.MediaFormat;
+
+import java.io.FileDescriptor;
+import java.nio.ByteBuffer;
+
+/**
+ * Allocation free extractor of a single video track with the given number of samples.
+ */
+public class MediaExtractorFake implements IMediaExtractor {
+    private static final long FRAME_DURATION = 33333;
+
+    private final int samples;
+    private final VideoFormatFake format = new VideoFormatFake();
+    private int sample;
+
+    public MediaExtractorFake(int samples) {
+        this.samples = samples;
+        format.setDuration(samples * FRAME_DURATION);
+    }
+
+    @Override
+    public int readSampleData(ByteBuffer inputBuffer) {
+        return 8;
+    }
+
+    @Override
+    public MediaFormat getTrackFormat(int i) {
+        return format;
+    }
+
+    @Override
+    public long getSampleTime() {
+        return sample * FRAME_DURATION;
+    }
+
+    @Override
+    public boolean advance() {
+        sample++;
+        return sample < samples;
+    }
+
+    @Override
+    public int getTrackCount() {
+        return 1;
+    }
+
+    @Override
+    public void selectTrack(int index) {}
+
+    @Override
+    public void unselectTrack(int index) {}
+
+    @Override
+    public int getSampleTrackIndex() {
+        return sample < samples ? 0 : -1;
+    }
+
+    @Override
+    public void release() {}
+
+    @Override
+    public int getSampleFlags() {
+        return 0;
+    }
+
+    @Override
+    public void seekTo(long timeUs, int mode) {
+        sample = (int) (timeUs / FRAME_DURATION);
+    }
+
+    @Override
+    public int getRotation() {
+        return 0;
+    }
+
+    @Override
+    public String getFilePath() {
+        return null;
+    }
+
+    @Override
+    public FileDescriptor getFileDescriptor() {
+        return null;
+    }
+
+    @Override
+    public Uri getUri() {
+        return null;
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.domain.dsl;
+
+import org.m4m.domain.IMediaCodec;
+import org.m4m.domain.IMediaMuxer;
+import org.m4m.domain.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+public class MediaMuxerFake implements IMediaMuxer {
+    private int tracks;
+    private int samples;
+    private long lastSampleTime;
+
+    @Override
+    public int addTrack(MediaFormat mediaFormat) {
+        return tracks++;
+    }
+
+    @Override
+    public void release() {}
+
+    @Override
+    public void setOrientationHint(int degrees) {}
+
+    @Override
+    public void start() {}
+
+    @Override
+    public void stop() {}
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer byteBuf, IMediaCodec.BufferInfo bufferInfo) {
+        samples++;
+        lastSampleTime = bufferInfo.presentationTimeUs;
+    }
+
+    public int getSamples() {
+        return samples;
+    }
+
+    public long getLastSampleTime() {
+        return lastSampleTime;
+    }
+}
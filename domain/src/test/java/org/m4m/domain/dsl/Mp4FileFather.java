@@ -0,0 +1,240 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.domain.dsl;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Writes a minimal MP4 file: ftyp, mdat with samples interleaved by time and moov at the end.
+ * Every byte of video sample N equals N, every byte of audio sample N equals N + 128.
+ */
+public class Mp4FileFather extends FatherOf<File> {
+    public static final int VIDEO_TIMESCALE = 90000;
+    public static final int VIDEO_SAMPLE_DELTA = 3000;
+    public static final int AUDIO_TIMESCALE = 44100;
+    public static final int AUDIO_SAMPLE_DELTA = 1024;
+    public static final byte[] SPS = {0x67, 0x42, 0x00, 0x1e};
+    public static final byte[] PPS = {0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+
+    private File file;
+    private int videoSamples = 30;
+    private int syncInterval = 10;
+    private int videoSampleSize = 100;
+    private int audioSamples = 0;
+    private int audioSampleSize = 20;
+    private int rotation = 0;
+
+    public Mp4FileFather(Father create) {
+        super(create);
+    }
+
+    public Mp4FileFather in(File file) {
+        this.file = file;
+        return this;
+    }
+
+    public Mp4FileFather withVideoSamples(int samples, int syncInterval) {
+        this.videoSamples = samples;
+        this.syncInterval = syncInterval;
+        return this;
+    }
+
+    public Mp4FileFather withVideoSampleSize(int size) {
+        this.videoSampleSize = size;
+        return this;
+    }
+
+    public Mp4FileFather withAudioSamples(int samples) {
+        this.audioSamples = samples;
+        return this;
+    }
+
+    public Mp4FileFather withRotation(int rotation) {
+        this.rotation = rotation;
+        return this;
+    }
+
+    public static int videoSampleSize(int base, int sample) {
+        return base + sample % 5;
+    }
+
+    public static int audioSampleSize(int base, int sample) {
+        return base + sample % 3;
+    }
+
+    @Override
+    public File construct() throws IOException {
+        if (file == null) {
+            file = File.createTempFile("m4m", ".mp4");
+            file.deleteOnExit();
+        }
+
+        byte[] ftyp = box("ftyp", bytes("isom"), int32(512), bytes("isomavc1"));
+        long[] videoOffsets = new long[videoSamples];
+        long[] audioOffsets = new long[audioSamples];
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        try {
+            out.write(ftyp);
+            long mdatSize = 8;
+            for (int i = 0; i < videoSamples; i++) mdatSize += videoSampleSize(videoSampleSize, i);
+            for (int i = 0; i < audioSamples; i++) mdatSize += audioSampleSize(audioSampleSize, i);
+            out.writeInt((int) mdatSize);
+            out.write(bytes("mdat"));
+
+            long offset = ftyp.length + 8;
+            byte[] sample = new byte[videoSampleSize + 5];
+            int video = 0;
+            int audio = 0;
+            while (video < videoSamples || audio < audioSamples) {
+                long videoTime = (long) video * VIDEO_SAMPLE_DELTA * AUDIO_TIMESCALE;
+                long audioTime = (long) audio * AUDIO_SAMPLE_DELTA * VIDEO_TIMESCALE;
+                if (audio >= audioSamples || (video < videoSamples && videoTime <= audioTime)) {
+                    int size = videoSampleSize(videoSampleSize, video);
+                    Arrays.fill(sample, 0, size, (byte) video);
+                    out.write(sample, 0, size);
+                    videoOffsets[video++] = offset;
+                    offset += size;
+                } else {
+                    int size = audioSampleSize(audioSampleSize, audio);
+                    byte[] audioSample = new byte[size];
+                    Arrays.fill(audioSample, (byte) (audio + 128));
+                    out.write(audioSample);
+                    audioOffsets[audio++] = offset;
+                    offset += size;
+                }
+            }
+
+            ByteArrayOutputStream moov = new ByteArrayOutputStream();
+            moov.write(videoTrack(videoOffsets));
+            if (audioSamples > 0) {
+                moov.write(audioTrack(audioOffsets));
+            }
+            out.write(box("moov", moov.toByteArray()));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private byte[] videoTrack(long[] offsets) throws IOException {
+        byte[] avcC = box("avcC", new byte[]{1, 0x42, 0, 0x1e, (byte) 0xff, (byte) 0xe1},
+                int16(SPS.length), SPS, new byte[]{1}, int16(PPS.length), PPS);
+        byte[] avc1 = box("avc1", new byte[6], int16(1), new byte[16], int16(320), int16(240),
+                int32(0x00480000), int32(0x00480000), int32(0), int16(1), new byte[32], int16(0x18), int16(-1), avcC);
+
+        int[] sizes = new int[offsets.length];
+        for (int i = 0; i < sizes.length; i++) sizes[i] = videoSampleSize(videoSampleSize, i);
+
+        ByteArrayOutputStream stss = new ByteArrayOutputStream();
+        int syncCount = 0;
+        for (int i = 0; i < offsets.length; i += syncInterval) {
+            stss.write(int32(i + 1));
+            syncCount++;
+        }
+
+        byte[] stbl = box("stbl",
+                fullBox("stsd", int32(1), avc1),
+                fullBox("stts", int32(1), int32(offsets.length), int32(VIDEO_SAMPLE_DELTA)),
+                fullBox("stss", int32(syncCount), stss.toByteArray()),
+                sampleSizes(sizes),
+                fullBox("stsc", int32(1), int32(1), int32(1), int32(1)),
+                chunkOffsets(offsets));
+        return track(1, "vide", VIDEO_TIMESCALE, (long) offsets.length * VIDEO_SAMPLE_DELTA, 320, 240, stbl);
+    }
+
+    private byte[] audioTrack(long[] offsets) throws IOException {
+        byte[] decoderSpecificInfo = {0x05, 2, 0x12, 0x10};
+        byte[] decoderConfig = concat(new byte[]{0x04, (byte) (13 + decoderSpecificInfo.length), 0x40, 0x15, 0, 0, 0},
+                int32(128000), int32(96000), decoderSpecificInfo);
+        byte[] esDescriptor = concat(new byte[]{0x03, (byte) (3 + decoderConfig.length), 0, 1, 0}, decoderConfig);
+        byte[] mp4a = box("mp4a", new byte[6], int16(1), new byte[8], int16(2), int16(16), int16(0), int16(0),
+                int32(AUDIO_TIMESCALE << 16), fullBox("esds", esDescriptor));
+
+        int[] sizes = new int[offsets.length];
+        for (int i = 0; i < sizes.length; i++) sizes[i] = audioSampleSize(audioSampleSize, i);
+
+        byte[] stbl = box("stbl",
+                fullBox("stsd", int32(1), mp4a),
+                fullBox("stts", int32(1), int32(offsets.length), int32(AUDIO_SAMPLE_DELTA)),
+                sampleSizes(sizes),
+                fullBox("stsc", int32(1), int32(1), int32(1), int32(1)),
+                chunkOffsets(offsets));
+        return track(2, "soun", AUDIO_TIMESCALE, (long) offsets.length * AUDIO_SAMPLE_DELTA, 0, 0, stbl);
+    }
+
+    private byte[] track(int id, String handler, int timescale, long duration, int width, int height, byte[] stbl) throws IOException {
+        int one = 0x10000;
+        int[] matrix = {one, 0, 0, 0, one, 0, 0, 0, 0x40000000};
+        if (rotation == 90) matrix = new int[]{0, one, 0, -one, 0, 0, 0, 0, 0x40000000};
+        if (rotation == 180) matrix = new int[]{-one, 0, 0, 0, -one, 0, 0, 0, 0x40000000};
+        if (rotation == 270) matrix = new int[]{0, -one, 0, one, 0, 0, 0, 0, 0x40000000};
+        ByteArrayOutputStream matrixBytes = new ByteArrayOutputStream();
+        for (int value : matrix) matrixBytes.write(int32(value));
+
+        byte[] tkhd = fullBox("tkhd", int32(0), int32(0), int32(id), int32(0), int32((int) duration),
+                new byte[8], int16(0), int16(0), int16(0), int16(0), matrixBytes.toByteArray(), int32(width << 16), int32(height << 16));
+        byte[] mdhd = fullBox("mdhd", int32(0), int32(0), int32(timescale), int32((int) duration), int16(0x55c4), int16(0));
+        byte[] hdlr = fullBox("hdlr", int32(0), bytes(handler), new byte[12], new byte[]{0});
+        return box("trak", tkhd, box("mdia", mdhd, hdlr, box("minf", stbl)));
+    }
+
+    private byte[] sampleSizes(int[] sizes) throws IOException {
+        ByteArrayOutputStream table = new ByteArrayOutputStream();
+        for (int size : sizes) table.write(int32(size));
+        return fullBox("stsz", int32(0), int32(sizes.length), table.toByteArray());
+    }
+
+    private byte[] chunkOffsets(long[] offsets) throws IOException {
+        ByteArrayOutputStream table = new ByteArrayOutputStream();
+        for (long offset : offsets) table.write(int32((int) offset));
+        return fullBox("stco", int32(offsets.length), table.toByteArray());
+    }
+
+    private static byte[] fullBox(String type, byte[]... payload) throws IOException {
+        return box(type, concat(new byte[4], concat(payload)));
+    }
+
+    private static byte[] box(String type, byte[]... payload) throws IOException {
+        byte[] content = concat(payload);
+        return concat(int32(content.length + 8), bytes(type), content);
+    }
+
+    private static byte[] concat(byte[]... parts) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) out.write(part);
+        return out.toByteArray();
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes();
+    }
+
+    private static byte[] int16(int value) {
+        return new byte[]{(byte) (value >> 8), (byte) value};
+    }
+
+    private static byte[] int32(int value) {
+        return new byte[]{(byte) (value >> 24), (byte) (value >> 16), (byte) (value >> 8), (byte) value};
+    }
+}
@@ -30,11 +30,16 @@ import org.m4m.domain.Pipeline;
 import org.m4m.domain.Render;
 import org.m4m.domain.VideoDecoder;
 import org.m4m.domain.VideoEncoder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import javax.naming.OperationNotSupportedException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.*;
 
@@ -61,6 +66,21 @@ public class WhenRender extends TestBase {
                 .construct();
         VideoEncoder encoder = create.videoEncoder().with(encoderMediaCodec).construct();
         IMediaMuxer muxer = create.mediaMuxer().construct();
+        final ByteBuffer expectedBuffer = create.byteBuffer(44, 55, 66);
+        final IMediaCodec.BufferInfo expectedBufferInfo = new IMediaCodec.BufferInfo();
+        expectedBufferInfo.size = 3;
+        // buffer infos are recycled after writing, so compare them when written
+        final int[] expectedSamples = new int[1];
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                Object[] arguments = invocation.getArguments();
+                if (arguments[0].equals(0) && expectedBuffer.equals(arguments[1]) && expectedBufferInfo.equals(arguments[2])) {
+                    expectedSamples[0]++;
+                }
+                return null;
+            }
+        }).when(muxer).writeSampleData(anyInt(), any(ByteBuffer.class), any(IMediaCodec.BufferInfo.class));
 
         final CommandProcessor commandProcessor = new CommandProcessor(new ProgressListenerFake());
         Pipeline pipeline = new Pipeline(commandProcessor);
@@ -73,10 +93,7 @@ public class WhenRender extends TestBase {
 
         commandProcessor.process();
 
-        ByteBuffer expectedBuffer = create.byteBuffer(44, 55, 66);
-        IMediaCodec.BufferInfo expectedBufferInfo = new IMediaCodec.BufferInfo();
-        expectedBufferInfo.size = 3;
-        verify(muxer, times(2)).writeSampleData(eq(0), eq(expectedBuffer), eq(expectedBufferInfo));
+        assertEquals(2, expectedSamples[0]);
         verify(muxer).stop();
         verify(muxer).release();
     }
@@ -0,0 +1,299 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.domain.mp4;
+
+import org.m4m.domain.IMediaCodec;
+import org.m4m.domain.TestBase;
+import org.m4m.domain.dsl.Mp4FileFather;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FragmentedMp4MuxerTest extends TestBase {
+    private File output;
+    private Mp4Extractor extractor;
+
+    @Before
+    public void createOutput() throws IOException {
+        output = File.createTempFile("fragmented", ".mp4");
+    }
+
+    @After
+    public void release() {
+        if (extractor != null) {
+            extractor.release();
+        }
+        output.delete();
+    }
+
+    @Test
+    public void movieBoxDescribesTracks() throws IOException {
+        remux(create.mp4File().withVideoSamples(30, 10).withAudioSamples(43).construct(), 300000, true);
+        ByteBuffer file = read();
+
+        List<int[]> boxes = children(file, 0, file.limit());
+        assertEquals("ftyp", type(file, boxes.get(0)));
+        assertEquals("moov", type(file, boxes.get(1)));
+
+        int[] moov = boxes.get(1);
+        List<int[]> traks = find(file, moov, "trak");
+        assertEquals(2, traks.size());
+        assertEquals(2, find(file, find(file, moov, "mvex").get(0), "trex").size());
+
+        int[] avcC = path(file, traks.get(0), "mdia", "minf", "stbl", "stsd");
+        assertTrue(indexOf(file, avcC, Mp4FileFather.SPS) > 0);
+        assertTrue(indexOf(file, avcC, Mp4FileFather.PPS) > 0);
+        assertTrue(indexOf(file, path(file, traks.get(1), "mdia", "minf", "stbl", "stsd"), new byte[]{0x05, 2, 0x12, 0x10}) > 0);
+    }
+
+    @Test
+    public void fragmentsStartOnKeyFramesAndReferenceSampleData() throws IOException {
+        File source = create.mp4File().withVideoSamples(30, 10).withAudioSamples(43).construct();
+        remux(source, 300000, true);
+        ByteBuffer file = read();
+
+        List<int[]> moofs = find(file, new int[]{0, file.limit()}, "moof");
+        assertEquals(3, moofs.size());
+
+        extractor = new Mp4Extractor(source.getPath());
+        extractor.selectTrack(0);
+        ByteBuffer sample = ByteBuffer.allocate(1024);
+        for (int[] moof : moofs) {
+            int[] traf = find(file, moof, "traf").get(0);
+            int[] trun = find(file, traf, "trun").get(0);
+            int count = file.getInt(trun[0] + 12);
+            int dataOffset = file.getInt(trun[0] + 16);
+            assertEquals(10, count);
+            assertEquals(0x02000000, file.getInt(trun[0] + 20 + 8));
+
+            int position = moof[0] + dataOffset;
+            for (int i = 0; i < count; i++) {
+                int size = file.getInt(trun[0] + 20 + 12 * i + 4);
+                assertEquals(extractor.readSampleData(sample), size);
+                byte[] written = new byte[size];
+                ((ByteBuffer) file.duplicate().position(position)).get(written);
+                assertArrayEquals(bytes(sample), written);
+                position += size;
+                extractor.advance();
+            }
+        }
+    }
+
+    @Test
+    public void fileEndsWithLastCompleteFragmentWithoutStop() throws IOException {
+        remux(create.mp4File().withVideoSamples(30, 10).construct(), 300000, false);
+        ByteBuffer file = read();
+
+        List<int[]> boxes = children(file, 0, file.limit());
+        assertEquals(file.limit(), boxes.get(boxes.size() - 1)[1]);
+        assertEquals(2, find(file, new int[]{0, file.limit()}, "moof").size());
+    }
+
+    @Test
+    public void annexBSamplesAreWrittenLengthPrefixed() throws IOException {
+        FragmentedMp4Muxer muxer = videoMuxer();
+        write(muxer, new byte[]{0, 0, 0, 1, 0x65, 1, 2, 0, 0, 1, 0x06, 3}, 0, 1);
+        muxer.stop();
+        ByteBuffer file = read();
+
+        int[] mdat = find(file, new int[]{0, file.limit()}, "mdat").get(0);
+        byte[] data = new byte[mdat[1] - mdat[0] - 8];
+        ((ByteBuffer) file.duplicate().position(mdat[0] + 8)).get(data);
+        assertArrayEquals(new byte[]{0, 0, 0, 3, 0x65, 1, 2, 0, 0, 0, 2, 0x06, 3}, data);
+    }
+
+    @Test
+    public void reorderedFramesGetCompositionOffsets() throws IOException {
+        FragmentedMp4Muxer muxer = videoMuxer();
+        write(muxer, new byte[]{1}, 0, 1);
+        write(muxer, new byte[]{2}, 66666, 0);
+        write(muxer, new byte[]{3}, 33333, 0);
+        muxer.stop();
+        ByteBuffer file = read();
+
+        int[] trun = path(file, find(file, new int[]{0, file.limit()}, "moof").get(0), "traf", "trun");
+        assertEquals(0x01000f01, file.getInt(trun[0] + 8));
+        assertEquals(0, file.getInt(trun[0] + 20 + 12));
+        assertEquals(3000, file.getInt(trun[0] + 20 + 16 + 12));
+        assertEquals(-3000, file.getInt(trun[0] + 20 + 32 + 12));
+    }
+
+    @Test
+    public void highSampleRateIsLeftToMediaTimescale() throws IOException {
+        FragmentedMp4Muxer muxer = new FragmentedMp4Muxer(output.getPath());
+        muxer.addTrack(create.audioFormat().withMimeType("audio/mp4a-latm").withSampleRate(96000).construct());
+        muxer.start();
+        write(muxer, new byte[]{1}, 0, 0);
+        muxer.stop();
+        ByteBuffer file = read();
+
+        int[] trak = find(file, find(file, new int[]{0, file.limit()}, "moov").get(0), "trak").get(0);
+        int[] mdhd = path(file, trak, "mdia", "mdhd");
+        assertEquals(96000, file.getInt(mdhd[0] + 20));
+        int[] stsd = path(file, trak, "mdia", "minf", "stbl", "stsd");
+        int mp4a = stsd[0] + 16;
+        assertEquals("mp4a", type(file, new int[]{mp4a, stsd[1]}));
+        assertEquals(0, file.getInt(mp4a + 8 + 24));
+    }
+
+    @Test
+    public void keyFramesAreTakenFromCodecSyncFrameFlag() throws IOException {
+        FragmentedMp4Muxer muxer = videoMuxer();
+        write(muxer, new byte[]{1}, 0, IMediaCodec.BUFFER_FLAG_SYNC_FRAME);
+        write(muxer, new byte[]{2}, 33333, 0);
+        muxer.stop();
+        ByteBuffer file = read();
+
+        int[] trun = path(file, find(file, new int[]{0, file.limit()}, "moof").get(0), "traf", "trun");
+        assertEquals(0x02000000, file.getInt(trun[0] + 20 + 8));
+        assertEquals(0x01010000, file.getInt(trun[0] + 20 + 12 + 8));
+    }
+
+    @Test
+    public void writeBehindProducesSameFile() throws IOException {
+        File source = create.mp4File().withVideoSamples(30, 10).withAudioSamples(43).construct();
+        remux(source, 300000, true);
+        ByteBuffer direct = read();
+
+        remux(source, 300000, true, 1024);
+        assertEquals(direct, read());
+    }
+
+    private void remux(File source, long fragmentDurationUs, boolean stop) throws IOException {
+        remux(source, fragmentDurationUs, stop, 0);
+    }
+
+    private void remux(File source, long fragmentDurationUs, boolean stop, long writeBehindBudget) throws IOException {
+        Mp4Extractor input = new Mp4Extractor(source.getPath());
+        FragmentedMp4Muxer muxer = new FragmentedMp4Muxer(output.getPath(), fragmentDurationUs);
+        muxer.setWriteBehindBudget(writeBehindBudget);
+        for (int i = 0; i < input.getTrackCount(); i++) {
+            muxer.addTrack(input.getTrackFormat(i));
+            input.selectTrack(i);
+        }
+        muxer.start();
+
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        IMediaCodec.BufferInfo bufferInfo = new IMediaCodec.BufferInfo();
+        while (input.getSampleTrackIndex() >= 0) {
+            bufferInfo.size = input.readSampleData(buffer);
+            bufferInfo.presentationTimeUs = input.getSampleTime();
+            bufferInfo.flags = input.getSampleFlags();
+            muxer.writeSampleData(input.getSampleTrackIndex(), buffer, bufferInfo);
+            input.advance();
+        }
+        input.release();
+
+        if (stop) {
+            muxer.stop();
+        }
+        muxer.release();
+    }
+
+    private FragmentedMp4Muxer videoMuxer() throws IOException {
+        extractor = new Mp4Extractor(create.mp4File().construct().getPath());
+        FragmentedMp4Muxer muxer = new FragmentedMp4Muxer(output.getPath());
+        muxer.addTrack(extractor.getTrackFormat(0));
+        muxer.start();
+        return muxer;
+    }
+
+    private static void write(FragmentedMp4Muxer muxer, byte[] sample, long time, int flags) {
+        IMediaCodec.BufferInfo bufferInfo = new IMediaCodec.BufferInfo();
+        bufferInfo.size = sample.length;
+        bufferInfo.presentationTimeUs = time;
+        bufferInfo.flags = flags;
+        muxer.writeSampleData(0, ByteBuffer.wrap(sample), bufferInfo);
+    }
+
+    private ByteBuffer read() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(output, "r");
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate((int) file.length());
+            file.getChannel().read(buffer);
+            buffer.flip();
+            return buffer;
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Returns [start, end) of boxes in the range.
+     */
+    private static List<int[]> children(ByteBuffer b, int start, int end) {
+        List<int[]> boxes = new ArrayList<int[]>();
+        for (int box = start; box + 8 <= end; box += b.getInt(box)) {
+            assertTrue(b.getInt(box) >= 8 && box + b.getInt(box) <= end);
+            boxes.add(new int[]{box, box + b.getInt(box)});
+        }
+        return boxes;
+    }
+
+    private static List<int[]> find(ByteBuffer b, int[] parent, String type) {
+        int start = parent[0] == 0 && parent[1] == b.limit() ? 0 : parent[0] + 8;
+        List<int[]> result = new ArrayList<int[]>();
+        for (int[] box : children(b, start, parent[1])) {
+            if (type.equals(type(b, box))) {
+                result.add(box);
+            }
+        }
+        return result;
+    }
+
+    private static int[] path(ByteBuffer b, int[] box, String... types) {
+        for (String type : types) {
+            box = find(b, box, type).get(0);
+        }
+        return box;
+    }
+
+    private static String type(ByteBuffer b, int[] box) {
+        byte[] type = new byte[4];
+        ((ByteBuffer) b.duplicate().position(box[0] + 4)).get(type);
+        return new String(type);
+    }
+
+    private static int indexOf(ByteBuffer b, int[] box, byte[] pattern) {
+        for (int i = box[0]; i + pattern.length <= box[1]; i++) {
+            byte[] candidate = new byte[pattern.length];
+            ((ByteBuffer) b.duplicate().position(i)).get(candidate);
+            if (Arrays.equals(candidate, pattern)) {
+                return i - box[0];
+            }
+        }
+        return -1;
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.domain.mp4;
+
+import org.m4m.AudioFormat;
+import org.m4m.VideoFormat;
+import org.m4m.domain.Command;
+import org.m4m.domain.Frame;
+import org.m4m.domain.IMediaExtractor;
+import org.m4m.domain.MediaSource;
+import org.m4m.domain.Pair;
+import org.m4m.domain.TestBase;
+import org.m4m.domain.dsl.Mp4FileFather;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class Mp4ExtractorTest extends TestBase {
+    private Mp4Extractor extractor;
+
+    @After
+    public void release() {
+        if (extractor != null) {
+            extractor.release();
+        }
+    }
+
+    @Test
+    public void parsesVideoAndAudioFormats() throws IOException {
+        extractor = new Mp4Extractor(create.mp4File().withVideoSamples(30, 10).withAudioSamples(43).construct().getPath());
+
+        assertEquals(2, extractor.getTrackCount());
+        VideoFormat video = (VideoFormat) extractor.getTrackFormat(0);
+        assertEquals("video/avc", video.getMimeType());
+        assertEquals(320, video.getVideoFrameSize().width());
+        assertEquals(240, video.getVideoFrameSize().height());
+        assertEquals(1000000, video.getDuration());
+        assertEquals(30, video.getVideoFrameRate());
+        assertEquals(ByteBuffer.wrap(new byte[]{0, 0, 0, 1, 0x67, 0x42, 0x00, 0x1e}), video.getByteBuffer("csd-0"));
+
+        AudioFormat audio = (AudioFormat) extractor.getTrackFormat(1);
+        assertEquals("audio/mp4a-latm", audio.getMimeType());
+        assertEquals(44100, audio.getAudioSampleRateInHz());
+        assertEquals(2, audio.getAudioChannelCount());
+        assertEquals(ByteBuffer.wrap(new byte[]{0x12, 0x10}), audio.getByteBuffer("csd-0"));
+    }
+
+    @Test
+    public void exposesFormatValuesForPlatformFormats() throws IOException {
+        extractor = new Mp4Extractor(create.mp4File().withVideoSamples(30, 10).withAudioSamples(43).construct().getPath());
+
+        Map<String, Object> video = extractor.getTrackFormatValues(0);
+        assertEquals("video/avc", video.get("mime"));
+        assertEquals(320, video.get("width"));
+        assertEquals(1000000L, video.get("durationUs"));
+        ((ByteBuffer) video.get("csd-0")).position(4);
+
+        assertEquals(0, ((ByteBuffer) extractor.getTrackFormatValues(0).get("csd-0")).position());
+        assertEquals(44100, extractor.getTrackFormatValues(1).get("sample-rate"));
+    }
+
+    @Test
+    public void servesSamplesOfSelectedTracksInterleavedByTime() throws IOException {
+        extractor = new Mp4Extractor(create.mp4File().withVideoSamples(30, 10).withAudioSamples(43).construct().getPath());
+        extractor.selectTrack(0);
+        extractor.selectTrack(1);
+
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        int[] samples = new int[2];
+        long lastTime = -1;
+        do {
+            int track = extractor.getSampleTrackIndex();
+            int size = extractor.readSampleData(buffer);
+
+            int expectedSize = track == 0
+                    ? Mp4FileFather.videoSampleSize(100, samples[0])
+                    : Mp4FileFather.audioSampleSize(20, samples[1]);
+            assertEquals(expectedSize, size);
+            assertEquals((byte) (samples[track] + track * 128), buffer.get(size - 1));
+            assertTrue(extractor.getSampleTime() >= lastTime);
+            lastTime = extractor.getSampleTime();
+            samples[track]++;
+        } while (extractor.advance());
+
+        assertEquals(30, samples[0]);
+        assertEquals(43, samples[1]);
+        assertEquals(-1, extractor.getSampleTrackIndex());
+        assertEquals(-1, extractor.readSampleData(buffer));
+    }
+
+    @Test
+    public void seeksToPreviousSyncSample() throws IOException {
+        extractor = new Mp4Extractor(create.mp4File().withVideoSamples(30, 10).construct().getPath());
+        extractor.selectTrack(0);
+
+        extractor.seekTo(15 * 33333, IMediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+
+        assertEquals(333333, extractor.getSampleTime());
+        assertEquals(Mp4Extractor.SAMPLE_FLAG_SYNC, extractor.getSampleFlags());
+        extractor.advance();
+        assertEquals(0, extractor.getSampleFlags());
+    }
+
+    @Test
+    public void seeksToNextAndClosestSyncSample() throws IOException {
+        extractor = new Mp4Extractor(create.mp4File().withVideoSamples(30, 10).construct().getPath());
+        extractor.selectTrack(0);
+
+        extractor.seekTo(12 * 33333, IMediaExtractor.SEEK_TO_NEXT_SYNC);
+        assertEquals(666666, extractor.getSampleTime());
+
+        extractor.seekTo(12 * 33333, IMediaExtractor.SEEK_TO_CLOSEST_SYNC);
+        assertEquals(333333, extractor.getSampleTime());
+
+        extractor.seekTo(25 * 33333, IMediaExtractor.SEEK_TO_NEXT_SYNC);
+        assertEquals(-1, extractor.getSampleTrackIndex());
+    }
+
+    @Test
+    public void readsRotationFromTrackHeader() throws IOException {
+        extractor = new Mp4Extractor(create.mp4File().withRotation(90).construct().getPath());
+
+        assertEquals(90, extractor.getRotation());
+    }
+
+    @Test
+    public void copiesSamplesAcrossMappedSegments() throws IOException {
+        File file = create.mp4File().withVideoSamples(5, 1).construct();
+        MappedFile mappedFile = new MappedFile(file.getPath(), 64);
+        ByteBuffer buffer = ByteBuffer.allocate(200);
+
+        mappedFile.copy(60, buffer, 200);
+        mappedFile.close();
+
+        ByteBuffer expected = ByteBuffer.allocate(200);
+        MappedFile singleSegment = new MappedFile(file.getPath());
+        singleSegment.copy(60, expected, 200);
+        singleSegment.close();
+        assertEquals(expected.flip(), buffer.flip());
+    }
+
+    @Test
+    public void copiesFromOneFileOnSeveralThreads() throws Exception {
+        File file = create.mp4File().withVideoSamples(30, 10).withAudioSamples(43).construct();
+        final MappedFile mappedFile = new MappedFile(file.getPath(), 64);
+        final ByteBuffer expected = ByteBuffer.allocate((int) mappedFile.length());
+        mappedFile.copy(0, expected, expected.capacity());
+        final AtomicBoolean mismatch = new AtomicBoolean();
+
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final int start = i * 7;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    ByteBuffer buffer = ByteBuffer.allocate(100);
+                    for (int round = 0; round < 2000 && !mismatch.get(); round++) {
+                        int position = (start + round * 13) % (expected.capacity() - buffer.capacity());
+                        buffer.clear();
+                        mappedFile.copy(position, buffer, buffer.capacity());
+                        for (int j = 0; j < buffer.capacity(); j++) {
+                            if (buffer.get(j) != expected.get(position + j)) {
+                                mismatch.set(true);
+                            }
+                        }
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        mappedFile.close();
+
+        assertFalse(mismatch.get());
+    }
+
+    @Test
+    public void mediaSourceReadsAllSamplesOfSegment() throws IOException {
+        extractor = new Mp4Extractor(create.mp4File().withVideoSamples(30, 10).construct().getPath());
+        MediaSource mediaSource = new MediaSource(extractor);
+        mediaSource.selectTrack(0);
+        mediaSource.add(new Pair<Long, Long>(333333L, 1000000L));
+        mediaSource.start();
+
+        int frames = 0;
+        Frame frame = create.frame().withBuffer(new int[200]).construct();
+        while (mediaSource.getOutputCommandQueue().dequeue().left == Command.HasData) {
+            mediaSource.pull(frame);
+            frames++;
+        }
+
+        assertEquals(20, frames);
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.domain.mp4;
+
+import org.m4m.domain.IMediaCodec;
+import org.m4m.domain.IMediaMuxer;
+import org.m4m.domain.TestBase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+
+public class Mp4FastStartTest extends TestBase {
+    private File source;
+    private File output;
+
+    @Before
+    public void createFiles() throws IOException {
+        source = create.mp4File().withVideoSamples(30, 10).withAudioSamples(43).construct();
+        output = File.createTempFile("faststart", ".mp4");
+    }
+
+    @After
+    public void deleteFiles() {
+        source.delete();
+        output.delete();
+    }
+
+    @Test
+    public void movesMovieBoxInFrontOfMediaData() throws IOException {
+        assertTrue(Mp4FastStart.process(source.getPath(), output.getPath()));
+
+        assertEquals("ftyp moov mdat", topLevelBoxes(output));
+        assertEquals(source.length(), output.length());
+    }
+
+    @Test
+    public void keepsSamplesReadable() throws IOException {
+        Mp4FastStart.process(source.getPath(), output.getPath());
+
+        Mp4Extractor expected = new Mp4Extractor(source.getPath());
+        Mp4Extractor actual = new Mp4Extractor(output.getPath());
+        for (int track = 0; track < expected.getTrackCount(); track++) {
+            expected.selectTrack(track);
+            actual.selectTrack(track);
+        }
+
+        ByteBuffer expectedSample = ByteBuffer.allocate(1024);
+        ByteBuffer actualSample = ByteBuffer.allocate(1024);
+        int samples = 0;
+        while (expected.getSampleTrackIndex() >= 0) {
+            assertEquals(expected.getSampleTrackIndex(), actual.getSampleTrackIndex());
+            assertEquals(expected.getSampleTime(), actual.getSampleTime());
+            assertEquals(expected.readSampleData(expectedSample), actual.readSampleData(actualSample));
+            assertEquals(expectedSample, actualSample);
+            expected.advance();
+            actual.advance();
+            samples++;
+        }
+        assertEquals(-1, actual.getSampleTrackIndex());
+        assertEquals(73, samples);
+
+        expected.release();
+        actual.release();
+    }
+
+    @Test
+    public void copiesFastStartFileUnchanged() throws IOException {
+        Mp4FastStart.process(source.getPath(), output.getPath());
+        File copy = File.createTempFile("faststart", ".mp4");
+        try {
+            assertFalse(Mp4FastStart.process(output.getPath(), copy.getPath()));
+
+            assertArrayEquals(bytes(output), bytes(copy));
+        } finally {
+            copy.delete();
+        }
+    }
+
+    @Test
+    public void muxerProcessesFileOnRelease() throws IOException {
+        File temporary = File.createTempFile("faststart", ".tmp");
+        copy(source, temporary);
+        FastStartMediaMuxer muxer = new FastStartMediaMuxer(mock(IMediaMuxer.class), temporary.getPath(), output.getPath());
+        muxer.start();
+        muxer.writeSampleData(0, ByteBuffer.allocate(1), new IMediaCodec.BufferInfo());
+        muxer.stop();
+        muxer.release();
+
+        assertFalse(temporary.exists());
+        assertEquals("ftyp moov mdat", topLevelBoxes(output));
+    }
+
+    @Test
+    public void muxerKeepsTemporaryFileAsResultWhenProcessingFails() throws IOException {
+        File temporary = File.createTempFile("faststart", ".tmp");
+        RandomAccessFile broken = new RandomAccessFile(temporary, "rw");
+        broken.write(new byte[]{0, 0, 0, 16, 'm', 'd', 'a', 't', 1, 2, 3, 4, 5, 6, 7, 8});
+        broken.close();
+        byte[] recording = bytes(temporary);
+        FastStartMediaMuxer muxer = new FastStartMediaMuxer(mock(IMediaMuxer.class), temporary.getPath(), output.getPath());
+        muxer.start();
+        muxer.stop();
+
+        try {
+            muxer.release();
+            fail();
+        } catch (RuntimeException e) {
+            assertFalse(temporary.exists());
+            assertArrayEquals(recording, bytes(output));
+        }
+    }
+
+    private static String topLevelBoxes(File file) throws IOException {
+        byte[] bytes = bytes(file);
+        ByteBuffer b = ByteBuffer.wrap(bytes);
+        StringBuilder boxes = new StringBuilder();
+        for (int box = 0; box + 8 <= bytes.length; box += b.getInt(box)) {
+            if (boxes.length() > 0) {
+                boxes.append(' ');
+            }
+            boxes.append(new String(bytes, box + 4, 4));
+        }
+        return boxes.toString();
+    }
+
+    private static byte[] bytes(File file) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) input.length()];
+            input.readFully(bytes);
+            return bytes;
+        } finally {
+            input.close();
+        }
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(from, "r");
+        RandomAccessFile output = new RandomAccessFile(to, "rw");
+        try {
+            FileChannel channel = input.getChannel();
+            channel.transferTo(0, channel.size(), output.getChannel());
+        } finally {
+            input.close();
+            output.close();
+        }
+    }
+}
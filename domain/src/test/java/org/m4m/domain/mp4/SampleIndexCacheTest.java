@@ -0,0 +1,219 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.domain.mp4;
+
+import org.m4m.VideoFormat;
+import org.m4m.domain.IMediaExtractor;
+import org.m4m.domain.TestBase;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SampleIndexCacheTest extends TestBase {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void secondOpenIsServedFromMemory() throws IOException {
+        File file = create.mp4File().withAudioSamples(43).construct();
+        SampleIndexCache cache = new SampleIndexCache(1 << 20);
+
+        new Mp4Extractor(file.getPath(), cache).release();
+        Mp4Extractor extractor = new Mp4Extractor(file.getPath(), cache);
+
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, extractor.getTrackCount());
+        extractor.release();
+    }
+
+    @Test
+    public void cachedIndexMatchesParsedFile() throws IOException {
+        File file = create.mp4File().withVideoSamples(30, 10).withAudioSamples(43).withRotation(270).construct();
+        SampleIndexCache cache = new SampleIndexCache(1 << 20);
+        new Mp4Extractor(file.getPath(), cache).release();
+
+        Mp4Extractor cached = new Mp4Extractor(file.getPath(), cache);
+        Mp4Extractor parsed = new Mp4Extractor(file.getPath());
+
+        assertEquals(1, cache.getHitCount());
+        assertEquals(270, cached.getRotation());
+        VideoFormat format = (VideoFormat) cached.getTrackFormat(0);
+        assertEquals(parsed.getTrackFormat(0).getDuration(), format.getDuration());
+        assertEquals(320, format.getVideoFrameSize().width());
+        assertEquals(parsed.getTrackFormat(0).getByteBuffer("csd-1"), format.getByteBuffer("csd-1"));
+        assertEquals(parsed.getTrackFormat(1).getByteBuffer("csd-0"), cached.getTrackFormat(1).getByteBuffer("csd-0"));
+        assertSameSamples(parsed, cached);
+        cached.release();
+        parsed.release();
+    }
+
+    @Test
+    public void indexIsRestoredFromDisk() throws IOException {
+        File file = create.mp4File().withVideoSamples(30, 10).withAudioSamples(43).withRotation(270).construct();
+        File directory = folder.newFolder();
+        new Mp4Extractor(file.getPath(), new SampleIndexCache(directory, 1 << 20, 1 << 20)).release();
+
+        SampleIndexCache cache = new SampleIndexCache(directory, 1 << 20, 1 << 20);
+        Mp4Extractor cached = new Mp4Extractor(file.getPath(), cache);
+        Mp4Extractor parsed = new Mp4Extractor(file.getPath());
+
+        assertEquals(1, cache.getDiskHitCount());
+        assertEquals(0, cache.getMissCount());
+        assertEquals(270, cached.getRotation());
+        VideoFormat format = (VideoFormat) cached.getTrackFormat(0);
+        assertEquals(parsed.getTrackFormat(0).getDuration(), format.getDuration());
+        assertEquals(parsed.getTrackFormat(0).getByteBuffer("csd-1"), format.getByteBuffer("csd-1"));
+        assertSameSamples(parsed, cached);
+        cached.release();
+        parsed.release();
+
+        new Mp4Extractor(file.getPath(), cache).release();
+        assertEquals(1, cache.getDiskHitCount());
+        assertEquals(2, cache.getHitCount());
+    }
+
+    @Test
+    public void corruptIndexFileIsParsedAgain() throws IOException {
+        File file = create.mp4File().withVideoSamples(30, 10).construct();
+        File directory = folder.newFolder();
+        new Mp4Extractor(file.getPath(), new SampleIndexCache(directory, 1 << 20, 1 << 20)).release();
+        for (File indexFile : directory.listFiles()) {
+            RandomAccessFile output = new RandomAccessFile(indexFile, "rw");
+            output.setLength(indexFile.length() / 2);
+            output.close();
+        }
+
+        SampleIndexCache cache = new SampleIndexCache(directory, 1 << 20, 1 << 20);
+        Mp4Extractor extractor = new Mp4Extractor(file.getPath(), cache);
+
+        assertEquals(1, cache.getMissCount());
+        assertEquals(30, countSamples(extractor));
+        extractor.release();
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedIndexFilesAboveSizeLimit() throws IOException {
+        File directory = folder.newFolder();
+        SampleIndexCache cache = new SampleIndexCache(directory, 2000, 1 << 20);
+
+        for (int i = 0; i < 5; i++) {
+            new Mp4Extractor(create.mp4File().withVideoSamples(30, 10).construct().getPath(), cache).release();
+        }
+
+        long totalSize = 0;
+        for (File indexFile : directory.listFiles()) {
+            totalSize += indexFile.length();
+        }
+        assertTrue(totalSize <= 2000);
+        assertTrue(directory.listFiles().length > 0);
+    }
+
+    @Test
+    public void modifiedFileIsParsedAgain() throws IOException {
+        File file = create.mp4File().withVideoSamples(30, 10).construct();
+        SampleIndexCache cache = new SampleIndexCache(1 << 20);
+        new Mp4Extractor(file.getPath(), cache).release();
+
+        create.mp4File().in(file).withVideoSamples(40, 10).construct();
+        Mp4Extractor extractor = new Mp4Extractor(file.getPath(), cache);
+
+        assertEquals(2, cache.getMissCount());
+        extractor.selectTrack(0);
+        extractor.seekTo(35 * 33333, IMediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        assertEquals(1000000, extractor.getSampleTime());
+        extractor.release();
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedIndexesAboveSizeLimit() throws IOException {
+        // Tables of 30 samples take less than 1000 bytes, so two files fit
+        SampleIndexCache cache = new SampleIndexCache(2000);
+        File first = create.mp4File().withVideoSamples(30, 10).construct();
+        File second = create.mp4File().withVideoSamples(30, 10).construct();
+        File third = create.mp4File().withVideoSamples(30, 10).construct();
+
+        new Mp4Extractor(first.getPath(), cache).release();
+        new Mp4Extractor(second.getPath(), cache).release();
+        new Mp4Extractor(first.getPath(), cache).release();
+        new Mp4Extractor(third.getPath(), cache).release();
+        new Mp4Extractor(first.getPath(), cache).release();
+        new Mp4Extractor(second.getPath(), cache).release();
+
+        assertEquals(2, cache.getHitCount());
+        assertEquals(4, cache.getMissCount());
+        assertTrue(cache.getSize() <= 2000);
+    }
+
+    @Test
+    public void extractorsGetTheirOwnFormats() throws IOException {
+        File file = create.mp4File().withVideoSamples(30, 10).construct();
+        SampleIndexCache cache = new SampleIndexCache(1 << 20);
+        Mp4Extractor first = new Mp4Extractor(file.getPath(), cache);
+        VideoFormat format = (VideoFormat) first.getTrackFormat(0);
+        format.setVideoFrameSize(640, 480);
+        format.getByteBuffer("csd-0").put(0, (byte) 0x7f);
+
+        Mp4Extractor second = new Mp4Extractor(file.getPath(), cache);
+        Mp4Extractor parsed = new Mp4Extractor(file.getPath());
+
+        VideoFormat cached = (VideoFormat) second.getTrackFormat(0);
+        assertEquals(1, cache.getHitCount());
+        assertEquals(320, cached.getVideoFrameSize().width());
+        assertEquals(parsed.getTrackFormat(0).getByteBuffer("csd-0"), cached.getByteBuffer("csd-0"));
+        first.release();
+        second.release();
+        parsed.release();
+    }
+
+    private static int countSamples(Mp4Extractor extractor) {
+        extractor.selectTrack(0);
+        int samples = 0;
+        while (extractor.getSampleTrackIndex() >= 0) {
+            samples++;
+            extractor.advance();
+        }
+        return samples;
+    }
+
+    private void assertSameSamples(Mp4Extractor expected, Mp4Extractor actual) {
+        ByteBuffer expectedBuffer = ByteBuffer.allocate(1024);
+        ByteBuffer actualBuffer = ByteBuffer.allocate(1024);
+        for (int i = 0; i < expected.getTrackCount(); i++) {
+            expected.selectTrack(i);
+            actual.selectTrack(i);
+        }
+
+        do {
+            assertEquals(expected.getSampleTrackIndex(), actual.getSampleTrackIndex());
+            assertEquals(expected.getSampleTime(), actual.getSampleTime());
+            assertEquals(expected.getSampleFlags(), actual.getSampleFlags());
+            assertEquals(expected.readSampleData(expectedBuffer), actual.readSampleData(actualBuffer));
+            assertEquals(expectedBuffer, actualBuffer);
+            actual.advance();
+        } while (expected.advance());
+        assertEquals(-1, actual.getSampleTrackIndex());
+    }
+}
@@ -29,6 +29,8 @@ import org.m4m.domain.TestBase;
 import org.m4m.domain.VideoDecoder;
 
 import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 
 public class CommandHandlerFactoryTest extends TestBase {
     @Test
@@ -48,4 +50,77 @@ public class CommandHandlerFactoryTest extends TestBase {
         ICommandHandler commandHandler = commandHandlerFactory.create(new Pair<Command, Integer>(Command.HasData, 0), new Pair<Command, Integer>(Command.NeedData, 0), new ProgressListenerFake());
         Assert.assertThat(commandHandler, instanceOf(PushDataCommandHandler.class));
     }
+
+    @Test
+    public void reusesStatelessHandler() {
+        final MediaSource mediaSource = create.mediaSource().construct();
+        final VideoDecoder decoder = create.videoDecoder().construct();
+
+        CommandHandlerFactory commandHandlerFactory = new CommandHandlerFactory();
+        commandHandlerFactory.register(new Pair<Command, Integer>(Command.HasData, 0), new Pair<Command, Integer>(Command.NeedData, 0), new IHandlerCreator() {
+            @Override
+            public ICommandHandler create() {
+                return new PushDataCommandHandler(mediaSource, decoder, decoder);
+            }
+        });
+
+        assertSame(createHandler(commandHandlerFactory, Command.HasData, Command.NeedData, 0), createHandler(commandHandlerFactory, Command.HasData, Command.NeedData, 0));
+    }
+
+    @Test
+    public void createsHandlerPerCommandWhenNotReusable() {
+        CommandHandlerFactory commandHandlerFactory = new CommandHandlerFactory();
+        commandHandlerFactory.register(new Pair<Command, Integer>(Command.HasData, 0), new Pair<Command, Integer>(Command.NeedData, 0), new IHandlerCreator() {
+            @Override
+            public ICommandHandler create() {
+                return new ICommandHandler() {
+                    @Override
+                    public void handle() {
+                    }
+                };
+            }
+        });
+
+        assertNotSame(createHandler(commandHandlerFactory, Command.HasData, Command.NeedData, 0), createHandler(commandHandlerFactory, Command.HasData, Command.NeedData, 0));
+    }
+
+    @Test
+    public void dispatchesByTrack() {
+        CommandHandlerFactory commandHandlerFactory = new CommandHandlerFactory();
+        final ICommandHandler videoHandler = new DrainCommandHandler(create.videoDecoder().construct());
+        final ICommandHandler audioHandler = new DrainCommandHandler(create.audioDecoder().construct());
+        commandHandlerFactory.register(new Pair<Command, Integer>(Command.EndOfFile, 0), new Pair<Command, Integer>(Command.NeedData, 0), new IHandlerCreator() {
+            @Override
+            public ICommandHandler create() {
+                return videoHandler;
+            }
+        });
+        commandHandlerFactory.register(new Pair<Command, Integer>(Command.EndOfFile, 1), null, new IHandlerCreator() {
+            @Override
+            public ICommandHandler create() {
+                return audioHandler;
+            }
+        });
+
+        assertSame(videoHandler, createHandler(commandHandlerFactory, Command.EndOfFile, Command.NeedData, 0));
+        assertSame(audioHandler, createHandler(commandHandlerFactory, Command.EndOfFile, Command.NeedData, 1));
+        assertSame(audioHandler, createHandler(commandHandlerFactory, Command.EndOfFile, Command.NeedInputFormat, 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void throwsWhenNoHandlerRegistered() {
+        CommandHandlerFactory commandHandlerFactory = new CommandHandlerFactory();
+        commandHandlerFactory.register(new Pair<Command, Integer>(Command.HasData, 0), new Pair<Command, Integer>(Command.NeedData, 0), new IHandlerCreator() {
+            @Override
+            public ICommandHandler create() {
+                return null;
+            }
+        });
+
+        createHandler(commandHandlerFactory, Command.HasData, Command.NeedData, 2);
+    }
+
+    private ICommandHandler createHandler(CommandHandlerFactory commandHandlerFactory, Command output, Command input, int trackId) {
+        return commandHandlerFactory.create(new Pair<Command, Integer>(output, trackId), new Pair<Command, Integer>(input, trackId), new ProgressListenerFake());
+    }
 }
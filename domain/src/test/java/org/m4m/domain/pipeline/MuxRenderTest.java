@@ -25,10 +25,14 @@ import org.m4m.domain.Command;
 import org.m4m.domain.Frame;
 import org.m4m.domain.IMediaCodec;
 import org.m4m.domain.IMediaMuxer;
+import org.m4m.domain.IPluginOutput;
 import org.m4m.domain.MuxRender;
 import org.m4m.domain.ProgressTracker;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static org.mockito.Mockito.*;
 
@@ -77,6 +81,43 @@ public class MuxRenderTest extends TestBase {
         verify(progressTracker).track(10);
     }
 
+    @Test
+    public void bufferedFrameIsReleasedOnThreadThatPushedIt() throws Exception {
+        ExecutorService audioChain = Executors.newSingleThreadExecutor();
+        IMediaMuxer muxer = create.mediaMuxer().construct();
+        final MuxRender muxRender = (MuxRender) create.muxRender().with(muxer).construct();
+        final IPluginOutput audioEncoder = mock(IPluginOutput.class);
+        IPluginOutput videoEncoder = mock(IPluginOutput.class);
+        muxRender.configure();
+        muxRender.configure();
+        muxRender.setMediaFormat(create.audioFormat().construct());
+
+        audioChain.submit(new Runnable() {
+            @Override
+            public void run() {
+                muxRender.pushWithReleaser(create.frame().withBuffer(1, 2, 3).withInputBufferIndex(7).construct(), audioEncoder);
+            }
+        }).get();
+        muxRender.setMediaFormat(create.videoFormat().construct());
+        muxRender.start();
+        muxRender.pushWithReleaser(create.frame().withBuffer(4, 5, 6).withInputBufferIndex(3).construct(), videoEncoder);
+        muxRender.fillCommandQueues();
+
+        verify(muxer, times(2)).writeSampleData(anyInt(), any(ByteBuffer.class), any(IMediaCodec.BufferInfo.class));
+        verify(videoEncoder).releaseOutputBuffer(3);
+        verify(audioEncoder, never()).releaseOutputBuffer(anyInt());
+
+        audioChain.submit(new Runnable() {
+            @Override
+            public void run() {
+                muxRender.fillCommandQueues();
+            }
+        }).get();
+        audioChain.shutdown();
+
+        verify(audioEncoder).releaseOutputBuffer(7);
+    }
+
     @Test
     public void configure_putsNeedInputFormatCommand() {
         MuxRender muxRender = (MuxRender)create.muxRender().construct();
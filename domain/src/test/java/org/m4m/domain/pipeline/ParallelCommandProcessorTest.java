@@ -0,0 +1,312 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.m4m.domain.pipeline;
+
+import org.junit.Test;
+import org.m4m.domain.Command;
+import org.m4m.domain.CommandHandlerFactory;
+import org.m4m.domain.CommandQueue;
+import org.m4m.domain.ICommandHandler;
+import org.m4m.domain.IHandlerCreator;
+import org.m4m.domain.IInputRaw;
+import org.m4m.domain.IMediaCodec;
+import org.m4m.domain.IMediaMuxer;
+import org.m4m.domain.IOutputRaw;
+import org.m4m.domain.MultipleMediaSource;
+import org.m4m.domain.OutputInputPair;
+import org.m4m.domain.Pair;
+import org.m4m.domain.ParallelCommandProcessor;
+import org.m4m.domain.Pipeline;
+import org.m4m.domain.Plugin;
+import org.m4m.domain.TestBase;
+import org.m4m.domain.mediaComposer.ProgressListenerFake;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ParallelCommandProcessorTest extends TestBase {
+
+    @Test
+    public void splitsAudioAndVideoChainsAtSourceAndSink() {
+        IOutputRaw source = output();
+        IInputRaw sink = input();
+        Plugin videoDecoder = plugin();
+        Plugin videoEncoder = plugin();
+        Plugin audioDecoder = plugin();
+        Plugin audioEncoder = plugin();
+
+        ParallelCommandProcessor commandProcessor = new ParallelCommandProcessor(new ProgressListenerFake());
+        commandProcessor.add(new OutputInputPair(source, videoDecoder, null));
+        commandProcessor.add(new OutputInputPair(source, audioDecoder, null));
+        commandProcessor.add(new OutputInputPair(videoDecoder, videoEncoder, null));
+        commandProcessor.add(new OutputInputPair(audioDecoder, audioEncoder, null));
+        commandProcessor.add(new OutputInputPair(videoEncoder, sink, null));
+        commandProcessor.add(new OutputInputPair(audioEncoder, sink, null));
+
+        List<List<OutputInputPair>> chains = commandProcessor.getChains();
+
+        assertEquals(2, chains.size());
+        assertEquals(3, chains.get(0).size());
+        assertEquals(3, chains.get(1).size());
+        for (OutputInputPair pair : chains.get(0)) {
+            assertFalse(pair.input == audioDecoder || pair.input == audioEncoder);
+        }
+    }
+
+    @Test
+    public void stalledChainDoesNotBlockOtherChain() throws InterruptedException {
+        final CountDownLatch audioHandled = new CountDownLatch(1);
+        final boolean[] videoSawAudio = new boolean[]{false};
+        final ParallelCommandProcessor commandProcessor = new ParallelCommandProcessor(new ProgressListenerFake());
+
+        commandProcessor.add(pairWithPendingCommand(new ICommandHandler() {
+            @Override
+            public void handle() {
+                try {
+                    videoSawAudio[0] = audioHandled.await(1, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+                commandProcessor.stop();
+            }
+        }));
+        commandProcessor.add(pairWithPendingCommand(new ICommandHandler() {
+            @Override
+            public void handle() {
+                audioHandled.countDown();
+            }
+        }));
+
+        commandProcessor.process();
+
+        assertTrue(videoSawAudio[0]);
+    }
+
+    @Test
+    public void codecWaitInOneChainDoesNotHoldSharedSink() throws InterruptedException {
+        final CountDownLatch audioWritten = new CountDownLatch(1);
+        final boolean[] videoSawAudio = new boolean[]{false};
+        final ParallelCommandProcessor commandProcessor = new ParallelCommandProcessor(new ProgressListenerFake());
+        final IOutputRaw audioEncoder = output();
+        IOutputRaw videoEncoder = output();
+        IInputRaw sink = input();
+        sink.getInputCommandQueue().queue(Command.NeedData, 0);
+
+        doAnswer(new Answer<Void>() {
+            private int calls = 0;
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws InterruptedException {
+                // The first call comes from the initial fill before the processing loop
+                if (++calls == 2) {
+                    audioEncoder.getOutputCommandQueue().queue(Command.HasData, 0);
+                    videoSawAudio[0] = audioWritten.await(1, TimeUnit.SECONDS);
+                    commandProcessor.stop();
+                }
+                return null;
+            }
+        }).when(videoEncoder).fillCommandQueues();
+
+        commandProcessor.add(new OutputInputPair(videoEncoder, sink, factory(null)));
+        commandProcessor.add(new OutputInputPair(audioEncoder, sink, factory(new ICommandHandler() {
+            @Override
+            public void handle() {
+                audioWritten.countDown();
+            }
+        })));
+
+        commandProcessor.process();
+
+        assertEquals(2, commandProcessor.getChains().size());
+        assertTrue(videoSawAudio[0]);
+    }
+
+    @Test
+    public void pausesBetweenPassesNotBetweenCommandsOfPair() throws InterruptedException {
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch paused = new CountDownLatch(1);
+        final ParallelCommandProcessor commandProcessor = new ParallelCommandProcessor(new ProgressListenerFake() {
+            @Override
+            public void onMediaPause() {
+                events.add("pause");
+                paused.countDown();
+            }
+        });
+        OutputInputPair pair = pairWithPendingCommand(new ICommandHandler() {
+            @Override
+            public void handle() {
+                events.add("handle");
+                commandProcessor.pause();
+            }
+        });
+        pair.output.getOutputCommandQueue().queue(Command.HasData, 0);
+        pair.input.getInputCommandQueue().queue(Command.NeedData, 0);
+        commandProcessor.add(pair);
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                commandProcessor.process();
+            }
+        });
+        thread.start();
+
+        assertTrue(paused.await(1, TimeUnit.SECONDS));
+        assertEquals("[handle, handle, pause]", events.toString());
+        commandProcessor.stop();
+        commandProcessor.resume();
+        thread.join(1000);
+        assertFalse(thread.isAlive());
+    }
+
+    @Test
+    public void interruptStopsAndJoinsWorkers() throws InterruptedException {
+        final CountDownLatch handled = new CountDownLatch(1);
+        final ParallelCommandProcessor commandProcessor = new ParallelCommandProcessor(new ProgressListenerFake());
+        commandProcessor.add(pairWithPendingCommand(new ICommandHandler() {
+            @Override
+            public void handle() {
+                commandProcessor.pause();
+                handled.countDown();
+            }
+        }));
+        commandProcessor.setIdleTimeout(10);
+
+        final boolean[] interruptKept = new boolean[]{false};
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                commandProcessor.process();
+                interruptKept[0] = Thread.currentThread().isInterrupted();
+            }
+        });
+        thread.start();
+        assertTrue(handled.await(1, TimeUnit.SECONDS));
+
+        thread.interrupt();
+        thread.join(1000);
+
+        assertFalse(thread.isAlive());
+        assertTrue(interruptKept[0]);
+    }
+
+    @Test
+    public void rethrowsChainFailure() {
+        ParallelCommandProcessor commandProcessor = new ParallelCommandProcessor(new ProgressListenerFake());
+        commandProcessor.add(pairWithPendingCommand(new ICommandHandler() {
+            @Override
+            public void handle() {
+                throw new IllegalStateException("codec failure");
+            }
+        }));
+        commandProcessor.setIdleTimeout(10);
+
+        try {
+            commandProcessor.process();
+        } catch (IllegalStateException e) {
+            assertEquals("codec failure", e.getMessage());
+            return;
+        }
+        assertTrue("Chain failure was swallowed", false);
+    }
+
+    @Test
+    public void transcodesThroughFakeCodecs() {
+        MultipleMediaSource multipleMediaSource = create.multipleMediaSource()
+                .with(create.mediaSource().with(2).videoFrames().construct())
+                .construct();
+        IMediaCodec decoderMediaCodec = create.mediaCodec()
+                .withOutputBuffer(4, 5, 6)
+                .withOutputBuffer(4, 5, 6)
+                .withOutputBuffer()
+                .withDequeueOutputBufferIndex(IMediaCodec.INFO_OUTPUT_FORMAT_CHANGED, 0, 1)
+                .construct();
+        IMediaCodec encoderMediaCodec = create.mediaCodec()
+                .withOutputBuffer(44, 55, 66)
+                .withOutputBuffer(44, 55, 66)
+                .withOutputBuffer()
+                .withDequeueOutputBufferIndex(IMediaCodec.INFO_OUTPUT_FORMAT_CHANGED, 0, 1)
+                .construct();
+        IMediaMuxer muxer = create.mediaMuxer().construct();
+
+        ParallelCommandProcessor commandProcessor = new ParallelCommandProcessor(new ProgressListenerFake());
+        Pipeline pipeline = new Pipeline(commandProcessor);
+        pipeline.setMediaSource(multipleMediaSource);
+        pipeline.addVideoDecoder(create.videoDecoder().with(decoderMediaCodec).construct());
+        pipeline.addVideoEncoder(create.videoEncoder().with(encoderMediaCodec).construct());
+        pipeline.setSink(create.render().with(muxer).construct());
+        pipeline.resolve();
+
+        commandProcessor.process();
+
+        assertEquals(1, commandProcessor.getChains().size());
+        verify(muxer, times(3)).writeSampleData(eq(0), eq(create.byteBuffer(44, 55, 66)), any(IMediaCodec.BufferInfo.class));
+        verify(muxer).release();
+    }
+
+    private OutputInputPair pairWithPendingCommand(final ICommandHandler handler) {
+        IOutputRaw output = output();
+        IInputRaw input = input();
+        output.getOutputCommandQueue().queue(Command.HasData, 0);
+        input.getInputCommandQueue().queue(Command.NeedData, 0);
+        return new OutputInputPair(output, input, factory(handler));
+    }
+
+    private CommandHandlerFactory factory(final ICommandHandler handler) {
+        CommandHandlerFactory factory = new CommandHandlerFactory();
+        factory.register(new Pair<Command, Integer>(Command.HasData, 0), new Pair<Command, Integer>(Command.NeedData, 0), new IHandlerCreator() {
+            @Override
+            public ICommandHandler create() {
+                return handler;
+            }
+        });
+        return factory;
+    }
+
+    private IOutputRaw output() {
+        IOutputRaw output = mock(IOutputRaw.class);
+        when(output.getOutputCommandQueue()).thenReturn(new CommandQueue());
+        return output;
+    }
+
+    private IInputRaw input() {
+        IInputRaw input = mock(IInputRaw.class);
+        when(input.getInputCommandQueue()).thenReturn(new CommandQueue());
+        return input;
+    }
+
+    private Plugin plugin() {
+        return mock(Plugin.class);
+    }
+}
@@ -17,17 +17,23 @@
 package org.m4m.domain.pipeline;
 
 import org.junit.Test;
+import org.m4m.AudioFormat;
 import org.m4m.domain.AudioDecoder;
 import org.m4m.domain.AudioEffector;
 import org.m4m.domain.AudioEncoder;
 import org.m4m.domain.CommandProcessor;
+import org.m4m.domain.ICommandProcessor;
 import org.m4m.domain.ISurface;
 import org.m4m.domain.Pipeline;
 import org.m4m.domain.TestBase;
 import org.m4m.domain.VideoDecoder;
 import org.m4m.domain.VideoEncoder;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 public class PipelineTest extends TestBase {
@@ -75,4 +81,34 @@ public class PipelineTest extends TestBase {
             assertTrue(e.toString().contains("java.lang.UnsupportedOperationException"));
         }
     }
+
+    @Test
+    public void connectorFactory_UsesRegisteredConnectorBeforeBuiltInOnes() {
+        CommandProcessor commandProcessor = create.commandProcessor().construct();
+        ConnectorFactory connectorFactory = new ConnectorFactory(commandProcessor, null);
+        VideoDecoder decoder = create.videoDecoder().construct();
+        VideoEncoder encoder = create.videoEncoder().construct();
+        final List<Object> connected = new ArrayList<Object>();
+        connectorFactory.register(VideoDecoder.class, VideoEncoder.class, new INodeConnector<VideoDecoder, VideoEncoder>() {
+            @Override
+            public void connect(ICommandProcessor commandProcessor, AudioFormat audioFormat, VideoDecoder output, VideoEncoder input) {
+                connected.add(output);
+                connected.add(input);
+            }
+        });
+
+        connectorFactory.connect(decoder, encoder);
+
+        assertEquals(2, connected.size());
+        assertSame(decoder, connected.get(0));
+        assertSame(encoder, connected.get(1));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void connectorFactory_ThrowsForUnknownPair() {
+        CommandProcessor commandProcessor = create.commandProcessor().construct();
+        ConnectorFactory connectorFactory = new ConnectorFactory(commandProcessor, null);
+
+        connectorFactory.connect(create.videoEncoder().construct(), create.videoDecoder().construct());
+    }
 }
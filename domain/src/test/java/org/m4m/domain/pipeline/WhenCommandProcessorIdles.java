@@ -0,0 +1,226 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.m4m.domain.pipeline;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.m4m.domain.Command;
+import org.m4m.domain.CommandHandlerFactory;
+import org.m4m.domain.CommandProcessor;
+import org.m4m.domain.CommandQueue;
+import org.m4m.domain.ICommandHandler;
+import org.m4m.domain.IHandlerCreator;
+import org.m4m.domain.IInputRaw;
+import org.m4m.domain.IMediaCodec;
+import org.m4m.domain.IMediaMuxer;
+import org.m4m.domain.IOutputRaw;
+import org.m4m.domain.OutputInputPair;
+import org.m4m.domain.MultipleMediaSource;
+import org.m4m.domain.Pair;
+import org.m4m.domain.Pipeline;
+import org.m4m.domain.TestBase;
+import org.m4m.domain.mediaComposer.ProgressListenerFake;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class WhenCommandProcessorIdles extends TestBase {
+    private static final int IDLE_PERIOD_MS = 200;
+
+    private CommandQueue outputQueue;
+    private CommandQueue inputQueue;
+    private CountDownLatch handled;
+    private CommandProcessor commandProcessor;
+    private boolean stalled;
+    private int stalls;
+
+    @Before
+    public void setUp() {
+        outputQueue = new CommandQueue();
+        inputQueue = new CommandQueue();
+        handled = new CountDownLatch(1);
+        stalled = false;
+        stalls = 0;
+        commandProcessor = new CommandProcessor(new ProgressListenerFake());
+
+        IOutputRaw output = mock(IOutputRaw.class);
+        when(output.getOutputCommandQueue()).thenReturn(outputQueue);
+        IInputRaw input = mock(IInputRaw.class);
+        when(input.getInputCommandQueue()).thenReturn(inputQueue);
+
+        CommandHandlerFactory factory = new CommandHandlerFactory();
+        factory.register(new Pair<Command, Integer>(Command.HasData, 0), new Pair<Command, Integer>(Command.NeedData, 0), new IHandlerCreator() {
+            @Override
+            public ICommandHandler create() {
+                return new ICommandHandler() {
+                    @Override
+                    public void handle() {
+                        if (stalled) {
+                            // Same as a codec without free buffers: put the commands back and skip the input
+                            stalls++;
+                            outputQueue.queue(Command.HasData, 0);
+                            inputQueue.clear();
+                            inputQueue.queue(Command.NextPair, 0);
+                            inputQueue.queue(Command.NeedData, 0);
+                            return;
+                        }
+                        handled.countDown();
+                    }
+                };
+            }
+        });
+        commandProcessor.add(new OutputInputPair(output, input, factory));
+    }
+
+    @Test
+    public void parksWhenNothingIsRunnable() throws InterruptedException {
+        commandProcessor.setIdleTimeout(20);
+
+        runIdle(commandProcessor);
+
+        assertEquals(0, commandProcessor.getBusyIterationsCount());
+        assertTrue(commandProcessor.getIdleIterationsCount() <= IDLE_PERIOD_MS / 20 + 5);
+    }
+
+    @Test
+    public void parksWhenHandlerStallsAndRequeuesCommands() throws InterruptedException {
+        stalled = true;
+        outputQueue.queue(Command.HasData, 0);
+        inputQueue.queue(Command.NeedData, 0);
+        commandProcessor.setIdleTimeout(20);
+
+        runIdle(commandProcessor);
+
+        assertTrue(stalls > 0);
+        assertEquals(0, commandProcessor.getBusyIterationsCount());
+        assertTrue(commandProcessor.getIdleIterationsCount() <= IDLE_PERIOD_MS / 20 + 5);
+    }
+
+    @Test
+    public void parkingLoopIteratesLessThanSpinningLoop() throws InterruptedException {
+        runIdle(commandProcessor);
+        long spinningIterations = commandProcessor.getIdleIterationsCount();
+
+        setUp();
+        commandProcessor.setIdleTimeout(10);
+        runIdle(commandProcessor);
+        long parkingIterations = commandProcessor.getIdleIterationsCount();
+
+        assertTrue("spinning " + spinningIterations + " vs parking " + parkingIterations,
+                parkingIterations * 100 < spinningIterations);
+    }
+
+    @Test
+    public void wakesUpWhenCommandQueued() throws InterruptedException {
+        commandProcessor.setIdleTimeout(10000);
+        Thread thread = start(commandProcessor);
+        Thread.sleep(50);
+
+        outputQueue.queue(Command.HasData, 0);
+        inputQueue.queue(Command.NeedData, 0);
+
+        assertTrue(handled.await(1, TimeUnit.SECONDS));
+        commandProcessor.stop();
+        thread.join(1000);
+
+        assertEquals(1, commandProcessor.getBusyIterationsCount());
+    }
+
+    @Test
+    public void stopWakesUpParkedProcessor() throws InterruptedException {
+        commandProcessor.setIdleTimeout(10000);
+        Thread thread = start(commandProcessor);
+        Thread.sleep(50);
+
+        commandProcessor.stop();
+        thread.join(1000);
+
+        assertTrue(!thread.isAlive());
+    }
+
+    @Test
+    public void fakeCodecTranscodeGivesSameResultWhenParking() {
+        IMediaMuxer spinningMuxer = create.mediaMuxer().construct();
+        CommandProcessor spinning = transcode(spinningMuxer, 0);
+
+        IMediaMuxer parkingMuxer = create.mediaMuxer().construct();
+        CommandProcessor parking = transcode(parkingMuxer, 10);
+
+        verify(spinningMuxer, times(3)).writeSampleData(eq(0), eq(create.byteBuffer(44, 55, 66)), any(IMediaCodec.BufferInfo.class));
+        verify(parkingMuxer, times(3)).writeSampleData(eq(0), eq(create.byteBuffer(44, 55, 66)), any(IMediaCodec.BufferInfo.class));
+        assertEquals(spinning.getBusyIterationsCount(), parking.getBusyIterationsCount());
+        assertTrue(parking.getIdleIterationsCount() <= spinning.getIdleIterationsCount());
+    }
+
+    private CommandProcessor transcode(IMediaMuxer muxer, int idleTimeout) {
+        MultipleMediaSource multipleMediaSource = create.multipleMediaSource()
+                .with(create.mediaSource().with(2).videoFrames().construct())
+                .construct();
+        IMediaCodec decoderMediaCodec = create.mediaCodec()
+                .withOutputBuffer(4, 5, 6)
+                .withOutputBuffer(4, 5, 6)
+                .withOutputBuffer()
+                .withDequeueOutputBufferIndex(IMediaCodec.INFO_OUTPUT_FORMAT_CHANGED, 0, 1)
+                .construct();
+        IMediaCodec encoderMediaCodec = create.mediaCodec()
+                .withOutputBuffer(44, 55, 66)
+                .withOutputBuffer(44, 55, 66)
+                .withOutputBuffer()
+                .withDequeueOutputBufferIndex(IMediaCodec.INFO_OUTPUT_FORMAT_CHANGED, 0, 1)
+                .construct();
+
+        CommandProcessor commandProcessor = new CommandProcessor(new ProgressListenerFake());
+        commandProcessor.setIdleTimeout(idleTimeout);
+        Pipeline pipeline = new Pipeline(commandProcessor);
+        pipeline.setMediaSource(multipleMediaSource);
+        pipeline.addVideoDecoder(create.videoDecoder().with(decoderMediaCodec).construct());
+        pipeline.addVideoEncoder(create.videoEncoder().with(encoderMediaCodec).construct());
+        pipeline.setSink(create.render().with(muxer).construct());
+        pipeline.resolve();
+
+        commandProcessor.process();
+        return commandProcessor;
+    }
+
+    private void runIdle(CommandProcessor commandProcessor) throws InterruptedException {
+        Thread thread = start(commandProcessor);
+        Thread.sleep(IDLE_PERIOD_MS);
+        commandProcessor.stop();
+        thread.join(1000);
+    }
+
+    private Thread start(final CommandProcessor commandProcessor) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                commandProcessor.process();
+            }
+        });
+        thread.start();
+        return thread;
+    }
+}
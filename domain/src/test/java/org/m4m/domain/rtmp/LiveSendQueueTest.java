@@ -0,0 +1,144 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.domain.rtmp;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LiveSendQueueTest {
+    private final ArrayDeque<LiveSendQueue.Packet> free = new ArrayDeque<LiveSendQueue.Packet>();
+
+    @Test
+    public void dropsNonReferenceFramesFirst() {
+        LiveSendQueue queue = new LiveSendQueue(80, 1000, free);
+        queue.offer(key(0));
+        queue.offer(reference(1));
+        queue.offer(nonReference(2));
+        queue.offer(audio(2));
+        queue.offer(reference(3));
+
+        assertTrue(queue.offer(reference(4)));
+
+        assertEquals(1, queue.getDropCount(DropReason.NON_REFERENCE_FRAME));
+        assertEquals(0, queue.getDropCount(DropReason.GROUP_OF_PICTURES));
+        assertEquals("K0 R1 A2 R3 R4", contents(queue));
+    }
+
+    @Test
+    public void dropsGroupOfPicturesUpToNextKeyFrame() {
+        LiveSendQueue queue = new LiveSendQueue(80, 1000, free);
+        queue.offer(key(0));
+        queue.offer(reference(1));
+        queue.offer(audio(1));
+        queue.offer(key(2));
+        queue.offer(reference(3));
+
+        assertTrue(queue.offer(reference(4)));
+
+        assertEquals(2, queue.getDropCount(DropReason.GROUP_OF_PICTURES));
+        assertEquals("A1 K2 R3 R4", contents(queue));
+    }
+
+    @Test
+    public void waitsForKeyFrameAfterDroppingLastGroup() {
+        LiveSendQueue queue = new LiveSendQueue(60, 1000, free);
+        queue.offer(key(0));
+        queue.offer(reference(1));
+        queue.offer(reference(2));
+
+        assertFalse(queue.offer(reference(3)));
+        assertFalse(queue.offer(reference(4)));
+        assertTrue(queue.offer(key(5)));
+        assertTrue(queue.offer(reference(6)));
+
+        assertEquals(3, queue.getDropCount(DropReason.GROUP_OF_PICTURES));
+        assertEquals(2, queue.getDropCount(DropReason.WAITING_FOR_KEY_FRAME));
+        assertEquals("K5 R6", contents(queue));
+        assertEquals(5, free.size());
+    }
+
+    @Test
+    public void neverDropsAudio() {
+        LiveSendQueue queue = new LiveSendQueue(10, 10, free);
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(queue.offer(audio(i * 100)));
+        }
+
+        assertEquals(10, queue.size());
+        assertEquals(200, queue.getBytes());
+        assertEquals(0, queue.getDropCount());
+    }
+
+    @Test
+    public void dropsVideoOlderThanLatencyBudget() {
+        LiveSendQueue queue = new LiveSendQueue(1000, 100, free);
+        queue.offer(key(0));
+        queue.offer(reference(40));
+        queue.offer(audio(40));
+        queue.offer(key(80));
+        queue.offer(reference(120));
+
+        assertTrue(queue.offer(key(150)));
+
+        assertEquals(2, queue.getDropCount(DropReason.LATENCY));
+        assertEquals("A40 K80 R120 K150", contents(queue));
+    }
+
+    private static String contents(LiveSendQueue queue) {
+        StringBuilder contents = new StringBuilder();
+        LiveSendQueue.Packet packet;
+        while ((packet = queue.poll()) != null) {
+            if (contents.length() > 0) {
+                contents.append(' ');
+            }
+            contents.append(!packet.video ? 'A' : packet.keyFrame ? 'K' : packet.reference ? 'R' : 'N').append(packet.timestamp);
+        }
+        return contents.toString();
+    }
+
+    private static LiveSendQueue.Packet key(long timestamp) {
+        return packet(timestamp, true, true, true);
+    }
+
+    private static LiveSendQueue.Packet reference(long timestamp) {
+        return packet(timestamp, true, false, true);
+    }
+
+    private static LiveSendQueue.Packet nonReference(long timestamp) {
+        return packet(timestamp, true, false, false);
+    }
+
+    private static LiveSendQueue.Packet audio(long timestamp) {
+        return packet(timestamp, false, false, true);
+    }
+
+    private static LiveSendQueue.Packet packet(long timestamp, boolean video, boolean keyFrame, boolean reference) {
+        LiveSendQueue.Packet packet = new LiveSendQueue.Packet(new byte[20]);
+        packet.length = 20;
+        packet.timestamp = timestamp;
+        packet.video = video;
+        packet.keyFrame = keyFrame;
+        packet.reference = reference;
+        return packet;
+    }
+}
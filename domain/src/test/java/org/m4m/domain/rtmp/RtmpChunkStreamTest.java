@@ -0,0 +1,79 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.domain.rtmp;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class RtmpChunkStreamTest {
+    @Test
+    public void splitsAndAssemblesMessagesLargerThanChunk() throws IOException {
+        byte[] first = new byte[1000];
+        byte[] second = new byte[300];
+        for (int i = 0; i < first.length; i++) {
+            first[i] = (byte) i;
+        }
+        Arrays.fill(second, (byte) 7);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RtmpChunkStream writer = new RtmpChunkStream(null, out);
+        writer.setOutChunkSize(256);
+        writer.writeMessage(6, RtmpMessage.VIDEO, 1, 40, first, first.length);
+        writer.writeMessage(4, RtmpMessage.AUDIO, 1, 0x1000000, second, second.length);
+        writer.flush();
+        assertEquals(out.size(), writer.getBytesWritten());
+
+        RtmpChunkStream reader = new RtmpChunkStream(new ByteArrayInputStream(out.toByteArray()), null);
+        reader.setInChunkSize(256);
+        RtmpMessage video = reader.readMessage();
+        RtmpMessage audio = reader.readMessage();
+
+        assertEquals(RtmpMessage.VIDEO, video.type);
+        assertEquals(1, video.streamId);
+        assertEquals(40, video.timestamp);
+        assertArrayEquals(first, Arrays.copyOf(video.payload, video.length));
+        assertEquals(0x1000000, audio.timestamp);
+        assertArrayEquals(second, Arrays.copyOf(audio.payload, audio.length));
+        assertEquals(out.size(), reader.getBytesRead());
+    }
+
+    @Test
+    public void encodesAndDecodesAmf0Values() {
+        Map<String, Object> properties = new LinkedHashMap<String, Object>();
+        properties.put("app", "live");
+        properties.put("stereo", true);
+        byte[] data = new Amf0().write("connect").write(1.0).write(properties).write(null).toByteArray();
+
+        List<Object> values = Amf0.read(data, data.length);
+
+        assertEquals("connect", values.get(0));
+        assertEquals(1.0, values.get(1));
+        assertEquals(properties, values.get(2));
+        assertNull(values.get(3));
+    }
+}
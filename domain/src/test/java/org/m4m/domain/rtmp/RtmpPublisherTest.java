@@ -0,0 +1,333 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.domain.rtmp;
+
+import org.m4m.StreamingParameters;
+import org.m4m.domain.IMediaCodec;
+import org.m4m.domain.TestBase;
+import org.m4m.domain.mp4.Mp4Extractor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RtmpPublisherTest extends TestBase {
+    private RtmpServerStub server;
+    private Mp4Extractor extractor;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new RtmpServerStub().start();
+        extractor = new Mp4Extractor(create.mp4File().withVideoSamples(30, 10).withAudioSamples(43).construct().getPath());
+    }
+
+    @After
+    public void stopServer() throws IOException {
+        server.close();
+        extractor.release();
+    }
+
+    @Test
+    public void publishesMetadataAndSequenceHeadersFirst() throws Exception {
+        publishAll(new RtmpPublisher(parameters(server.getPort())));
+
+        List<RtmpMessage> messages = server.getMessages();
+        List<Object> metadata = Amf0.read(messages.get(0).payload, messages.get(0).length);
+        assertEquals("@setDataFrame", metadata.get(0));
+        assertEquals("onMetaData", metadata.get(1));
+        assertEquals(320.0, ((Map<?, ?>) metadata.get(2)).get("width"));
+        assertEquals(44100.0, ((Map<?, ?>) metadata.get(2)).get("audiosamplerate"));
+
+        RtmpMessage video = messages.get(1);
+        assertEquals(RtmpMessage.VIDEO, video.type);
+        assertEquals(0x17, video.payload[0]);
+        assertEquals(0, video.payload[1]);
+        assertEquals(1, video.payload[5]);
+
+        RtmpMessage audio = messages.get(2);
+        assertEquals(RtmpMessage.AUDIO, audio.type);
+        assertArrayEquals(new byte[]{(byte) 0xaf, 0, 0x12, 0x10}, audio.payload);
+
+        assertEquals("[connect, releaseStream test, FCPublish test, createStream, publish test, FCUnpublish test, deleteStream 1.0]",
+                server.getCommands().toString());
+    }
+
+    @Test
+    public void publishesSamplesAsFlvTags() throws Exception {
+        publishAll(new RtmpPublisher(parameters(server.getPort())));
+
+        List<RtmpMessage> video = new ArrayList<RtmpMessage>();
+        int audio = 0;
+        for (RtmpMessage message : server.getMessages().subList(3, server.getMessages().size())) {
+            if (message.type == RtmpMessage.VIDEO) {
+                video.add(message);
+            } else if (message.type == RtmpMessage.AUDIO) {
+                assertEquals(1, message.payload[1]);
+                audio++;
+            }
+        }
+        assertEquals(43, audio);
+        assertEquals(30, video.size());
+
+        assertEquals(0x17, video.get(10).payload[0]);
+        assertEquals(0x27, video.get(11).payload[0]);
+        assertEquals(1, video.get(11).payload[1]);
+        assertEquals(333, video.get(10).timestamp);
+        assertEquals(11, video.get(11).payload[5]);
+        assertEquals(video.get(11).length - 5, sampleSize(0, 11));
+    }
+
+    @Test
+    public void reportsSendStatistics() throws Exception {
+        RtmpPublisher publisher = new RtmpPublisher(parameters(server.getPort()));
+        publishAll(publisher);
+
+        assertEquals(0, publisher.getQueuedPacketCount());
+        assertEquals(0, publisher.getQueuedBytes());
+        assertEquals(0, publisher.getDroppedPacketCount());
+        assertTrue(publisher.getSentBytes() > 0);
+        assertTrue(publisher.getBitrate() > 0);
+        assertTrue(publisher.getRoundTripTimeMs() >= 0);
+    }
+
+    @Test
+    public void dropsSamplesInsteadOfBlockingWhenServerStalls() throws Exception {
+        ServerSocket silent = new ServerSocket(0);
+        RtmpPublisher publisher = new RtmpPublisher(parameters(silent.getLocalPort()), 2000, RtmpPublisher.DEFAULT_MAX_LATENCY_MS);
+        addTracks(publisher);
+        publisher.start();
+
+        long start = System.currentTimeMillis();
+        write(publisher);
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        assertTrue(publisher.getDroppedPacketCount() > 0);
+        assertTrue(publisher.getQueuedPacketCount() >= 43);
+
+        silent.close();
+        publisher.stop();
+    }
+
+    @Test
+    public void reportsConnectionFailureOnWrite() throws Exception {
+        ServerSocket closed = new ServerSocket(0);
+        int port = closed.getLocalPort();
+        closed.close();
+
+        RtmpPublisher publisher = new RtmpPublisher(parameters(port));
+        addTracks(publisher);
+        publisher.start();
+
+        IMediaCodec.BufferInfo bufferInfo = new IMediaCodec.BufferInfo();
+        bufferInfo.size = 1;
+        long deadline = System.currentTimeMillis() + 5000;
+        boolean failed = false;
+        while (!failed && System.currentTimeMillis() < deadline) {
+            try {
+                publisher.writeSampleData(1, ByteBuffer.allocate(1), bufferInfo);
+                Thread.sleep(10);
+            } catch (RuntimeException e) {
+                failed = true;
+            }
+        }
+        publisher.stop();
+        assertTrue(failed);
+    }
+
+    @Test
+    public void failsStreamWhenUplinkStallsCompletely() throws Exception {
+        final AtomicBoolean stalled = new AtomicBoolean();
+        RtmpServerStub stalling = new RtmpServerStub() {
+            @Override
+            protected InputStream input(Socket socket) throws IOException {
+                return new FilterInputStream(socket.getInputStream()) {
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        while (stalled.get()) {
+                            try {
+                                Thread.sleep(10);
+                            } catch (InterruptedException e) {
+                                throw new InterruptedIOException();
+                            }
+                        }
+                        return super.read(b, off, len);
+                    }
+                };
+            }
+        }.start();
+        RtmpPublisher publisher = new RtmpPublisher(parameters(stalling.getPort()), 1024 * 1024, 60000);
+        publisher.setWriteTimeout(200);
+        addTracks(publisher);
+        publisher.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!stalling.getCommands().contains("publish test") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        stalled.set(true);
+
+        IMediaCodec.BufferInfo bufferInfo = new IMediaCodec.BufferInfo();
+        boolean failed = false;
+        deadline = System.currentTimeMillis() + 10000;
+        for (int frame = 0; !failed && System.currentTimeMillis() < deadline; frame++) {
+            try {
+                bufferInfo.presentationTimeUs = frame * 1000000L / 30;
+                bufferInfo.size = 64 * 1024;
+                bufferInfo.flags = 1;
+                publisher.writeSampleData(0, ByteBuffer.allocate(bufferInfo.size), bufferInfo);
+                bufferInfo.size = 200;
+                bufferInfo.flags = 0;
+                publisher.writeSampleData(1, ByteBuffer.allocate(bufferInfo.size), bufferInfo);
+                Thread.sleep(1);
+            } catch (RuntimeException e) {
+                failed = true;
+            }
+        }
+        assertTrue(failed);
+        assertEquals(0, publisher.getQueuedPacketCount());
+
+        publisher.stop();
+        stalled.set(false);
+        stalling.close();
+    }
+
+    @Test
+    public void shedsVideoButKeepsAudioAndDecodabilityOnThrottledUplink() throws Exception {
+        RtmpServerStub throttled = new RtmpServerStub() {
+            @Override
+            protected InputStream input(Socket socket) throws IOException {
+                return new ThrottledInputStream(socket.getInputStream(), 64 * 1024);
+            }
+        }.start();
+        RtmpPublisher publisher = new RtmpPublisher(parameters(throttled.getPort()), 48 * 1024, 1000);
+        addTracks(publisher);
+        publisher.start();
+
+        IMediaCodec.BufferInfo bufferInfo = new IMediaCodec.BufferInfo();
+        int audioFrames = 0;
+        for (int frame = 0; frame < 90; frame++) {
+            long time = frame * 1000000L / 30;
+            boolean key = frame % 30 == 0;
+            boolean reference = key || frame % 2 == 1;
+            byte[] sample = new byte[key ? 4000 : 1500];
+            sample[2] = (byte) ((sample.length - 4) >> 8);
+            sample[3] = (byte) (sample.length - 4);
+            sample[4] = (byte) (key ? 0x65 : reference ? 0x41 : 0x01);
+            sample[5] = (byte) frame;
+            bufferInfo.size = sample.length;
+            bufferInfo.presentationTimeUs = time;
+            bufferInfo.flags = key ? 1 : 0;
+            publisher.writeSampleData(0, ByteBuffer.wrap(sample), bufferInfo);
+
+            while (audioFrames * 1024 * 1000000L / 44100 <= time) {
+                bufferInfo.size = 200;
+                bufferInfo.presentationTimeUs = audioFrames * 1024 * 1000000L / 44100;
+                bufferInfo.flags = 0;
+                publisher.writeSampleData(1, ByteBuffer.allocate(200), bufferInfo);
+                audioFrames++;
+            }
+        }
+        publisher.stop();
+        throttled.awaitDisconnect(5000);
+        throttled.close();
+
+        int audio = 0;
+        int lastReference = -1;
+        for (RtmpMessage message : throttled.getMessages().subList(3, throttled.getMessages().size())) {
+            if (message.type == RtmpMessage.AUDIO) {
+                audio++;
+                continue;
+            }
+            int frame = message.payload[10] & 0xff;
+            int header = message.payload[9];
+            if (header == 0x65) {
+                lastReference = frame;
+            } else if (header == 0x41) {
+                int previous = (frame - 1) % 30 == 0 ? frame - 1 : frame - 2;
+                assertEquals("Reference frame " + frame + " follows a dropped reference frame.", previous, lastReference);
+                lastReference = frame;
+            }
+        }
+        assertEquals(audioFrames, audio);
+        assertTrue(publisher.getDroppedPacketCount(DropReason.NON_REFERENCE_FRAME) > 0);
+        assertTrue(publisher.getDroppedPacketCount(DropReason.GROUP_OF_PICTURES) + publisher.getDroppedPacketCount(DropReason.LATENCY) > 0);
+    }
+
+    private StreamingParameters parameters(int port) {
+        StreamingParameters parameters = create.streamingParameters().construct();
+        parameters.Host = "127.0.0.1";
+        parameters.Port = port;
+        parameters.ApplicationName = "live";
+        parameters.StreamName = "test";
+        parameters.isToPublishAudio = true;
+        parameters.isToPublishVideo = true;
+        return parameters;
+    }
+
+    private void publishAll(RtmpPublisher publisher) throws InterruptedException {
+        addTracks(publisher);
+        publisher.start();
+        write(publisher);
+        publisher.stop();
+        server.awaitDisconnect(5000);
+    }
+
+    private void addTracks(RtmpPublisher publisher) {
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            publisher.addTrack(extractor.getTrackFormat(i));
+            extractor.selectTrack(i);
+        }
+    }
+
+    private void write(RtmpPublisher publisher) {
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        IMediaCodec.BufferInfo bufferInfo = new IMediaCodec.BufferInfo();
+        while (extractor.getSampleTrackIndex() >= 0) {
+            bufferInfo.size = extractor.readSampleData(buffer);
+            bufferInfo.presentationTimeUs = extractor.getSampleTime();
+            bufferInfo.flags = extractor.getSampleFlags();
+            publisher.writeSampleData(extractor.getSampleTrackIndex(), buffer, bufferInfo);
+            extractor.advance();
+        }
+    }
+
+    private int sampleSize(int track, int sample) {
+        extractor.seekTo(0, 0);
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        int index = 0;
+        while (extractor.getSampleTrackIndex() >= 0) {
+            if (extractor.getSampleTrackIndex() == track && index++ == sample) {
+                return extractor.readSampleData(buffer);
+            }
+            extractor.advance();
+        }
+        return -1;
+    }
+}
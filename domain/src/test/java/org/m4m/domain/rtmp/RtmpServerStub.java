@@ -0,0 +1,180 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.domain.rtmp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Accepts one RTMP publisher, answers its setup commands, acknowledges received bytes and records
+ * received commands and media messages.
+ */
+class RtmpServerStub {
+    private final ServerSocket server;
+    private final List<RtmpMessage> messages = new ArrayList<RtmpMessage>();
+    private final List<String> commands = new ArrayList<String>();
+    private Thread thread;
+    private Socket socket;
+
+    RtmpServerStub() throws IOException {
+        server = new ServerSocket(0);
+    }
+
+    int getPort() {
+        return server.getLocalPort();
+    }
+
+    RtmpServerStub start() {
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    serve();
+                } catch (IOException e) {
+                    // Publisher disconnected.
+                }
+            }
+        }, "RtmpServerStub");
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+
+    /**
+     * @return Audio, video and data messages received so far.
+     */
+    List<RtmpMessage> getMessages() {
+        synchronized (messages) {
+            return new ArrayList<RtmpMessage>(messages);
+        }
+    }
+
+    List<String> getCommands() {
+        synchronized (messages) {
+            return new ArrayList<String>(commands);
+        }
+    }
+
+    void awaitDisconnect(long timeoutMs) throws InterruptedException {
+        thread.join(timeoutMs);
+    }
+
+    void close() throws IOException {
+        server.close();
+        Socket accepted = socket;
+        if (accepted != null) {
+            accepted.close();
+        }
+    }
+
+    protected InputStream input(Socket socket) throws IOException {
+        return socket.getInputStream();
+    }
+
+    private void serve() throws IOException {
+        socket = server.accept();
+        InputStream in = input(socket);
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+
+        DataInputStream handshake = new DataInputStream(in);
+        byte[] c1 = new byte[RtmpConnection.HANDSHAKE_SIZE];
+        handshake.readUnsignedByte();
+        handshake.readFully(c1);
+        out.write(3);
+        out.write(new byte[RtmpConnection.HANDSHAKE_SIZE]);
+        out.write(c1);
+        out.flush();
+        handshake.readFully(new byte[RtmpConnection.HANDSHAKE_SIZE]);
+
+        RtmpChunkStream chunks = new RtmpChunkStream(new BufferedInputStream(in), out);
+        long window = 0;
+        long acknowledged = 0;
+        while (true) {
+            RtmpMessage message = chunks.readMessage();
+            switch (message.type) {
+                case RtmpMessage.SET_CHUNK_SIZE:
+                    chunks.setInChunkSize(message.getInt(0));
+                    break;
+                case RtmpMessage.WINDOW_ACKNOWLEDGEMENT_SIZE:
+                    window = message.getInt(0);
+                    break;
+                case RtmpMessage.COMMAND:
+                    onCommand(chunks, Amf0.read(message.payload, message.length));
+                    break;
+                case RtmpMessage.AUDIO:
+                case RtmpMessage.VIDEO:
+                case RtmpMessage.DATA:
+                    synchronized (messages) {
+                        messages.add(new RtmpMessage(message.type, message.streamId, message.timestamp,
+                                Arrays.copyOf(message.payload, message.length), message.length));
+                    }
+                    break;
+                default:
+                    break;
+            }
+
+            if (window > 0 && chunks.getBytesRead() - acknowledged >= window) {
+                acknowledged = chunks.getBytesRead();
+                int sequence = (int) acknowledged;
+                byte[] payload = {(byte) (sequence >> 24), (byte) (sequence >> 16), (byte) (sequence >> 8), (byte) sequence};
+                chunks.writeMessage(2, RtmpMessage.ACKNOWLEDGEMENT, 0, 0, payload, 4);
+                chunks.flush();
+            }
+        }
+    }
+
+    private void onCommand(RtmpChunkStream chunks, List<Object> command) throws IOException {
+        String name = (String) command.get(0);
+        Object transaction = command.get(1);
+        synchronized (messages) {
+            commands.add(command.size() > 3 ? name + " " + command.get(3) : name);
+        }
+
+        Amf0 response = null;
+        if ("connect".equals(name)) {
+            response = new Amf0().write("_result").write(transaction).write(status("NetConnection.Connect.Success"))
+                    .write(status("NetConnection.Connect.Success"));
+        } else if ("createStream".equals(name)) {
+            response = new Amf0().write("_result").write(transaction).write(null).write(1.0);
+        } else if ("publish".equals(name)) {
+            response = new Amf0().write("onStatus").write(0.0).write(null).write(status("NetStream.Publish.Start"));
+        }
+        if (response != null) {
+            byte[] payload = response.toByteArray();
+            chunks.writeMessage(3, RtmpMessage.COMMAND, 0, 0, payload, payload.length);
+            chunks.flush();
+        }
+    }
+
+    private static Map<String, Object> status(String code) {
+        Map<String, Object> status = new LinkedHashMap<String, Object>();
+        status.put("level", "status");
+        status.put("code", code);
+        return status;
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2014-2016 Media for Mobile
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.m4m.domain.rtmp;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * Limits reading from a stream to a number of bytes per second.
+ */
+class ThrottledInputStream extends FilterInputStream {
+    private static final int MAX_READ = 512;
+
+    private final long bytesPerSecond;
+    private final long start = System.nanoTime();
+    private long read;
+
+    ThrottledInputStream(InputStream in, long bytesPerSecond) {
+        super(in);
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    @Override
+    public int read() throws IOException {
+        throttle();
+        int value = super.read();
+        if (value >= 0) {
+            read++;
+        }
+        return value;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        throttle();
+        int count = super.read(b, off, Math.min(len, MAX_READ));
+        if (count > 0) {
+            read += count;
+        }
+        return count;
+    }
+
+    private void throttle() throws IOException {
+        long due = start + read * 1000000000L / bytesPerSecond;
+        long wait = due - System.nanoTime();
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+}